@@ -0,0 +1,264 @@
+package com.wavefront.integrations.metrics;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.wavefront.integrations.WavefrontSender;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests around {@link WavefrontReporter}.
+ */
+public class WavefrontReporterTest {
+  private static final String SUPPRESSED = "wavefront-reporter.suppressed";
+  private static final String DELTA_COUNT = WavefrontReporter.DELTA_PREFIX + "requests.count";
+
+  private final MetricRegistry registry = new MetricRegistry();
+  private final RecordingSender sender = new RecordingSender();
+  private final Clock clock = new Clock() {
+    @Override
+    public long getTick() {
+      return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long getTime() {
+      return millis;
+    }
+  };
+  private long millis = 1485224035000L;
+  private Counter counter;
+  private int gaugeValue = 7;
+
+  /**
+   * Keeps the points of the reports that were flushed, and fails flushes on demand.
+   */
+  private static class RecordingSender implements WavefrontSender {
+    private final List<Map<String, Double>> reports = new ArrayList<Map<String, Double>>();
+    private Map<String, Double> pending = new LinkedHashMap<String, Double>();
+    private boolean connected;
+    private int failures;
+    private boolean failNextFlush;
+
+    @Override
+    public void connect() {
+      connected = true;
+    }
+
+    @Override
+    public void send(String name, double value) {
+      send(name, value, null, null, null);
+    }
+
+    @Override
+    public void send(String name, double value, @Nullable Long timestamp) {
+      send(name, value, timestamp, null, null);
+    }
+
+    @Override
+    public void send(String name, double value, @Nullable Long timestamp, String source) {
+      send(name, value, timestamp, source, null);
+    }
+
+    @Override
+    public void send(String name, double value, @Nullable Long timestamp, String source,
+                     @Nullable Map<String, String> pointTags) {
+      pending.put(name, value);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      Map<String, Double> report = pending;
+      pending = new LinkedHashMap<String, Double>();
+      if (failNextFlush) {
+        failNextFlush = false;
+        failures++;
+        throw new IOException("Broken pipe");
+      }
+      reports.add(report);
+    }
+
+    @Override
+    public boolean isConnected() {
+      return connected;
+    }
+
+    @Override
+    public int getFailureCount() {
+      return failures;
+    }
+
+    @Override
+    public void close() {
+      connected = false;
+    }
+  }
+
+  @Before
+  public void setUp() {
+    counter = registry.counter("requests");
+    registry.register("queue", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return gaugeValue;
+      }
+    });
+    registry.histogram("latency").update(10);
+  }
+
+  private Map<String, Double> report(WavefrontReporter reporter) {
+    int reports = sender.reports.size();
+    reporter.report();
+    assertEquals(reports + 1, sender.reports.size());
+    return sender.reports.get(reports);
+  }
+
+  @Test
+  public void testUnchangedCountersAndGaugesAreSuppressed() {
+    counter.inc(3);
+    WavefrontReporter reporter = WavefrontReporter.forRegistry(registry).withClock(clock)
+        .reportChangesOnly(5, TimeUnit.MINUTES).build(sender);
+
+    Map<String, Double> points = report(reporter);
+    assertEquals(3, points.get("requests.count"), 0);
+    assertEquals(7, points.get("queue"), 0);
+    assertEquals(0, points.get(SUPPRESSED), 0);
+
+    millis += 60000;
+    points = report(reporter);
+    assertFalse(points.containsKey("requests.count"));
+    assertFalse(points.containsKey("queue"));
+    assertEquals(2, points.get(SUPPRESSED), 0);
+    assertEquals(2, reporter.getSuppressedCount());
+    // histograms are always reported
+    assertEquals(1, points.get("latency.count"), 0);
+    assertEquals(10, points.get("latency.max"), 0);
+
+    counter.inc();
+    gaugeValue = 8;
+    millis += 60000;
+    points = report(reporter);
+    assertEquals(4, points.get("requests.count"), 0);
+    assertEquals(8, points.get("queue"), 0);
+    assertEquals(0, points.get(SUPPRESSED), 0);
+  }
+
+  @Test
+  public void testUnchangedMetricsAreRefreshed() {
+    WavefrontReporter reporter = WavefrontReporter.forRegistry(registry).withClock(clock)
+        .reportChangesOnly(5, TimeUnit.MINUTES).build(sender);
+    assertTrue(report(reporter).containsKey("queue"));
+    millis += TimeUnit.MINUTES.toMillis(5) - 1;
+    assertFalse(report(reporter).containsKey("queue"));
+    millis += 1;
+    assertEquals(7, report(reporter).get("queue"), 0);
+    // the refresh period starts over
+    millis += 60000;
+    assertFalse(report(reporter).containsKey("queue"));
+  }
+
+  @Test
+  public void testDeltaCounters() {
+    WavefrontReporter reporter = WavefrontReporter.forRegistry(registry).withClock(clock)
+        .withDeltaCounters().build(sender);
+    counter.inc(5);
+    Map<String, Double> points = report(reporter);
+    assertEquals(5, points.get(DELTA_COUNT), 0);
+    assertFalse(points.containsKey("requests.count"));
+    assertEquals(0, points.get(SUPPRESSED), 0);
+
+    counter.inc(3);
+    assertEquals(3, report(reporter).get(DELTA_COUNT), 0);
+    counter.dec(2);
+    assertEquals(-2, report(reporter).get(DELTA_COUNT), 0);
+
+    // zero deltas are skipped, gauges are still sent every time without reportChangesOnly
+    points = report(reporter);
+    assertFalse(points.containsKey(DELTA_COUNT));
+    assertEquals(7, points.get("queue"), 0);
+    assertEquals(1, points.get(SUPPRESSED), 0);
+    assertEquals(1, reporter.getSuppressedCount());
+  }
+
+  @Test
+  public void testValuesAreRecordedOnlyOnceFlushed() {
+    WavefrontReporter reporter = WavefrontReporter.forRegistry(registry).withClock(clock)
+        .reportChangesOnly(5, TimeUnit.MINUTES).withDeltaCounters().build(sender);
+    counter.inc(5);
+    sender.failNextFlush = true;
+    reporter.report();
+    assertTrue(sender.reports.isEmpty());
+    assertEquals(1, sender.getFailureCount());
+
+    // what the failed report sent is sent again
+    counter.inc(2);
+    millis += 60000;
+    Map<String, Double> points = report(reporter);
+    assertEquals(7, points.get(DELTA_COUNT), 0);
+    assertEquals(7, points.get("queue"), 0);
+    assertEquals(0, points.get(SUPPRESSED), 0);
+    assertTrue(sender.isConnected());
+
+    millis += 60000;
+    points = report(reporter);
+    assertFalse(points.containsKey(DELTA_COUNT));
+    assertFalse(points.containsKey("queue"));
+    assertEquals(2, points.get(SUPPRESSED), 0);
+  }
+
+  @Test
+  public void testLargeRegistryIsSnapshotInParallel() {
+    int numHistograms = WavefrontReporter.CHUNK_SIZE * 10 + 1;
+    for (int i = 0; i < numHistograms; i++) {
+      Histogram histogram = registry.histogram(String.format("histogram%05d", i));
+      for (int j = 0; j <= i % 10; j++) {
+        histogram.update(i);
+      }
+    }
+    WavefrontReporter reporter = WavefrontReporter.forRegistry(registry).withClock(clock)
+        .withReportingThreads(4).build(sender);
+    Map<String, Double> points = report(reporter);
+    List<String> names = new ArrayList<String>(points.keySet());
+    int previous = -1;
+    for (int i = 0; i < numHistograms; i++) {
+      String name = String.format("histogram%05d", i);
+      assertEquals(i % 10 + 1, points.get(name + ".count"), 0);
+      assertEquals(i, points.get(name + ".max"), 0);
+      // sent in registry order
+      int index = names.indexOf(name + ".count");
+      assertTrue(index > previous);
+      previous = index;
+    }
+    assertEquals(numHistograms + 3, reporter.getLastMetricCount());
+    reporter.stop();
+  }
+
+  @Test
+  public void testNoSuppressedPointByDefault() {
+    WavefrontReporter reporter = WavefrontReporter.forRegistry(registry).withClock(clock).build(sender);
+    counter.inc();
+    report(reporter);
+    Map<String, Double> points = report(reporter);
+    assertEquals(1, points.get("requests.count"), 0);
+    assertEquals(7, points.get("queue"), 0);
+    assertFalse(points.containsKey(SUPPRESSED));
+    assertEquals(0, reporter.getSuppressedCount());
+  }
+}
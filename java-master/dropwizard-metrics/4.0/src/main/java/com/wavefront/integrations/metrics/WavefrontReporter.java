@@ -4,11 +4,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.dropwizard.metrics.jvm.ThreadStatesGaugeSet;
+import com.wavefront.integrations.UdpWavefront;
 import com.wavefront.integrations.Wavefront;
 import com.wavefront.integrations.WavefrontSender;
+import com.wavefront.metrics.DatagramWriter;
 
 import io.dropwizard.metrics.Clock;
 import io.dropwizard.metrics.Counter;
+import io.dropwizard.metrics.Counting;
 import io.dropwizard.metrics.Gauge;
 import io.dropwizard.metrics.Histogram;
 import io.dropwizard.metrics.Meter;
@@ -16,7 +19,9 @@ import io.dropwizard.metrics.Metered;
 import io.dropwizard.metrics.MetricFilter;
 import io.dropwizard.metrics.MetricName;
 import io.dropwizard.metrics.MetricRegistry;
+import io.dropwizard.metrics.MetricRegistryListener;
 import io.dropwizard.metrics.ScheduledReporter;
+import io.dropwizard.metrics.Sampling;
 import io.dropwizard.metrics.Snapshot;
 import io.dropwizard.metrics.Timer;
 import io.dropwizard.metrics.jvm.BufferPoolMetricSet;
@@ -26,18 +31,37 @@ import io.dropwizard.metrics.jvm.GarbageCollectorMetricSet;
 import io.dropwizard.metrics.jvm.MemoryUsageGaugeSet;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A reporter which publishes metric values to a Wavefront Proxy.
  *
  */
 public class WavefrontReporter extends ScheduledReporter {
+  /**
+   * Prefix of the names of delta counters, whose values the proxy adds up rather than replacing.
+   */
+  public static final String DELTA_PREFIX = "\u2206";
+
   /**
    * Returns a new {@link Builder} for {@link WavefrontReporter}.
    *
@@ -63,6 +87,10 @@ public class WavefrontReporter extends ScheduledReporter {
     private String source;
     private Map<String, String> reporterPTags;
     private boolean includeJvmMetrics;
+    private int maxDatagramSize;
+    private long refreshMillis;
+    private boolean deltaCounters;
+    private int reportingThreads;
 
     private Builder(MetricRegistry registry) {
       this.registry = registry;
@@ -74,6 +102,10 @@ public class WavefrontReporter extends ScheduledReporter {
       this.source = "dropwizard-metrics";
       this.reporterPTags = new HashMap<String, String>();
       this.includeJvmMetrics = false;
+      this.maxDatagramSize = 0;
+      this.refreshMillis = 0;
+      this.deltaCounters = false;
+      this.reportingThreads = DEFAULT_REPORTING_THREADS;
     }
 
     /**
@@ -187,16 +219,94 @@ public class WavefrontReporter extends ScheduledReporter {
     }
 
     /**
-     * Builds a {@link WavefrontReporter} with the given properties, sending metrics using the
-     * given {@link WavefrontSender}.
+     * Send points over UDP instead of TCP, as many as fit into a datagram of
+     * {@link DatagramWriter#DEFAULT_MAX_DATAGRAM_SIZE} bytes. Points may be lost, but reporting never blocks on the
+     * proxy. The proxy only listens for datagrams when started with {@code --datagramListeners}.
+     *
+     * @return {@code this}
+     */
+    public Builder withDatagrams() {
+      return withDatagrams(DatagramWriter.DEFAULT_MAX_DATAGRAM_SIZE);
+    }
+
+    /**
+     * Send points over UDP instead of TCP, as many as fit into a datagram of the given size. The proxy only listens
+     * for datagrams when started with {@code --datagramListeners}.
+     *
+     * @param maxDatagramSize the size of a datagram in bytes at most
+     * @return {@code this}
+     */
+    public Builder withDatagrams(int maxDatagramSize) {
+      this.maxDatagramSize = maxDatagramSize;
+      return this;
+    }
+
+    /**
+     * Only report counters and gauges whose value changed since they were last sent, sending each of them again at
+     * least once per the given period so that its series doesn't go stale. Histograms, meters and timers are always
+     * reported. The number of metrics skipped in each report is sent as {@code wavefront-reporter.suppressed}.
+     *
+     * @param refresh the longest time an unchanged counter or gauge goes unreported
+     * @param unit    the unit of {@code refresh}
+     * @return {@code this}
+     */
+    public Builder reportChangesOnly(long refresh, TimeUnit unit) {
+      if (refresh <= 0) {
+        throw new IllegalArgumentException("refresh must be positive");
+      }
+      this.refreshMillis = unit.toMillis(refresh);
+      return this;
+    }
+
+    /**
+     * Report counters as delta counters, i.e. by how much they changed since they were last sent, named with
+     * {@link WavefrontReporter#DELTA_PREFIX}. Counters that didn't change aren't sent. A report that fails is
+     * included in the next delta, so a report that fails after some of it was delivered may count twice.
+     *
+     * @return {@code this}
+     */
+    public Builder withDeltaCounters() {
+      this.deltaCounters = true;
+      return this;
+    }
+
+    /**
+     * Take the snapshots of histograms and timers on the given number of threads, ahead of the reporting thread, when
+     * there are more than a few hundred of them. Defaults to half the available processors, at most 4.
      *
-     * @param Wavefront a {@link WavefrontSender}
+     * @param reportingThreads the number of threads, 1 to take every snapshot on the reporting thread
+     * @return {@code this}
+     */
+    public Builder withReportingThreads(int reportingThreads) {
+      if (reportingThreads < 1) {
+        throw new IllegalArgumentException("reportingThreads must be positive");
+      }
+      this.reportingThreads = reportingThreads;
+      return this;
+    }
+
+    /**
+     * Builds a {@link WavefrontReporter} with the given properties, sending metrics to the given Wavefront Proxy.
+     *
+     * @param proxyHostname Wavefront Proxy hostname.
+     * @param proxyPort     Wavefront Proxy port.
      * @return a {@link WavefrontReporter}
      */
     public WavefrontReporter build(String proxyHostname, int proxyPort) {
+      return build(maxDatagramSize > 0 ? new UdpWavefront(proxyHostname, proxyPort, maxDatagramSize) :
+          new Wavefront(proxyHostname, proxyPort));
+    }
+
+    /**
+     * Builds a {@link WavefrontReporter} with the given properties, sending metrics using the given
+     * {@link WavefrontSender}. Datagram settings don't apply, and the reporter closes the sender when stopped.
+     *
+     * @param wavefront a {@link WavefrontSender}
+     * @return a {@link WavefrontReporter}
+     */
+    public WavefrontReporter build(WavefrontSender wavefront) {
       return new WavefrontReporter(registry,
-                                   proxyHostname,
-                                   proxyPort,
+                                   wavefront,
                                    clock,
                                    prefix,
                                    source,
@@ -204,21 +314,76 @@ public class WavefrontReporter extends ScheduledReporter {
                                    rateUnit,
                                    durationUnit,
                                    filter,
-                                   includeJvmMetrics);
+                                   includeJvmMetrics,
+                                   refreshMillis,
+                                   deltaCounters,
+                                   reportingThreads);
     }
   }
 
   private static final Logger LOGGER = LoggerFactory.getLogger(WavefrontReporter.class);
+  // histograms and timers whose snapshots are taken per task
+  static final int CHUNK_SIZE = 256;
+  private static final int DEFAULT_REPORTING_THREADS =
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+  private static final AtomicInteger threadIds = new AtomicInteger();
+
+  private static final MetricName SUPPRESSED = MetricName.build("wavefront-reporter", "suppressed");
 
   private final WavefrontSender wavefront;
+  // metric name -> name component ("" for gauges) -> series, dropped when the metric is removed from the registry
+  private final ConcurrentMap<MetricName, ConcurrentMap<String, Reported>> series =
+      new ConcurrentHashMap<MetricName, ConcurrentMap<String, Reported>>();
   private final Clock clock;
   private final MetricName prefix;
   private final String source;
   private final Map<String, String> reporterPTags;
+  // 0 to report unchanged counters and gauges every time
+  private final long refreshMillis;
+  private final boolean deltaCounters;
+  // series sent in the current report, whose values are recorded once the report is flushed
+  private final List<Reported> sent = new ArrayList<Reported>();
+  private WavefrontSender.Series suppressedSeries;
+  private long reportMillis;
+  private int suppressed;
+  private volatile int lastSuppressed;
+  private final int reportingThreads;
+  // takes snapshots ahead of the reporting thread, null with a single reporting thread
+  private final ExecutorService snapshotter;
+  private volatile long lastReportNanos;
+  private volatile int lastMetricCount;
+
+  /**
+   * The snapshot of a histogram or timer, and its count read along with it rather than when the metric is sent.
+   */
+  private static final class Sample {
+    private final long count;
+    private final Snapshot snapshot;
+
+    private <T extends Sampling & Counting> Sample(T metric) {
+      this.count = metric.getCount();
+      this.snapshot = metric.getSnapshot();
+    }
+  }
+
+  /**
+   * A series of a metric, and what was last sent over it.
+   */
+  private static final class Reported {
+    private final WavefrontSender.Series handle;
+    private boolean recorded;
+    private double value;
+    private long millis;
+    // sent in the current report, recorded once it's flushed
+    private double pending;
+
+    private Reported(WavefrontSender.Series handle) {
+      this.handle = handle;
+    }
+  }
 
   private WavefrontReporter(MetricRegistry registry,
-                            String proxyHostname,
-                            int proxyPort,
+                            WavefrontSender wavefront,
                             final Clock clock,
                             String prefix,
                             String source,
@@ -226,14 +391,56 @@ public class WavefrontReporter extends ScheduledReporter {
                             TimeUnit rateUnit,
                             TimeUnit durationUnit,
                             MetricFilter filter,
-                            boolean includeJvmMetrics) {
+                            boolean includeJvmMetrics,
+                            long refreshMillis,
+                            boolean deltaCounters,
+                            int reportingThreads) {
 
     super(registry, "wavefront-reporter", filter, rateUnit, durationUnit);
-    this.wavefront = new Wavefront(proxyHostname, proxyPort);
+    this.wavefront = wavefront;
     this.clock = clock;
     this.prefix = MetricName.build(prefix);
     this.source = source;
     this.reporterPTags = reporterPTags;
+    this.refreshMillis = refreshMillis;
+    this.deltaCounters = deltaCounters;
+    this.reportingThreads = reportingThreads;
+    this.snapshotter = reportingThreads == 1 ? null : Executors.newFixedThreadPool(reportingThreads,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "wavefront-reporter-snapshots-" + threadIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+
+    registry.addListener(new MetricRegistryListener.Base() {
+      @Override
+      public void onGaugeRemoved(MetricName name) {
+        series.remove(name);
+      }
+
+      @Override
+      public void onCounterRemoved(MetricName name) {
+        series.remove(name);
+      }
+
+      @Override
+      public void onHistogramRemoved(MetricName name) {
+        series.remove(name);
+      }
+
+      @Override
+      public void onMeterRemoved(MetricName name) {
+        series.remove(name);
+      }
+
+      @Override
+      public void onTimerRemoved(MetricName name) {
+        series.remove(name);
+      }
+    });
 
     if (includeJvmMetrics) {
       registry.register("jvm.uptime", new Gauge<Long>() {
@@ -263,7 +470,10 @@ public class WavefrontReporter extends ScheduledReporter {
                      SortedMap<MetricName, Histogram> histograms,
                      SortedMap<MetricName, Meter> meters,
                      SortedMap<MetricName, Timer> timers) {
-    final long timestamp = clock.getTime() / 1000;
+    final long start = System.nanoTime();
+    reportMillis = clock.getTime();
+    final long timestamp = reportMillis / 1000;
+    suppressed = 0;
 
     try {
       if (!wavefront.isConnected()) {
@@ -272,27 +482,37 @@ public class WavefrontReporter extends ScheduledReporter {
 
       for (Entry<MetricName, Gauge> entry : gauges.entrySet()) {
         if (entry.getValue().getValue() instanceof Number) {
-          reportGauge(entry.getKey(), entry.getValue(), timestamp, combineTags(reporterPTags, entry));
+          reportGauge(entry.getKey(), entry.getValue(), timestamp);
         }
       }
 
       for (Map.Entry<MetricName, Counter> entry : counters.entrySet()) {
-        reportCounter(entry.getKey(), entry.getValue(), timestamp, combineTags(reporterPTags, entry));
+        reportCounter(entry.getKey(), entry.getValue(), timestamp);
       }
 
-      for (Map.Entry<MetricName, Histogram> entry : histograms.entrySet()) {
-        reportHistogram(entry.getKey(), entry.getValue(), timestamp, combineTags(reporterPTags, entry));
-      }
+      reportSampled(histograms, timestamp);
 
       for (Map.Entry<MetricName, Meter> entry : meters.entrySet()) {
-        reportMetered(entry.getKey(), entry.getValue(), timestamp, combineTags(reporterPTags, entry));
+        reportMetered(entry.getKey(), entry.getValue(), entry.getValue().getCount(), timestamp);
       }
 
-      for (Map.Entry<MetricName, Timer> entry : timers.entrySet()) {
-        reportTimer(entry.getKey(), entry.getValue(), timestamp, combineTags(reporterPTags, entry));
+      reportSampled(timers, timestamp);
+
+      if (refreshMillis > 0 || deltaCounters) {
+        if (suppressedSeries == null) {
+          suppressedSeries = wavefront.series(prefix(SUPPRESSED), source, reporterPTags);
+        }
+        suppressedSeries.send(suppressed, timestamp);
       }
 
       wavefront.flush();
+      for (Reported reported : sent) {
+        reported.recorded = true;
+        reported.value = reported.pending;
+        reported.millis = reportMillis;
+      }
+      lastSuppressed = suppressed;
+      lastMetricCount = gauges.size() + counters.size() + histograms.size() + meters.size() + timers.size();
     } catch (IOException e) {
       LOGGER.warn("Unable to report to Wavefront", wavefront, e);
       try {
@@ -300,14 +520,41 @@ public class WavefrontReporter extends ScheduledReporter {
       } catch (IOException e1) {
         LOGGER.warn("Error closing Wavefront", wavefront, e1);
       }
+    } finally {
+      sent.clear();
+      lastReportNanos = System.nanoTime() - start;
     }
   }
 
+  /**
+   * Returns the number of counters and gauges that weren't sent in the last report because they didn't change.
+   */
+  public int getSuppressedCount() {
+    return lastSuppressed;
+  }
+
+  /**
+   * Returns how long the last report took, in the given unit.
+   */
+  public long getLastReportDuration(TimeUnit unit) {
+    return unit.convert(lastReportNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the number of metrics in the last report that succeeded.
+   */
+  public int getLastMetricCount() {
+    return lastMetricCount;
+  }
+
   @Override
   public void stop() {
     try {
       super.stop();
     } finally {
+      if (snapshotter != null) {
+        snapshotter.shutdownNow();
+      }
       try {
         wavefront.close();
       } catch (IOException e) {
@@ -316,84 +563,180 @@ public class WavefrontReporter extends ScheduledReporter {
     }
   }
 
-  private void reportTimer(MetricName name, Timer timer, long timestamp, Map<String, String> combinedTags) throws IOException {
-    final Snapshot snapshot = timer.getSnapshot();
-
-    wavefront.send(prefix(name, "max"), convertDuration(snapshot.getMax()), timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "mean"), convertDuration(snapshot.getMean()), timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "min"), convertDuration(snapshot.getMin()), timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "stddev"),
-                   convertDuration(snapshot.getStdDev()),
-                   timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "p50"),
-                   convertDuration(snapshot.getMedian()),
-                   timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "p75"),
-                   convertDuration(snapshot.get75thPercentile()),
-                   timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "p95"),
-                   convertDuration(snapshot.get95thPercentile()),
-                   timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "p98"),
-                   convertDuration(snapshot.get98thPercentile()),
-                   timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "p99"),
-                   convertDuration(snapshot.get99thPercentile()),
-                   timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "p999"),
-                   convertDuration(snapshot.get999thPercentile()),
-                   timestamp, source, combinedTags);
-
-    reportMetered(name, timer, timestamp, combinedTags);
+  /**
+   * Returns the {@link WavefrontSender.Series} cached per metric, so the identity of a series is encoded once.
+   */
+  private Reported reported(MetricName name, String component, boolean delta) {
+    // the removal listener may drop the metric concurrently
+    ConcurrentMap<String, Reported> components =
+        series.computeIfAbsent(name, key -> new ConcurrentHashMap<String, Reported>());
+    return components.computeIfAbsent(component == null ? "" : component, key -> {
+      String metric = component == null ? prefix(name) : prefix(name, component);
+      return new Reported(wavefront.series(delta ? DELTA_PREFIX + metric : metric, source,
+          combineTags(reporterPTags, name)));
+    });
+  }
+
+  private void send(MetricName name, String component, double value, long timestamp) throws IOException {
+    reported(name, component, false).handle.send(value, timestamp);
+  }
+
+  /**
+   * Sends a counter or gauge, unless reporting changes only and it was sent with the same value recently.
+   */
+  private void sendIfChanged(MetricName name, String component, double value, long timestamp) throws IOException {
+    Reported reported = reported(name, component, false);
+    if (refreshMillis > 0) {
+      if (reported.recorded && Double.compare(value, reported.value) == 0 &&
+          reportMillis - reported.millis < refreshMillis) {
+        suppressed++;
+        return;
+      }
+      reported.pending = value;
+      sent.add(reported);
+    }
+    reported.handle.send(value, timestamp);
+  }
+
+  /**
+   * Reports histograms or timers. Taking a snapshot copies a reservoir, which is most of the work of reporting a large
+   * registry, so when there are more than a chunk of them the snapshots are taken on the pool, at most two chunks per
+   * thread ahead of the metrics being sent. Metrics are still sent in order from the reporting thread.
+   */
+  private <T extends Sampling & Counting> void reportSampled(SortedMap<MetricName, T> metrics, long timestamp)
+      throws IOException {
+    if (snapshotter == null || metrics.size() <= CHUNK_SIZE) {
+      for (Map.Entry<MetricName, T> entry : metrics.entrySet()) {
+        reportSampled(entry.getKey(), entry.getValue(), new Sample(entry.getValue()), timestamp);
+      }
+      return;
+    }
+    List<Map.Entry<MetricName, T>> entries = new ArrayList<Map.Entry<MetricName, T>>(metrics.entrySet());
+    Deque<Future<Sample[]>> pending = new ArrayDeque<Future<Sample[]>>();
+    int submitted = 0;
+    int reported = 0;
+    try {
+      while (reported < entries.size()) {
+        while (submitted < entries.size() && pending.size() < 2 * reportingThreads) {
+          final List<Map.Entry<MetricName, T>> chunk =
+              entries.subList(submitted, Math.min(submitted + CHUNK_SIZE, entries.size()));
+          pending.add(snapshotter.submit(new Callable<Sample[]>() {
+            @Override
+            public Sample[] call() {
+              Sample[] samples = new Sample[chunk.size()];
+              for (int i = 0; i < samples.length; i++) {
+                samples[i] = new Sample(chunk.get(i).getValue());
+              }
+              return samples;
+            }
+          }));
+          submitted += chunk.size();
+        }
+        for (Sample sample : await(pending.remove())) {
+          Map.Entry<MetricName, T> entry = entries.get(reported++);
+          reportSampled(entry.getKey(), entry.getValue(), sample, timestamp);
+        }
+      }
+    } finally {
+      for (Future<Sample[]> future : pending) {
+        future.cancel(true);
+      }
+    }
   }
 
-  private void reportMetered(MetricName name, Metered meter, long timestamp, Map<String, String> combinedTags) throws IOException {
-    wavefront.send(prefix(name, "count"), meter.getCount(), timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "m1_rate"),
-                   convertRate(meter.getOneMinuteRate()),
-                   timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "m5_rate"),
-                   convertRate(meter.getFiveMinuteRate()),
-                   timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "m15_rate"),
-                   convertRate(meter.getFifteenMinuteRate()),
-                   timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "mean_rate"),
-                   convertRate(meter.getMeanRate()),
-                   timestamp, source, combinedTags);
+  private static Sample[] await(Future<Sample[]> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while taking snapshots");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
   }
 
-  private void reportHistogram(MetricName name, Histogram histogram, long timestamp, Map<String, String> combinedTags) throws IOException {
-    final Snapshot snapshot = histogram.getSnapshot();
-    wavefront.send(prefix(name, "count"), histogram.getCount(), timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "max"), snapshot.getMax(), timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "mean"), snapshot.getMean(), timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "min"), snapshot.getMin(), timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "stddev"), snapshot.getStdDev(), timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "p50"), snapshot.getMedian(), timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "p75"), snapshot.get75thPercentile(), timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "p95"), snapshot.get95thPercentile(), timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "p98"), snapshot.get98thPercentile(), timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "p99"), snapshot.get99thPercentile(), timestamp, source, combinedTags);
-    wavefront.send(prefix(name, "p999"), snapshot.get999thPercentile(), timestamp, source, combinedTags);
+  private void reportSampled(MetricName name, Sampling metric, Sample sample, long timestamp) throws IOException {
+    if (metric instanceof Timer) {
+      reportTimer(name, (Timer) metric, sample, timestamp);
+    } else {
+      reportHistogram(name, sample, timestamp);
+    }
   }
 
-  private void reportCounter(MetricName name, Counter counter, long timestamp, Map<String, String> combinedTags) throws IOException {
-    wavefront.send(prefix(name, "count"), counter.getCount(), timestamp, source, combinedTags);
+  private void reportTimer(MetricName name, Timer timer, Sample sample, long timestamp) throws IOException {
+    Snapshot snapshot = sample.snapshot;
+    send(name, "max", convertDuration(snapshot.getMax()), timestamp);
+    send(name, "mean", convertDuration(snapshot.getMean()), timestamp);
+    send(name, "min", convertDuration(snapshot.getMin()), timestamp);
+    send(name, "stddev", convertDuration(snapshot.getStdDev()), timestamp);
+    send(name, "p50", convertDuration(snapshot.getMedian()), timestamp);
+    send(name, "p75", convertDuration(snapshot.get75thPercentile()), timestamp);
+    send(name, "p95", convertDuration(snapshot.get95thPercentile()), timestamp);
+    send(name, "p98", convertDuration(snapshot.get98thPercentile()), timestamp);
+    send(name, "p99", convertDuration(snapshot.get99thPercentile()), timestamp);
+    send(name, "p999", convertDuration(snapshot.get999thPercentile()), timestamp);
+
+    reportMetered(name, timer, sample.count, timestamp);
+  }
+
+  private void reportMetered(MetricName name, Metered meter, long count, long timestamp) throws IOException {
+    send(name, "count", count, timestamp);
+    send(name, "m1_rate", convertRate(meter.getOneMinuteRate()), timestamp);
+    send(name, "m5_rate", convertRate(meter.getFiveMinuteRate()), timestamp);
+    send(name, "m15_rate", convertRate(meter.getFifteenMinuteRate()), timestamp);
+    send(name, "mean_rate", convertRate(meter.getMeanRate()), timestamp);
+  }
+
+  private void reportHistogram(MetricName name, Sample sample, long timestamp) throws IOException {
+    Snapshot snapshot = sample.snapshot;
+    send(name, "count", sample.count, timestamp);
+    send(name, "max", snapshot.getMax(), timestamp);
+    send(name, "mean", snapshot.getMean(), timestamp);
+    send(name, "min", snapshot.getMin(), timestamp);
+    send(name, "stddev", snapshot.getStdDev(), timestamp);
+    send(name, "p50", snapshot.getMedian(), timestamp);
+    send(name, "p75", snapshot.get75thPercentile(), timestamp);
+    send(name, "p95", snapshot.get95thPercentile(), timestamp);
+    send(name, "p98", snapshot.get98thPercentile(), timestamp);
+    send(name, "p99", snapshot.get99thPercentile(), timestamp);
+    send(name, "p999", snapshot.get999thPercentile(), timestamp);
+  }
+
+  private void reportCounter(MetricName name, Counter counter, long timestamp) throws IOException {
+    if (!deltaCounters) {
+      sendIfChanged(name, "count", counter.getCount(), timestamp);
+      return;
+    }
+    long count = counter.getCount();
+    Reported reported = reported(name, "count", true);
+    double delta = reported.recorded ? count - reported.value : count;
+    if (delta == 0) {
+      suppressed++;
+      return;
+    }
+    reported.handle.send(delta, timestamp);
+    reported.pending = count;
+    sent.add(reported);
   }
 
-  private void reportGauge(MetricName name, Gauge<Number> gauge, long timestamp, Map<String, String> combinedTags) throws IOException {
-    wavefront.send(prefix(name), gauge.getValue().doubleValue(), timestamp, source, combinedTags);
+  private void reportGauge(MetricName name, Gauge<Number> gauge, long timestamp) throws IOException {
+    sendIfChanged(name, null, gauge.getValue().doubleValue(), timestamp);
   }
 
   private String prefix(MetricName name, String... components) {
     return MetricName.join(MetricName.join(prefix, name), MetricName.build(components)).getKey();
   }
 
-  private Map<String, String> combineTags(Map<String, String> rTags, Map.Entry<MetricName, ?> entry) {
+  private Map<String, String> combineTags(Map<String, String> rTags, MetricName name) {
     Map<String, String> combinedTags = new HashMap<String, String>();
     combinedTags.putAll(rTags);
-    combinedTags.putAll(entry.getKey().getTags());
+    combinedTags.putAll(name.getTags());
     return combinedTags;
   }
 }
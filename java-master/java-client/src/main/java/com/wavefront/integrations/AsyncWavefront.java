@@ -0,0 +1,389 @@
+package com.wavefront.integrations;
+
+import com.wavefront.metrics.ReconnectingSocket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.net.SocketFactory;
+
+/**
+ * Wavefront Client that sends data via TCP to the Wavefront Proxy Agent without blocking the calling thread.
+ *
+ * {@link #send} only formats the point and adds it to a bounded buffer. A background thread writes the buffered points
+ * to the socket in batches, and reconnects when the connection breaks, so a slow or restarting proxy never stalls the
+ * caller. What happens when the buffer is full is decided by the {@link OverflowPolicy}.
+ */
+public class AsyncWavefront implements WavefrontSender {
+  private static final Logger logger = Logger.getLogger(AsyncWavefront.class.getCanonicalName());
+
+  /**
+   * What to do with a point that doesn't fit into the buffer.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Drop the point being sent.
+     */
+    DROP_NEWEST,
+    /**
+     * Drop the oldest buffered point to make room.
+     */
+    DROP_OLDEST,
+    /**
+     * Wait for room, up to a timeout, and drop the point being sent if there's still none.
+     */
+    BLOCK
+  }
+
+  public static final int DEFAULT_CAPACITY = 50000;
+  private static final int BATCH_SIZE = 1000;
+  private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+  private static final AtomicInteger threadIds = new AtomicInteger();
+
+  private final InetSocketAddress address;
+  private final SocketFactory socketFactory;
+  private final int capacity;
+  private final OverflowPolicy overflowPolicy;
+  private final long blockTimeoutNanos;
+  // wake up the background thread whenever this many more points are buffered
+  private final int wakeUpSize;
+  // each buffered point holds one permit until it's taken out of the buffer
+  private final Semaphore permits;
+  private final Queue<String> buffer = new ConcurrentLinkedQueue<>();
+  private final LongAdder queued = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder flushed = new LongAdder();
+  private final LongAdder enqueueNanos = new LongAdder();
+  private final LongAccumulator maxEnqueueNanos = new LongAccumulator(Math::max, 0);
+  private final AtomicInteger failures = new AtomicInteger();
+
+  private volatile Thread flusher;
+  private volatile boolean closed = false;
+  /**
+   * Source to use if there's none.
+   */
+  private volatile String source;
+
+  /**
+   * Creates a new client which connects to the given address using the default {@link SocketFactory}, buffering up to
+   * {@link #DEFAULT_CAPACITY} points and dropping new points when the buffer is full.
+   *
+   * @param agentHostName The hostname of the Wavefront Proxy Agent
+   * @param port          The port of the Wavefront Proxy Agent
+   */
+  public AsyncWavefront(String agentHostName, int port) {
+    this(new InetSocketAddress(agentHostName, port), SocketFactory.getDefault(), DEFAULT_CAPACITY,
+        OverflowPolicy.DROP_NEWEST, 0);
+  }
+
+  /**
+   * Creates a new client which connects to the given address and socket factory.
+   *
+   * @param agentAddress       the address of the Wavefront Proxy Agent
+   * @param socketFactory      the socket factory
+   * @param capacity           the number of points to buffer at most
+   * @param overflowPolicy     what to do with points that don't fit into the buffer
+   * @param blockTimeoutMillis how long to wait for room in the buffer with {@link OverflowPolicy#BLOCK}
+   */
+  public AsyncWavefront(InetSocketAddress agentAddress, SocketFactory socketFactory, int capacity,
+                        OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.address = agentAddress;
+    this.socketFactory = socketFactory;
+    this.capacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+    this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    this.permits = new Semaphore(capacity);
+    this.wakeUpSize = Math.max(1, Math.min(BATCH_SIZE, capacity / 2));
+  }
+
+  private void initializeSource() throws UnknownHostException {
+    if (source == null) {
+      source = InetAddress.getLocalHost().getHostName();
+    }
+  }
+
+  /**
+   * Starts the background thread, which opens the connection.
+   */
+  @Override
+  public synchronized void connect() throws IllegalStateException, IOException {
+    if (closed) {
+      throw new IOException("Already closed");
+    }
+    if (flusher != null) {
+      throw new IllegalStateException("Already connected");
+    }
+    Thread thread = new Thread(this::run, "wavefront-sender-" + threadIds.incrementAndGet());
+    thread.setDaemon(true);
+    thread.start();
+    flusher = thread;
+  }
+
+  @Override
+  public void send(String name, double value) throws IOException {
+    initializeSource();
+    internalSend(name, value, null, source, null);
+  }
+
+  @Override
+  public void send(String name, double value, @Nullable Long timestamp) throws IOException {
+    initializeSource();
+    internalSend(name, value, timestamp, source, null);
+  }
+
+  @Override
+  public void send(String name, double value, @Nullable Long timestamp, String source) throws IOException {
+    internalSend(name, value, timestamp, source, null);
+  }
+
+  @Override
+  public void send(String name, double value, @Nullable Long timestamp, String source,
+                   @Nullable Map<String, String> pointTags) throws IOException {
+    internalSend(name, value, timestamp, source, pointTags);
+  }
+
+  /**
+   * Returns a series whose name, source and point tags are validated and formatted once, so sending a measurement
+   * only formats the value and timestamp.
+   */
+  @Override
+  public Series series(String name, String source, @Nullable Map<String, String> pointTags) {
+    if (Wavefront.isBlank(name)) {
+      throw new IllegalArgumentException("metric name cannot be blank");
+    }
+    String prefix = Wavefront.sanitize(name) + ' ';
+    String suffix = Wavefront.pointSuffix(source, pointTags);
+    return (value, timestamp) -> {
+      StringBuilder sb = new StringBuilder(prefix.length() + suffix.length() + 32).append(prefix).append(value);
+      if (timestamp != null) {
+        sb.append(' ').append(timestamp.longValue());
+      }
+      enqueue(sb.append(suffix).toString());
+    };
+  }
+
+  private void internalSend(String name, double value, @Nullable Long timestamp, String source,
+                            @Nullable Map<String, String> pointTags) throws IOException {
+    enqueue(Wavefront.pointToString(name, value, timestamp, source, pointTags));
+  }
+
+  private void enqueue(String point) throws IOException {
+    if (flusher == null) {
+      try {
+        connect();
+      } catch (IllegalStateException ex) {
+        // already connected.
+      }
+    }
+    if (closed) {
+      throw new IOException("Already closed");
+    }
+    long start = System.nanoTime();
+    if (acquire()) {
+      buffer.offer(point);
+      queued.increment();
+      if ((capacity - permits.availablePermits()) % wakeUpSize == 0) {
+        LockSupport.unpark(flusher);
+      }
+    } else {
+      dropped.increment();
+    }
+    long elapsed = System.nanoTime() - start;
+    enqueueNanos.add(elapsed);
+    maxEnqueueNanos.accumulate(elapsed);
+  }
+
+  /**
+   * @return whether a permit for a new point was acquired
+   */
+  private boolean acquire() {
+    switch (overflowPolicy) {
+      case DROP_OLDEST:
+        while (!permits.tryAcquire()) {
+          // the permit of the dropped point goes to the new one
+          if (buffer.poll() != null) {
+            dropped.increment();
+            return true;
+          }
+          // points are about to be added by other threads
+          Thread.yield();
+        }
+        return true;
+      case BLOCK:
+        try {
+          return permits.tryAcquire(blockTimeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      default:
+        return permits.tryAcquire();
+    }
+  }
+
+  @Nullable
+  private String poll() {
+    String point = buffer.poll();
+    if (point != null) {
+      permits.release();
+    }
+    return point;
+  }
+
+  private void run() {
+    ReconnectingSocket socket = null;
+    String point = null;
+    while (true) {
+      boolean closing = closed;
+      // points handed to the socket since the last flush
+      int written = 0;
+      try {
+        if (socket == null) {
+          socket = new ReconnectingSocket(address.getHostName(), address.getPort(), socketFactory);
+        }
+        while (written < BATCH_SIZE && (point != null || (point = poll()) != null)) {
+          socket.write(point);
+          point = null;
+          written++;
+        }
+        if (written > 0) {
+          socket.flush();
+          flushed.add(written);
+        }
+        if (written < BATCH_SIZE) {
+          if (closing) break;
+          LockSupport.parkNanos(this, FLUSH_INTERVAL_NANOS);
+        }
+      } catch (Exception e) {
+        failures.incrementAndGet();
+        // they may have been buffered by a connection that broke, don't send them twice
+        dropped.add(written);
+        if (closing) break;
+        logger.log(Level.WARNING, "Cannot write to " + address + ", retrying", e);
+        LockSupport.parkNanos(this, RETRY_NANOS);
+      }
+    }
+    int lost = point == null ? 0 : 1;
+    while (poll() != null) {
+      lost++;
+    }
+    dropped.add(lost);
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Cannot close connection to " + address, e);
+      }
+    }
+  }
+
+  /**
+   * Asks the background thread to write the buffered points now. Doesn't wait for them to be written.
+   */
+  @Override
+  public void flush() throws IOException {
+    Thread thread = flusher;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  @Override
+  public boolean isConnected() {
+    return flusher != null && !closed;
+  }
+
+  /**
+   * Returns the number of failed attempts to connect or write to the server.
+   */
+  @Override
+  public int getFailureCount() {
+    return failures.get();
+  }
+
+  /**
+   * Returns the number of points currently buffered.
+   */
+  public int getBufferSize() {
+    return capacity - permits.availablePermits();
+  }
+
+  /**
+   * Returns the number of points accepted into the buffer.
+   */
+  public long getQueuedCount() {
+    return queued.sum();
+  }
+
+  /**
+   * Returns the number of points dropped, because the buffer was full, because they were still buffered on close, or
+   * because the connection failed before they were flushed.
+   */
+  public long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  /**
+   * Returns the number of points written and flushed to the socket.
+   */
+  public long getFlushedCount() {
+    return flushed.sum();
+  }
+
+  /**
+   * Returns the total time callers spent adding points to the buffer, in nanoseconds. Divide by the number of sends
+   * (queued + dropped) for the mean.
+   */
+  public long getEnqueueNanos() {
+    return enqueueNanos.sum();
+  }
+
+  /**
+   * Returns the longest time a caller spent adding a point to the buffer, in nanoseconds.
+   */
+  public long getMaxEnqueueNanos() {
+    return maxEnqueueNanos.get();
+  }
+
+  /**
+   * Writes the buffered points and closes the connection, waiting for at most 5 seconds. Points which couldn't be
+   * written by then are dropped.
+   */
+  @Override
+  public void close() throws IOException {
+    Thread thread;
+    synchronized (this) {
+      closed = true;
+      thread = flusher;
+    }
+    if (thread == null) return;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(CLOSE_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (thread.isAlive()) {
+      logger.warning("Could not write " + getBufferSize() + " buffered points to " + address + " in time");
+    }
+  }
+}
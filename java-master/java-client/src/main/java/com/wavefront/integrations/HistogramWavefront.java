@@ -0,0 +1,454 @@
+package com.wavefront.integrations;
+
+import com.tdunning.math.stats.Centroid;
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+import com.wavefront.metrics.ReconnectingSocket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+import javax.net.SocketFactory;
+
+/**
+ * Wavefront Client that aggregates measurements into histograms in-process, and sends them as distributions to a
+ * histogram port of the Wavefront Proxy Agent instead of sending every measurement.
+ *
+ * Each series (metric name, source and point tags) adds the measurements of a bin (a minute, an hour or a day, see
+ * {@link Granularity}) to a merging t-digest, the algorithm the agent accumulates histograms with, using the same
+ * compression setting. {@link #flush()} sends the bins that have closed, one line per series and bin, e.g.
+ * {@code !M 1476408600 #3 12.5 #1 20.0 "request.latency" host="web-01"}, and {@link #close()} sends the open ones
+ * too. Callers should flush at least once per bin, e.g. from a scheduled reporter.
+ *
+ * Memory is bounded: a t-digest keeps at most about π·compression centroids however many measurements are added, a
+ * series has at most {@link #MAX_OPEN_BINS} bins that haven't been sent, and measurements of series beyond the
+ * maximum number of series are dropped. A series without measurements for a whole flush interval is forgotten, so that
+ * it doesn't count against the maximum.
+ */
+public class HistogramWavefront implements WavefrontSender {
+
+  /**
+   * The interval measurements are aggregated over.
+   */
+  public enum Granularity {
+    MINUTE("!M", 60000L),
+    HOUR("!H", 3600000L),
+    DAY("!D", 86400000L);
+
+    private final String binType;
+    private final long millis;
+
+    Granularity(String binType, long millis) {
+      this.binType = binType;
+      this.millis = millis;
+    }
+  }
+
+  public static final short DEFAULT_COMPRESSION = 100;
+  public static final int DEFAULT_MAX_SERIES = 10000;
+  /**
+   * Bins a series can have that haven't been sent yet, including bins of late or early measurements.
+   */
+  public static final int MAX_OPEN_BINS = 3;
+
+  private final InetSocketAddress address;
+  private final SocketFactory socketFactory;
+  private final Granularity granularity;
+  private final short compression;
+  private final int maxSeries;
+  private final Supplier<Long> millis;
+  private final ConcurrentMap<SeriesKey, Aggregate> aggregates = new ConcurrentHashMap<>();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder lost = new LongAdder();
+  private final AtomicInteger failures = new AtomicInteger();
+
+  private volatile ReconnectingSocket reconnectingSocket;
+  /**
+   * Source to use if there's none.
+   */
+  private volatile String source;
+
+  /**
+   * Creates a new client which aggregates measurements per minute and connects to the given histogram port using the
+   * default {@link SocketFactory}.
+   *
+   * @param agentHostName The hostname of the Wavefront Proxy Agent
+   * @param port          The histogram port of the Wavefront Proxy Agent
+   */
+  public HistogramWavefront(String agentHostName, int port) {
+    this(new InetSocketAddress(agentHostName, port), SocketFactory.getDefault(), Granularity.MINUTE,
+        DEFAULT_COMPRESSION, DEFAULT_MAX_SERIES);
+  }
+
+  /**
+   * Creates a new client which connects to the given histogram port and socket factory.
+   *
+   * @param agentAddress  the address of the histogram port of the Wavefront Proxy Agent
+   * @param socketFactory the socket factory
+   * @param granularity   the interval to aggregate measurements over, which must match the port's
+   * @param compression   the compression of the t-digests, between 20 and 1000 like the agent's
+   * @param maxSeries     the number of series to aggregate at most
+   */
+  public HistogramWavefront(InetSocketAddress agentAddress, SocketFactory socketFactory, Granularity granularity,
+                            short compression, int maxSeries) {
+    this(agentAddress, socketFactory, granularity, compression, maxSeries, System::currentTimeMillis);
+  }
+
+  HistogramWavefront(InetSocketAddress agentAddress, SocketFactory socketFactory, Granularity granularity,
+                     short compression, int maxSeries, Supplier<Long> millis) {
+    if (compression < 20 || compression > 1000) {
+      throw new IllegalArgumentException("compression must be between 20 and 1000");
+    }
+    if (maxSeries <= 0) {
+      throw new IllegalArgumentException("maxSeries must be positive");
+    }
+    this.address = agentAddress;
+    this.socketFactory = socketFactory;
+    this.granularity = granularity;
+    this.compression = compression;
+    this.maxSeries = maxSeries;
+    this.millis = millis;
+  }
+
+  private void initializeSource() throws UnknownHostException {
+    if (source == null) {
+      source = InetAddress.getLocalHost().getHostName();
+    }
+  }
+
+  @Override
+  public synchronized void connect() throws IllegalStateException, IOException {
+    if (reconnectingSocket != null) {
+      throw new IllegalStateException("Already connected");
+    }
+    try {
+      reconnectingSocket = new ReconnectingSocket(address.getHostName(), address.getPort(), socketFactory);
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void send(String name, double value) throws IOException {
+    initializeSource();
+    internalSend(name, value, null, source, null);
+  }
+
+  @Override
+  public void send(String name, double value, @Nullable Long timestamp) throws IOException {
+    initializeSource();
+    internalSend(name, value, timestamp, source, null);
+  }
+
+  @Override
+  public void send(String name, double value, @Nullable Long timestamp, String source) throws IOException {
+    internalSend(name, value, timestamp, source, null);
+  }
+
+  /**
+   * Adds a measurement to the bin of its series that contains the timestamp, or the current time if there's none.
+   * Nothing is sent until the bin is flushed.
+   */
+  @Override
+  public void send(String name, double value, @Nullable Long timestamp, String source,
+                   @Nullable Map<String, String> pointTags) throws IOException {
+    internalSend(name, value, timestamp, source, pointTags);
+  }
+
+  /**
+   * Returns the aggregate of the series directly, so adding a measurement doesn't look the series up.
+   */
+  @Override
+  public Series series(String name, String source, @Nullable Map<String, String> pointTags) {
+    Aggregate aggregate = aggregate(name, source, pointTags);
+    if (aggregate == null) {
+      // there may be room once idle series are forgotten
+      return (value, timestamp) -> internalSend(name, value, timestamp, source, pointTags);
+    }
+    return aggregate;
+  }
+
+  private void internalSend(String name, double value, @Nullable Long timestamp, String source,
+                            @Nullable Map<String, String> pointTags) {
+    Aggregate aggregate = aggregate(name, source, pointTags);
+    if (aggregate == null) {
+      dropped.increment();
+    } else {
+      aggregate.send(value, timestamp);
+    }
+  }
+
+  /**
+   * @return the aggregate of the series, or null if there are too many series already
+   * @throws IllegalArgumentException if the name, source or a point tag is blank
+   */
+  @Nullable
+  private Aggregate aggregate(String name, String source, @Nullable Map<String, String> pointTags) {
+    if (pointTags != null && pointTags.isEmpty()) {
+      pointTags = null;
+    }
+    Aggregate aggregate = aggregates.get(new SeriesKey(name, source, pointTags));
+    if (aggregate != null) {
+      return aggregate;
+    }
+    if (aggregates.size() >= maxSeries) {
+      return null;
+    }
+    // the caller may modify its map later
+    Map<String, String> tags = pointTags == null ? null : new HashMap<>(pointTags);
+    SeriesKey key = new SeriesKey(name, source, tags);
+    Aggregate created = new Aggregate(key);
+    aggregate = aggregates.putIfAbsent(key, created);
+    return aggregate == null ? created : aggregate;
+  }
+
+  /**
+   * Sends the bins that have closed.
+   */
+  @Override
+  public void flush() throws IOException {
+    emit(millis.get());
+  }
+
+  private void emit(long now) throws IOException {
+    if (reconnectingSocket == null && hasClosedBins(now)) {
+      // connect before draining, so that the bins stay for the next flush if the agent can't be reached
+      try {
+        connect();
+      } catch (IllegalStateException ex) {
+        // already connected.
+      } catch (IOException e) {
+        failures.incrementAndGet();
+        throw e;
+      }
+    }
+    List<String> lines = new ArrayList<>();
+    for (Aggregate aggregate : aggregates.values()) {
+      aggregate.drainTo(lines, now);
+    }
+    if (lines.isEmpty() && reconnectingSocket == null) return;
+    synchronized (this) {
+      try {
+        if (reconnectingSocket == null) {
+          // a bin closed by a late measurement after the check above
+          connect();
+        }
+        for (String line : lines) {
+          reconnectingSocket.write(line);
+        }
+        reconnectingSocket.flush();
+      } catch (Exception e) {
+        failures.incrementAndGet();
+        // some may have made it, but there's no telling which
+        lost.add(lines.size());
+        throw new IOException(e);
+      }
+    }
+    sent.add(lines.size());
+  }
+
+  private boolean hasClosedBins(long now) {
+    for (Aggregate aggregate : aggregates.values()) {
+      if (aggregate.hasClosedBins(now)) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean isConnected() {
+    return reconnectingSocket != null;
+  }
+
+  @Override
+  public int getFailureCount() {
+    return failures.get();
+  }
+
+  /**
+   * Returns the number of series measurements are aggregated for.
+   */
+  public int getSeriesCount() {
+    return aggregates.size();
+  }
+
+  /**
+   * Returns the number of histograms sent, one per series and bin.
+   */
+  public long getSentCount() {
+    return sent.sum();
+  }
+
+  /**
+   * Returns the number of histograms that were lost because writing them to the agent failed, one per series and bin.
+   */
+  public long getLostCount() {
+    return lost.sum();
+  }
+
+  /**
+   * Returns the number of measurements dropped, because there were too many series or open bins.
+   */
+  public long getDroppedCount() {
+    return dropped.sum();
+  }
+
+  /**
+   * Sends all bins, including the ones that haven't closed yet, and closes the connection.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      emit(Long.MAX_VALUE);
+    } finally {
+      if (reconnectingSocket != null) {
+        reconnectingSocket.close();
+        reconnectingSocket = null;
+      }
+    }
+  }
+
+  private static final class SeriesKey {
+    private final String name;
+    private final String source;
+    @Nullable
+    private final Map<String, String> pointTags;
+
+    private SeriesKey(String name, String source, @Nullable Map<String, String> pointTags) {
+      this.name = name;
+      this.source = source;
+      this.pointTags = pointTags;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      SeriesKey that = (SeriesKey) o;
+      return Objects.equals(name, that.name) && Objects.equals(source, that.source) &&
+          Objects.equals(pointTags, that.pointTags);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(name, source, pointTags);
+    }
+  }
+
+  /**
+   * The open bins of a series.
+   */
+  private final class Aggregate implements Series {
+    private final SeriesKey key;
+    // the formatted name, and the source and point tags terminated by a newline
+    private final String name;
+    private final String suffix;
+    // t-digests by the start of their bin in millis, guarded by this
+    private final TreeMap<Long, TDigest> bins = new TreeMap<>();
+    // whether there were no bins at the last flush and no measurements since, guarded by this
+    private boolean idle = false;
+    // whether this was removed from the aggregates, guarded by this
+    private boolean evicted = false;
+
+    Aggregate(SeriesKey key) {
+      if (Wavefront.isBlank(key.name)) {
+        throw new IllegalArgumentException("metric name cannot be blank");
+      }
+      this.key = key;
+      this.name = Wavefront.sanitize(key.name);
+      this.suffix = Wavefront.pointSuffix(key.source, key.pointTags);
+    }
+
+    @Override
+    public void send(double value, @Nullable Long timestamp) {
+      long time = timestamp == null ? millis.get() : timestamp * 1000;
+      long start = time - Math.floorMod(time, granularity.millis);
+      Aggregate current;
+      synchronized (this) {
+        if (evicted) {
+          // a handle returned by series() outlived the series, take it back unless it was recreated meanwhile
+          current = aggregates.get(key);
+          if (current == null && aggregates.size() < maxSeries) {
+            current = aggregates.putIfAbsent(key, this);
+            if (current == null) {
+              evicted = false;
+              current = this;
+            }
+          }
+        } else {
+          current = this;
+        }
+        if (current == this) {
+          idle = false;
+          add(start, value);
+          return;
+        }
+      }
+      if (current == null) {
+        dropped.increment();
+      } else {
+        current.send(value, timestamp);
+      }
+    }
+
+    // guarded by this
+    private void add(long start, double value) {
+      TDigest digest = bins.get(start);
+      if (digest == null) {
+        if (bins.size() >= MAX_OPEN_BINS) {
+          dropped.increment();
+          return;
+        }
+        digest = new MergingDigest(compression);
+        bins.put(start, digest);
+      }
+      digest.add(value);
+    }
+
+    synchronized boolean hasClosedBins(long now) {
+      return !bins.isEmpty() && bins.firstKey() <= now - granularity.millis;
+    }
+
+    /**
+     * Removes the bins that end at or before the given time, and adds them as lines to the list.
+     */
+    void drainTo(List<String> lines, long now) {
+      List<Map.Entry<Long, TDigest>> closed = new ArrayList<>();
+      synchronized (this) {
+        while (!bins.isEmpty() && bins.firstKey() <= now - granularity.millis) {
+          closed.add(bins.pollFirstEntry());
+        }
+        if (bins.isEmpty()) {
+          if (idle) {
+            // nothing for a whole flush interval, make room for other series
+            evicted = true;
+            aggregates.remove(key, this);
+          } else {
+            idle = true;
+          }
+        }
+      }
+      for (Map.Entry<Long, TDigest> bin : closed) {
+        StringBuilder sb = new StringBuilder(granularity.binType).append(' ').append(bin.getKey() / 1000);
+        for (Centroid centroid : bin.getValue().centroids()) {
+          sb.append(" #").append(centroid.count()).append(' ').append(centroid.mean());
+        }
+        lines.add(sb.append(' ').append(name).append(suffix).toString());
+      }
+    }
+  }
+}
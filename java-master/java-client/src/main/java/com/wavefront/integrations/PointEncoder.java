@@ -0,0 +1,271 @@
+package com.wavefront.integrations;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nullable;
+
+/**
+ * Encodes points in the Wavefront data format as UTF-8 directly into a direct {@link ByteBuffer}, producing the same
+ * lines as {@link Wavefront#pointToString} without allocating: names, sources and tags are sanitized character by
+ * character instead of with a regex, and numbers are formatted into a reused scratch buffer.
+ *
+ * Buffers are taken from a shared pool on first use and returned by {@link #release()}. Not thread-safe.
+ */
+public class PointEncoder {
+  public static final int BUFFER_SIZE = 64 * 1024;
+  // most recently released first
+  private static final Deque<ByteBuffer> POOL = new ConcurrentLinkedDeque<>();
+
+  private final int maxLength;
+  private final StringBuilder scratch = new StringBuilder(32);
+  private final BiConsumer<String, String> tagEncoder = (key, value) -> encodeTag(this.buffer, key, value);
+  private ByteBuffer buffer = null;
+
+  public PointEncoder() {
+    this(BUFFER_SIZE);
+  }
+
+  /**
+   * @param maxLength the number of bytes to encode into the buffer at most, e.g. the size of a datagram; the buffer's
+   *                  limit is set to it when the buffer is taken from the pool
+   */
+  public PointEncoder(int maxLength) {
+    if (maxLength <= 0 || maxLength > BUFFER_SIZE) {
+      throw new IllegalArgumentException("maxLength must be between 1 and " + BUFFER_SIZE);
+    }
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Thrown when a point is longer than the buffer, so it can never be encoded.
+   */
+  public static final class PointTooLongException extends IllegalArgumentException {
+    PointTooLongException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * The encoded name, source and point tags of a series, see {@link #identity}.
+   */
+  static final class Identity {
+    // "name"
+    private final byte[] name;
+    // host="source" tags, terminated by a newline
+    private final byte[] suffix;
+
+    private Identity(byte[] name, byte[] suffix) {
+      this.name = name;
+      this.suffix = suffix;
+    }
+  }
+
+  /**
+   * Validates and encodes the name, source and point tags of a series once, for
+   * {@link #encode(Identity, double, Long)}.
+   *
+   * @throws IllegalArgumentException if the name, source or a point tag is blank
+   */
+  static Identity identity(String name, String source, @Nullable Map<String, String> pointTags) {
+    if (Wavefront.isBlank(name)) {
+      throw new IllegalArgumentException("metric name cannot be blank");
+    }
+    if (Wavefront.isBlank(source)) {
+      throw new IllegalArgumentException("source cannot be blank");
+    }
+    // no character takes more than 4 bytes, including escapes
+    int capacity = 4 * (name.length() + source.length()) + 16;
+    if (pointTags != null) {
+      for (Map.Entry<String, String> tag : pointTags.entrySet()) {
+        capacity += 4 * (tag.getKey().length() + tag.getValue().length()) + 8;
+      }
+    }
+    ByteBuffer target = ByteBuffer.allocate(capacity);
+    encodeString(target, name);
+    byte[] nameBytes = Arrays.copyOf(target.array(), target.position());
+    target.clear();
+    target.put((byte) ' ').put((byte) 'h').put((byte) 'o').put((byte) 's').put((byte) 't').put((byte) '=');
+    encodeString(target, source);
+    if (pointTags != null) {
+      for (Map.Entry<String, String> tag : pointTags.entrySet()) {
+        encodeTag(target, tag.getKey(), tag.getValue());
+      }
+    }
+    target.put((byte) '\n');
+    return new Identity(nameBytes, Arrays.copyOf(target.array(), target.position()));
+  }
+
+  /**
+   * Appends a point, terminated by a newline, to the buffer.
+   *
+   * @return false if the point doesn't fit into the remaining space of the buffer, which is then left unchanged
+   * @throws IllegalArgumentException if the name, source or a point tag is blank
+   * @throws PointTooLongException    if the point doesn't fit into an empty buffer
+   */
+  public boolean encode(String name, double value, @Nullable Long timestamp, String source,
+                        @Nullable Map<String, String> pointTags) {
+    if (Wavefront.isBlank(name)) {
+      throw new IllegalArgumentException("metric name cannot be blank");
+    }
+    if (Wavefront.isBlank(source)) {
+      throw new IllegalArgumentException("source cannot be blank");
+    }
+    ByteBuffer buffer = buffer();
+    int start = buffer.position();
+    try {
+      encodeString(buffer, name);
+      encodeValue(value, timestamp);
+      buffer.put((byte) ' ').put((byte) 'h').put((byte) 'o').put((byte) 's').put((byte) 't').put((byte) '=');
+      encodeString(buffer, source);
+      if (pointTags != null) {
+        pointTags.forEach(tagEncoder);
+      }
+      buffer.put((byte) '\n');
+      return true;
+    } catch (BufferOverflowException e) {
+      buffer.position(start);
+      if (start == 0) {
+        throw new PointTooLongException("point is longer than " + maxLength + " bytes");
+      }
+      return false;
+    } catch (IllegalArgumentException e) {
+      buffer.position(start);
+      throw e;
+    }
+  }
+
+  /**
+   * Appends a point of a series, terminated by a newline, to the buffer.
+   *
+   * @return false if the point doesn't fit into the remaining space of the buffer, which is then left unchanged
+   * @throws PointTooLongException if the point doesn't fit into an empty buffer
+   */
+  boolean encode(Identity identity, double value, @Nullable Long timestamp) {
+    ByteBuffer buffer = buffer();
+    int start = buffer.position();
+    try {
+      buffer.put(identity.name);
+      encodeValue(value, timestamp);
+      buffer.put(identity.suffix);
+      return true;
+    } catch (BufferOverflowException e) {
+      buffer.position(start);
+      if (start == 0) {
+        throw new PointTooLongException("point is longer than " + maxLength + " bytes");
+      }
+      return false;
+    }
+  }
+
+  // " value[ timestamp]"
+  private void encodeValue(double value, @Nullable Long timestamp) {
+    buffer.put((byte) ' ');
+    scratch.setLength(0);
+    // appending a double doesn't allocate, unlike Double.toString()
+    scratch.append(value);
+    if (timestamp != null) {
+      scratch.append(' ').append(timestamp.longValue());
+    }
+    for (int i = 0; i < scratch.length(); i++) {
+      buffer.put((byte) scratch.charAt(i));
+    }
+  }
+
+  private static void encodeTag(ByteBuffer buffer, String key, String value) {
+    if (Wavefront.isBlank(key)) {
+      throw new IllegalArgumentException("point tag key cannot be blank");
+    }
+    if (Wavefront.isBlank(value)) {
+      throw new IllegalArgumentException("point tag value cannot be blank");
+    }
+    buffer.put((byte) ' ');
+    encodeString(buffer, key);
+    buffer.put((byte) '=');
+    encodeString(buffer, value);
+  }
+
+  /**
+   * Quotes the string, escapes double quotes and replaces runs of whitespace with a dash, like
+   * {@link Wavefront#sanitize(String)}.
+   */
+  private static void encodeString(ByteBuffer buffer, String s) {
+    buffer.put((byte) '"');
+    boolean inWhitespace = false;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (isRegexWhitespace(c)) {
+        if (!inWhitespace) {
+          buffer.put((byte) '-');
+          inWhitespace = true;
+        }
+        continue;
+      }
+      inWhitespace = false;
+      if (c == '"') {
+        buffer.put((byte) '\\').put((byte) '"');
+      } else if (c < 0x80) {
+        buffer.put((byte) c);
+      } else if (c < 0x800) {
+        buffer.put((byte) (0xc0 | (c >> 6))).put((byte) (0x80 | (c & 0x3f)));
+      } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        buffer.put((byte) (0xf0 | (codePoint >> 18)))
+            .put((byte) (0x80 | ((codePoint >> 12) & 0x3f)))
+            .put((byte) (0x80 | ((codePoint >> 6) & 0x3f)))
+            .put((byte) (0x80 | (codePoint & 0x3f)));
+      } else if (Character.isSurrogate(c)) {
+        // unpaired surrogate, replaced like String.getBytes() does
+        buffer.put((byte) '?');
+      } else {
+        buffer.put((byte) (0xe0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3f))).put((byte) (0x80 | (c & 0x3f)));
+      }
+    }
+    buffer.put((byte) '"');
+  }
+
+  // what \s matches in a regex
+  private static boolean isRegexWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == 0x0b || c == '\f' || c == '\r';
+  }
+
+  /**
+   * @return the buffer points are encoded into, in write mode
+   */
+  public ByteBuffer buffer() {
+    if (buffer == null) {
+      buffer = POOL.pollFirst();
+      if (buffer == null) {
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      }
+      buffer.limit(maxLength);
+    }
+    return buffer;
+  }
+
+  /**
+   * Empties the buffer, e.g. after its contents have been written.
+   */
+  public void clear() {
+    if (buffer != null) {
+      buffer.clear();
+      buffer.limit(maxLength);
+    }
+  }
+
+  /**
+   * Returns the buffer to the pool, discarding what hasn't been written yet.
+   */
+  public void release() {
+    if (buffer != null) {
+      buffer.clear();
+      POOL.offerFirst(buffer);
+      buffer = null;
+    }
+  }
+}
@@ -0,0 +1,408 @@
+package com.wavefront.integrations;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.net.SocketFactory;
+
+/**
+ * Wavefront Client that spreads data over several TCP connections to one or more Wavefront Proxy Agents.
+ *
+ * Each series (metric name, source and point tags) is sent over one of the connections, chosen by hashing the series,
+ * so the points of a series stay in order. An agent is taken out of rotation when writing to it fails or when a
+ * periodic health probe can't connect to it; its series fail over to the connections of the other agents, and the
+ * point that failed is sent again there. Once a probe connects again, the agent's series move back to it. Connections
+ * are chosen by rendezvous hashing, so only the series of an agent that goes down or comes back move.
+ *
+ * Points buffered for a connection that hadn't been written when its agent went down are lost, as with
+ * {@link Wavefront}; flushing regularly bounds how many.
+ */
+public class ShardedWavefront implements WavefrontSender {
+  private static final Logger logger = Logger.getLogger(ShardedWavefront.class.getCanonicalName());
+
+  public static final long DEFAULT_PROBE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+  private static final int PROBE_TIMEOUT_MILLIS = 1000;
+  private static final AtomicInteger threadIds = new AtomicInteger();
+
+  private final List<Endpoint> endpoints = new ArrayList<>();
+  private final Connection[] connections;
+  private final SocketFactory socketFactory;
+  private final long probeIntervalMillis;
+
+  private volatile ScheduledExecutorService prober = null;
+  private volatile boolean closed = false;
+  /**
+   * Source to use if there's none.
+   */
+  private volatile String source;
+
+  private static final class Endpoint {
+    private final InetSocketAddress address;
+    private volatile boolean healthy = true;
+
+    private Endpoint(InetSocketAddress address) {
+      this.address = address;
+    }
+  }
+
+  private static final class Connection {
+    private final int index;
+    private final Endpoint endpoint;
+    private final Wavefront wavefront;
+
+    private Connection(int index, Endpoint endpoint, Wavefront wavefront) {
+      this.index = index;
+      this.endpoint = endpoint;
+      this.wavefront = wavefront;
+    }
+  }
+
+  /**
+   * Creates a new client with the given number of connections to each of the given agents, using the default
+   * {@link SocketFactory}.
+   *
+   * @param agentAddresses      the addresses of the Wavefront Proxy Agents
+   * @param connectionsPerAgent the number of connections to each agent
+   */
+  public ShardedWavefront(List<InetSocketAddress> agentAddresses, int connectionsPerAgent) {
+    this(agentAddresses, connectionsPerAgent, SocketFactory.getDefault(), DEFAULT_PROBE_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Creates a new client with the given number of connections to each of the given agents.
+   *
+   * @param agentAddresses      the addresses of the Wavefront Proxy Agents
+   * @param connectionsPerAgent the number of connections to each agent
+   * @param socketFactory       the socket factory
+   * @param probeIntervalMillis how often to check whether the agents accept connections
+   */
+  public ShardedWavefront(List<InetSocketAddress> agentAddresses, int connectionsPerAgent,
+                          SocketFactory socketFactory, long probeIntervalMillis) {
+    if (agentAddresses.isEmpty()) {
+      throw new IllegalArgumentException("at least one agent address is required");
+    }
+    if (connectionsPerAgent <= 0) {
+      throw new IllegalArgumentException("connectionsPerAgent must be positive");
+    }
+    this.socketFactory = socketFactory;
+    this.probeIntervalMillis = probeIntervalMillis;
+    this.connections = new Connection[agentAddresses.size() * connectionsPerAgent];
+    int index = 0;
+    for (InetSocketAddress address : agentAddresses) {
+      Endpoint endpoint = new Endpoint(address);
+      endpoints.add(endpoint);
+      for (int i = 0; i < connectionsPerAgent; i++) {
+        connections[index] = new Connection(index, endpoint, new Wavefront(address, socketFactory));
+        index++;
+      }
+    }
+  }
+
+  private void initializeSource() throws UnknownHostException {
+    if (source == null) {
+      source = InetAddress.getLocalHost().getHostName();
+    }
+  }
+
+  /**
+   * Starts probing the agents. Connections are opened when they're first written to.
+   */
+  @Override
+  public synchronized void connect() throws IllegalStateException, IOException {
+    if (closed) {
+      throw new IOException("Already closed");
+    }
+    if (prober != null) {
+      throw new IllegalStateException("Already connected");
+    }
+    prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "wavefront-prober-" + threadIds.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    prober.scheduleWithFixedDelay(this::probe, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void ensureConnected() throws IOException {
+    if (prober == null) {
+      try {
+        connect();
+      } catch (IllegalStateException ex) {
+        // already connected.
+      }
+    }
+  }
+
+  @Override
+  public void send(String name, double value) throws IOException {
+    initializeSource();
+    internalSend(name, value, null, source, null);
+  }
+
+  @Override
+  public void send(String name, double value, @Nullable Long timestamp) throws IOException {
+    initializeSource();
+    internalSend(name, value, timestamp, source, null);
+  }
+
+  @Override
+  public void send(String name, double value, @Nullable Long timestamp, String source) throws IOException {
+    internalSend(name, value, timestamp, source, null);
+  }
+
+  @Override
+  public void send(String name, double value, @Nullable Long timestamp, String source,
+                   @Nullable Map<String, String> pointTags) throws IOException {
+    internalSend(name, value, timestamp, source, pointTags);
+  }
+
+  /**
+   * Returns a series which keeps a pre-encoded handle (see {@link Wavefront#series}) for each connection it's sent
+   * over.
+   */
+  @Override
+  public Series series(String name, String source, @Nullable Map<String, String> pointTags) {
+    // handles for other connections are created later
+    Map<String, String> tags = pointTags == null ? null : new HashMap<>(pointTags);
+    long hash = hash(name, source, tags);
+    AtomicReferenceArray<Series> handles = new AtomicReferenceArray<>(connections.length);
+    // validates the series right away
+    Connection first = pick(hash);
+    int firstIndex = first == null ? 0 : first.index;
+    handles.set(firstIndex, connections[firstIndex].wavefront.series(name, source, tags));
+    return (value, timestamp) -> {
+      ensureConnected();
+      for (int attempt = 0; attempt < connections.length; attempt++) {
+        Connection connection = pickOrFail(hash);
+        Series handle = handles.get(connection.index);
+        if (handle == null) {
+          handle = connection.wavefront.series(name, source, tags);
+          handles.set(connection.index, handle);
+        }
+        try {
+          handle.send(value, timestamp);
+          return;
+        } catch (IOException e) {
+          markDown(connection.endpoint, e);
+        }
+      }
+      throw new IOException("Cannot send to any of " + addresses());
+    };
+  }
+
+  private void internalSend(String name, double value, @Nullable Long timestamp, String source,
+                            @Nullable Map<String, String> pointTags) throws IOException {
+    ensureConnected();
+    long hash = hash(name, source, pointTags);
+    for (int attempt = 0; attempt < connections.length; attempt++) {
+      Connection connection = pickOrFail(hash);
+      try {
+        connection.wavefront.send(name, value, timestamp, source, pointTags);
+        return;
+      } catch (IOException e) {
+        markDown(connection.endpoint, e);
+      }
+    }
+    throw new IOException("Cannot send to any of " + addresses());
+  }
+
+  private static long hash(String name, String source, @Nullable Map<String, String> pointTags) {
+    long hash = name == null ? 0 : name.hashCode();
+    hash = hash * 31 + (source == null ? 0 : source.hashCode());
+    return hash * 31 + (pointTags == null ? 0 : pointTags.hashCode());
+  }
+
+  // the finalizer of MurmurHash3, so that similar inputs get unrelated scores
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * @return the healthy connection with the highest score for the series, or null if all agents are down
+   */
+  @Nullable
+  private Connection pick(long hash) {
+    Connection best = null;
+    long bestScore = Long.MIN_VALUE;
+    for (Connection connection : connections) {
+      if (!connection.endpoint.healthy) continue;
+      long score = mix(hash + (connection.index + 1) * 0x9E3779B97F4A7C15L);
+      if (best == null || score > bestScore) {
+        best = connection;
+        bestScore = score;
+      }
+    }
+    return best;
+  }
+
+  private Connection pickOrFail(long hash) throws IOException {
+    Connection connection = pick(hash);
+    if (connection == null) {
+      throw new IOException("None of " + addresses() + " is available");
+    }
+    return connection;
+  }
+
+  private void markDown(Endpoint endpoint, @Nullable Exception cause) {
+    if (endpoint.healthy) {
+      endpoint.healthy = false;
+      logger.log(Level.WARNING, "Cannot send to " + endpoint.address + ", failing over to the other agents", cause);
+    }
+  }
+
+  private void probe() {
+    for (Endpoint endpoint : endpoints) {
+      if (closed) return;
+      if (!reachable(endpoint.address)) {
+        markDown(endpoint, null);
+      } else if (!endpoint.healthy) {
+        // points of the series that move back must not overtake the ones still buffered elsewhere
+        try {
+          flush();
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Cannot flush before rebalancing", e);
+        }
+        // the old connections may look open but lead nowhere, so they're opened again on first use
+        for (Connection connection : connections) {
+          if (connection.endpoint == endpoint) {
+            try {
+              connection.wavefront.close();
+            } catch (IOException e) {
+              // the agent went down with these
+            }
+          }
+        }
+        endpoint.healthy = true;
+        logger.info(endpoint.address + " is available again, rebalancing");
+      }
+    }
+  }
+
+  private boolean reachable(InetSocketAddress address) {
+    Socket socket = null;
+    try {
+      try {
+        socket = socketFactory.createSocket();
+      } catch (SocketException e) {
+        // the factory doesn't create unconnected sockets, so connect without a timeout
+        socket = socketFactory.createSocket(address.getHostName(), address.getPort());
+        return true;
+      }
+      socket.connect(address, PROBE_TIMEOUT_MILLIS);
+      return true;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      if (socket != null) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // ignored
+        }
+      }
+    }
+  }
+
+  private List<InetSocketAddress> addresses() {
+    List<InetSocketAddress> addresses = new ArrayList<>();
+    for (Endpoint endpoint : endpoints) {
+      addresses.add(endpoint.address);
+    }
+    return addresses;
+  }
+
+  /**
+   * Returns the addresses of the agents currently in rotation.
+   */
+  public List<InetSocketAddress> getHealthyAgents() {
+    List<InetSocketAddress> addresses = new ArrayList<>();
+    for (Endpoint endpoint : endpoints) {
+      if (endpoint.healthy) {
+        addresses.add(endpoint.address);
+      }
+    }
+    return addresses;
+  }
+
+  /**
+   * Flushes the connections of the agents in rotation. An agent that fails is taken out of rotation.
+   *
+   * @throws IOException if flushing any connection failed, after trying all of them
+   */
+  @Override
+  public void flush() throws IOException {
+    IOException failure = null;
+    for (Connection connection : connections) {
+      if (!connection.endpoint.healthy) continue;
+      try {
+        connection.wavefront.flush();
+      } catch (IOException e) {
+        markDown(connection.endpoint, e);
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  @Override
+  public boolean isConnected() {
+    return prober != null && !closed && !getHealthyAgents().isEmpty();
+  }
+
+  @Override
+  public int getFailureCount() {
+    int failures = 0;
+    for (Connection connection : connections) {
+      failures += connection.wavefront.getFailureCount();
+    }
+    return failures;
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+      if (prober != null) {
+        prober.shutdownNow();
+      }
+    }
+    IOException failure = null;
+    for (Connection connection : connections) {
+      try {
+        connection.wavefront.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
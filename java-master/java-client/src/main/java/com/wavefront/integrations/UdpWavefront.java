@@ -0,0 +1,231 @@
+package com.wavefront.integrations;
+
+import com.wavefront.metrics.DatagramWriter;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Wavefront Client that sends data via UDP to the Wavefront Proxy Agent.
+ *
+ * Points are encoded by a {@link PointEncoder} into a buffer the size of a datagram, which is sent when the next point
+ * doesn't fit or on {@link #flush()}, so each datagram carries as many whole points as fit. There's no connection to
+ * keep and nothing is sent again, so sending never blocks on the agent, at the cost of losing points when datagrams
+ * are lost. A point longer than a datagram is dropped, and counted by {@link #getDroppedCount()}. The proxy only
+ * listens for datagrams on its push and histogram ports when started with {@code --datagramListeners}.
+ */
+public class UdpWavefront implements WavefrontSender {
+  private static final Logger logger = Logger.getLogger(UdpWavefront.class.getCanonicalName());
+
+  private final String agentHostName;
+  private final int port;
+  private final int maxDatagramSize;
+  // buffers points of the current datagram, guarded by itself
+  private final PointEncoder encoder;
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicLong dropped = new AtomicLong();
+
+  private volatile DatagramWriter writer;
+  /**
+   * Source to use if there's none.
+   */
+  private String source;
+
+  /**
+   * Creates a new client which sends datagrams of {@link DatagramWriter#DEFAULT_MAX_DATAGRAM_SIZE} bytes at most to
+   * the given address.
+   *
+   * @param agentHostName The hostname of the Wavefront Proxy Agent
+   * @param port          The UDP port of the Wavefront Proxy Agent
+   */
+  public UdpWavefront(String agentHostName, int port) {
+    this(agentHostName, port, DatagramWriter.DEFAULT_MAX_DATAGRAM_SIZE);
+  }
+
+  /**
+   * Creates a new client which sends datagrams of the given size at most to the given address.
+   *
+   * @param agentHostName   The hostname of the Wavefront Proxy Agent
+   * @param port            The UDP port of the Wavefront Proxy Agent
+   * @param maxDatagramSize The size of a datagram in bytes at most, longer points are dropped
+   */
+  public UdpWavefront(String agentHostName, int port, int maxDatagramSize) {
+    if (maxDatagramSize <= 0 || maxDatagramSize > DatagramWriter.MAX_DATAGRAM_SIZE) {
+      throw new IllegalArgumentException("maxDatagramSize must be between 1 and " + DatagramWriter.MAX_DATAGRAM_SIZE);
+    }
+    this.agentHostName = agentHostName;
+    this.port = port;
+    this.maxDatagramSize = maxDatagramSize;
+    this.encoder = new PointEncoder(maxDatagramSize);
+  }
+
+  private void initializeSource() throws UnknownHostException {
+    if (source == null) {
+      source = InetAddress.getLocalHost().getHostName();
+    }
+  }
+
+  /**
+   * Opens the channel datagrams are sent from.
+   */
+  @Override
+  public synchronized void connect() throws IllegalStateException, IOException {
+    if (writer != null) {
+      throw new IllegalStateException("Already connected");
+    }
+    writer = new DatagramWriter(agentHostName, port, maxDatagramSize);
+  }
+
+  @Override
+  public void send(String name, double value) throws IOException {
+    initializeSource();
+    internalSend(name, value, null, source, null);
+  }
+
+  @Override
+  public void send(String name, double value, @Nullable Long timestamp) throws IOException {
+    initializeSource();
+    internalSend(name, value, timestamp, source, null);
+  }
+
+  @Override
+  public void send(String name, double value, @Nullable Long timestamp, String source) throws IOException {
+    internalSend(name, value, timestamp, source, null);
+  }
+
+  @Override
+  public void send(String name, double value, @Nullable Long timestamp, String source,
+                   @Nullable Map<String, String> pointTags) throws IOException {
+    internalSend(name, value, timestamp, source, pointTags);
+  }
+
+  /**
+   * Returns a series whose name, source and point tags are validated and encoded once, so sending a measurement only
+   * encodes the value and timestamp.
+   */
+  @Override
+  public Series series(String name, String source, @Nullable Map<String, String> pointTags) {
+    PointEncoder.Identity identity = PointEncoder.identity(name, source, pointTags);
+    return (value, timestamp) -> {
+      ensureConnected();
+      synchronized (encoder) {
+        try {
+          if (!encoder.encode(identity, value, timestamp)) {
+            sendDatagram();
+            encoder.encode(identity, value, timestamp);
+          }
+        } catch (PointEncoder.PointTooLongException e) {
+          drop(e);
+        }
+      }
+    };
+  }
+
+  private void ensureConnected() throws IOException {
+    if (!isConnected()) {
+      try {
+        connect();
+      } catch (IllegalStateException ex) {
+        // already connected.
+      }
+    }
+  }
+
+  private void internalSend(String name, double value, @Nullable Long timestamp, String source,
+                            @Nullable Map<String, String> pointTags) throws IOException {
+    ensureConnected();
+    synchronized (encoder) {
+      try {
+        if (!encoder.encode(name, value, timestamp, source, pointTags)) {
+          sendDatagram();
+          encoder.encode(name, value, timestamp, source, pointTags);
+        }
+      } catch (PointEncoder.PointTooLongException e) {
+        drop(e);
+      }
+    }
+  }
+
+  private void drop(PointEncoder.PointTooLongException e) {
+    dropped.incrementAndGet();
+    logger.warning("Dropping a point that doesn't fit into a datagram: " + e.getMessage());
+  }
+
+  // must hold the encoder
+  private void sendDatagram() throws IOException {
+    ByteBuffer buffer = encoder.buffer();
+    if (buffer.position() == 0) return;
+    buffer.flip();
+    try {
+      DatagramWriter writer = this.writer;
+      if (writer == null) {
+        // closed by another thread
+        throw new IOException("Not connected");
+      }
+      writer.send(buffer);
+    } catch (IOException e) {
+      failures.incrementAndGet();
+      throw e;
+    } finally {
+      encoder.clear();
+    }
+  }
+
+  @Override
+  public boolean isConnected() {
+    return writer != null;
+  }
+
+  /**
+   * Returns the number of datagrams that couldn't be sent. Datagrams lost on the way aren't counted.
+   */
+  @Override
+  public int getFailureCount() {
+    return failures.get();
+  }
+
+  /**
+   * Returns the number of points dropped because they were longer than a datagram.
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Sends the current datagram.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (writer != null) {
+      synchronized (encoder) {
+        sendDatagram();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (writer != null) {
+      try {
+        synchronized (encoder) {
+          try {
+            sendDatagram();
+          } finally {
+            encoder.release();
+          }
+        }
+      } finally {
+        writer.close();
+        writer = null;
+      }
+    }
+  }
+}
@@ -9,6 +9,7 @@ import java.io.Writer;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -21,6 +22,9 @@ import javax.net.SocketFactory;
  * Wavefront Client that sends data directly via TCP to the Wavefront Proxy Agent. User should probably
  * attempt to reconnect when exceptions are thrown from any methods.
  *
+ * Points are encoded into a buffer by a {@link PointEncoder}, which is written to the socket when it's full or on
+ * {@link #flush()}.
+ *
  * @author Clement Pang (clement@wavefront.com).
  * @author Conor Beverland (conor@wavefront.com).
  */
@@ -35,6 +39,8 @@ public class Wavefront implements WavefrontSender {
 
   private volatile ReconnectingSocket reconnectingSocket;
   private AtomicInteger failures = new AtomicInteger();
+  // buffers points until they are written to the socket, guarded by itself
+  private final PointEncoder encoder = new PointEncoder();
   /**
    * Source to use if there's none.
    */
@@ -130,8 +136,25 @@ public class Wavefront implements WavefrontSender {
     return reconnectingSocket != null;
   }
 
-  private void internalSend(String name, double value, @Nullable Long timestamp, String source,
-                            @Nullable Map<String, String> pointTags) throws IOException {
+  /**
+   * Returns a series whose name, source and point tags are validated and encoded once, so sending a measurement only
+   * encodes the value and timestamp.
+   */
+  @Override
+  public Series series(String name, String source, @Nullable Map<String, String> pointTags) {
+    PointEncoder.Identity identity = PointEncoder.identity(name, source, pointTags);
+    return (value, timestamp) -> {
+      ensureConnected();
+      synchronized (encoder) {
+        if (!encoder.encode(identity, value, timestamp)) {
+          writeEncoded();
+          encoder.encode(identity, value, timestamp);
+        }
+      }
+    };
+  }
+
+  private void ensureConnected() throws IOException {
     if (!isConnected()) {
       try {
         connect();
@@ -139,47 +162,90 @@ public class Wavefront implements WavefrontSender {
         // already connected.
       }
     }
+  }
+
+  private void internalSend(String name, double value, @Nullable Long timestamp, String source,
+                            @Nullable Map<String, String> pointTags) throws IOException {
+    ensureConnected();
+    synchronized (encoder) {
+      if (!encoder.encode(name, value, timestamp, source, pointTags)) {
+        writeEncoded();
+        encoder.encode(name, value, timestamp, source, pointTags);
+      }
+    }
+  }
+
+  // must hold the encoder
+  private void writeEncoded() throws IOException {
+    ByteBuffer buffer = encoder.buffer();
+    if (buffer.position() == 0) return;
+    buffer.flip();
+    try {
+      ReconnectingSocket socket = reconnectingSocket;
+      if (socket == null) {
+        // closed by another thread
+        throw new IOException("Not connected");
+      }
+      socket.write(buffer);
+    } catch (Exception e) {
+      failures.incrementAndGet();
+      throw new IOException(e);
+    } finally {
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Formats a point in the Wavefront data format, terminated by a newline.
+   *
+   * @throws IllegalArgumentException if the name, source or a point tag is blank
+   */
+  static String pointToString(String name, double value, @Nullable Long timestamp, String source,
+                              @Nullable Map<String, String> pointTags) {
     if (isBlank(name)) {
       throw new IllegalArgumentException("metric name cannot be blank");
     }
+    String suffix = pointSuffix(source, pointTags);
+    final StringBuilder sb = new StringBuilder();
+    sb.append(sanitize(name));
+    sb.append(' ');
+    sb.append(Double.toString(value));
+    if (timestamp != null) {
+      sb.append(' ');
+      sb.append(Long.toString(timestamp));
+    }
+    sb.append(suffix);
+    return sb.toString();
+  }
+
+  /**
+   * Formats the part of a point after the value and timestamp: the source and point tags, terminated by a newline.
+   *
+   * @throws IllegalArgumentException if the source or a point tag is blank
+   */
+  static String pointSuffix(String source, @Nullable Map<String, String> pointTags) {
     if (isBlank(source)) {
       throw new IllegalArgumentException("source cannot be blank");
     }
     final StringBuilder sb = new StringBuilder();
-    try {
-      sb.append(sanitize(name));
-      sb.append(' ');
-      sb.append(Double.toString(value));
-      if (timestamp != null) {
-        sb.append(' ');
-        sb.append(Long.toString(timestamp));
-      }
-      sb.append(" host=");
-      sb.append(sanitize(source));
-      if (pointTags != null) {
-        for (final Map.Entry<String, String> tag : pointTags.entrySet()) {
-          if (isBlank(tag.getKey())) {
-            throw new IllegalArgumentException("point tag key cannot be blank");
-          }
-          if (isBlank(tag.getValue())) {
-            throw new IllegalArgumentException("point tag value cannot be blank");
-          }
-          sb.append(' ');
-          sb.append(sanitize(tag.getKey()));
-          sb.append('=');
-          sb.append(sanitize(tag.getValue()));
+    sb.append(" host=");
+    sb.append(sanitize(source));
+    if (pointTags != null) {
+      for (final Map.Entry<String, String> tag : pointTags.entrySet()) {
+        if (isBlank(tag.getKey())) {
+          throw new IllegalArgumentException("point tag key cannot be blank");
         }
+        if (isBlank(tag.getValue())) {
+          throw new IllegalArgumentException("point tag value cannot be blank");
+        }
+        sb.append(' ');
+        sb.append(sanitize(tag.getKey()));
+        sb.append('=');
+        sb.append(sanitize(tag.getValue()));
       }
-      sb.append('\n');
-      try {
-        reconnectingSocket.write(sb.toString());
-      } catch (Exception e) {
-        throw new IOException(e);
-      }
-    } catch (IOException e) {
-      failures.incrementAndGet();
-      throw e;
     }
+    sb.append('\n');
+    return sb.toString();
   }
 
   @Override
@@ -189,16 +255,30 @@ public class Wavefront implements WavefrontSender {
 
   @Override
   public void flush() throws IOException {
-    if (reconnectingSocket != null) {
-      reconnectingSocket.flush();
+    ReconnectingSocket socket = reconnectingSocket;
+    if (socket != null) {
+      synchronized (encoder) {
+        writeEncoded();
+      }
+      socket.flush();
     }
   }
 
   @Override
   public synchronized void close() throws IOException {
     if (reconnectingSocket != null) {
-      reconnectingSocket.close();
-      reconnectingSocket = null;
+      try {
+        synchronized (encoder) {
+          try {
+            writeEncoded();
+          } finally {
+            encoder.release();
+          }
+        }
+      } finally {
+        reconnectingSocket.close();
+        reconnectingSocket = null;
+      }
     }
   }
 
@@ -212,7 +292,7 @@ public class Wavefront implements WavefrontSender {
     }
   }
 
-  private static boolean isBlank(String s) {
+  static boolean isBlank(String s) {
     if (s == null || s.isEmpty()) {
       return true;
     }
@@ -4,6 +4,7 @@ import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -14,6 +15,20 @@ import java.util.Map;
  */
 public interface WavefrontSender extends Closeable {
 
+  /**
+   * A series of measurements sharing a metric name, source and point tags.
+   */
+  interface Series {
+    /**
+     * Send a measurement of this series to Wavefront.
+     *
+     * @param value     The value to be sent.
+     * @param timestamp The timestamp in seconds since the epoch to be sent. Null to use agent assigned timestamp.
+     * @throws IOException if there was an error sending the metric.
+     */
+    void send(double value, @Nullable Long timestamp) throws IOException;
+  }
+
   /**
    * Connects to the server.
    *
@@ -72,6 +87,22 @@ public interface WavefrontSender extends Closeable {
   void send(String name, double value, @Nullable Long timestamp, String source,
             @Nullable Map<String, String> pointTags) throws IOException;
 
+  /**
+   * Returns a handle for sending measurements with the given name, source and point tags. Implementations may validate
+   * and encode the identity of the series once, which is cheaper than {@link #send(String, double, Long, String, Map)}
+   * for series that are sent repeatedly.
+   *
+   * @param name      The name of the metric. Spaces are replaced with '-' (dashes) and quotes will be automatically
+   *                  escaped.
+   * @param source    The source (or host) that's sending the metric.
+   * @param pointTags The point tags associated with this series, copied by this call.
+   * @throws IllegalArgumentException if the name, source or a point tag is blank, either here or when sending.
+   */
+  default Series series(String name, String source, @Nullable Map<String, String> pointTags) {
+    Map<String, String> tags = pointTags == null ? null : new HashMap<>(pointTags);
+    return (value, timestamp) -> send(name, value, timestamp, source, tags);
+  }
+
   /**
    * Flushes buffer, if applicable
    *
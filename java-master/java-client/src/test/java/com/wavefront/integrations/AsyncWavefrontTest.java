@@ -0,0 +1,271 @@
+package com.wavefront.integrations;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link AsyncWavefront}, against a local server that can stall.
+ */
+public class AsyncWavefrontTest {
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  private ServerSocket server;
+  private Thread serverThread;
+  private final CountDownLatch resume = new CountDownLatch(1);
+  private final List<String> received = new CopyOnWriteArrayList<>();
+  private AsyncWavefront sender;
+
+  /**
+   * Creates sockets with a small send buffer, so a stalled server blocks writes quickly.
+   */
+  private static final SocketFactory SMALL_BUFFERS = new SocketFactory() {
+    private Socket configure(Socket socket) throws IOException {
+      socket.setSendBufferSize(4096);
+      return socket;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      Socket socket = configure(new Socket());
+      socket.connect(new InetSocketAddress(host, port));
+      return socket;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+      return configure(new Socket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      return configure(new Socket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+        throws IOException {
+      return configure(new Socket(address, port, localAddress, localPort));
+    }
+  };
+
+  /**
+   * Creates sockets that accept writes into their buffered stream, but whose connection breaks on every flush.
+   */
+  static final SocketFactory FAILING_FLUSH = new SocketFactory() {
+    private Socket broken() {
+      return new Socket() {
+        @Override
+        public OutputStream getOutputStream() {
+          return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+              throw new IOException("Broken pipe");
+            }
+          };
+        }
+      };
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) {
+      return broken();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+      return broken();
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) {
+      return broken();
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+      return broken();
+    }
+  };
+
+  @Before
+  public void setUp() throws Exception {
+    server = new ServerSocket();
+    server.setReceiveBufferSize(4096);
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+  }
+
+  /**
+   * Accepts connections and reads lines, but only once {@link #resume} is counted down if stalled.
+   */
+  private void startServer(boolean stalled) {
+    if (!stalled) {
+      resume.countDown();
+    }
+    serverThread = new Thread(() -> {
+      try {
+        while (true) {
+          Socket socket = server.accept();
+          resume.await();
+          BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+          String line;
+          while ((line = reader.readLine()) != null) {
+            received.add(line);
+          }
+        }
+      } catch (IOException | InterruptedException e) {
+        // closed
+      }
+    });
+    serverThread.setDaemon(true);
+    serverThread.start();
+  }
+
+  private AsyncWavefront newSender(int capacity, AsyncWavefront.OverflowPolicy overflowPolicy,
+                                   long blockTimeoutMillis) {
+    sender = new AsyncWavefront(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()),
+        SMALL_BUFFERS, capacity, overflowPolicy, blockTimeoutMillis);
+    return sender;
+  }
+
+  private static void awaitFlushed(AsyncWavefront sender, long expected) throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (sender.getFlushedCount() < expected && System.currentTimeMillis() < deadline) {
+      sender.flush();
+      Thread.sleep(10);
+    }
+    assertEquals(expected, sender.getFlushedCount());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    resume.countDown();
+    if (sender != null) {
+      sender.close();
+    }
+    server.close();
+  }
+
+  @Test
+  public void testSend() throws Exception {
+    startServer(false);
+    AsyncWavefront sender = newSender(100, AsyncWavefront.OverflowPolicy.DROP_NEWEST, 0);
+    for (int i = 0; i < 49; i++) {
+      sender.send("metric" + i, i, 1476408638L, "host");
+    }
+    sender.series("metric49", "host", null).send(49, 1476408638L);
+    awaitFlushed(sender, 50);
+    assertEquals(50, sender.getQueuedCount());
+    assertEquals(0, sender.getDroppedCount());
+    assertEquals(0, sender.getBufferSize());
+
+    sender.close();
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (received.size() < 50 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(50, received.size());
+    assertEquals("\"metric0\" 0.0 1476408638 host=\"host\"", received.get(0));
+    assertEquals("\"metric49\" 49.0 1476408638 host=\"host\"", received.get(49));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBlankNameThrowsOnCallerThread() throws Exception {
+    startServer(false);
+    newSender(100, AsyncWavefront.OverflowPolicy.DROP_NEWEST, 0).send(" ", 1, null, "host");
+  }
+
+  @Test
+  public void testDropNewestDoesNotBlockOnStalledServer() throws Exception {
+    startServer(true);
+    AsyncWavefront sender = newSender(1000, AsyncWavefront.OverflowPolicy.DROP_NEWEST, 0);
+    int points = 200000;
+    for (int i = 0; i < points; i++) {
+      sender.send("metric", i, 1476408638L, "host");
+    }
+    assertTrue(sender.getDroppedCount() > 0);
+    assertEquals(points, sender.getQueuedCount() + sender.getDroppedCount());
+    assertTrue(sender.getBufferSize() <= 1000);
+    assertTrue("enqueue took " + sender.getMaxEnqueueNanos() + "ns",
+        sender.getMaxEnqueueNanos() < TimeUnit.SECONDS.toNanos(1));
+
+    // everything that was accepted is delivered once the server catches up
+    resume.countDown();
+    awaitFlushed(sender, sender.getQueuedCount());
+  }
+
+  @Test
+  public void testDropOldestKeepsNewestPoints() throws Exception {
+    startServer(true);
+    AsyncWavefront sender = newSender(1000, AsyncWavefront.OverflowPolicy.DROP_OLDEST, 0);
+    int points = 200000;
+    for (int i = 0; i < points; i++) {
+      sender.send("metric", i, 1476408638L, "host");
+    }
+    assertEquals(points, sender.getQueuedCount());
+    assertTrue(sender.getDroppedCount() > 0);
+    assertTrue(sender.getMaxEnqueueNanos() < TimeUnit.SECONDS.toNanos(1));
+
+    resume.countDown();
+    awaitFlushed(sender, points - sender.getDroppedCount());
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (received.size() < sender.getFlushedCount() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals("\"metric\" " + (double) (points - 1) + " 1476408638 host=\"host\"",
+        received.get(received.size() - 1));
+  }
+
+  @Test
+  public void testBlockWithTimeout() throws Exception {
+    startServer(true);
+    AsyncWavefront sender = newSender(10, AsyncWavefront.OverflowPolicy.BLOCK, 100);
+    long start = System.nanoTime();
+    // fills the socket buffers and then the sender's buffer, until sends start timing out
+    while (sender.getDroppedCount() == 0) {
+      assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS));
+      sender.send("metric", 1, 1476408638L, "host");
+    }
+    assertTrue(sender.getMaxEnqueueNanos() >= TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(10, sender.getBufferSize());
+
+    resume.countDown();
+    awaitFlushed(sender, sender.getQueuedCount());
+    assertEquals(1, sender.getDroppedCount());
+  }
+
+  @Test
+  public void testPointsLostOnFailedFlushAreDropped() throws Exception {
+    sender = new AsyncWavefront(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()),
+        FAILING_FLUSH, 100, AsyncWavefront.OverflowPolicy.DROP_NEWEST, 0);
+    for (int i = 0; i < 10; i++) {
+      sender.send("metric", i, 1476408638L, "host");
+    }
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (sender.getDroppedCount() < 10 && System.currentTimeMillis() < deadline) {
+      sender.flush();
+      Thread.sleep(10);
+    }
+    assertEquals(10, sender.getDroppedCount());
+    assertEquals(0, sender.getFlushedCount());
+    assertTrue(sender.getFailureCount() > 0);
+  }
+}
@@ -0,0 +1,336 @@
+package com.wavefront.integrations;
+
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+import com.wavefront.ingester.GraphiteDecoder;
+import com.wavefront.ingester.HistogramDecoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.net.SocketFactory;
+
+import sunnylabs.report.Histogram;
+import sunnylabs.report.ReportPoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link HistogramWavefront}
+ */
+public class HistogramWavefrontTest {
+  private static final Logger logger = Logger.getLogger(HistogramWavefrontTest.class.getCanonicalName());
+  private static final long TIMEOUT_MILLIS = 10000;
+  // 2016-10-14 01:30:00 UTC
+  private static final long MINUTE_MILLIS = 1476408600000L;
+
+  private final AtomicLong time = new AtomicLong(MINUTE_MILLIS);
+  private final List<String> received = new CopyOnWriteArrayList<>();
+  private final AtomicLong receivedBytes = new AtomicLong();
+  private ServerSocket server;
+  private HistogramWavefront sender;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread serverThread = new Thread(() -> {
+      try {
+        while (true) {
+          Socket socket = server.accept();
+          BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+              StandardCharsets.UTF_8));
+          String line;
+          while ((line = reader.readLine()) != null) {
+            receivedBytes.addAndGet(line.getBytes(StandardCharsets.UTF_8).length + 1);
+            received.add(line);
+          }
+        }
+      } catch (IOException e) {
+        // closed
+      }
+    });
+    serverThread.setDaemon(true);
+    serverThread.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (sender != null) {
+      sender.close();
+    }
+    server.close();
+  }
+
+  private HistogramWavefront newSender(HistogramWavefront.Granularity granularity, int maxSeries) {
+    sender = new HistogramWavefront(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()),
+        SocketFactory.getDefault(), granularity, HistogramWavefront.DEFAULT_COMPRESSION, maxSeries, time::get);
+    return sender;
+  }
+
+  private List<String> awaitReceived(int lines) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (received.size() < lines && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(lines, received.size());
+    return received;
+  }
+
+  private static ReportPoint decode(String line) {
+    List<ReportPoint> out = new ArrayList<>();
+    new HistogramDecoder().decodeReportPoints(line, out, "customer");
+    assertEquals(1, out.size());
+    return out.get(0);
+  }
+
+  private static int totalCount(Histogram histogram) {
+    return histogram.getCounts().stream().mapToInt(Integer::intValue).sum();
+  }
+
+  private static double weightedMean(Histogram histogram) {
+    double sum = 0;
+    for (int i = 0; i < histogram.getBins().size(); i++) {
+      sum += histogram.getBins().get(i) * histogram.getCounts().get(i);
+    }
+    return sum / totalCount(histogram);
+  }
+
+  @Test
+  public void testMinuteBins() throws Exception {
+    HistogramWavefront sender = newSender(HistogramWavefront.Granularity.MINUTE, 10);
+    Map<String, String> tags = Collections.singletonMap("env", "prod");
+    for (int i = 1; i <= 100; i++) {
+      sender.send("request latency", i, null, "web-01", tags);
+    }
+    // the minute isn't over yet
+    sender.flush();
+    assertEquals(0, sender.getSentCount());
+
+    time.addAndGet(60000);
+    sender.send("request latency", 1000, null, "web-01", tags);
+    sender.flush();
+    assertEquals(1, sender.getSentCount());
+    String line = awaitReceived(1).get(0);
+    assertTrue(line, line.startsWith("!M 1476408600 #"));
+    assertTrue(line, line.endsWith(" \"request-latency\" host=\"web-01\" \"env\"=\"prod\""));
+
+    ReportPoint point = decode(line);
+    assertEquals("request-latency", point.getMetric());
+    assertEquals("web-01", point.getHost());
+    assertEquals("prod", point.getAnnotations().get("env"));
+    assertEquals(MINUTE_MILLIS, (long) point.getTimestamp());
+    Histogram histogram = (Histogram) point.getValue();
+    assertEquals(60000, (int) histogram.getDuration());
+    assertEquals(100, totalCount(histogram));
+    assertEquals(50.5, weightedMean(histogram), 1e-9);
+
+    // the open minute is sent on close
+    sender.close();
+    histogram = (Histogram) decode(awaitReceived(2).get(1)).getValue();
+    assertEquals(1, totalCount(histogram));
+    assertEquals(1000, weightedMean(histogram), 1e-9);
+  }
+
+  @Test
+  public void testTimestampsAndHourBins() throws Exception {
+    HistogramWavefront sender = newSender(HistogramWavefront.Granularity.HOUR, 10);
+    HistogramWavefront.Series series = sender.series("metric", "host", null);
+    long hourSeconds = 1476406800L;
+    series.send(1, hourSeconds + 10);
+    series.send(2, hourSeconds + 3599);
+    series.send(3, hourSeconds + 3600);
+    sender.close();
+    List<String> lines = awaitReceived(2);
+    assertEquals("!H 1476406800 #1 1.0 #1 2.0 \"metric\" host=\"host\"", lines.get(0));
+    assertEquals("!H 1476410400 #1 3.0 \"metric\" host=\"host\"", lines.get(1));
+  }
+
+  @Test
+  public void testMemoryIsBounded() throws Exception {
+    HistogramWavefront sender = newSender(HistogramWavefront.Granularity.MINUTE, 2);
+    sender.send("metric", 1, null, "host", Collections.singletonMap("tag", "a"));
+    Map<String, String> tags = new HashMap<>();
+    tags.put("tag", "b");
+    sender.send("metric", 1, null, "host", tags);
+    // changing the caller's map doesn't change the series
+    tags.put("tag", "c");
+    sender.send("metric", 1, null, "host", tags);
+    sender.series("other", "host", null).send(1, null);
+    assertEquals(2, sender.getSeriesCount());
+    assertEquals(2, sender.getDroppedCount());
+
+    for (int i = 0; i < HistogramWavefront.MAX_OPEN_BINS + 1; i++) {
+      sender.send("metric", 1, MINUTE_MILLIS / 1000 + i * 60, "host", Collections.singletonMap("tag", "a"));
+    }
+    assertEquals(3, sender.getDroppedCount());
+
+    // a t-digest doesn't grow with the number of measurements
+    for (int i = 0; i < 100000; i++) {
+      sender.send("metric", i, null, "host", Collections.singletonMap("tag", "b"));
+    }
+    sender.close();
+    for (String line : awaitReceived(HistogramWavefront.MAX_OPEN_BINS + 1)) {
+      assertTrue(line, line.split("#").length < 4 * HistogramWavefront.DEFAULT_COMPRESSION);
+    }
+  }
+
+  @Test
+  public void testIdleSeriesAreEvicted() throws Exception {
+    HistogramWavefront sender = newSender(HistogramWavefront.Granularity.MINUTE, 2);
+    HistogramWavefront.Series kept = sender.series("kept", "host", null);
+    sender.send("idle", 1, null, "host");
+    kept.send(1, null);
+    time.addAndGet(60000);
+    sender.flush();
+    assertEquals(2, sender.getSentCount());
+    assertEquals(2, sender.getSeriesCount());
+
+    // a flush interval without measurements of the idle series
+    kept.send(2, null);
+    time.addAndGet(60000);
+    sender.flush();
+    assertEquals(3, sender.getSentCount());
+    assertEquals(1, sender.getSeriesCount());
+
+    // the series that went idle made room for another one
+    sender.send("new", 3, null, "host");
+    assertEquals(2, sender.getSeriesCount());
+    assertEquals(0, sender.getDroppedCount());
+
+    // a handle outlives its series being evicted
+    time.addAndGet(60000);
+    sender.flush();
+    time.addAndGet(60000);
+    sender.flush();
+    assertEquals(0, sender.getSeriesCount());
+    kept.send(4, null);
+    assertEquals(1, sender.getSeriesCount());
+    sender.close();
+    List<String> lines = awaitReceived(5);
+    assertTrue(lines.get(4), lines.get(4).endsWith(" #1 4.0 \"kept\" host=\"host\""));
+  }
+
+  @Test
+  public void testHistogramsLostOnFailedSendAreCounted() throws Exception {
+    HistogramWavefront sender = new HistogramWavefront(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()),
+        AsyncWavefrontTest.FAILING_FLUSH, HistogramWavefront.Granularity.MINUTE, HistogramWavefront.DEFAULT_COMPRESSION,
+        10, time::get);
+    sender.send("metric", 1, null, "host");
+    sender.send("other", 1, null, "host");
+    time.addAndGet(60000);
+    try {
+      sender.flush();
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(1, sender.getFailureCount());
+    assertEquals(2, sender.getLostCount());
+    assertEquals(0, sender.getSentCount());
+
+    // without an agent to connect to, the failure is counted and the bins are kept for the next flush
+    ServerSocket closed = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    closed.close();
+    HistogramWavefront unreachable = new HistogramWavefront(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), closed.getLocalPort()), SocketFactory.getDefault(),
+        HistogramWavefront.Granularity.MINUTE, HistogramWavefront.DEFAULT_COMPRESSION, 10, time::get);
+    unreachable.send("metric", 1, null, "host");
+    time.addAndGet(60000);
+    for (int i = 1; i <= 2; i++) {
+      try {
+        unreachable.flush();
+        fail();
+      } catch (IOException e) {
+        // expected
+      }
+      assertEquals(i, unreachable.getFailureCount());
+      assertEquals(0, unreachable.getLostCount());
+      assertFalse(unreachable.isConnected());
+    }
+  }
+
+  @Test
+  public void testCompareWithRawSamples() throws Exception {
+    int seriesCount = 10;
+    int samples = 100000;
+    HistogramWavefront sender = newSender(HistogramWavefront.Granularity.MINUTE, seriesCount);
+    List<String> rawLines = new ArrayList<>();
+    long rawBytes = 0;
+    for (int i = 0; i < samples; i++) {
+      double value = (i * 7919 % 1000) * 0.5;
+      Map<String, String> tags = Collections.singletonMap("service", "service-" + (i % seriesCount));
+      sender.send("request.latency", value, MINUTE_MILLIS / 1000 + i % 60, "web-01", tags);
+      // what shipping raw samples to the histogram port sends instead
+      String raw = Wavefront.pointToString("request.latency", value, MINUTE_MILLIS / 1000 + i % 60, "web-01", tags);
+      rawBytes += raw.getBytes(StandardCharsets.UTF_8).length;
+      rawLines.add(raw.trim());
+    }
+    sender.close();
+    List<String> lines = awaitReceived(seriesCount);
+    long histogramBytes = receivedBytes.get();
+    assertTrue(histogramBytes * 50 < rawBytes);
+
+    // what the agent does with either: decode, then accumulate into a digest per series
+    for (int round = 0; round < 2; round++) {  // the first round warms up
+      GraphiteDecoder graphiteDecoder = new GraphiteDecoder("unknown", Collections.emptyList());
+      Map<String, TDigest> rawDigests = new HashMap<>();
+      List<ReportPoint> out = new ArrayList<>();
+      long start = System.nanoTime();
+      for (String raw : rawLines) {
+        out.clear();
+        graphiteDecoder.decodeReportPoints(raw, out, "customer");
+        ReportPoint point = out.get(0);
+        rawDigests.computeIfAbsent(point.getAnnotations().get("service"),
+            k -> new MergingDigest(HistogramWavefront.DEFAULT_COMPRESSION)).add((Double) point.getValue());
+      }
+      long rawNanos = System.nanoTime() - start;
+
+      Map<String, TDigest> histogramDigests = new HashMap<>();
+      start = System.nanoTime();
+      for (String line : lines) {
+        ReportPoint point = decode(line);
+        Histogram histogram = (Histogram) point.getValue();
+        TDigest digest = histogramDigests.computeIfAbsent(point.getAnnotations().get("service"),
+            k -> new MergingDigest(HistogramWavefront.DEFAULT_COMPRESSION));
+        for (int i = 0; i < histogram.getBins().size(); i++) {
+          digest.add(histogram.getBins().get(i), histogram.getCounts().get(i));
+        }
+      }
+      long histogramNanos = System.nanoTime() - start;
+
+      assertEquals(seriesCount, rawDigests.size());
+      assertEquals(seriesCount, histogramDigests.size());
+      for (Map.Entry<String, TDigest> entry : rawDigests.entrySet()) {
+        TDigest aggregated = histogramDigests.get(entry.getKey());
+        assertEquals(entry.getValue().size(), aggregated.size());
+        assertEquals(entry.getValue().quantile(0.5), aggregated.quantile(0.5), 5);
+      }
+      if (round > 0) {
+        logger.info(samples + " samples in " + seriesCount + " series: raw " + rawBytes + " bytes, " +
+            (rawNanos / 1000000) + "ms to ingest, histograms " + histogramBytes + " bytes, " +
+            (histogramNanos / 1000000) + "ms to ingest");
+      }
+    }
+  }
+}
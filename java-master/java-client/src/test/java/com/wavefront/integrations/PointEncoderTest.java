@@ -0,0 +1,183 @@
+package com.wavefront.integrations;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link PointEncoder}
+ */
+public class PointEncoderTest {
+  private static final Logger logger = Logger.getLogger(PointEncoderTest.class.getCanonicalName());
+
+  private static String decode(ByteBuffer buffer) {
+    ByteBuffer copy = buffer.duplicate();
+    copy.flip();
+    byte[] bytes = new byte[copy.remaining()];
+    copy.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void assertEncodedLikeString(String name, double value, Long timestamp, String source,
+                                              Map<String, String> pointTags) {
+    PointEncoder encoder = new PointEncoder();
+    try {
+      assertTrue(encoder.encode(name, value, timestamp, source, pointTags));
+      // compared as UTF-8, which replaces unpaired surrogates
+      byte[] expected = Wavefront.pointToString(name, value, timestamp, source, pointTags)
+          .getBytes(StandardCharsets.UTF_8);
+      assertEquals(new String(expected, StandardCharsets.UTF_8), decode(encoder.buffer()));
+    } finally {
+      encoder.release();
+    }
+  }
+
+  @Test
+  public void testSameAsPointToString() {
+    Map<String, String> tags = new TreeMap<>();
+    tags.put("env", "prod");
+    tags.put("with space", "and \"quotes\"");
+    assertEncodedLikeString("metric", 42, null, "host", null);
+    assertEncodedLikeString("metric.name", 1476408638.5, 1476408638L, "host", tags);
+    assertEncodedLikeString("hello  \t world", -0.000123, null, "it's a host", null);
+    assertEncodedLikeString("température", 1e21, null, "høst", Collections.singletonMap("tag", "日本"));
+    assertEncodedLikeString("emoji 😀", Double.NaN, null, "lone \uD83D surrogate", null);
+    assertEncodedLikeString("metric", Double.NEGATIVE_INFINITY, Long.MIN_VALUE, "\"quoted\"", null);
+  }
+
+  @Test
+  public void testSeriesIdentity() {
+    Map<String, String> tags = new TreeMap<>();
+    tags.put("env", "prod");
+    tags.put("with space", "and \"quotes\"");
+    PointEncoder.Identity identity = PointEncoder.identity("température 😀", "it's a host", tags);
+    PointEncoder encoder = new PointEncoder();
+    try {
+      assertTrue(encoder.encode(identity, 42.5, 1476408638L));
+      assertTrue(encoder.encode(identity, 1e21, null));
+      assertEquals(Wavefront.pointToString("température 😀", 42.5, 1476408638L, "it's a host", tags) +
+          Wavefront.pointToString("température 😀", 1e21, null, "it's a host", tags), decode(encoder.buffer()));
+    } finally {
+      encoder.release();
+    }
+    try {
+      PointEncoder.identity("metric", "host", Collections.singletonMap(" ", "value"));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testBufferFull() {
+    PointEncoder encoder = new PointEncoder();
+    try {
+      int points = 0;
+      while (encoder.encode("metric", points, 1476408638L, "host", null)) {
+        points++;
+      }
+      ByteBuffer buffer = encoder.buffer();
+      String encoded = decode(buffer);
+      // the point that didn't fit isn't partially encoded
+      assertTrue(encoded.endsWith("\n"));
+      assertEquals(points, encoded.split("\n").length);
+      buffer.clear();
+      assertTrue(encoder.encode("metric", points, 1476408638L, "host", null));
+    } finally {
+      encoder.release();
+    }
+  }
+
+  @Test
+  public void testInvalidPointLeavesBufferUnchanged() {
+    PointEncoder encoder = new PointEncoder();
+    try {
+      assertTrue(encoder.encode("metric", 1, null, "host", null));
+      int position = encoder.buffer().position();
+      try {
+        encoder.encode("metric", 1, null, "host", Collections.singletonMap("key", " "));
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+      assertEquals(position, encoder.buffer().position());
+
+      StringBuilder longName = new StringBuilder();
+      while (longName.length() <= PointEncoder.BUFFER_SIZE) {
+        longName.append("metric.");
+      }
+      encoder.buffer().clear();
+      try {
+        encoder.encode(longName.toString(), 1, null, "host", null);
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+      assertEquals(0, encoder.buffer().position());
+    } finally {
+      encoder.release();
+    }
+  }
+
+  @Test
+  public void testBuffersArePooled() {
+    PointEncoder encoder = new PointEncoder();
+    ByteBuffer buffer = encoder.buffer();
+    assertTrue(buffer.isDirect());
+    assertTrue(encoder.encode("metric", 1, null, "host", null));
+    encoder.release();
+    PointEncoder other = new PointEncoder();
+    assertSame(buffer, other.buffer());
+    assertEquals(0, other.buffer().position());
+    other.release();
+  }
+
+  @Test
+  public void testAllocationBenchmark() {
+    com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    Map<String, String> tags = new TreeMap<>();
+    tags.put("env", "prod");
+    tags.put("service", "frontend");
+    int points = 200000;
+    PointEncoder encoder = new PointEncoder();
+    try {
+      for (int round = 0; round < 2; round++) {  // the first round warms up
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        long length = 0;
+        for (int i = 0; i < points; i++) {
+          length += Wavefront.pointToString("request.latency", i * 0.5, 1476408638L + i, "web-01", tags)
+              .getBytes(StandardCharsets.UTF_8).length;
+        }
+        long stringBytes = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < points; i++) {
+          if (!encoder.encode("request.latency", i * 0.5, 1476408638L + i, "web-01", tags)) {
+            encoder.buffer().clear();
+            encoder.encode("request.latency", i * 0.5, 1476408638L + i, "web-01", tags);
+          }
+        }
+        long encoderBytes = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+        if (round > 0) {
+          logger.info("Allocated per point: pointToString + getBytes " + (stringBytes / points) +
+              " bytes, PointEncoder " + (encoderBytes / points) + " bytes (" + (length / points) +
+              " bytes per line)");
+          assertFalse(encoderBytes / points > stringBytes / points / 10);
+        }
+      }
+    } finally {
+      encoder.release();
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package com.wavefront.integrations;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import javax.net.SocketFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ShardedWavefront}, against several local listeners that can be stopped and restarted.
+ */
+public class ShardedWavefrontTest {
+  private static final long TIMEOUT_MILLIS = 10000;
+  private static final long PROBE_INTERVAL_MILLIS = 50;
+
+  private final List<Listener> listeners = new ArrayList<>();
+  private ShardedWavefront sender;
+
+  /**
+   * Accepts connections on a port and records the lines received over each of them.
+   */
+  private static class Listener {
+    private final int port;
+    private final List<List<String>> connections = new CopyOnWriteArrayList<>();
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private ServerSocket server;
+
+    Listener(int port) throws IOException {
+      server = new ServerSocket();
+      server.setReuseAddress(true);
+      server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+      this.port = server.getLocalPort();
+      Thread thread = new Thread(this::accept);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void accept() {
+      ServerSocket server = this.server;
+      try {
+        while (true) {
+          Socket socket = server.accept();
+          sockets.add(socket);
+          List<String> lines = new CopyOnWriteArrayList<>();
+          connections.add(lines);
+          Thread reader = new Thread(() -> {
+            try {
+              BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+              String line;
+              while ((line = in.readLine()) != null) {
+                lines.add(line);
+              }
+            } catch (IOException e) {
+              // closed
+            }
+          });
+          reader.setDaemon(true);
+          reader.start();
+        }
+      } catch (IOException e) {
+        // closed
+      }
+    }
+
+    InetSocketAddress address() {
+      return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    List<String> lines() {
+      List<String> lines = new ArrayList<>();
+      connections.forEach(lines::addAll);
+      return lines;
+    }
+
+    void stop() throws IOException {
+      server.close();
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+    }
+  }
+
+  private Listener listen() throws IOException {
+    Listener listener = new Listener(0);
+    listeners.add(listener);
+    return listener;
+  }
+
+  private ShardedWavefront newSender(int connectionsPerAgent) {
+    List<InetSocketAddress> addresses = new ArrayList<>();
+    for (Listener listener : listeners) {
+      addresses.add(listener.address());
+    }
+    sender = new ShardedWavefront(addresses, connectionsPerAgent, SocketFactory.getDefault(), PROBE_INTERVAL_MILLIS);
+    return sender;
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(condition.getAsBoolean());
+  }
+
+  private static int count(List<Listener> listeners) {
+    int lines = 0;
+    for (Listener listener : listeners) {
+      lines += listener.lines().size();
+    }
+    return lines;
+  }
+
+  /**
+   * Sends a round of points for each series, with the round as the value and timestamp.
+   */
+  private void sendRound(int series, int round) throws IOException {
+    for (int s = 0; s < series; s++) {
+      sender.send("metric" + s, round, 1476408638L + round, "host", Collections.singletonMap("shard", "s" + s));
+    }
+    sender.flush();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (sender != null) {
+      sender.close();
+    }
+    for (Listener listener : listeners) {
+      listener.stop();
+    }
+  }
+
+  @Test
+  public void testSeriesAreShardedAndKeptInOrder() throws Exception {
+    listen();
+    listen();
+    newSender(2);
+    int series = 100;
+    int rounds = 10;
+    for (int round = 0; round < rounds; round++) {
+      sendRound(series, round);
+    }
+    await(() -> count(listeners) == series * rounds);
+
+    Map<String, List<String>> connectionOfSeries = new HashMap<>();
+    int usedConnections = 0;
+    for (Listener listener : listeners) {
+      for (List<String> lines : listener.connections) {
+        if (!lines.isEmpty()) usedConnections++;
+        for (String line : lines) {
+          String metric = line.substring(0, line.indexOf(' '));
+          List<String> previous = connectionOfSeries.putIfAbsent(metric, lines);
+          // all points of a series go over the same connection
+          assertTrue(previous == null || previous == lines);
+        }
+      }
+    }
+    assertEquals(series, connectionOfSeries.size());
+    assertEquals(4, usedConnections);
+    for (Map.Entry<String, List<String>> entry : connectionOfSeries.entrySet()) {
+      int round = 0;
+      for (String line : entry.getValue()) {
+        if (line.startsWith(entry.getKey() + " ")) {
+          assertTrue(line, line.startsWith(entry.getKey() + " " + (double) round + " "));
+          round++;
+        }
+      }
+      assertEquals(rounds, round);
+    }
+  }
+
+  @Test
+  public void testFailoverAndRebalance() throws Exception {
+    Listener first = listen();
+    Listener second = listen();
+    newSender(1);
+    int series = 50;
+    sendRound(series, 0);
+    await(() -> count(listeners) == series);
+    assertFalse(first.lines().isEmpty());
+    assertFalse(second.lines().isEmpty());
+
+    first.stop();
+    await(() -> sender.getHealthyAgents().equals(Collections.singletonList(second.address())));
+    int before = second.lines().size();
+    sendRound(series, 1);
+    // every series now goes to the remaining agent
+    await(() -> second.lines().size() == before + series);
+
+    Listener restarted = new Listener(first.port);
+    listeners.add(restarted);
+    await(() -> sender.getHealthyAgents().size() == 2);
+    sendRound(series, 2);
+    await(() -> count(Arrays.asList(second, restarted)) == before + 2 * series);
+    // the series of the first agent moved back, and no others
+    assertEquals(series - before, restarted.lines().size());
+  }
+
+  @Test
+  public void testAllAgentsDown() throws Exception {
+    Listener listener = listen();
+    newSender(2);
+    sendRound(1, 0);
+    listener.stop();
+    await(() -> sender.getHealthyAgents().isEmpty());
+    try {
+      sender.send("metric", 1, null, "host");
+      assertTrue(false);
+    } catch (IOException expected) {
+    }
+    assertFalse(sender.isConnected());
+  }
+}
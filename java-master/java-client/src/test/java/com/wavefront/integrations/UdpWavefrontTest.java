@@ -0,0 +1,105 @@
+package com.wavefront.integrations;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link UdpWavefront}
+ */
+public class UdpWavefrontTest {
+  private DatagramSocket server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    server.setSoTimeout(5000);
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  private String receive() throws Exception {
+    DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+    server.receive(packet);
+    return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testPointsArePackedIntoDatagrams() throws Exception {
+    int maxDatagramSize = 200;
+    UdpWavefront sender = new UdpWavefront(InetAddress.getLoopbackAddress().getHostAddress(),
+        server.getLocalPort(), maxDatagramSize);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sender.send("metric" + i, i, 1476408638L, "host", Collections.singletonMap("tag", "value"));
+      expected.append(Wavefront.pointToString("metric" + i, i, 1476408638L, "host",
+          Collections.singletonMap("tag", "value")));
+    }
+    WavefrontSender.Series series = sender.series("series", "host", null);
+    series.send(1, 1476408638L);
+    expected.append(Wavefront.pointToString("series", 1, 1476408638L, "host", null));
+    sender.close();
+
+    StringBuilder received = new StringBuilder();
+    int datagrams = 0;
+    while (received.length() < expected.length()) {
+      String datagram = receive();
+      assertTrue(datagram.getBytes(StandardCharsets.UTF_8).length <= maxDatagramSize);
+      // every datagram holds whole points
+      assertTrue(datagram, datagram.endsWith("\n"));
+      received.append(datagram);
+      datagrams++;
+    }
+    assertEquals(expected.toString(), received.toString());
+    // a datagram holds several points of about 50 bytes each
+    assertTrue(datagrams <= expected.length() / (maxDatagramSize - 60) + 1);
+    assertEquals(0, sender.getFailureCount());
+  }
+
+  @Test
+  public void testFlushSendsCurrentDatagram() throws Exception {
+    UdpWavefront sender = new UdpWavefront(InetAddress.getLoopbackAddress().getHostAddress(),
+        server.getLocalPort());
+    sender.send("metric", 1, 1476408638L, "host");
+    sender.flush();
+    assertEquals(Wavefront.pointToString("metric", 1, 1476408638L, "host", null), receive());
+    sender.send("metric", 2, 1476408638L, "host");
+    sender.flush();
+    assertEquals(Wavefront.pointToString("metric", 2, 1476408638L, "host", null), receive());
+    sender.close();
+  }
+
+  @Test
+  public void testPointsLongerThanDatagramAreDropped() throws Exception {
+    UdpWavefront sender = new UdpWavefront(InetAddress.getLoopbackAddress().getHostAddress(),
+        server.getLocalPort(), 100);
+    Map<String, String> tags = new HashMap<>();
+    for (int i = 0; i < 10; i++) {
+      tags.put("tag" + i, "value" + i);
+    }
+    sender.send("metric", 1, 1476408638L, "host");
+    // a long point neither fits next to another one nor into a datagram of its own
+    sender.send("metric", 2, 1476408638L, "host", tags);
+    sender.series("series", "host", tags).send(3, 1476408638L);
+    sender.send("metric", 4, 1476408638L, "host");
+    sender.close();
+    assertEquals(2, sender.getDroppedCount());
+    assertEquals(Wavefront.pointToString("metric", 1, 1476408638L, "host", null), receive());
+    assertEquals(Wavefront.pointToString("metric", 4, 1476408638L, "host", null), receive());
+    assertEquals(0, sender.getFailureCount());
+  }
+}
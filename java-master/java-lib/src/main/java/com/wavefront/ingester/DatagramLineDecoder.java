@@ -0,0 +1,27 @@
+package com.wavefront.ingester;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+
+import java.util.List;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.handler.codec.MessageToMessageDecoder;
+
+/**
+ * Splits a datagram into its non-empty lines, so that line handlers written for TCP listeners can read points sent
+ * over UDP. Lines are not annotated with the sender, points without a source tag get the decoder's default source.
+ */
+@ChannelHandler.Sharable
+public class DatagramLineDecoder extends MessageToMessageDecoder<DatagramPacket> {
+  private static final Splitter LINES = Splitter.on('\n').trimResults().omitEmptyStrings();
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, DatagramPacket packet, List<Object> out) throws Exception {
+    for (String line : LINES.split(packet.content().toString(Charsets.UTF_8))) {
+      out.add(line);
+    }
+  }
+}
@@ -2,6 +2,7 @@ package com.wavefront.ingester;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import io.netty.channel.ChannelHandlerContext;
@@ -13,10 +14,18 @@ import io.netty.handler.codec.MessageToMessageDecoder;
  */
 public class GraphiteHostAnnotator extends MessageToMessageDecoder<String> {
 
-  private final String hostName;
+  private final Supplier<String> hostName;
   private final List<String> sourceTags = new ArrayList<>();
 
   public GraphiteHostAnnotator(String hostName, final List<String> customSourceTags) {
+    this(() -> hostName, customSourceTags);
+  }
+
+  /**
+   * @param hostName         supplies the host name for lines without one, asked for each such line
+   * @param customSourceTags additional tags that carry the source
+   */
+  public GraphiteHostAnnotator(Supplier<String> hostName, final List<String> customSourceTags) {
     this.hostName = hostName;
     this.sourceTags.add("source=");
     this.sourceTags.add("host=");
@@ -34,6 +43,6 @@ public class GraphiteHostAnnotator extends MessageToMessageDecoder<String> {
         return;
       }
     }
-    out.add(msg + " source=\"" + hostName + "\"");
+    out.add(msg + " source=\"" + hostName.get() + "\"");
   }
 }
@@ -8,12 +8,15 @@ import com.yammer.metrics.core.Counter;
 
 import java.net.BindException;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.epoll.Epoll;
 import io.netty.channel.epoll.EpollDatagramChannel;
@@ -36,6 +39,21 @@ public class UdpIngester extends Ingester {
     super(decoders, commandHandler, port);
   }
 
+  /**
+   * Listens for datagrams of newline-separated points and passes each line to the given handler.
+   *
+   * @param lineHandler sharable handler for the lines of every datagram
+   * @param port        port to listen on
+   */
+  public UdpIngester(final ChannelHandler lineHandler, int port) {
+    super(new ChannelInitializer<Channel>() {
+      @Override
+      public void initChannel(Channel ch) throws Exception {
+        ch.pipeline().addLast(new DatagramLineDecoder(), lineHandler);
+      }
+    }, port);
+  }
+
   @Override
   public void run() {
     activeListeners.inc();
@@ -57,6 +75,11 @@ public class UdpIngester extends Ingester {
           .channel(datagramChannelClass)
           .localAddress(listeningPort)
           .handler(initializer);
+      if (parentChannelOptions != null) {
+        for (Map.Entry<ChannelOption<?>, ?> entry : parentChannelOptions.entrySet()) {
+          bootstrap.option((ChannelOption<Object>) entry.getKey(), entry.getValue());
+        }
+      }
 
       // Start the server.
       bootstrap.bind().sync().channel().closeFuture().sync();
@@ -0,0 +1,137 @@
+package com.wavefront.metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Sends newline-terminated lines over UDP, packing as many whole lines as fit into each datagram. Nothing is kept
+ * about the remote host besides its address, and datagrams that get lost aren't sent again, so writes never block on
+ * a slow or absent listener. The proxy reads such datagrams with a {@link com.wavefront.ingester.DatagramLineDecoder}
+ * when started with {@code --datagramListeners}.
+ *
+ * The default datagram size fits into an Ethernet MTU of 1500 bytes with IPv6 and UDP headers, leaving room for
+ * tunnel overhead, so datagrams aren't fragmented on the way.
+ */
+public class DatagramWriter implements LineWriter {
+  protected static final Logger logger = Logger.getLogger(DatagramWriter.class.getCanonicalName());
+
+  public static final int DEFAULT_MAX_DATAGRAM_SIZE = 1400;
+  // the largest UDP payload over IPv4
+  public static final int MAX_DATAGRAM_SIZE = 65507;
+
+  private final InetSocketAddress address;
+  private final DatagramChannel channel;
+  // lines waiting to be sent, guarded by this
+  private final ByteBuffer buffer;
+  private final AtomicLong datagrams = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * @param host            the host to send to
+   * @param port            the UDP port to send to
+   * @param maxDatagramSize the size of a datagram in bytes at most
+   * @throws IOException when the channel cannot be opened
+   */
+  public DatagramWriter(String host, int port, int maxDatagramSize) throws IOException {
+    if (maxDatagramSize <= 0 || maxDatagramSize > MAX_DATAGRAM_SIZE) {
+      throw new IllegalArgumentException("maxDatagramSize must be between 1 and " + MAX_DATAGRAM_SIZE);
+    }
+    this.address = new InetSocketAddress(host, port);
+    this.channel = DatagramChannel.open();
+    this.buffer = ByteBuffer.allocate(maxDatagramSize);
+  }
+
+  public DatagramWriter(String host, int port) throws IOException {
+    this(host, port, DEFAULT_MAX_DATAGRAM_SIZE);
+  }
+
+  /**
+   * Adds the lines of the message to the current datagram, sending the datagram first whenever the next line doesn't
+   * fit. A line longer than a datagram is dropped.
+   */
+  @Override
+  public synchronized void write(String message) throws IOException {
+    int start = 0;
+    while (start < message.length()) {
+      int end = message.indexOf('\n', start);
+      end = end < 0 ? message.length() : end + 1;
+      writeLine(message.substring(start, end));
+      start = end;
+    }
+  }
+
+  private void writeLine(String line) throws IOException {
+    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > buffer.capacity()) {
+      dropped.incrementAndGet();
+      logger.warning("Dropping a line of " + bytes.length + " bytes, longer than a datagram of " +
+          buffer.capacity() + " bytes");
+      return;
+    }
+    if (bytes.length > buffer.remaining()) {
+      flush();
+    }
+    buffer.put(bytes);
+  }
+
+  /**
+   * Sends the remaining bytes of the given buffer as one datagram, e.g. lines packed by the caller.
+   */
+  public void send(ByteBuffer datagram) throws IOException {
+    if (datagram.remaining() > buffer.capacity()) {
+      throw new IllegalArgumentException("datagram of " + datagram.remaining() + " bytes is longer than " +
+          buffer.capacity() + " bytes");
+    }
+    channel.send(datagram, address);
+    datagrams.incrementAndGet();
+  }
+
+  /**
+   * Sends the current datagram, if there's anything in it.
+   */
+  @Override
+  public synchronized void flush() throws IOException {
+    if (buffer.position() == 0) return;
+    buffer.flip();
+    try {
+      send(buffer);
+    } finally {
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Returns the largest datagram sent, in bytes.
+   */
+  public int getMaxDatagramSize() {
+    return buffer.capacity();
+  }
+
+  /**
+   * Returns the number of datagrams sent.
+   */
+  public long getDatagramCount() {
+    return datagrams.get();
+  }
+
+  /**
+   * Returns the number of lines dropped because they were longer than a datagram.
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      channel.close();
+    }
+  }
+}
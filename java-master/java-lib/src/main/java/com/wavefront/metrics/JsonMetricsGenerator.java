@@ -17,6 +17,7 @@ import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.Metered;
 import com.yammer.metrics.core.Metric;
 import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
 import com.yammer.metrics.core.MetricProcessor;
 import com.yammer.metrics.core.MetricsRegistry;
 import com.yammer.metrics.core.Sampling;
@@ -56,8 +57,18 @@ public abstract class JsonMetricsGenerator {
 
   public static void generateJsonMetrics(OutputStream outputStream, MetricsRegistry registry, boolean includeVMMetrics,
                                          boolean includeBuildMetrics, boolean clearMetrics) throws IOException {
+    generateJsonMetrics(outputStream, registry, includeVMMetrics, includeBuildMetrics, clearMetrics,
+        MetricPredicate.ALL);
+  }
+
+  /**
+   * Streams the metrics of the registry matching the predicate to the output stream, which is closed at the end.
+   */
+  public static void generateJsonMetrics(OutputStream outputStream, MetricsRegistry registry, boolean includeVMMetrics,
+                                         boolean includeBuildMetrics, boolean clearMetrics,
+                                         MetricPredicate predicate) throws IOException {
     JsonGenerator json = factory.createGenerator(outputStream, JsonEncoding.UTF8);
-    writeJson(json, registry, includeVMMetrics, includeBuildMetrics, clearMetrics, null);
+    writeJson(json, registry, includeVMMetrics, includeBuildMetrics, clearMetrics, null, predicate);
   }
 
   public static JsonNode generateJsonMetrics(MetricsRegistry registry, boolean includeVMMetrics,
@@ -92,6 +103,12 @@ public abstract class JsonMetricsGenerator {
   public static void writeJson(JsonGenerator json, MetricsRegistry registry, boolean includeVMMetrics,
                                boolean includeBuildMetrics, boolean clearMetrics,
                                @Nullable Map<String, String> pointTags) throws IOException {
+    writeJson(json, registry, includeVMMetrics, includeBuildMetrics, clearMetrics, pointTags, MetricPredicate.ALL);
+  }
+
+  public static void writeJson(JsonGenerator json, MetricsRegistry registry, boolean includeVMMetrics,
+                               boolean includeBuildMetrics, boolean clearMetrics,
+                               @Nullable Map<String, String> pointTags, MetricPredicate predicate) throws IOException {
     json.writeStartObject();
     if (includeVMMetrics) {
       writeVmMetrics(json, pointTags);
@@ -102,7 +119,7 @@ public abstract class JsonMetricsGenerator {
       } catch (MissingResourceException ignored) {
       }
     }
-    writeRegularMetrics(new Processor(clearMetrics), json, registry, false, pointTags);
+    writeRegularMetrics(new Processor(clearMetrics), json, registry, false, pointTags, predicate);
     json.writeEndObject();
     json.close();
   }
@@ -291,7 +308,14 @@ public abstract class JsonMetricsGenerator {
   public static void writeRegularMetrics(Processor processor, JsonGenerator json,
                                          MetricsRegistry registry, boolean showFullSamples,
                                          @Nullable Map<String, String> pointTags) throws IOException {
-    for (Map.Entry<String, SortedMap<MetricName, Metric>> entry : registry.groupedMetrics().entrySet()) {
+    writeRegularMetrics(processor, json, registry, showFullSamples, pointTags, MetricPredicate.ALL);
+  }
+
+  public static void writeRegularMetrics(Processor processor, JsonGenerator json,
+                                         MetricsRegistry registry, boolean showFullSamples,
+                                         @Nullable Map<String, String> pointTags,
+                                         MetricPredicate predicate) throws IOException {
+    for (Map.Entry<String, SortedMap<MetricName, Metric>> entry : registry.groupedMetrics(predicate).entrySet()) {
       for (Map.Entry<MetricName, Metric> subEntry : entry.getValue().entrySet()) {
         boolean closeObjectRequired = false;
         if (subEntry.getKey() instanceof TaggedMetricName || pointTags != null) {
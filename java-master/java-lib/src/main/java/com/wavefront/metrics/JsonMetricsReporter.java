@@ -1,18 +1,24 @@
 package com.wavefront.metrics;
 
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 import com.wavefront.common.TaggedMetricName;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Metric;
 import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
 import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.MetricsRegistryListener;
 import com.yammer.metrics.core.Timer;
 import com.yammer.metrics.core.TimerContext;
 import com.yammer.metrics.reporting.AbstractPollingReporter;
 
 import org.apache.commons.io.IOUtils;
 
-import java.io.OutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.URI;
@@ -21,7 +27,9 @@ import java.net.UnknownHostException;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
+import javax.annotation.Nullable;
 import javax.ws.rs.core.UriBuilder;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -30,6 +38,9 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 /**
  * Adapted from MetricsServlet.
  *
+ * The JSON body is streamed to the server as it's generated, optionally gzipped, and the response is read to the end so
+ * that the JDK keeps the connection alive for the next report.
+ *
  * @author Sam Pullara (sam@wavefront.com)
  * @author Clement Pang (clement@wavefront.com)
  * @author Andrew Kao (andrew@wavefront.com)
@@ -45,9 +56,17 @@ public class JsonMetricsReporter extends AbstractPollingReporter {
   private final String host;
   private final Map<String, String> tags;
   private final Counter errors;
-  private final boolean clearMetrics, https;
+  private final boolean clearMetrics, https, compress;
+  // null to report every metric every time
+  @Nullable
+  private final MetricChangeTracker changeTracker;
+  private final long refreshMillis;
+  private long buildMetricsReportedMillis;
+  private URL url;
   private Timer latency;
   private Counter reports;
+  private Counter serializedBytes;
+  private Counter sentBytes;
 
   /**
    * Track and report uptime of services.
@@ -77,6 +96,18 @@ public class JsonMetricsReporter extends AbstractPollingReporter {
                              String table, String sunnylabsHost, Map<String, String> tags, boolean clearMetrics,
                              boolean https)
       throws UnknownHostException {
+    this(registry, includeVMMetrics, table, sunnylabsHost, tags, clearMetrics, https, false, 0);
+  }
+
+  /**
+   * @param compress      whether to gzip the JSON body, which the server must accept
+   * @param refreshMillis if positive, only metrics that changed since they were last reported are sent, and unchanged
+   *                      ones (as well as build metrics) only once per this many milliseconds
+   */
+  public JsonMetricsReporter(MetricsRegistry registry, boolean includeVMMetrics,
+                             String table, String sunnylabsHost, Map<String, String> tags, boolean clearMetrics,
+                             boolean https, boolean compress, long refreshMillis)
+      throws UnknownHostException {
     super(registry, "json-metrics-reporter");
     this.includeVMMetrics = includeVMMetrics;
     this.tags = tags;
@@ -102,6 +133,24 @@ public class JsonMetricsReporter extends AbstractPollingReporter {
     this.clearMetrics = clearMetrics;
     this.host = InetAddress.getLocalHost().getHostName();
     this.https = https;
+    this.compress = compress;
+    this.refreshMillis = refreshMillis;
+    if (refreshMillis > 0) {
+      final MetricChangeTracker changeTracker = new MetricChangeTracker(refreshMillis, System::currentTimeMillis);
+      registry.addListener(new MetricsRegistryListener() {
+        @Override
+        public void onMetricAdded(MetricName name, Metric metric) {
+        }
+
+        @Override
+        public void onMetricRemoved(MetricName name) {
+          changeTracker.evict(name);
+        }
+      });
+      this.changeTracker = changeTracker;
+    } else {
+      this.changeTracker = null;
+    }
     if (!this.https) {
       logger.severe("===================================================================");
       logger.severe("HTTPS is off for reporting! This should never be set in production!");
@@ -111,6 +160,8 @@ public class JsonMetricsReporter extends AbstractPollingReporter {
     latency = Metrics.newTimer(new MetricName("jsonreporter", "jsonreporter", "latency"), MILLISECONDS, SECONDS);
     reports = Metrics.newCounter(new MetricName("jsonreporter", "jsonreporter", "reports"));
     errors = Metrics.newCounter(new MetricName("jsonreporter", "jsonreporter", "errors"));
+    serializedBytes = Metrics.newCounter(new MetricName("jsonreporter", "jsonreporter", "serialized-bytes"));
+    sentBytes = Metrics.newCounter(new MetricName("jsonreporter", "jsonreporter", "sent-bytes"));
   }
 
   @Override
@@ -125,46 +176,89 @@ public class JsonMetricsReporter extends AbstractPollingReporter {
   public void reportMetrics() {
     TimerContext time = latency.time();
     HttpURLConnection urlc = null;
+    boolean responded = false;
     try {
-      UriBuilder builder = UriBuilder.fromUri(new URI(
-          https ? "https" : "http", sunnylabsHost, "/report/metrics", null));
-      if (sunnylabsPort != null) {
-        builder.port(sunnylabsPort);
-      }
-      builder.queryParam("h", host);
-      builder.queryParam("t", table);
-      for (Map.Entry<String, String> tag : tags.entrySet()) {
-        builder.queryParam(tag.getKey(), tag.getValue());
+      if (url == null) {
+        UriBuilder builder = UriBuilder.fromUri(new URI(
+            https ? "https" : "http", sunnylabsHost, "/report/metrics", null));
+        if (sunnylabsPort != null) {
+          builder.port(sunnylabsPort);
+        }
+        builder.queryParam("h", host);
+        builder.queryParam("t", table);
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+          builder.queryParam(tag.getKey(), tag.getValue());
+        }
+        url = builder.build().toURL();
       }
-      URL http = builder.build().toURL();
-      logger.info("Reporting metrics (JSON) to: " + http);
-      urlc = (HttpURLConnection) http.openConnection();
+      logger.info("Reporting metrics (JSON) to: " + url);
+      urlc = (HttpURLConnection) url.openConnection();
       urlc.setDoOutput(true);
+      // send the body as it's generated, instead of buffering it to find its length
+      urlc.setChunkedStreamingMode(0);
       urlc.setReadTimeout(60000);
       urlc.setConnectTimeout(60000);
       urlc.addRequestProperty("Content-Type", "application/json");
-      OutputStream outputStream = urlc.getOutputStream();
-      JsonMetricsGenerator.generateJsonMetrics(outputStream, getMetricsRegistry(), includeVMMetrics, true,
-          clearMetrics);
-      logger.info("Metrics (JSON) reported: " + urlc.getResponseCode());
+      if (compress) {
+        urlc.addRequestProperty("Content-Encoding", "gzip");
+      }
+      boolean includeBuildMetrics = true;
+      MetricPredicate predicate = MetricPredicate.ALL;
+      long now = System.currentTimeMillis();
+      if (changeTracker != null) {
+        changeTracker.start();
+        includeBuildMetrics = now - buildMetricsReportedMillis >= refreshMillis;
+        predicate = changeTracker;
+      }
+      CountingOutputStream sent = new CountingOutputStream(urlc.getOutputStream());
+      CountingOutputStream serialized = new CountingOutputStream(compress ? new GZIPOutputStream(sent, 8192) : sent);
+      // closes the stream, which finishes the request
+      JsonMetricsGenerator.generateJsonMetrics(serialized, getMetricsRegistry(), includeVMMetrics,
+          includeBuildMetrics, clearMetrics, predicate);
+      serializedBytes.inc(serialized.getCount());
+      sentBytes.inc(sent.getCount());
+      int responseCode = urlc.getResponseCode();
+      responded = true;
+      logger.info("Metrics (JSON) reported: " + responseCode);
+      if (changeTracker != null && responseCode / 100 == 2) {
+        changeTracker.commit();
+        if (includeBuildMetrics) {
+          buildMetricsReportedMillis = now;
+        }
+      }
       reports.inc();
     } catch (Throwable e) {
       logger.log(Level.WARNING, "Failed to report metrics (JSON)", e);
       errors.inc();
     } finally {
-      if (urlc != null) {
-        try {
-          IOUtils.closeQuietly(urlc.getInputStream());
-        } catch (Exception e) {
-          // ignore.
-        }
-        try {
-          IOUtils.closeQuietly(urlc.getOutputStream());
-        } catch (Exception e) {
-          // ignore.
-        }
+      if (responded) {
+        drain(urlc);
+      } else if (urlc != null) {
+        // don't let a partial body be sent as a complete request
+        urlc.disconnect();
       }
       time.stop();
     }
   }
+
+  /**
+   * Reads the rest of the response, so that the connection can be kept alive for the next report.
+   */
+  private static void drain(HttpURLConnection urlc) {
+    InputStream response;
+    try {
+      response = urlc.getInputStream();
+    } catch (IOException e) {
+      response = urlc.getErrorStream();
+    }
+    if (response != null) {
+      try {
+        ByteStreams.copy(response, ByteStreams.nullOutputStream());
+      } catch (IOException e) {
+        // the connection won't be reused.
+      } finally {
+        IOUtils.closeQuietly(response);
+      }
+    }
+  }
 }
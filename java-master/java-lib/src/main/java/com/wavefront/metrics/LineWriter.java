@@ -0,0 +1,23 @@
+package com.wavefront.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes newline-terminated lines to a remote host, over TCP with {@link ReconnectingSocket} or over UDP with
+ * {@link DatagramWriter}.
+ */
+public interface LineWriter extends Closeable {
+
+  /**
+   * Writes one or more lines, which may be buffered until {@link #flush()}.
+   *
+   * @throws Exception when the line cannot be written
+   */
+  void write(String message) throws Exception;
+
+  /**
+   * Sends what has been buffered.
+   */
+  void flush() throws IOException;
+}
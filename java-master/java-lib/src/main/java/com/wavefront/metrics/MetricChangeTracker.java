@@ -0,0 +1,112 @@
+package com.wavefront.metrics;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metered;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Matches the metrics that changed since they were last reported, and those that weren't reported for a while so that
+ * their series don't go stale. Counters and gauges change with their value, and meters, timers and histograms with
+ * their count, so an idle one isn't reported even though its rates decay.
+ *
+ * Matched metrics are only considered reported once {@link #commit()} is called after the report went through. Not
+ * thread-safe, meant to be used by a single reporter.
+ */
+class MetricChangeTracker implements MetricPredicate {
+
+  private final long refreshMillis;
+  private final Supplier<Long> clock;
+  // what was last reported of each metric, removed by evict()
+  private final ConcurrentMap<MetricName, Reported> reported = new ConcurrentHashMap<>();
+  // matched since the last commit
+  private final Map<MetricName, Object> pending = new HashMap<>();
+  private long now;
+
+  private static final class Reported {
+    private final Object state;
+    private final long millis;
+
+    private Reported(Object state, long millis) {
+      this.state = state;
+      this.millis = millis;
+    }
+  }
+
+  /**
+   * @param refreshMillis the longest time an unchanged metric goes unreported
+   * @param clock         the time in milliseconds
+   */
+  MetricChangeTracker(long refreshMillis, Supplier<Long> clock) {
+    if (refreshMillis <= 0) {
+      throw new IllegalArgumentException("refreshMillis must be positive");
+    }
+    this.refreshMillis = refreshMillis;
+    this.clock = clock;
+  }
+
+  /**
+   * Starts a report, forgetting what was matched by a report that wasn't committed.
+   */
+  void start() {
+    pending.clear();
+    now = clock.get();
+  }
+
+  @Override
+  public boolean matches(MetricName name, Metric metric) {
+    Object state = state(metric);
+    Reported last = reported.get(name);
+    if (last != null && Objects.equals(last.state, state) && now - last.millis < refreshMillis) {
+      return false;
+    }
+    pending.put(name, state);
+    return true;
+  }
+
+  /**
+   * Records the metrics matched since {@link #start()} as reported.
+   */
+  void commit() {
+    for (Map.Entry<MetricName, Object> entry : pending.entrySet()) {
+      reported.put(entry.getKey(), new Reported(entry.getValue(), now));
+    }
+    pending.clear();
+  }
+
+  /**
+   * Forgets a metric, e.g. when it's removed from the registry.
+   */
+  void evict(MetricName name) {
+    reported.remove(name);
+  }
+
+  private static Object state(Metric metric) {
+    if (metric instanceof Counter) {
+      return ((Counter) metric).count();
+    } else if (metric instanceof Metered) {
+      return ((Metered) metric).count();
+    } else if (metric instanceof Histogram) {
+      return ((Histogram) metric).count();
+    } else if (metric instanceof Gauge) {
+      try {
+        return ((Gauge<?>) metric).value();
+      } catch (RuntimeException e) {
+        // reported as an error every time
+        return new Object();
+      }
+    }
+    // unknown metrics always count as changed
+    return new Object();
+  }
+}
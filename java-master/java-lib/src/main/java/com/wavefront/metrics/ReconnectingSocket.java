@@ -4,8 +4,12 @@ import com.google.common.base.Throwables;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,11 +17,12 @@ import javax.net.SocketFactory;
 
 /**
  * Creates a socket with a buffered-writer around it. The socket can try to reconnect on
- * unexpected remote terminations.
+ * unexpected remote terminations. With the default {@link SocketFactory}, the socket is opened through a
+ * {@link SocketChannel}, which {@link #write(ByteBuffer)} writes to directly.
  *
  * @author Mori Bellamy (mori@wavefront.com)
  */
-public class ReconnectingSocket {
+public class ReconnectingSocket implements LineWriter {
   protected static final Logger logger = Logger.getLogger(ReconnectingSocket.class.getCanonicalName());
 
   private final String host;
@@ -25,6 +30,8 @@ public class ReconnectingSocket {
   private final SocketFactory socketFactory;
   private Socket underlyingSocket;
   private BufferedOutputStream stream;
+  // for writing buffers without a backing array to a socket without a channel
+  private byte[] chunk = null;
 
   /**
    * @throws IOException When we cannot open the remote socket.
@@ -53,7 +60,11 @@ public class ReconnectingSocket {
         stream.close();
       }
     } finally {
-      underlyingSocket = socketFactory.createSocket(host, port);
+      if (socketFactory == SocketFactory.getDefault()) {
+        underlyingSocket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+      } else {
+        underlyingSocket = socketFactory.createSocket(host, port);
+      }
       stream = new BufferedOutputStream(underlyingSocket.getOutputStream());
       logger.log(Level.INFO, String.format("Successfully reset connection to %s:%d", host, port));
     }
@@ -65,23 +76,72 @@ public class ReconnectingSocket {
    *
    * @throws Exception when a single retry is not enough to have a successful write to the remote host.
    */
+  @Override
   public void write(String message) throws Exception {
     try {
-      stream.write(message.getBytes());  // Might be NPE due to previously failed call to resetSocket.
+      // Might be NPE due to previously failed call to resetSocket.
+      stream.write(message.getBytes(StandardCharsets.UTF_8));
     } catch (Exception e) {
       try {
         logger.log(Level.WARNING, "Attempting to reset socket connection.", e);
         resetSocket();
-        stream.write(message.getBytes());
+        stream.write(message.getBytes(StandardCharsets.UTF_8));
       } catch (Exception e2) {
         throw Throwables.propagate(e2);
       }
     }
   }
 
+  /**
+   * Try to send the remaining bytes of the given buffer, bypassing the buffered stream when the socket has a channel.
+   * On failure, reset and send the bytes again from the buffer's original position. If _that_ fails, just rethrow the
+   * exception.
+   *
+   * @throws Exception when a single retry is not enough to have a successful write to the remote host.
+   */
+  public void write(ByteBuffer buffer) throws Exception {
+    int start = buffer.position();
+    try {
+      writeFully(buffer);  // Might be NPE due to previously failed call to resetSocket.
+    } catch (Exception e) {
+      try {
+        logger.log(Level.WARNING, "Attempting to reset socket connection.", e);
+        resetSocket();
+        buffer.position(start);
+        writeFully(buffer);
+      } catch (Exception e2) {
+        throw Throwables.propagate(e2);
+      }
+    }
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    SocketChannel channel = underlyingSocket.getChannel();
+    if (channel != null) {
+      // anything written as a string goes first
+      stream.flush();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } else if (buffer.hasArray()) {
+      stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      buffer.position(buffer.limit());
+    } else {
+      if (chunk == null) {
+        chunk = new byte[8192];
+      }
+      while (buffer.hasRemaining()) {
+        int length = Math.min(chunk.length, buffer.remaining());
+        buffer.get(chunk, 0, length);
+        stream.write(chunk, 0, length);
+      }
+    }
+  }
+
   /**
    * Flushes the stream best-effort. If that fails, we reset the connection.
    */
+  @Override
   public void flush() throws IOException {
     try {
       stream.flush();
@@ -91,6 +151,7 @@ public class ReconnectingSocket {
     }
   }
 
+  @Override
   public void close() throws IOException {
     try {
       flush();
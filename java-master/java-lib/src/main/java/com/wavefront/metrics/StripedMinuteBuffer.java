@@ -0,0 +1,131 @@
+package com.wavefront.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Buffers values of a distribution without taking a lock, so that many threads can record into the same histogram.
+ *
+ * Each thread appends values to one of a few striped buffers. A buffer only holds values of one minute, and is handed
+ * to the {@link Sink} when it fills up, when a value of a later minute arrives, or when the buffer is drained. Values
+ * of an earlier minute than their stripe's buffer are handed to the sink right away.
+ */
+public class StripedMinuteBuffer {
+  // a power of two, so that threads can be mapped to stripes with a mask
+  private static final int STRIPES =
+      Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2);
+
+  private final int bufferSize;
+  private final Sink sink;
+  // created on first use by a thread mapped to the stripe, removed when drained
+  private final AtomicReferenceArray<Buffer> stripes = new AtomicReferenceArray<>(STRIPES);
+
+  /**
+   * Receives the values of a retired buffer. Called by whichever thread retires the buffer, possibly concurrently for
+   * different buffers.
+   */
+  public interface Sink {
+    /**
+     * @param minMillis start of the minute of the values, in millis
+     * @param values    buffered values, only the first {@code size} are valid
+     * @param size      number of values
+     */
+    void merge(long minMillis, double[] values, int size);
+  }
+
+  /**
+   * Values of one minute that have yet to be handed to the sink.
+   */
+  private static class Buffer {
+    private final long minMillis;
+    private final double[] values;
+    // slots handed out to writers, set to the capacity once the buffer is retired
+    private final AtomicInteger reserved = new AtomicInteger();
+    // slots whose value has been stored
+    private final AtomicInteger written = new AtomicInteger();
+
+    private Buffer(long minMillis, int size) {
+      this.minMillis = minMillis;
+      this.values = new double[size];
+    }
+  }
+
+  /**
+   * @param bufferSize number of values per stripe
+   * @param sink       receives the buffered values
+   */
+  public StripedMinuteBuffer(int bufferSize, Sink sink) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("bufferSize must be positive");
+    }
+    this.bufferSize = bufferSize;
+    this.sink = sink;
+  }
+
+  private static int stripe() {
+    // spread sequential thread ids over the stripes
+    return (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+  }
+
+  /**
+   * Records a value.
+   *
+   * @param value     the value
+   * @param minMillis start of the minute the value belongs to, in millis
+   */
+  public void add(double value, long minMillis) {
+    int stripe = stripe();
+    while (true) {
+      Buffer buffer = stripes.get(stripe);
+      if (buffer == null || buffer.minMillis < minMillis) {
+        // first value of the stripe, or of a new minute
+        if (stripes.compareAndSet(stripe, buffer, new Buffer(minMillis, bufferSize)) && buffer != null) {
+          merge(buffer);
+        }
+        continue;
+      }
+      if (buffer.minMillis > minMillis) {
+        // late value, the stripe has moved on to a later minute already
+        sink.merge(minMillis, new double[] {value}, 1);
+        return;
+      }
+      int slot = buffer.reserved.getAndIncrement();
+      if (slot < bufferSize) {
+        buffer.values[slot] = value;
+        buffer.written.incrementAndGet();
+        return;
+      }
+      // full, or retired by another thread
+      if (stripes.compareAndSet(stripe, buffer, new Buffer(minMillis, bufferSize))) {
+        merge(buffer);
+      }
+    }
+  }
+
+  /**
+   * Hands all buffered values to the sink.
+   */
+  public void drain() {
+    for (int i = 0; i < STRIPES; i++) {
+      Buffer buffer = stripes.get(i);
+      if (buffer != null && buffer.reserved.get() > 0 && stripes.compareAndSet(i, buffer, null)) {
+        merge(buffer);
+      }
+    }
+  }
+
+  /**
+   * Retires a buffer that has been removed from its stripe: waits for writers that have already reserved a slot, and
+   * hands the values to the sink.
+   */
+  private void merge(Buffer buffer) {
+    // writers that haven't reserved a slot yet find the buffer full and move on to the one replacing it
+    int size = Math.min(buffer.reserved.getAndSet(bufferSize), bufferSize);
+    while (buffer.written.get() < size) {
+      Thread.yield();
+    }
+    if (size > 0) {
+      sink.merge(buffer.minMillis, buffer.values, size);
+    }
+  }
+}
@@ -5,6 +5,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.tdunning.math.stats.AVLTreeDigest;
 import com.tdunning.math.stats.Centroid;
 import com.tdunning.math.stats.TDigest;
+import com.wavefront.metrics.StripedMinuteBuffer;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.stats.Sample;
 import com.yammer.metrics.stats.Snapshot;
@@ -13,6 +14,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.function.Supplier;
 
 import static com.google.common.collect.Iterables.getFirst;
@@ -24,15 +26,19 @@ import static java.lang.Double.NaN;
 /**
  * Wavefront implementation of {@link Histogram}.
  *
+ * Recording doesn't take a lock: samples are buffered in a {@link StripedMinuteBuffer}, whose buffers are merged into
+ * the t-digest of their minute when they fill up, when the minute changes, or when the histogram is read.
+ *
  * @author Tim Schmidt (tim@wavefront.com).
  */
 public class WavefrontHistogram extends Histogram implements Metric {
   private final static int ACCURACY = 100;
   private final static int MAX_BINS = 10;
+  private final static int BUFFER_SIZE = 128;
 
   private final Supplier<Long> millis;
   private final LinkedList<MinuteBin> bins;
-
+  private final StripedMinuteBuffer buffer;
 
   public static class MinuteBin {
     private final TDigest dist;
@@ -60,23 +66,34 @@ public class WavefrontHistogram extends Histogram implements Metric {
     return get(registry, metricName, System::currentTimeMillis);
   }
 
+  /**
+   * Returns the histogram registered under the given name, registering a new one if there's none. Doesn't lock, so
+   * it's cheap to call on every update.
+   */
   @VisibleForTesting
-  public static synchronized WavefrontHistogram get(MetricsRegistry registry, MetricName metricName, Supplier<Long> clock) {
+  public static WavefrontHistogram get(MetricsRegistry registry, MetricName metricName, Supplier<Long> clock) {
+    Metric existing = registry.allMetrics().get(metricName);
+    if (existing instanceof WavefrontHistogram) {
+      return (WavefrontHistogram) existing;
+    }
     // Awkward construction trying to fit in with Yammer Histograms
     TDigestSample sample = new TDigestSample();
     WavefrontHistogram tDigestHistogram = new WavefrontHistogram(sample, clock);
     sample.set(tDigestHistogram);
-    registry.getOrAdd(metricName, tDigestHistogram);
-    return tDigestHistogram;
+    Metric registered = registry.getOrAdd(metricName, (Metric) tDigestHistogram);
+    // another thread may have registered one first
+    return registered instanceof WavefrontHistogram ? (WavefrontHistogram) registered : tDigestHistogram;
   }
 
   private WavefrontHistogram(TDigestSample sample, Supplier<Long> millis) {
     super(sample);
     this.millis = millis;
     this.bins = new LinkedList<>();
+    this.buffer = new StripedMinuteBuffer(BUFFER_SIZE, this::merge);
   }
 
   public synchronized Collection<MinuteBin> bins(boolean clear) {
+    drain();
     Collection<MinuteBin> result = new ArrayList<>(bins);
     if (clear) bins.clear();
     return result;
@@ -92,18 +109,45 @@ public class WavefrontHistogram extends Histogram implements Metric {
   }
 
   /**
-   * Helper to retrieve the current bin. Assumes proper synchronization.
+   * Helper to retrieve the bin of the given minute, keeping bins in order. Assumes proper synchronization.
    */
-  private MinuteBin getCurrent() {
-    long minMillis = minMillis();
-
-    if (bins.isEmpty() || bins.getLast().minMillis != minMillis) {
-      bins.add(new MinuteBin(minMillis));
-      if (bins.size() > MAX_BINS) {
-        bins.removeFirst();
+  private MinuteBin getBin(long minMillis) {
+    ListIterator<MinuteBin> iterator = bins.listIterator(bins.size());
+    while (iterator.hasPrevious()) {
+      MinuteBin bin = iterator.previous();
+      if (bin.minMillis == minMillis) {
+        return bin;
+      }
+      if (bin.minMillis < minMillis) {
+        iterator.next();
+        break;
       }
     }
-    return bins.getLast();
+    MinuteBin bin = new MinuteBin(minMillis);
+    iterator.add(bin);
+    if (bins.size() > MAX_BINS) {
+      bins.removeFirst();
+    }
+    return bin;
+  }
+
+  /**
+   * Adds buffered samples to the t-digest of their minute.
+   */
+  private synchronized void merge(long minMillis, double[] values, int size) {
+    TDigest dist = getBin(minMillis).dist;
+    for (int i = 0; i < size; i++) {
+      dist.add(values[i]);
+    }
+  }
+
+  /**
+   * Merges all buffered samples into the bins.
+   */
+  private void drain() {
+    // called by the Histogram constructor through clear()
+    if (buffer == null) return;
+    buffer.drain();
   }
 
   /**
@@ -115,7 +159,7 @@ public class WavefrontHistogram extends Histogram implements Metric {
   public synchronized void bulkUpdate(List<Double> means, List<Integer> counts) {
     if (means != null && counts != null) {
       int n = Math.min(means.size(), counts.size());
-      MinuteBin current = getCurrent();
+      MinuteBin current = getBin(minMillis());
       for (int i = 0; i < n; ++i) {
         current.dist.add(means.get(i), counts.get(i));
       }
@@ -123,8 +167,8 @@ public class WavefrontHistogram extends Histogram implements Metric {
   }
 
   @Override
-  public synchronized void update(long value) {
-    getCurrent().dist.add(value);
+  public void update(long value) {
+    buffer.add(value, minMillis());
   }
 
   @Override
@@ -134,6 +178,7 @@ public class WavefrontHistogram extends Histogram implements Metric {
   }
 
   public synchronized double min() {
+    drain();
     // This is a lie if the winning centroid's weight > 1
     return bins.stream()
         .map(b -> b.dist.centroids())
@@ -142,6 +187,7 @@ public class WavefrontHistogram extends Histogram implements Metric {
   }
 
   public synchronized double max() {
+    drain();
     //This is a lie if the winning centroid's weight > 1
     return bins.stream()
         .map(b -> b.dist.centroids())
@@ -151,18 +197,21 @@ public class WavefrontHistogram extends Histogram implements Metric {
 
   @Override
   public synchronized long count() {
+    drain();
     return bins.stream().mapToLong(bin -> bin.dist.size()).sum();
   }
 
   @Override
   public synchronized void clear() {
     // More awkwardness
+    drain();
     if (bins != null) {
       bins.clear();
     }
   }
 
   private synchronized TDigest snapshot() {
+    drain();
     final TDigest snapshot = new AVLTreeDigest(ACCURACY);
 
     bins.forEach(bin -> snapshot.add(bin.dist));
@@ -4,6 +4,7 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -46,6 +47,18 @@ public class GraphiteHostAnnotatorTest {
     assertEquals("test.metric 1 source=\"test.host.com\"", out.get(0));
   }
 
+  @Test
+  public void testSourceIsSuppliedPerLine() throws Exception {
+    LinkedList<String> names = new LinkedList<>(Arrays.asList("10.0.0.1", "test.host.com"));
+    GraphiteHostAnnotator handler = new GraphiteHostAnnotator(names::remove, emptyCustomSourceTags);
+    List<Object> out = new LinkedList<Object>();
+    handler.decode(null, "test.metric 1 source=foo", out);
+    handler.decode(null, "test.metric 1", out);
+    handler.decode(null, "test.metric 2", out);
+    assertEquals("test.metric 1 source=\"10.0.0.1\"", out.get(1));
+    assertEquals("test.metric 2 source=\"test.host.com\"", out.get(2));
+  }
+
   @Test
   public void testCustomTagMatches() throws Exception {
     List<String> customSourceTags = new ArrayList<String>();
@@ -0,0 +1,102 @@
+package com.wavefront.metrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Unit tests around {@link DatagramWriter}
+ */
+public class DatagramWriterTest {
+  private DatagramSocket server;
+
+  @Before
+  public void setup() throws Exception {
+    server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    server.setSoTimeout(5000);
+  }
+
+  @After
+  public void teardown() {
+    server.close();
+  }
+
+  private String receive() throws Exception {
+    DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+    server.receive(packet);
+    return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testPacksWholeLines() throws Exception {
+    DatagramWriter writer = new DatagramWriter(InetAddress.getLoopbackAddress().getHostAddress(),
+        server.getLocalPort(), 100);
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      String line = "\"metric" + i + "\" " + i + ".0\n";
+      lines.add(line);
+      writer.write(line);
+    }
+    writer.close();
+
+    StringBuilder received = new StringBuilder();
+    int datagrams = 0;
+    while (received.length() < String.join("", lines).length()) {
+      String datagram = receive();
+      assertThat(datagram.getBytes(StandardCharsets.UTF_8).length).isAtMost(100);
+      // no line is split across datagrams
+      assertThat(datagram).endsWith("\n");
+      received.append(datagram);
+      datagrams++;
+    }
+    assertThat(received.toString()).isEqualTo(String.join("", lines));
+    assertThat(writer.getDatagramCount()).isEqualTo((long) datagrams);
+    // each line is at most 16 bytes, so a datagram holds at least 6 of them
+    assertThat(datagrams).isAtMost(50 / 6 + 1);
+  }
+
+  @Test
+  public void testDropsLinesLongerThanADatagram() throws Exception {
+    DatagramWriter writer = new DatagramWriter(InetAddress.getLoopbackAddress().getHostAddress(),
+        server.getLocalPort(), 20);
+    writer.write("\"a.very.long.metric.name\" 1.0\n");
+    writer.write("\"short\" 1.0\n");
+    writer.flush();
+    assertThat(receive()).isEqualTo("\"short\" 1.0\n");
+    assertThat(writer.getDroppedCount()).isEqualTo(1L);
+    writer.close();
+  }
+
+  @Test
+  public void testSplitsMessagesIntoLines() throws Exception {
+    DatagramWriter writer = new DatagramWriter(InetAddress.getLoopbackAddress().getHostAddress(),
+        server.getLocalPort(), 30);
+    writer.write("\"first\" 1.0\n\"second\" 2.0\n\"third\" 3.0\n");
+    writer.close();
+    assertThat(receive()).isEqualTo("\"first\" 1.0\n\"second\" 2.0\n");
+    assertThat(receive()).isEqualTo("\"third\" 3.0\n");
+  }
+
+  @Test
+  public void testNoListener() throws Exception {
+    int port = server.getLocalPort();
+    server.close();
+    DatagramWriter writer = new DatagramWriter(InetAddress.getLoopbackAddress().getHostAddress(), port);
+    // datagrams to nowhere are lost without errors
+    for (int i = 0; i < 10; i++) {
+      writer.write("\"metric\" " + i + "\n");
+      writer.flush();
+    }
+    assertThat(writer.getDatagramCount()).isEqualTo(10L);
+    writer.close();
+  }
+}
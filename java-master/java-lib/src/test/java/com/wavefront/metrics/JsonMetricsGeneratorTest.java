@@ -181,4 +181,16 @@ public class JsonMetricsGeneratorTest {
 
     assertThat(json).isEqualTo("{\"test.metric\":{\"bins\":[]}}");
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testPredicate() throws IOException {
+    testRegistry.newCounter(new MetricName("test", "", "included")).inc();
+    testRegistry.newCounter(new MetricName("test", "", "excluded")).inc();
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    JsonMetricsGenerator.generateJsonMetrics(baos, testRegistry, false, false, false,
+        (name, metric) -> name.getName().equals("included"));
+
+    assertThat(new String(baos.toByteArray())).isEqualTo("{\"test.included\":1}");
+  }
+}
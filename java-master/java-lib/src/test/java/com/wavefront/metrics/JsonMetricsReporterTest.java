@@ -0,0 +1,127 @@
+package com.wavefront.metrics;
+
+import com.google.common.io.ByteStreams;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Unit tests around {@link JsonMetricsReporter}
+ */
+public class JsonMetricsReporterTest {
+  private final List<Request> requests = new CopyOnWriteArrayList<>();
+  private HttpServer server;
+  private MetricsRegistry registry;
+
+  private static final class Request {
+    private final String contentEncoding;
+    private final byte[] body;
+    private final InetSocketAddress remoteAddress;
+
+    private Request(String contentEncoding, byte[] body, InetSocketAddress remoteAddress) {
+      this.contentEncoding = contentEncoding;
+      this.body = body;
+      this.remoteAddress = remoteAddress;
+    }
+
+    private JsonNode json() throws Exception {
+      InputStream stream = new ByteArrayInputStream(body);
+      if ("gzip".equals(contentEncoding)) {
+        stream = new GZIPInputStream(stream);
+      }
+      return new ObjectMapper().readTree(stream);
+    }
+  }
+
+  @Before
+  public void setup() throws Exception {
+    registry = new MetricsRegistry();
+    server = HttpServer.create(new InetSocketAddress(0), 0);
+    server.createContext("/report/metrics", exchange -> {
+      byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+      requests.add(new Request(exchange.getRequestHeaders().getFirst("Content-Encoding"), body,
+          exchange.getRemoteAddress()));
+      exchange.sendResponseHeaders(202, -1);
+      exchange.close();
+    });
+    server.start();
+  }
+
+  @After
+  public void teardown() {
+    server.stop(0);
+  }
+
+  private JsonMetricsReporter newReporter(boolean compress, long refreshMillis) throws Exception {
+    return new JsonMetricsReporter(registry, false, "table", "localhost:" + server.getAddress().getPort(),
+        Collections.emptyMap(), false, false, compress, refreshMillis);
+  }
+
+  @Test
+  public void testCompressedReportsOverOneConnection() throws Exception {
+    Counter counter = registry.newCounter(new MetricName("test", "", "counter"));
+    JsonMetricsReporter reporter = newReporter(true, 0);
+    counter.inc();
+    reporter.reportMetrics();
+    counter.inc();
+    reporter.reportMetrics();
+
+    assertThat(requests).hasSize(2);
+    assertThat(requests.get(0).contentEncoding).isEqualTo("gzip");
+    assertThat(requests.get(0).json().get("test.counter").asLong()).isEqualTo(1L);
+    assertThat(requests.get(1).json().get("test.counter").asLong()).isEqualTo(2L);
+    // the connection was kept alive
+    assertThat(requests.get(1).remoteAddress).isEqualTo(requests.get(0).remoteAddress);
+  }
+
+  @Test
+  public void testChangedMetricsOnly() throws Exception {
+    Counter changing = registry.newCounter(new MetricName("test", "", "changing"));
+    registry.newCounter(new MetricName("test", "", "idle")).inc();
+    JsonMetricsReporter reporter = newReporter(false, 60000);
+    reporter.reportMetrics();
+    changing.inc();
+    reporter.reportMetrics();
+    reporter.reportMetrics();
+
+    assertThat(requests).hasSize(3);
+    assertThat(requests.get(0).contentEncoding).isNull();
+    JsonNode first = requests.get(0).json();
+    assertThat(first.has("test.changing")).isTrue();
+    assertThat(first.has("test.idle")).isTrue();
+    JsonNode second = requests.get(1).json();
+    assertThat(second.get("test.changing").asLong()).isEqualTo(1L);
+    assertThat(second.has("test.idle")).isFalse();
+    assertThat(requests.get(2).json().size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testUnchangedMetricsAreRefreshed() throws Exception {
+    registry.newCounter(new MetricName("test", "", "idle")).inc();
+    JsonMetricsReporter reporter = newReporter(false, 1);
+    reporter.reportMetrics();
+    Thread.sleep(5);
+    reporter.reportMetrics();
+
+    assertThat(requests).hasSize(2);
+    assertThat(requests.get(1).json().has("test.idle")).isTrue();
+  }
+}
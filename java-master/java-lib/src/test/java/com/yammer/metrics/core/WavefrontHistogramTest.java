@@ -0,0 +1,140 @@
+package com.yammer.metrics.core;
+
+import com.tdunning.math.stats.AVLTreeDigest;
+import com.tdunning.math.stats.TDigest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Unit tests around {@link WavefrontHistogram}.
+ */
+public class WavefrontHistogramTest {
+  private static final Logger logger = Logger.getLogger(WavefrontHistogramTest.class.getCanonicalName());
+
+  private final AtomicLong time = new AtomicLong(0);
+  private MetricsRegistry registry;
+
+  @Before
+  public void setup() {
+    registry = new MetricsRegistry();
+  }
+
+  /**
+   * Runs the body on the given number of threads, started together, and returns the elapsed nanoseconds.
+   */
+  private static long concurrently(int threads, IntConsumer body) throws InterruptedException {
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int thread = t;
+      Thread worker = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        body.accept(thread);
+      });
+      worker.start();
+      workers.add(worker);
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return System.nanoTime() - startNanos;
+  }
+
+  @Test
+  public void testGetReturnsRegisteredHistogram() {
+    MetricName name = new MetricName("test", "", "metric");
+    WavefrontHistogram histogram = WavefrontHistogram.get(registry, name, time::get);
+    assertThat(WavefrontHistogram.get(registry, name, time::get)).isSameAs(histogram);
+    assertThat(registry.allMetrics().get(name)).isSameAs(histogram);
+  }
+
+  @Test
+  public void testConcurrentUpdates() throws InterruptedException {
+    WavefrontHistogram histogram = WavefrontHistogram.get(registry, new MetricName("test", "", "metric"), time::get);
+    int threads = 16;
+    int updates = 10000;
+    concurrently(threads, thread -> {
+      for (int i = 0; i < updates; i++) {
+        histogram.update(i % 100);
+      }
+    });
+    assertThat(histogram.count()).isEqualTo((long) threads * updates);
+    assertThat(histogram.min()).isEqualTo(0.0);
+    assertThat(histogram.max()).isEqualTo(99.0);
+    assertThat(histogram.getSnapshot().size()).isEqualTo(threads * updates);
+
+    time.set(61 * 1000);
+    concurrently(threads, thread -> histogram.update(1000));
+    List<WavefrontHistogram.MinuteBin> bins = new ArrayList<>(histogram.bins(true));
+    assertThat(bins).hasSize(2);
+    assertThat(bins.get(0).getMinMillis()).isEqualTo(0L);
+    assertThat(bins.get(0).getDist().size()).isEqualTo((long) threads * updates);
+    assertThat(bins.get(1).getMinMillis()).isEqualTo(60000L);
+    assertThat(bins.get(1).getDist().size()).isEqualTo((long) threads);
+
+    assertThat(histogram.bins(false)).isEmpty();
+    assertThat(histogram.count()).isEqualTo(0L);
+  }
+
+  @Test
+  public void testClearDiscardsBufferedSamples() {
+    WavefrontHistogram histogram = WavefrontHistogram.get(registry, new MetricName("test", "", "metric"), time::get);
+    histogram.update(10);
+    histogram.clear();
+    assertThat(histogram.bins(false)).isEmpty();
+    histogram.update(100);
+    assertThat(histogram.count()).isEqualTo(1L);
+    assertThat(histogram.max()).isEqualTo(100.0);
+  }
+
+  @Test
+  public void testContentionBenchmark() throws InterruptedException {
+    int updates = 2000000;
+    for (int threads : new int[]{1, 8, 64}) {
+      int perThread = updates / threads;
+      for (int round = 0; round < 2; round++) {  // the first round warms up
+        // what update() did before recording was striped
+        TDigest digest = new AVLTreeDigest(100);
+        long lockedNanos = concurrently(threads, thread -> {
+          for (int i = 0; i < perThread; i++) {
+            synchronized (digest) {
+              digest.add(i % 1000);
+            }
+          }
+        });
+        assertThat(digest.size()).isEqualTo((long) threads * perThread);
+
+        WavefrontHistogram histogram = WavefrontHistogram.get(new MetricsRegistry(),
+            new MetricName("test", "", "benchmark"), time::get);
+        long stripedNanos = concurrently(threads, thread -> {
+          for (int i = 0; i < perThread; i++) {
+            histogram.update(i % 1000);
+          }
+        });
+        assertThat(histogram.count()).isEqualTo((long) threads * perThread);
+
+        if (round > 0) {
+          logger.info(threads + " threads x " + perThread + " updates: locked " +
+              ((long) threads * perThread * 1000000000L / lockedNanos) + " updates/s, striped " +
+              ((long) threads * perThread * 1000000000L / stripedNanos) + " updates/s");
+        }
+      }
+    }
+  }
+}
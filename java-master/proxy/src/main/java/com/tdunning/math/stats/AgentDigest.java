@@ -433,7 +433,14 @@ public class AgentDigest extends AbstractTDigest {
     public AgentDigest read(Bytes in, long size, @Nullable AgentDigest using) {
       Preconditions.checkArgument(size >= FIXED_SIZE);
       short compression = in.readShort();
+      if (compression < 0) {
+        // written by the compact codec, compression follows the format marker
+        return CompactAgentDigestMarshaller.readCompact(in, compression, using);
+      }
+      return readLegacy(in, size, compression, using);
+    }
 
+    static AgentDigest readLegacy(Bytes in, long size, short compression, @Nullable AgentDigest using) {
       if (using == null || using.compression != compression) {
         using = new AgentDigest(compression, in.readLong());
       } else {
@@ -459,9 +466,7 @@ public class AgentDigest extends AbstractTDigest {
 
     @Override
     public long size(@NotNull AgentDigest toWrite) {
-      long size = toWrite.encodedSize();
-      accumulatorValueSizes.update(size);
-      return size;
+      return toWrite.encodedSize();
     }
 
     @Override
@@ -471,6 +476,8 @@ public class AgentDigest extends AbstractTDigest {
 
       // Just for sanity, comment out for production use
       Preconditions.checkArgument(size == toWrite.encodedSize());
+      // recorded here rather than in size(), which is also used to measure entries without storing them
+      accumulatorValueSizes.update(size);
 
       // Write compression
       out.writeShort(toWrite.compression);
@@ -501,6 +508,187 @@ public class AgentDigest extends AbstractTDigest {
     }
   }
 
+  /**
+   * Variable-length AgentDigest codec for chronicle maps. Centroid means are stored as zig-zag varint deltas of their
+   * (order-preserving) float bit patterns, weights as varints. Optionally drops the lowest {@code quantizationBits} of
+   * each mean's mantissa, which trades precision for smaller deltas.
+   * <p/>
+   * Entries lead with a negative format marker (legacy entries lead with the positive compression), so both this codec
+   * and {@link AgentDigestMarshaller} read either format and existing accumulator files keep loading.
+   */
+  public static class CompactAgentDigestMarshaller implements SizedReader<AgentDigest>, SizedWriter<AgentDigest> {
+    /**
+     * Current format version, written as its negation in place of the legacy compression field.
+     */
+    static final short FORMAT_VERSION = 1;
+    private static final int MAX_QUANTIZATION_BITS = 20;
+    private static final com.yammer.metrics.core.Histogram accumulatorValueSizes =
+        Metrics.newHistogram(new MetricName("histogram", "", "accumulatorValueSize"));
+
+    private int quantizationBits;
+
+    /**
+     * Creates a lossless (relative to the legacy float encoding) codec.
+     */
+    public CompactAgentDigestMarshaller() {
+      this(0);
+    }
+
+    /**
+     * @param quantizationBits number of low mantissa bits to round away from each centroid mean, in [0;20]
+     */
+    public CompactAgentDigestMarshaller(int quantizationBits) {
+      Preconditions.checkArgument(quantizationBits >= 0 && quantizationBits <= MAX_QUANTIZATION_BITS,
+          "quantizationBits must be in [0;" + MAX_QUANTIZATION_BITS + "]");
+      this.quantizationBits = quantizationBits;
+    }
+
+    @NotNull
+    @Override
+    public AgentDigest read(Bytes in, long size, @Nullable AgentDigest using) {
+      short header = in.readShort();
+      if (header >= 0) {
+        // legacy entry, header is the compression
+        return AgentDigestMarshaller.readLegacy(in, size, header, using);
+      }
+      return readCompact(in, header, using);
+    }
+
+    static AgentDigest readCompact(Bytes in, short header, @Nullable AgentDigest using) {
+      if (-header != FORMAT_VERSION) {
+        throw new IllegalStateException("Unsupported AgentDigest encoding version: " + (-header));
+      }
+      short compression = in.readShort();
+      long dispatchTimeMillis = in.readLong();
+      if (using == null || using.compression != compression) {
+        using = new AgentDigest(compression, dispatchTimeMillis);
+      } else {
+        using.dispatchTimeMillis = dispatchTimeMillis;
+      }
+      int numCentroids = (int) readVarLong(in);
+      Preconditions.checkState(numCentroids <= using.mean.length, "Too many centroids for compression");
+      using.totalWeight = 0d;
+      using.lastUsedCell = numCentroids;
+      using.tempUsed = 0;
+      using.unmergedWeight = 0D;
+      Arrays.fill(using.weight, using.lastUsedCell, using.weight.length, 0D);
+
+      long sortableBits = 0;
+      for (int i = 0; i < numCentroids; ++i) {
+        sortableBits += zigZagDecode(readVarLong(in));
+        double weight = readVarLong(in);
+        using.mean[i] = Float.intBitsToFloat(toSortableBits((int) sortableBits));
+        using.weight[i] = weight;
+        using.totalWeight += weight;
+      }
+      return using;
+    }
+
+    @Override
+    public long size(@NotNull AgentDigest toWrite) {
+      return encode(toWrite, null);
+    }
+
+    @Override
+    public void write(Bytes out, long size, @NotNull AgentDigest toWrite) {
+      // recorded here rather than in size(), which is also used to measure entries without storing them
+      accumulatorValueSizes.update(encode(toWrite, out));
+    }
+
+    /**
+     * Encodes a digest, returning the number of bytes. Only counts when {@code out} is null, so size and write share
+     * a single code path.
+     */
+    private int encode(AgentDigest digest, @Nullable Bytes out) {
+      int numCentroids = digest.centroidCount();
+      if (out != null) {
+        out.writeShort((short) -FORMAT_VERSION);
+        out.writeShort(digest.compression);
+        out.writeLong(digest.dispatchTimeMillis);
+      }
+      int size = 2 + 2 + 8 + writeVarLong(out, numCentroids);
+
+      long previous = 0;
+      for (int i = 0; i < numCentroids; ++i) {
+        long sortableBits = toSortableBits(quantize(Float.floatToIntBits((float) digest.mean[i])));
+        size += writeVarLong(out, zigZagEncode(sortableBits - previous));
+        size += writeVarLong(out, Math.max(0L, Math.round(digest.weight[i])));
+        previous = sortableBits;
+      }
+      return size;
+    }
+
+    private int quantize(int floatBits) {
+      if (quantizationBits == 0 || (floatBits & 0x7F800000) == 0x7F800000) {
+        // nothing to do, or NaN/Infinity which must not be rounded
+        return floatBits;
+      }
+      int half = 1 << (quantizationBits - 1);
+      int mask = -(1 << quantizationBits);
+      int rounded = (floatBits + half) & mask;
+      // do not round a finite value up into infinity
+      return (rounded & 0x7F800000) == 0x7F800000 ? floatBits & mask : rounded;
+    }
+
+    /**
+     * Maps float bits onto ints that sort like the floats they represent (and back, the mapping is an involution).
+     */
+    private static int toSortableBits(int floatBits) {
+      return floatBits ^ ((floatBits >> 31) & 0x7FFFFFFF);
+    }
+
+    private static long zigZagEncode(long value) {
+      return (value << 1) ^ (value >> 63);
+    }
+
+    private static long zigZagDecode(long value) {
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int writeVarLong(@Nullable Bytes out, long value) {
+      int size = 1;
+      while ((value & ~0x7FL) != 0) {
+        if (out != null) {
+          out.writeByte((byte) ((value & 0x7F) | 0x80));
+        }
+        value >>>= 7;
+        size++;
+      }
+      if (out != null) {
+        out.writeByte((byte) value);
+      }
+      return size;
+    }
+
+    private static long readVarLong(Bytes in) {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        Preconditions.checkState(shift < 64, "Malformed varint");
+        b = in.readByte();
+        value |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+
+    @Override
+    public void readMarshallable(@NotNull WireIn wire) throws IORuntimeException {
+      quantizationBits = wire.read(() -> "quantizationBits").int32();
+    }
+
+    @Override
+    public void writeMarshallable(@NotNull WireOut wire) {
+      wire.write(() -> "quantizationBits").int32(quantizationBits);
+    }
+
+    @Override
+    public String toString() {
+      return "CompactAgentDigestMarshaller{quantizationBits=" + quantizationBits + '}';
+    }
+  }
+
   @Override
   public void asBytes(ByteBuffer buf) {
     // Ignore
@@ -297,6 +297,103 @@ public abstract class AbstractAgent {
       description = "Controls allowable number of centroids per histogram. Must be in [20;1000]")
   protected Short histogramCompression = 100;
 
+  @Parameter(
+      names = {"--histogramAccumulatorCompactEncoding"},
+      description = "Whether to store accumulated histograms with the compact variable-length encoding. Existing " +
+          "accumulator files in the fixed-size encoding remain readable. Default: false")
+  protected boolean histogramAccumulatorCompactEncoding = false;
+
+  @Parameter(
+      names = {"--histogramAccumulatorQuantizationBits"},
+      description = "Number of low mantissa bits to round away from centroid means with the compact encoding, " +
+          "trading precision for size. Must be in [0;20]. Default: 0 (no quantization)")
+  protected Integer histogramAccumulatorQuantizationBits = 0;
+
+  @Parameter(
+      names = {"--histogramAccumulatorStats"},
+      description = "Log accumulator size statistics and recommended avgHistogramKeyBytes/avgHistogramDigestBytes " +
+          "settings at start-up and shutdown. Default: false")
+  protected boolean histogramAccumulatorStats = false;
+
+  @Parameter(
+      names = {"--histogramAccumulatorCheckpointInterval"},
+      description = "Interval in seconds to checkpoint modified accumulator entries to an append-only snapshot file, " +
+          "restored on start-up. When enabled, the accumulator itself is kept in memory and persistAccumulator only " +
+          "controls whether the proxy checks that the histogram state directory is writable. " +
+          "Default: 0 (disabled, the accumulator is persisted as a memory-mapped file)")
+  protected Integer histogramAccumulatorCheckpointInterval = 0;
+
+  @Parameter(
+      names = {"--histogramAccumulatorRestoreThreads"},
+      description = "Number of threads to decode checkpointed accumulator entries with on start-up. " +
+          "Default: number of available processors")
+  protected Integer histogramAccumulatorRestoreThreads = Runtime.getRuntime().availableProcessors();
+
+  @Parameter(
+      names = {"--histogramAccumulatorRestoreInBackground"},
+      description = "Start histogram listeners right away and restore checkpointed accumulator entries in the " +
+          "background, merging them with newly accumulated data. Default: false")
+  protected boolean histogramAccumulatorRestoreInBackground = false;
+
+  @Parameter(
+      names = {"--histogramAccumulatorSpillIdleSecs"},
+      description = "Spill accumulated histograms that have not been updated for this many seconds to sorted runs " +
+          "on disk, and cap the in-memory accumulator at histogramAccumulatorSize entries by spilling the least " +
+          "recently updated ones. Allows day-granularity histograms and distributions to exceed " +
+          "histogramAccumulatorSize. Default: 0 (disabled)")
+  protected Integer histogramAccumulatorSpillIdleSecs = 0;
+
+  @Parameter(
+      names = {"--histogramDispatchThreads"},
+      description = "Number of threads dispatching ripe histograms, each handling a hash partition of the " +
+          "accumulated series. Default: 1")
+  protected Integer histogramDispatchThreads = 1;
+
+  @Parameter(
+      names = {"--histogramDispatchBatchSize"},
+      description = "Number of dispatched histograms handed to the flush threads at once. Default: 1000")
+  protected Integer histogramDispatchBatchSize = 1000;
+
+  @Parameter(
+      names = {"--histogramDispatchMaxPointsPerRun"},
+      description = "Maximum number of histograms each dispatch thread ships per run (runs are 50ms apart), " +
+          "spreading bursts of histograms due at the same time over several runs. 0 for unlimited. " +
+          "Default: 100000")
+  protected Integer histogramDispatchMaxPointsPerRun = 100000;
+
+  @Parameter(
+      names = {"--histogramClusterPeers"},
+      description = "Comma-separated list of host:port peer listener addresses of all proxies (including this one) " +
+          "that share histogram accumulation. Each proxy accumulates a consistent-hash slice of all series and " +
+          "forwards bins of the remaining series to their owners. Defaults to none (cluster mode disabled).")
+  protected String histogramClusterPeers = "";
+
+  @Parameter(
+      names = {"--histogramClusterSelf"},
+      description = "This proxy's entry in histogramClusterPeers. Its port is used to listen for peer traffic.")
+  protected String histogramClusterSelf = null;
+
+  @Parameter(
+      names = {"--histogramClusterVirtualNodes"},
+      description = "Number of consistent-hash ring positions per cluster member. Default: 128")
+  protected Integer histogramClusterVirtualNodes = 128;
+
+  @Parameter(
+      names = {"--histogramClusterForwardQueueSize"},
+      description = "Maximum number of histogram bins buffered per peer between flushes. When full, bins are " +
+          "accumulated locally. Default: 100000")
+  protected Integer histogramClusterForwardQueueSize = 100000;
+
+  @Parameter(
+      names = {"--histogramClusterForwardInterval"},
+      description = "Interval to forward buffered histogram bins to cluster peers in millis. Default: 1000")
+  protected Long histogramClusterForwardInterval = 1000L;
+
+  @Parameter(
+      names = {"--histogramClusterRetrySecs"},
+      description = "Number of seconds to accumulate a peer's series locally after failing to reach it. Default: 30")
+  protected Integer histogramClusterRetrySecs = 30;
+
   @Parameter(names = {"--graphitePorts"}, description = "Comma-separated list of ports to listen on for graphite " +
       "data. Defaults to empty list.")
   protected String graphitePorts = "";
@@ -323,9 +420,32 @@ public abstract class AbstractAgent {
   @Parameter(names = {"--filebeatPort"}, description = "Port on which to listen for filebeat data.")
   protected Integer filebeatPort = 0;
 
+  @Parameter(names = {"--filebeatWorkerThreads"}, description = "Number of network threads for filebeat connections. " +
+      "Defaults to the number of processors.")
+  protected Integer filebeatWorkerThreads = Runtime.getRuntime().availableProcessors();
+
+  @Parameter(names = {"--filebeatProcessingThreads"}, description = "Number of threads processing filebeat messages " +
+      "off the network threads. 0 processes messages on the network threads. Defaults to the number of processors.")
+  protected Integer filebeatProcessingThreads = Runtime.getRuntime().availableProcessors();
+
+  @Parameter(names = {"--filebeatProcessingQueueSize"}, description = "Number of filebeat message chunks that can be " +
+      "queued for processing. Batches are not acknowledged to filebeat while the queue is full. Default: 1000")
+  protected Integer filebeatProcessingQueueSize = 1000;
+
   @Parameter(names = {"--rawLogsPort"}, description = "Port on which to listen for raw logs data.")
   protected Integer rawLogsPort = 0;
 
+  @Parameter(names = {"--syslogPort"}, description = "TCP port on which to listen for syslog messages (RFC 5424 or " +
+      "RFC 3164, octet-counted or newline delimited).")
+  protected Integer syslogPort = 0;
+
+  @Parameter(names = {"--syslogUdpPort"}, description = "UDP port on which to listen for syslog messages.")
+  protected Integer syslogUdpPort = 0;
+
+  @Parameter(names = {"--syslogWorkerThreads"}, description = "Number of network threads for syslog connections and " +
+      "datagrams. Defaults to the number of processors.")
+  protected Integer syslogWorkerThreads = Runtime.getRuntime().availableProcessors();
+
   @Parameter(names = {"--hostname"}, description = "Hostname for the agent. Defaults to FQDN of machine.")
   protected String hostname;
 
@@ -377,6 +497,26 @@ public abstract class AbstractAgent {
   @Parameter(names = {"--disableRdnsLookup"}, description = "When receiving Wavefront-formatted data without source/host specified, use remote IP address as source instead of trying to resolve the DNS name. Default false.")
   protected boolean disableRdnsLookup = false;
 
+  @Parameter(names = {"--datagramListeners"}, description = "Also listen for UDP datagrams on the push and histogram " +
+      "listener ports, for clients that send points over UDP. Each datagram holds one or more newline-separated " +
+      "points, points without a source tag get the source \"unknown\". Default false.")
+  protected boolean datagramListeners = false;
+
+  @Parameter(names = {"--rdnsLookupTimeoutMillis"}, description = "Maximum time to wait for a reverse DNS lookup of " +
+      "a remote address before using its IP address as source. Lookups continue in the background. Default: 100")
+  protected Integer rdnsLookupTimeoutMillis = 100;
+
+  @Parameter(names = {"--rdnsCacheTtlSecs"}, description = "Time to cache resolved host names for. Default: 3600")
+  protected Integer rdnsCacheTtlSecs = 3600;
+
+  @Parameter(names = {"--rdnsNegativeCacheTtlSecs"}, description = "Time to cache failed reverse DNS lookups for. " +
+      "Default: 300")
+  protected Integer rdnsNegativeCacheTtlSecs = 300;
+
+  @Parameter(names = {"--rdnsCacheSize"}, description = "Maximum number of remote addresses to cache host names " +
+      "for. Default: 10000")
+  protected Integer rdnsCacheSize = 10000;
+
   @Parameter(names = {"--javaNetConnection"}, description = "If true, use JRE's own http client when making connections instead of Apache HTTP Client")
   protected boolean javaNetConnection = false;
 
@@ -639,9 +779,38 @@ public abstract class AbstractAgent {
         histogramAccumulatorSize = config.getNumber("histogramAccumulatorSize", histogramAccumulatorSize).longValue();
         histogramCompression = config.getNumber("histogramCompression", histogramCompression).shortValue();
         avgHistogramKeyBytes = config.getNumber("avgHistogramKeyBytes", avgHistogramKeyBytes).intValue();
-
-        // these defaults should work well in most cases
-        avgHistogramDigestBytes = 32 + Math.round(histogramCompression * 10.5f);
+        histogramAccumulatorCompactEncoding = config.getBoolean("histogramAccumulatorCompactEncoding",
+            histogramAccumulatorCompactEncoding);
+        histogramAccumulatorQuantizationBits = config.getNumber("histogramAccumulatorQuantizationBits",
+            histogramAccumulatorQuantizationBits).intValue();
+        histogramAccumulatorStats = config.getBoolean("histogramAccumulatorStats", histogramAccumulatorStats);
+        histogramAccumulatorCheckpointInterval = config.getNumber("histogramAccumulatorCheckpointInterval",
+            histogramAccumulatorCheckpointInterval).intValue();
+        histogramAccumulatorRestoreThreads = config.getNumber("histogramAccumulatorRestoreThreads",
+            histogramAccumulatorRestoreThreads).intValue();
+        histogramAccumulatorRestoreInBackground = config.getBoolean("histogramAccumulatorRestoreInBackground",
+            histogramAccumulatorRestoreInBackground);
+        histogramAccumulatorSpillIdleSecs = config.getNumber("histogramAccumulatorSpillIdleSecs",
+            histogramAccumulatorSpillIdleSecs).intValue();
+        histogramDispatchThreads = config.getNumber("histogramDispatchThreads", histogramDispatchThreads).intValue();
+        histogramDispatchBatchSize = config.getNumber("histogramDispatchBatchSize", histogramDispatchBatchSize)
+            .intValue();
+        histogramDispatchMaxPointsPerRun = config.getNumber("histogramDispatchMaxPointsPerRun",
+            histogramDispatchMaxPointsPerRun).intValue();
+        histogramClusterPeers = config.getString("histogramClusterPeers", histogramClusterPeers);
+        histogramClusterSelf = config.getString("histogramClusterSelf", histogramClusterSelf);
+        histogramClusterVirtualNodes = config.getNumber("histogramClusterVirtualNodes",
+            histogramClusterVirtualNodes).intValue();
+        histogramClusterForwardQueueSize = config.getNumber("histogramClusterForwardQueueSize",
+            histogramClusterForwardQueueSize).intValue();
+        histogramClusterForwardInterval = config.getNumber("histogramClusterForwardInterval",
+            histogramClusterForwardInterval).longValue();
+        histogramClusterRetrySecs = config.getNumber("histogramClusterRetrySecs", histogramClusterRetrySecs)
+            .intValue();
+
+        // these defaults should work well in most cases (the compact encoding takes ~4 bytes per centroid instead of 8)
+        avgHistogramDigestBytes = 32 + Math.round(histogramCompression *
+            (histogramAccumulatorCompactEncoding ? 5.5f : 10.5f));
 
         avgHistogramDigestBytes = config.getNumber("avgHistogramDigestBytes", avgHistogramDigestBytes).intValue();
         persistAccumulator = config.getBoolean("persistAccumulator", persistAccumulator);
@@ -679,12 +848,25 @@ public abstract class AbstractAgent {
         agentMetricsPointTags = config.getString("agentMetricsPointTags", agentMetricsPointTags);
         ephemeral = config.getBoolean("ephemeral", ephemeral);
         disableRdnsLookup = config.getBoolean("disableRdnsLookup", disableRdnsLookup);
+        datagramListeners = config.getBoolean("datagramListeners", datagramListeners);
+        rdnsLookupTimeoutMillis = config.getNumber("rdnsLookupTimeoutMillis", rdnsLookupTimeoutMillis).intValue();
+        rdnsCacheTtlSecs = config.getNumber("rdnsCacheTtlSecs", rdnsCacheTtlSecs).intValue();
+        rdnsNegativeCacheTtlSecs = config.getNumber("rdnsNegativeCacheTtlSecs", rdnsNegativeCacheTtlSecs).intValue();
+        rdnsCacheSize = config.getNumber("rdnsCacheSize", rdnsCacheSize).intValue();
         picklePorts = config.getString("picklePorts", picklePorts);
         bufferFile = config.getString("buffer", bufferFile);
         preprocessorConfigFile = config.getString("preprocessorConfigFile", preprocessorConfigFile);
         dataBackfillCutoffHours = config.getNumber("dataBackfillCutoffHours", dataBackfillCutoffHours).intValue();
         filebeatPort = config.getNumber("filebeatPort", filebeatPort).intValue();
+        filebeatWorkerThreads = config.getNumber("filebeatWorkerThreads", filebeatWorkerThreads).intValue();
+        filebeatProcessingThreads = config.getNumber("filebeatProcessingThreads", filebeatProcessingThreads).
+            intValue();
+        filebeatProcessingQueueSize = config.getNumber("filebeatProcessingQueueSize", filebeatProcessingQueueSize).
+            intValue();
         rawLogsPort = config.getNumber("rawLogsPort", rawLogsPort).intValue();
+        syslogPort = config.getNumber("syslogPort", syslogPort).intValue();
+        syslogUdpPort = config.getNumber("syslogUdpPort", syslogUdpPort).intValue();
+        syslogWorkerThreads = config.getNumber("syslogWorkerThreads", syslogWorkerThreads).intValue();
         logsIngestionConfigFile = config.getString("logsIngestionConfigFile", logsIngestionConfigFile);
 
         // track mutable settings
@@ -0,0 +1,163 @@
+package com.wavefront.agent;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves remote addresses to host names (reverse DNS) without blocking the caller for longer than a configurable
+ * timeout. Lookups run on the given executor and their results are cached: successful lookups for {@code ttlMillis},
+ * failed ones (negative caching) for {@code negativeTtlMillis}. Expired entries are still served while they are
+ * refreshed in the background, and a host name is kept if its refresh fails (the refresh is retried after
+ * {@code negativeTtlMillis}). Whenever no host name is available in time, the IP address string is returned.
+ */
+public class CachingHostnameResolver {
+  private static final Logger logger = Logger.getLogger(CachingHostnameResolver.class.getCanonicalName());
+
+  private static final Counter hits = Metrics.newCounter(new MetricName("rdns", "", "cache-hits"));
+  private static final Counter misses = Metrics.newCounter(new MetricName("rdns", "", "cache-misses"));
+  private static final Counter failures = Metrics.newCounter(new MetricName("rdns", "", "failures"));
+  private static final Counter timeouts = Metrics.newCounter(new MetricName("rdns", "", "timeouts"));
+  private static final Histogram latency = Metrics.newHistogram(new MetricName("rdns", "", "lookup-latency-millis"));
+
+  private final Function<InetAddress, String> resolver;
+  private final Executor executor;
+  private final Supplier<Long> clock;
+  private final long timeoutMillis;
+  private final long ttlMillis;
+  private final long negativeTtlMillis;
+  private final Cache<InetAddress, Lookup> cache;
+
+  /**
+   * @param resolver          the actual (blocking) lookup, e.g. {@link InetAddress#getHostName()}
+   * @param executor          executor to run lookups on
+   * @param clock             current time in millis
+   * @param timeoutMillis     how long a caller waits for a pending lookup before falling back to the IP address
+   * @param ttlMillis         how long resolved host names are cached
+   * @param negativeTtlMillis how long failed lookups are cached
+   * @param maxSize           maximum number of cached addresses
+   */
+  public CachingHostnameResolver(Function<InetAddress, String> resolver, Executor executor, Supplier<Long> clock,
+                                 long timeoutMillis, long ttlMillis, long negativeTtlMillis, long maxSize) {
+    this.resolver = resolver;
+    this.executor = executor;
+    this.clock = clock;
+    this.timeoutMillis = timeoutMillis;
+    this.ttlMillis = ttlMillis;
+    this.negativeTtlMillis = negativeTtlMillis;
+    this.cache = Caffeine.newBuilder()
+        .maximumSize(maxSize)
+        .expireAfterAccess(Math.max(ttlMillis, negativeTtlMillis), TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * @param address the address to resolve
+   * @return the host name of the address, or its IP address string if it can't be resolved (in time)
+   */
+  public String resolve(InetAddress address) {
+    Lookup lookup = cache.getIfPresent(address);
+    if (lookup == null) {
+      misses.inc();
+      lookup = cache.get(address, this::lookup);
+    } else {
+      hits.inc();
+    }
+    long now = clock.get();
+    String hostname;
+    if (lookup.hostname.isDone()) {
+      hostname = lookup.hostname.getNow(null);
+      if (now >= lookup.expiresMillis && lookup.refreshing.compareAndSet(false, true)) {
+        // keep serving the expired entry until the new lookup is done
+        final Lookup expired = lookup;
+        final Lookup refreshed = lookup(address);
+        refreshed.hostname.thenAccept(refreshedHostname -> {
+          if (refreshedHostname == null && expired.hostname.getNow(null) != null) {
+            // keep the last good name
+            expired.expiresMillis = refreshed.expiresMillis;
+            expired.refreshing.set(false);
+          } else {
+            cache.asMap().replace(address, expired, refreshed);
+          }
+        });
+      }
+    } else {
+      // don't let every caller wait for the full timeout while the same lookup is pending
+      long remainingMillis = lookup.startedMillis + timeoutMillis - now;
+      hostname = null;
+      try {
+        if (remainingMillis > 0) {
+          hostname = lookup.hostname.get(remainingMillis, TimeUnit.MILLISECONDS);
+        } else {
+          timeouts.inc();
+        }
+      } catch (TimeoutException e) {
+        timeouts.inc();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // lookups complete normally
+      }
+    }
+    return hostname == null ? address.getHostAddress() : hostname;
+  }
+
+  @VisibleForTesting
+  long size() {
+    cache.cleanUp();
+    return cache.estimatedSize();
+  }
+
+  private Lookup lookup(InetAddress address) {
+    final Lookup lookup = new Lookup(clock.get());
+    executor.execute(() -> {
+      String hostname = null;
+      try {
+        hostname = resolver.apply(address);
+      } catch (Exception e) {
+        logger.log(Level.FINE, "Unable to resolve " + address, e);
+      }
+      long now = clock.get();
+      latency.update(now - lookup.startedMillis);
+      // InetAddress returns the textual IP address if it can't resolve the host name
+      if (hostname == null || hostname.isEmpty() || hostname.equals(address.getHostAddress())) {
+        failures.inc();
+        hostname = null;
+        lookup.expiresMillis = now + negativeTtlMillis;
+      } else {
+        lookup.expiresMillis = now + ttlMillis;
+      }
+      lookup.hostname.complete(hostname);
+    });
+    return lookup;
+  }
+
+  private static class Lookup {
+    private final long startedMillis;
+    // completes with null if the address couldn't be resolved
+    private final CompletableFuture<String> hostname = new CompletableFuture<>();
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private volatile long expiresMillis = Long.MAX_VALUE;
+
+    private Lookup(long startedMillis) {
+      this.startedMillis = startedMillis;
+    }
+  }
+}
@@ -26,7 +26,8 @@ import javax.ws.rs.core.UriInfo;
 import sunnylabs.report.ReportPoint;
 
 /**
- * Agent-side JSON metrics endpoint.
+ * Agent-side JSON metrics endpoint. Gzipped bodies (Content-Encoding: gzip) are decoded as they're parsed, when the
+ * resource is registered along with Jersey's GZipEncoder.
  *
  * @author Clement Pang (clement@wavefront.com).
  */
@@ -11,6 +11,7 @@ import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.DateUtils;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -69,7 +70,35 @@ public class PointHandlerImpl implements PointHandler {
 
   @Override
   public void reportPoint(ReportPoint point, @Nullable String debugLine) {
-    final PostPushDataTimedTask randomPostTask = getRandomPostTask();
+    String strPoint = validateAndSerialize(point, debugLine);
+    if (strPoint != null) {
+      getRandomPostTask().addPoint(strPoint);
+    }
+  }
+
+  /**
+   * Validates and serializes all points first and hands the valid ones off to a single flush task in one go, so the
+   * flush task's buffer lock is taken once per batch rather than once per point.
+   */
+  @Override
+  public void reportPoints(List<ReportPoint> points) {
+    List<String> strPoints = new ArrayList<>(points.size());
+    for (final ReportPoint point : points) {
+      String strPoint = validateAndSerialize(point, null);
+      if (strPoint != null) {
+        strPoints.add(strPoint);
+      }
+    }
+    if (!strPoints.isEmpty()) {
+      getRandomPostTask().addPoints(strPoints);
+    }
+  }
+
+  /**
+   * @return the point in wire format or null if it has been blocked
+   */
+  @Nullable
+  private String validateAndSerialize(ReportPoint point, @Nullable String debugLine) {
     try {
       if (prefix != null) {
         point.setMetric(prefix + "." + point.getMetric());
@@ -87,8 +116,8 @@ public class PointHandlerImpl implements PointHandler {
         // this is done to prevent introducing overhead and accidentally logging points to the main log
         validPointsLogger.info(strPoint);
       }
-      randomPostTask.addPoint(strPoint);
       receivedPointLag.update(Clock.now() - point.getTimestamp());
+      return strPoint;
 
     } catch (IllegalArgumentException e) {
       blockedPointsLogger.warning(pointToString(point));
@@ -97,13 +126,7 @@ public class PointHandlerImpl implements PointHandler {
       logger.log(Level.SEVERE, "WF-500 Uncaught exception when handling point (" +
           (debugLine == null ? pointToString(point) : debugLine) + ")", ex);
     }
-  }
-
-  @Override
-  public void reportPoints(List<ReportPoint> points) {
-    for (final ReportPoint point : points) {
-      reportPoint(point, null);
-    }
+    return null;
   }
 
   public PostPushDataTimedTask getRandomPostTask() {
@@ -4,13 +4,16 @@ import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.net.HostAndPort;
 
 import com.beust.jcommander.internal.Lists;
 import com.squareup.tape.ObjectQueue;
 import com.tdunning.math.stats.AgentDigest;
 import com.tdunning.math.stats.AgentDigest.AgentDigestMarshaller;
+import com.tdunning.math.stats.AgentDigest.CompactAgentDigestMarshaller;
 import com.wavefront.agent.config.ConfigurationException;
 import com.wavefront.agent.formatter.GraphiteFormatter;
+import com.wavefront.agent.histogram.AccumulatorStatistics;
 import com.wavefront.agent.histogram.HistogramLineIngester;
 import com.wavefront.agent.histogram.MapLoader;
 import com.wavefront.agent.histogram.PointHandlerDispatcher;
@@ -20,11 +23,19 @@ import com.wavefront.agent.histogram.Utils.HistogramKey;
 import com.wavefront.agent.histogram.Utils.HistogramKeyMarshaller;
 import com.wavefront.agent.histogram.accumulator.AccumulationCache;
 import com.wavefront.agent.histogram.accumulator.AccumulationTask;
+import com.wavefront.agent.histogram.accumulator.AccumulatorCheckpointer;
+import com.wavefront.agent.histogram.accumulator.SpillingAccumulator;
+import com.wavefront.agent.histogram.cluster.ClusterRouter;
+import com.wavefront.agent.histogram.cluster.PeerForwarder;
+import com.wavefront.agent.histogram.cluster.PeerIngester;
 import com.wavefront.agent.histogram.tape.TapeDeck;
 import com.wavefront.agent.histogram.tape.TapeStringListConverter;
+import com.wavefront.agent.logsharvesting.FileTailer;
 import com.wavefront.agent.logsharvesting.FilebeatIngester;
+import com.wavefront.agent.logsharvesting.FilebeatMessage;
 import com.wavefront.agent.logsharvesting.LogsIngester;
 import com.wavefront.agent.logsharvesting.RawLogsIngester;
+import com.wavefront.agent.logsharvesting.SyslogIngester;
 import com.wavefront.agent.preprocessor.PointPreprocessor;
 import com.wavefront.agent.preprocessor.ReportPointAddPrefixTransformer;
 import com.wavefront.agent.preprocessor.ReportPointTimestampInRangeFilter;
@@ -39,17 +50,23 @@ import com.wavefront.ingester.PickleProtocolDecoder;
 import com.wavefront.ingester.StreamIngester;
 import com.wavefront.ingester.StringLineIngester;
 import com.wavefront.ingester.TcpIngester;
+import com.wavefront.ingester.UdpIngester;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
 
 import net.openhft.chronicle.map.ChronicleMap;
 
 import org.glassfish.jersey.jackson.JacksonFeature;
 import org.glassfish.jersey.jetty.JettyHttpContainerFactory;
+import org.glassfish.jersey.message.GZipEncoder;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.logstash.beats.Server;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.BindException;
+import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteOrder;
@@ -58,8 +75,12 @@ import java.util.Collections;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
@@ -85,9 +106,11 @@ public class PushAgent extends AbstractAgent {
 
   protected final List<Thread> managedThreads = new ArrayList<>();
   protected final IdentityHashMap<ChannelOption<?>, Object> childChannelOptions = new IdentityHashMap<>();
+  protected final IdentityHashMap<ChannelOption<?>, Object> datagramChannelOptions = new IdentityHashMap<>();
   protected ScheduledExecutorService histogramExecutor;
   protected ScheduledExecutorService histogramScanExecutor;
   protected ScheduledExecutorService histogramFlushExecutor;
+  protected CachingHostnameResolver hostnameResolver;
 
   public static void main(String[] args) throws IOException {
     // Start the ssh daemon
@@ -107,6 +130,13 @@ public class PushAgent extends AbstractAgent {
     if (soLingerTime >= 0) {
       childChannelOptions.put(ChannelOption.SO_LINGER, 0);
     }
+    // datagrams that arrive while the handlers are busy are dropped once the receive buffer is full
+    datagramChannelOptions.put(ChannelOption.SO_RCVBUF, 4 * 1024 * 1024);
+    ExecutorService rdnsExecutor = Executors.newFixedThreadPool(2, new NamedThreadFactory("rdns-lookup"));
+    managedExecutors.add(rdnsExecutor);
+    hostnameResolver = new CachingHostnameResolver(InetAddress::getHostName, rdnsExecutor,
+        System::currentTimeMillis, rdnsLookupTimeoutMillis, TimeUnit.SECONDS.toMillis(rdnsCacheTtlSecs),
+        TimeUnit.SECONDS.toMillis(rdnsNegativeCacheTtlSecs), rdnsCacheSize);
     if (pushListenerPorts != null) {
       Iterable<String> ports = Splitter.on(",").omitEmptyStrings().trimResults().split(pushListenerPorts);
       for (String strPort : ports) {
@@ -153,27 +183,77 @@ public class PushAgent extends AbstractAgent {
         }
 
         File baseDirectory = new File(histogramStateDirectory);
-        if (persistMessages || persistAccumulator) {
+        boolean checkpointAccumulator = histogramAccumulatorCheckpointInterval > 0;
+        if (persistMessages || persistAccumulator || checkpointAccumulator) {
           // Check directory
           checkArgument(baseDirectory.isDirectory(), baseDirectory.getAbsolutePath() + " must be a directory!");
           checkArgument(baseDirectory.canWrite(), baseDirectory.getAbsolutePath() + " must be write-able!");
         }
 
-        // Accumulator
-        MapLoader<HistogramKey, AgentDigest, HistogramKeyMarshaller, AgentDigestMarshaller> mapLoader = new MapLoader<>(
+        // Accumulator (kept in memory if checkpointed, memory-mapped to disk otherwise)
+        File accumulationFile = new File(baseDirectory, "accumulator");
+        boolean persistChronicleMap = persistAccumulator && !checkpointAccumulator;
+        MapLoader<HistogramKey, AgentDigest, ?, ?> accumulatorLoader = new MapLoader<>(
             HistogramKey.class,
             AgentDigest.class,
             histogramAccumulatorSize,
             avgHistogramKeyBytes,
             avgHistogramDigestBytes,
             HistogramKeyMarshaller.get(),
-            AgentDigestMarshaller.get(),
-            persistAccumulator);
+            histogramAccumulatorCompactEncoding
+                ? new CompactAgentDigestMarshaller(histogramAccumulatorQuantizationBits)
+                : AgentDigestMarshaller.get(),
+            persistChronicleMap);
+        ChronicleMap<HistogramKey, AgentDigest> accumulator = accumulatorLoader.get(accumulationFile);
+        if (histogramAccumulatorStats) {
+          logger.info(AccumulatorStatistics.collect(accumulator, HistogramKeyMarshaller.get(),
+              accumulatorLoader.getValueMarshaller()).toString());
+        }
 
-        File accumulationFile = new File(baseDirectory, "accumulator");
-        ChronicleMap<HistogramKey, AgentDigest> accumulator = mapLoader.get(accumulationFile);
+        // Checkpointing
+        final AccumulatorCheckpointer checkpointer = checkpointAccumulator
+            ? new AccumulatorCheckpointer(new File(baseDirectory, "accumulator.checkpoint"))
+            : null;
+        ConcurrentMap<HistogramKey, AgentDigest> trackedAccumulator = accumulator;
+        if (checkpointer != null) {
+          trackedAccumulator = checkpointer.track(accumulator);
+          if (histogramAccumulatorRestoreInBackground) {
+            startAsManagedThread(() -> checkpointer.restore(histogramAccumulatorRestoreThreads),
+                "histogram-accumulator-restore");
+          } else {
+            checkpointer.restore(histogramAccumulatorRestoreThreads);
+          }
+          histogramFlushExecutor.scheduleWithFixedDelay(
+              checkpointer.getCheckpointTask(),
+              histogramAccumulatorCheckpointInterval,
+              histogramAccumulatorCheckpointInterval,
+              TimeUnit.SECONDS);
+        }
 
-        AccumulationCache cachedAccumulator = new AccumulationCache(accumulator, histogramAccumulatorSize, null);
+        // Spilling of idle histograms to disk
+        SpillingAccumulator spilling = null;
+        if (histogramAccumulatorSpillIdleSecs > 0) {
+          try {
+            spilling = new SpillingAccumulator(trackedAccumulator, histogramAccumulatorSize,
+                TimeUnit.SECONDS.toMillis(histogramAccumulatorSpillIdleSecs), new File(baseDirectory, "spill"),
+                System::currentTimeMillis, histogramFlushExecutor);
+          } catch (IOException e) {
+            throw new RuntimeException("Unable to set up histogram spill directory", e);
+          }
+        }
+        final SpillingAccumulator spillingAccumulator = spilling;
+        ConcurrentMap<HistogramKey, AgentDigest> accumulatorStore = trackedAccumulator;
+        if (spillingAccumulator != null) {
+          accumulatorStore = spillingAccumulator;
+          long spillIntervalSecs = Math.max(1, Math.min(60, histogramAccumulatorSpillIdleSecs / 4));
+          histogramFlushExecutor.scheduleWithFixedDelay(
+              spillingAccumulator.getSpillTask(),
+              spillIntervalSecs,
+              spillIntervalSecs,
+              TimeUnit.SECONDS);
+        }
+
+        AccumulationCache cachedAccumulator = new AccumulationCache(accumulatorStore, histogramAccumulatorSize, null);
         // Schedule write-backs
         histogramExecutor.scheduleWithFixedDelay(
             cachedAccumulator.getResolveTask(),
@@ -181,11 +261,47 @@ public class PushAgent extends AbstractAgent {
             histogramAccumulatorResolveInterval,
             TimeUnit.MILLISECONDS);
 
+        // Cluster mode
+        ClusterRouter clusterRouter = null;
+        if (!Strings.isNullOrEmpty(histogramClusterPeers)) {
+          List<String> members = Splitter.on(",").omitEmptyStrings().trimResults().splitToList(histogramClusterPeers);
+          checkArgument(histogramClusterSelf != null, "histogramClusterSelf must be set when histogramClusterPeers is");
+          clusterRouter = new ClusterRouter(members, histogramClusterSelf, histogramClusterVirtualNodes,
+              histogramClusterForwardQueueSize, TimeUnit.SECONDS.toMillis(histogramClusterRetrySecs),
+              System::currentTimeMillis);
+          ScheduledExecutorService clusterExecutor = Executors.newScheduledThreadPool(
+              Math.max(1, members.size() - 1), new NamedThreadFactory("histogram-cluster"));
+          managedExecutors.add(clusterExecutor);
+          for (PeerForwarder forwarder : clusterRouter.getForwarders()) {
+            clusterExecutor.scheduleWithFixedDelay(
+                forwarder.getFlushTask(cachedAccumulator.getCache().asMap()),
+                histogramClusterForwardInterval,
+                histogramClusterForwardInterval,
+                TimeUnit.MILLISECONDS);
+            // buffered bins go to the local accumulator before it's persisted below
+            shutdownTasks.add(() -> forwarder.drain(cachedAccumulator.getCache().asMap()));
+          }
+          int peerPort = HostAndPort.fromString(histogramClusterSelf).getPort();
+          startAsManagedThread(new PeerIngester(cachedAccumulator.getCache().asMap(), peerPort, histogramCompression,
+              System::currentTimeMillis), "listener-histogram-cluster-" + peerPort);
+          logger.info("Histogram cluster mode enabled, members: " + members + ", self: " + histogramClusterSelf);
+        }
+
         // gracefully shutdown persisted accumulator (ChronicleMap) on proxy exit
         shutdownTasks.add(() -> {
           try {
             cachedAccumulator.getResolveTask().run();
             cachedAccumulator.getCache().cleanUp();
+            if (checkpointer != null) {
+              checkpointer.getCheckpointTask().run();
+            }
+            if (spillingAccumulator != null) {
+              spillingAccumulator.close();
+            }
+            if (histogramAccumulatorStats) {
+              logger.info(AccumulatorStatistics.collect(accumulator, HistogramKeyMarshaller.get(),
+                  accumulatorLoader.getValueMarshaller()).toString());
+            }
             accumulator.close();
           } catch (Throwable t) {
             logger.severe("Error flushing accumulator cache, possibly unclean shutdown" + t);
@@ -199,9 +315,19 @@ public class PushAgent extends AbstractAgent {
             pushBlockedSamples,
             prefix,
             getFlushTasks(Constants.PUSH_FORMAT_HISTOGRAM, "histogram ports"));
-        PointHandlerDispatcher dispatchTask = new PointHandlerDispatcher(accumulator, histogramHandler);
+        int dispatchThreads = Math.max(1, histogramDispatchThreads);
+        ExecutorService dispatchExecutor = null;
+        if (dispatchThreads > 1) {
+          dispatchExecutor = Executors.newFixedThreadPool(dispatchThreads, new NamedThreadFactory("histogram-dispatch"));
+          managedExecutors.add(dispatchExecutor);
+        }
+        PointHandlerDispatcher dispatchTask = new PointHandlerDispatcher(accumulatorStore, histogramHandler,
+            System::currentTimeMillis, dispatchExecutor, dispatchThreads, histogramDispatchBatchSize,
+            histogramDispatchMaxPointsPerRun);
         histogramExecutor.scheduleWithFixedDelay(dispatchTask, 50L, 50L, TimeUnit.MILLISECONDS);
 
+        final ClusterRouter finalClusterRouter = clusterRouter;
+
         // Input queue factory
         TapeDeck<List<String>> accumulatorDeck = new TapeDeck<>(
             persistMessagesCompression
@@ -224,7 +350,8 @@ public class PushAgent extends AbstractAgent {
               Utils.Granularity.MINUTE,
               accumulatorDeck,
               TimeUnit.SECONDS.toMillis(histogramMinuteFlushSecs),
-              histogramMinuteAccumulators
+              histogramMinuteAccumulators,
+              finalClusterRouter
           );
           logger.info("listening on port: " + port + " for histogram samples, accumulating to the minute");
         });
@@ -240,7 +367,8 @@ public class PushAgent extends AbstractAgent {
               Utils.Granularity.HOUR,
               accumulatorDeck,
               TimeUnit.SECONDS.toMillis(histogramHourFlushSecs),
-              histogramHourAccumulators
+              histogramHourAccumulators,
+              finalClusterRouter
           );
           logger.info("listening on port: " + port + " for histogram samples, accumulating to the hour");
         });
@@ -256,7 +384,8 @@ public class PushAgent extends AbstractAgent {
               Utils.Granularity.DAY,
               accumulatorDeck,
               TimeUnit.SECONDS.toMillis(histogramDayFlushSecs),
-              histogramDayAccumulators
+              histogramDayAccumulators,
+              finalClusterRouter
           );
           logger.info("listening on port: " + port + " for histogram samples, accumulating to the day");
         });
@@ -272,7 +401,8 @@ public class PushAgent extends AbstractAgent {
               Utils.Granularity.DAY, // Ignored...
               accumulatorDeck,
               TimeUnit.SECONDS.toMillis(histogramDistFlushSecs),
-              histogramDistAccumulators
+              histogramDistAccumulators,
+              finalClusterRouter
           );
           logger.info("listening on port: " + port + " for histogram samples, accumulating to the day");
         });
@@ -315,6 +445,8 @@ public class PushAgent extends AbstractAgent {
           JettyHttpContainerFactory.createServer(
               new URI("http://localhost:" + strPort + "/"),
               new ResourceConfig(JacksonFeature.class).
+                  // decodes gzipped bodies as they're read
+                  register(GZipEncoder.class).
                   register(new JsonMetricsEndpoint(strPort, hostname, prefix,
                       pushValidationLevel, pushBlockedSamples, getFlushTasks(strPort), preprocessors.forPort(strPort))),
               true);
@@ -355,9 +487,34 @@ public class PushAgent extends AbstractAgent {
             this::loadLogsIngestionConfig, prefix, System::currentTimeMillis);
         logsIngester.start();
 
+        // Local files, if configured. The tailer picks up config changes on every run.
+        final FileTailer fileTailer = new FileTailer(logsIngester, hostname, System::currentTimeMillis);
+        ScheduledExecutorService tailExecutor = Executors.newSingleThreadScheduledExecutor(
+            new NamedThreadFactory("logs-tailer"));
+        managedExecutors.add(tailExecutor);
+        tailExecutor.scheduleWithFixedDelay(fileTailer, 1L, 1L, TimeUnit.SECONDS);
+        shutdownTasks.add(fileTailer::close);
+
         if (filebeatPort > 0) {
-          final Server filebeatServer = new Server(filebeatPort);
+          final Server filebeatServer = new Server(filebeatPort, Server.DEFAULT_CLIENT_TIMEOUT_SECONDS,
+              filebeatWorkerThreads);
           filebeatServer.setMessageListener(new FilebeatIngester(logsIngester, System::currentTimeMillis));
+          filebeatServer.setMessageFields(FilebeatMessage.FIELDS);
+          if (filebeatProcessingThreads > 0) {
+            // Grok matching happens on a bounded pool, keeping the event loops free. A full queue withholds acks.
+            final ThreadPoolExecutor filebeatExecutor = new ThreadPoolExecutor(filebeatProcessingThreads,
+                filebeatProcessingThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, filebeatProcessingQueueSize)),
+                new NamedThreadFactory("filebeat-processing"));
+            managedExecutors.add(filebeatExecutor);
+            Metrics.newGauge(new MetricName("logsharvesting", "", "filebeat-queue-depth"), new Gauge<Integer>() {
+              @Override
+              public Integer value() {
+                return filebeatExecutor.getQueue().size();
+              }
+            });
+            filebeatServer.setProcessingExecutor(filebeatExecutor);
+          }
           startAsManagedThread(() -> {
             try {
               activeListeners.inc();
@@ -376,7 +533,8 @@ public class PushAgent extends AbstractAgent {
         }
 
         if (rawLogsPort > 0) {
-          RawLogsIngester rawLogsIngester = new RawLogsIngester(logsIngester, rawLogsPort, System::currentTimeMillis);
+          RawLogsIngester rawLogsIngester = new RawLogsIngester(logsIngester, rawLogsPort, System::currentTimeMillis,
+              hostnameResolver::resolve);
           startAsManagedThread(() -> {
             try {
               activeListeners.inc();
@@ -393,6 +551,45 @@ public class PushAgent extends AbstractAgent {
             }
           }, "listener-logs-raw-" + rawLogsPort);
         }
+
+        if (syslogPort > 0 || syslogUdpPort > 0) {
+          SyslogIngester syslogIngester = new SyslogIngester(logsIngester, hostnameResolver::resolve);
+          if (syslogPort > 0) {
+            startAsManagedThread(() -> {
+              try {
+                activeListeners.inc();
+                syslogIngester.listenTcp(syslogPort, syslogWorkerThreads);
+              } catch (InterruptedException e) {
+                logger.log(Level.SEVERE, "Syslog server interrupted.", e);
+              } catch (Exception e) {
+                // ChannelFuture throws undeclared checked exceptions, so we need to handle it
+                if (e instanceof BindException) {
+                  logger.severe("Unable to start listener - port " + String.valueOf(syslogPort) + " is already in use!");
+                }
+              } finally {
+                activeListeners.dec();
+              }
+            }, "listener-logs-syslog-" + syslogPort);
+          }
+          if (syslogUdpPort > 0) {
+            startAsManagedThread(() -> {
+              try {
+                activeListeners.inc();
+                syslogIngester.listenUdp(syslogUdpPort, syslogWorkerThreads);
+              } catch (InterruptedException e) {
+                logger.log(Level.SEVERE, "Syslog server interrupted.", e);
+              } catch (Exception e) {
+                // ChannelFuture throws undeclared checked exceptions, so we need to handle it
+                if (e instanceof BindException) {
+                  logger.severe("Unable to start listener - port " + String.valueOf(syslogUdpPort) +
+                      " is already in use!");
+                }
+              } finally {
+                activeListeners.dec();
+              }
+            }, "listener-logs-syslog-udp-" + syslogUdpPort);
+          }
+        }
       } catch (ConfigurationException e) {
         logger.log(Level.SEVERE, "Cannot start logsIngestion", e);
       }
@@ -496,13 +693,17 @@ public class PushAgent extends AbstractAgent {
         @Override
         public ChannelHandler apply(Channel input) {
           SocketChannel ch = (SocketChannel) input;
-          return new GraphiteHostAnnotator(disableRdnsLookup
-              ? ch.remoteAddress().getAddress().getHostAddress()
-              : ch.remoteAddress().getHostName(), customSourceTags);
+          InetAddress remoteAddress = ch.remoteAddress().getAddress();
+          if (disableRdnsLookup) {
+            return new GraphiteHostAnnotator(remoteAddress.getHostAddress(), customSourceTags);
+          }
+          // resolved per line, so the connection picks up the host name once a slow lookup completes
+          return new GraphiteHostAnnotator(() -> hostnameResolver.resolve(remoteAddress), customSourceTags);
         }
       });
       startAsManagedThread(new StringLineIngester(handler, graphiteHandler, port)
           .withChildChannelOptions(childChannelOptions), "listener-plaintext-wavefront-" + port);
+      startDatagramListener(port, graphiteHandler, "listener-datagram-wavefront-" + port);
     } else {
       startAsManagedThread(new StringLineIngester(graphiteHandler, port)
           .withChildChannelOptions(childChannelOptions), "Listener-plaintext-graphite-" + port);
@@ -521,7 +722,8 @@ public class PushAgent extends AbstractAgent {
       Utils.Granularity granularity,
       TapeDeck<List<String>> receiveDeck,
       long timeToLiveMillis,
-      int fanout) {
+      int fanout,
+      @Nullable ClusterRouter clusterRouter) {
 
     int port = Integer.parseInt(portAsString);
     List<ChannelHandler> handlers = new ArrayList<>();
@@ -539,7 +741,8 @@ public class PushAgent extends AbstractAgent {
           Validation.Level.valueOf(pushValidationLevel),
           timeToLiveMillis,
           granularity,
-          histogramCompression);
+          histogramCompression,
+          clusterRouter);
 
       histogramScanExecutor.scheduleWithFixedDelay(scanTask, 20L, 20L, TimeUnit.MILLISECONDS);
 
@@ -551,6 +754,23 @@ public class PushAgent extends AbstractAgent {
 
     // Set-up producer
     startAsManagedThread(new HistogramLineIngester(handlers, port), "listener-plaintext-histogram-" + port);
+    // datagrams all arrive on one channel, so they go to the first queue
+    startDatagramListener(port, handlers.get(0), "listener-datagram-histogram-" + port);
+  }
+
+  /**
+   * Listens for datagrams on the given port if {@code datagramListeners} is set, and passes their lines to the
+   * handler that reads the lines of the TCP listener on the same port.
+   *
+   * @param port        The port to listen on.
+   * @param lineHandler Sharable handler for the lines of each datagram.
+   * @param threadName  Name of the listener thread.
+   */
+  protected void startDatagramListener(int port, ChannelHandler lineHandler, String threadName) {
+    if (!datagramListeners) return;
+    startAsManagedThread(new UdpIngester(lineHandler, port).withParentChannelOptions(datagramChannelOptions),
+        threadName);
+    logger.info("listening on port: " + port + " for datagrams");
   }
 
   /**
@@ -42,8 +42,9 @@ public class Validation {
       char cur = input.charAt(i);
       if (!(44 <= cur && cur <= 57) && !(65 <= cur && cur <= 90) && !(97 <= cur && cur <= 122) &&
           cur != 95) {
-        if (i != 0 || cur != 126) {
-          // first character can be 126 (~)
+        if (i != 0 || (cur != 126 && cur != '\u2206' && cur != '\u0394')) {
+          // first character can be 126 (~), or the increment (U+2206) or Greek capital delta (U+0394) that prefixes
+          // the name of a delta counter
           return false;
         }
       }
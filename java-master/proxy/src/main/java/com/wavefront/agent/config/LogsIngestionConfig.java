@@ -2,6 +2,7 @@ package com.wavefront.agent.config;
 
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.wavefront.agent.logsharvesting.FlushProcessorContext;
@@ -24,8 +25,9 @@ import oi.thekraken.grok.api.exception.GrokException;
 
 /**
  * Top level configuration object for ingesting log data into the Wavefront Proxy. To turn on logs ingestion,
- * specify 'filebeatPort' and 'logsIngestionConfigFile' in the Wavefront Proxy Config File (typically
- * /etc/wavefront/wavefront-proxy/wavefront.conf, or /opt/wavefront/wavefront-proxy/conf/wavefront.conf).
+ * specify 'filebeatPort' (or 'rawLogsPort', 'syslogPort', 'syslogUdpPort') and 'logsIngestionConfigFile' in the
+ * Wavefront Proxy Config File (typically /etc/wavefront/wavefront-proxy/wavefront.conf, or
+ * /opt/wavefront/wavefront-proxy/conf/wavefront.conf).
  *
  * Every file with annotated with {@link JsonProperty} is parsed directly from your logsIngestionConfigFile, which is
  * YAML. Below is a sample config file which shows the features of direct logs ingestion. The "counters" section
@@ -83,6 +85,11 @@ import oi.thekraken.grok.api.exception.GrokException;
  *   # For log line "histo 123.45", add 123.45 to the running distribution. Will send metrics like p99, mean, ...
  *   - pattern: "histo %{NUMBER:value}"
  *     metricName: "myHisto"
+ *   # For log line "latency 12", add 12 to "latency", evaluating at most 1000 lines per second. During spikes, only a
+ *   # random sample of the lines is used, see logsharvesting.matcher.sample-rate for the fraction.
+ *   - pattern: "latency %{NUMBER:value}"
+ *     metricName: "latency"
+ *     maxLinesPerSecond: 1000
  *
  * additionalPatterns:
  *   - "MYPATTERN she sold %{NUMBER:value} sea shells"
@@ -99,6 +106,12 @@ public class LogsIngestionConfig extends Configuration {
    */
   @JsonProperty
   public Integer aggregationIntervalSeconds = 5;
+  /**
+   * Number of partitions the metrics are split into when they are sent, which are sent in parallel. Only read on
+   * startup.
+   */
+  @JsonProperty
+  public int flushPartitions = Runtime.getRuntime().availableProcessors();
   /**
    * Counters to ingest from incoming log data.
    */
@@ -126,13 +139,39 @@ public class LogsIngestionConfig extends Configuration {
   @JsonProperty
   public long expiryMillis = TimeUnit.HOURS.toMillis(1);
   /**
-   * If true, use {@link com.yammer.metrics.core.WavefrontHistogram}s rather than {@link
-   * com.yammer.metrics.core.Histogram}s. Histogram ingestion must be enabled on wavefront to use this feature. When
-   * using Yammer histograms, the data is exploded into constituent metrics. See {@link
+   * If true, only metrics updated since they were last sent are sent. Otherwise every metric is sent each
+   * aggregation interval until it expires (see {@link #expiryMillis}). Only read on startup.
+   */
+  @JsonProperty
+  public boolean sendChangedMetricsOnly = false;
+  /**
+   * If true, send histograms as Wavefront histograms, with the values of each minute accumulated in a t-digest and
+   * sent once the minute is over, rather than as {@link com.yammer.metrics.core.Histogram}s. Histogram ingestion must
+   * be enabled on wavefront to use this feature. When using Yammer histograms, the data is exploded into constituent
+   * metrics. See {@link
    * com.wavefront.agent.logsharvesting.FlushProcessor#processHistogram(MetricName, Histogram, FlushProcessorContext)}.
    */
   @JsonProperty
   public boolean useWavefrontHistograms = false;
+  /**
+   * Compression of the t-digests of {@link #useWavefrontHistograms}, between 20 and 1000. Higher values are more
+   * accurate, but send more centroids and use more memory per series.
+   */
+  @JsonProperty
+  public short histogramCompression = 100;
+  /**
+   * Local log files to follow, as paths whose file name may contain glob wildcards (e.g. /var/log/nginx/*.log).
+   * Rotated and truncated files are detected. Files that exist when the proxy starts are read from their end unless
+   * an offset for them has been checkpointed.
+   */
+  @JsonProperty
+  public List<String> tailFiles = ImmutableList.of();
+  /**
+   * File to checkpoint read offsets of {@link #tailFiles} to, so that tailing resumes where it left off after a
+   * restart. Offsets are not persisted if not set.
+   */
+  @JsonProperty
+  public String tailCheckpointFile = null;
 
   /**
    * How often to check this config file for updates.
@@ -142,6 +181,14 @@ public class LogsIngestionConfig extends Configuration {
 
   private String patternsFile = null;
   private Object patternsFileLock = new Object();
+  private MetricMatcherPrefilter prefilter = null;
+
+  /**
+   * @return The prefilter for all {@link MetricMatcher}s of this config, built by {@link #verifyAndInit()}.
+   */
+  public MetricMatcherPrefilter prefilter() {
+    return prefilter;
+  }
 
   /**
    * @return The path to a temporary file (on disk) containing grok patterns, to be consumed by {@link Grok}.
@@ -182,9 +229,18 @@ public class LogsIngestionConfig extends Configuration {
       }
     }
     ensure(aggregationIntervalSeconds > 0, "aggregationIntervalSeconds must be positive.");
+    ensure(flushPartitions > 0, "flushPartitions must be positive.");
+    ensure(histogramCompression >= 20 && histogramCompression <= 1000,
+        "histogramCompression must be between 20 and 1000.");
+    for (String tailFile : tailFiles) {
+      ensure(new File(tailFile).getParentFile() != null && !new File(tailFile).getParent().matches(".*[*?\\[{].*"),
+          "Only the file name of tailFiles may contain wildcards: " + tailFile);
+    }
     for (MetricMatcher p : counters) {
       p.setPatternsFile(patternsFile());
       p.verifyAndInit();
+      ensure(!p.isSampled(), "Counters can't be sampled, remove maxLinesPerSecond and maxCpuCores from counter " +
+          p.getPattern());
     }
     for (MetricMatcher p : gauges) {
       p.setPatternsFile(patternsFile());
@@ -198,5 +254,6 @@ public class LogsIngestionConfig extends Configuration {
       ensure(p.hasCapture(p.getValueLabel()),
           "Must have a capture with label '" + p.getValueLabel() + "' for this histogram.");
     }
+    prefilter = new MetricMatcherPrefilter(Iterables.concat(counters, gauges, histograms));
   }
 }
@@ -2,11 +2,18 @@ package com.wavefront.agent.config;
 
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.wavefront.agent.Validation;
+import com.wavefront.agent.logsharvesting.AdaptiveSampler;
 import com.wavefront.agent.logsharvesting.LogsMessage;
+import com.wavefront.common.TaggedMetricName;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -14,6 +21,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 import oi.thekraken.grok.api.Grok;
 import oi.thekraken.grok.api.Match;
 import oi.thekraken.grok.api.exception.GrokException;
@@ -62,7 +71,24 @@ public class MetricMatcher extends Configuration {
    */
   @JsonProperty
   private String valueLabel = "value";
+  /**
+   * Only for gauges and histograms: upper bound of log lines per second this matcher evaluates its pattern on. When
+   * more lines come in, a random sample of them is evaluated, and the sampling rate is reported as the
+   * logsharvesting.matcher.sample-rate metric of the proxy, tagged with this matcher's metric name and pattern, so
+   * histogram counts can be extrapolated. Unlimited if not set.
+   */
+  @JsonProperty
+  private Double maxLinesPerSecond = null;
+  /**
+   * Only for gauges and histograms: upper bound of CPU time this matcher spends evaluating its pattern, in cores
+   * (e.g. 0.25 for a quarter of a core). Lines are sampled like with {@link #maxLinesPerSecond}. Unlimited if not set.
+   */
+  @JsonProperty
+  private Double maxCpuCores = null;
   private Grok grok = null;
+  private Counter attempts = null;
+  private Counter hits = null;
+  private AdaptiveSampler sampler = null;
 
   public String getValueLabel() {
     return valueLabel;
@@ -72,6 +98,21 @@ public class MetricMatcher extends Configuration {
     return pattern;
   }
 
+  /**
+   * @return whether {@link #maxLinesPerSecond} or {@link #maxCpuCores} is set
+   */
+  public boolean isSampled() {
+    return maxLinesPerSecond != null || maxCpuCores != null;
+  }
+
+  /**
+   * @return the sampler limiting the lines this matcher evaluates, or null if it evaluates all lines
+   */
+  @Nullable
+  public AdaptiveSampler sampler() {
+    return sampler;
+  }
+
   private String patternsFile = null;
 
   public void setPatternsFile(String patternsFile) {
@@ -112,9 +153,11 @@ public class MetricMatcher extends Configuration {
    * @param output          The telemetry parsed from the filebeat message.
    */
   public TimeSeries timeSeries(LogsMessage logsMessage, Double[] output) throws NumberFormatException {
+    if (attempts != null) attempts.inc();
     Match match = grok().match(logsMessage.getLogLine());
     match.captures();
     if (match.getEnd() == 0) return null;
+    if (hits != null) hits.inc();
     if (output != null) {
       if (match.toMap().containsKey(valueLabel)) {
         output[0] = Double.parseDouble((String) match.toMap().get(valueLabel));
@@ -142,6 +185,130 @@ public class MetricMatcher extends Configuration {
     return builder.setMetric(dynamicName).setHost(logsMessage.hostOrDefault("parsed-logs")).build();
   }
 
+  /**
+   * Extracts literal substrings that any line matching {@link #pattern} must contain, from the parts of the pattern
+   * outside of grok expressions. The extraction is conservative: whenever the pattern uses a construct that makes a
+   * literal optional or alternative (quantifiers, alternation, flags, quoting), the affected part is dropped, so an
+   * empty list means "no requirement".
+   *
+   * @return required literals, longest first
+   */
+  public List<String> requiredLiterals() {
+    List<String> literals = Lists.newArrayList();
+    if (pattern.contains("(?") || pattern.contains("\\Q")) {
+      // inline flags (e.g. case-insensitive matching) or quoting, don't try to be clever
+      return literals;
+    }
+    StringBuilder run = new StringBuilder();
+    boolean lastWasLiteral = false;
+    int i = 0;
+    while (i < pattern.length()) {
+      char c = pattern.charAt(i);
+      if (c == '%' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '{') {
+        flushLiteral(run, literals);
+        int end = pattern.indexOf('}', i);
+        if (end < 0) return Lists.newArrayList();
+        i = end + 1;
+        lastWasLiteral = false;
+        continue;
+      }
+      switch (c) {
+        case '\\':
+          if (i + 1 >= pattern.length()) return Lists.newArrayList();
+          char escaped = pattern.charAt(i + 1);
+          if (Character.isLetterOrDigit(escaped)) {
+            // character class (\d, \s, ...), anchor (\b) or back reference
+            flushLiteral(run, literals);
+            lastWasLiteral = false;
+          } else {
+            run.append(escaped);
+            lastWasLiteral = true;
+          }
+          i += 2;
+          continue;
+        case '|':
+          // alternation at the top level, nothing is required
+          return Lists.newArrayList();
+        case '?':
+        case '*':
+        case '{':
+          // the preceding literal character is optional
+          if (lastWasLiteral && run.length() > 0) {
+            run.setLength(run.length() - 1);
+          }
+          flushLiteral(run, literals);
+          if (c == '{') {
+            int end = pattern.indexOf('}', i);
+            if (end < 0) return Lists.newArrayList();
+            i = end;
+          }
+          lastWasLiteral = false;
+          break;
+        case '+':
+          // the preceding character is required, but may repeat
+          flushLiteral(run, literals);
+          lastWasLiteral = false;
+          break;
+        case '(':
+        case '[':
+          flushLiteral(run, literals);
+          i = skipGroup(i);
+          if (i < 0) return Lists.newArrayList();
+          lastWasLiteral = false;
+          break;
+        case '.':
+        case '^':
+        case '$':
+        case ')':
+        case ']':
+          flushLiteral(run, literals);
+          lastWasLiteral = false;
+          break;
+        default:
+          run.append(c);
+          lastWasLiteral = true;
+      }
+      i++;
+    }
+    flushLiteral(run, literals);
+    literals.sort((a, b) -> b.length() - a.length());
+    return literals;
+  }
+
+  private static void flushLiteral(StringBuilder run, List<String> literals) {
+    if (run.length() > 0) {
+      literals.add(run.toString());
+      run.setLength(0);
+    }
+  }
+
+  /**
+   * @return the index of the character closing the group or character class starting at {@code start}, or -1
+   */
+  private int skipGroup(int start) {
+    int depth = 0;
+    boolean inClass = false;
+    for (int i = start; i < pattern.length(); i++) {
+      char c = pattern.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (inClass) {
+        if (c == ']') {
+          inClass = false;
+          if (depth == 0) return i;
+        }
+      } else if (c == '[') {
+        inClass = true;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+        if (depth == 0) return i;
+      }
+    }
+    return -1;
+  }
+
   public boolean hasCapture(String label) {
     return grok().getNamedRegexCollection().values().contains(label);
   }
@@ -154,6 +321,26 @@ public class MetricMatcher extends Configuration {
     String fauxMetricName = metricName.replaceAll("%\\{.*\\}", "");
     ensure(Validation.charactersAreValid(fauxMetricName), "Metric name has illegal characters: " + metricName);
     ensure(tagKeys.size() == tagValueLabels.size(), "tagKeys and tagValueLabels must be parallel arrays.");
+    attempts = Metrics.newCounter(new TaggedMetricName("logsharvesting.matcher", "attempts",
+        "metricName", metricName));
+    hits = Metrics.newCounter(new TaggedMetricName("logsharvesting.matcher", "hits", "metricName", metricName));
+    if (isSampled()) {
+      ensure(maxLinesPerSecond == null || maxLinesPerSecond > 0, "maxLinesPerSecond must be positive.");
+      ensure(maxCpuCores == null || maxCpuCores > 0, "maxCpuCores must be positive.");
+      AdaptiveSampler adaptiveSampler = new AdaptiveSampler(maxLinesPerSecond, maxCpuCores, System::nanoTime);
+      sampler = adaptiveSampler;
+      // a reloaded config brings new matchers, make sure the gauge reports the current one
+      // several matchers may feed the same metric, each with its own sampler
+      MetricName sampleRate = new TaggedMetricName("logsharvesting.matcher", "sample-rate", "metricName", metricName,
+          "pattern", pattern);
+      Metrics.defaultRegistry().removeMetric(sampleRate);
+      Metrics.newGauge(sampleRate, new Gauge<Double>() {
+        @Override
+        public Double value() {
+          return adaptiveSampler.getRate();
+        }
+      });
+    }
   }
 
 }
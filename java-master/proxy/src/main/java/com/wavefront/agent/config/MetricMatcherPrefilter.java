@@ -0,0 +1,160 @@
+package com.wavefront.agent.config;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Prefilter for a set of {@link MetricMatcher}s: a log line is scanned once for the required literals of all matchers
+ * (see {@link MetricMatcher#requiredLiterals()}) with an Aho-Corasick automaton, and only matchers whose literals all
+ * occur in the line need to run their grok pattern. Matchers without required literals are always candidates.
+ *
+ * Instances are immutable and built once per loaded {@link LogsIngestionConfig}.
+ */
+public class MetricMatcherPrefilter {
+  private static final int[] NO_LITERALS = new int[0];
+
+  private final Map<MetricMatcher, int[]> requiredLiteralIds = new IdentityHashMap<>();
+  private final int literalCount;
+
+  // Automaton: node 0 is the root. Transitions of each node are sorted by character.
+  private final char[][] transitionChars;
+  private final int[][] transitionTargets;
+  private final int[] failure;
+  private final int[][] outputs;
+
+  public MetricMatcherPrefilter(Iterable<MetricMatcher> matchers) {
+    Map<String, Integer> literalIds = Maps.newHashMap();
+    for (MetricMatcher matcher : matchers) {
+      List<String> literals = matcher.requiredLiterals();
+      int[] ids = literals.isEmpty() ? NO_LITERALS : new int[literals.size()];
+      for (int i = 0; i < literals.size(); i++) {
+        Integer id = literalIds.get(literals.get(i));
+        if (id == null) {
+          id = literalIds.size();
+          literalIds.put(literals.get(i), id);
+        }
+        ids[i] = id;
+      }
+      requiredLiteralIds.put(matcher, ids);
+    }
+    this.literalCount = literalIds.size();
+
+    // Build the trie
+    List<Map<Character, Integer>> trie = Lists.newArrayList();
+    List<List<Integer>> nodeOutputs = Lists.newArrayList();
+    trie.add(Maps.newTreeMap());
+    nodeOutputs.add(Lists.newArrayList());
+    for (Map.Entry<String, Integer> literal : literalIds.entrySet()) {
+      int node = 0;
+      for (char c : literal.getKey().toCharArray()) {
+        Integer next = trie.get(node).get(c);
+        if (next == null) {
+          next = trie.size();
+          trie.add(Maps.newTreeMap());
+          nodeOutputs.add(Lists.newArrayList());
+          trie.get(node).put(c, next);
+        }
+        node = next;
+      }
+      nodeOutputs.get(node).add(literal.getValue());
+    }
+    int nodes = trie.size();
+    this.transitionChars = new char[nodes][];
+    this.transitionTargets = new int[nodes][];
+    for (int node = 0; node < nodes; node++) {
+      Map<Character, Integer> transitions = trie.get(node);
+      transitionChars[node] = new char[transitions.size()];
+      transitionTargets[node] = new int[transitions.size()];
+      int i = 0;
+      for (Map.Entry<Character, Integer> transition : transitions.entrySet()) {
+        transitionChars[node][i] = transition.getKey();
+        transitionTargets[node][i] = transition.getValue();
+        i++;
+      }
+    }
+
+    // Failure links (breadth first), merging outputs along them
+    this.failure = new int[nodes];
+    Queue<Integer> queue = new ArrayDeque<>();
+    for (int child : transitionTargets[0]) {
+      queue.add(child);
+    }
+    while (!queue.isEmpty()) {
+      int node = queue.poll();
+      for (int i = 0; i < transitionChars[node].length; i++) {
+        char c = transitionChars[node][i];
+        int child = transitionTargets[node][i];
+        int fallback = failure[node];
+        while (fallback != 0 && next(fallback, c) < 0) {
+          fallback = failure[fallback];
+        }
+        int target = next(fallback, c);
+        failure[child] = target < 0 ? 0 : target;
+        nodeOutputs.get(child).addAll(nodeOutputs.get(failure[child]));
+        queue.add(child);
+      }
+    }
+    this.outputs = new int[nodes][];
+    for (int node = 0; node < nodes; node++) {
+      outputs[node] = nodeOutputs.get(node).stream().mapToInt(Integer::intValue).toArray();
+    }
+  }
+
+  private int next(int node, char c) {
+    int i = Arrays.binarySearch(transitionChars[node], c);
+    return i < 0 ? -1 : transitionTargets[node][i];
+  }
+
+  /**
+   * Scans a log line for all required literals.
+   *
+   * @param line the log line
+   * @return the scan result, to be queried with {@link #mayMatch(MetricMatcher, boolean[])}
+   */
+  public boolean[] scan(String line) {
+    boolean[] found = new boolean[literalCount];
+    if (literalCount == 0) {
+      return found;
+    }
+    int node = 0;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      int target = next(node, c);
+      while (target < 0 && node != 0) {
+        node = failure[node];
+        target = next(node, c);
+      }
+      node = target < 0 ? 0 : target;
+      for (int literal : outputs[node]) {
+        found[literal] = true;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @param matcher one of the matchers this prefilter has been built for
+   * @param found   result of {@link #scan(String)}
+   * @return false if the matcher cannot possibly match the scanned line
+   */
+  public boolean mayMatch(MetricMatcher matcher, boolean[] found) {
+    int[] ids = requiredLiteralIds.get(matcher);
+    if (ids == null) {
+      // not known to this prefilter
+      return true;
+    }
+    for (int id : ids) {
+      if (!found[id]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
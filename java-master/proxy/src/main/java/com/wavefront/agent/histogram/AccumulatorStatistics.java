@@ -0,0 +1,124 @@
+package com.wavefront.agent.histogram;
+
+import com.google.common.base.Preconditions;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.hash.serialization.BytesWriter;
+import net.openhft.chronicle.hash.serialization.SizedWriter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Summary of the encoded key and value sizes found in an accumulator map. Used to recommend the
+ * {@code avgHistogramKeyBytes}/{@code avgHistogramDigestBytes} settings ChronicleMap is pre-sized with: oversized
+ * averages waste off-heap memory, undersized ones cause entry relocation.
+ */
+public class AccumulatorStatistics {
+  private final int entries;
+  private final long[] keySizes;
+  private final long[] valueSizes;
+
+  private AccumulatorStatistics(long[] keySizes, long[] valueSizes) {
+    this.entries = keySizes.length;
+    this.keySizes = keySizes;
+    this.valueSizes = valueSizes;
+    Arrays.sort(this.keySizes);
+    Arrays.sort(this.valueSizes);
+  }
+
+  /**
+   * Walks the given map and measures the encoded size of every entry. Values are measured with
+   * {@link SizedWriter#size}, which the accumulator codecs keep free of side effects such as metric updates.
+   *
+   * @param map             the accumulator
+   * @param keyMarshaller   the key codec
+   * @param valueMarshaller the value codec
+   * @return the collected statistics
+   */
+  public static <K, V> AccumulatorStatistics collect(Map<K, V> map,
+                                                    BytesWriter<K> keyMarshaller,
+                                                    SizedWriter<V> valueMarshaller) {
+    Preconditions.checkNotNull(map);
+    // snapshot sizes, the map may be concurrently modified
+    int expected = map.size();
+    long[] keySizes = new long[expected];
+    long[] valueSizes = new long[expected];
+    int count = 0;
+    Bytes<ByteBuffer> scratch = Bytes.elasticByteBuffer();
+    try {
+      for (Map.Entry<K, V> entry : map.entrySet()) {
+        if (count == keySizes.length) {
+          keySizes = Arrays.copyOf(keySizes, Math.max(16, count * 2));
+          valueSizes = Arrays.copyOf(valueSizes, Math.max(16, count * 2));
+        }
+        scratch.clear();
+        keyMarshaller.write(scratch, entry.getKey());
+        keySizes[count] = scratch.readRemaining();
+        valueSizes[count] = valueMarshaller.size(entry.getValue());
+        count++;
+      }
+    } finally {
+      scratch.release();
+    }
+    return new AccumulatorStatistics(Arrays.copyOf(keySizes, count), Arrays.copyOf(valueSizes, count));
+  }
+
+  public int getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return recommended value for {@code avgHistogramKeyBytes}, or -1 if there is no data to base it on
+   */
+  public int getRecommendedAvgKeyBytes() {
+    return recommend(keySizes);
+  }
+
+  /**
+   * @return recommended value for {@code avgHistogramDigestBytes}, or -1 if there is no data to base it on
+   */
+  public int getRecommendedAvgDigestBytes() {
+    return recommend(valueSizes);
+  }
+
+  private static int recommend(long[] sortedSizes) {
+    return sortedSizes.length == 0 ? -1 : (int) Math.ceil(mean(sortedSizes));
+  }
+
+  private static double mean(long[] sizes) {
+    if (sizes.length == 0) {
+      return 0;
+    }
+    double sum = 0;
+    for (long size : sizes) {
+      sum += size;
+    }
+    return sum / sizes.length;
+  }
+
+  private static long percentile(long[] sortedSizes, double p) {
+    if (sortedSizes.length == 0) {
+      return 0;
+    }
+    return sortedSizes[Math.min(sortedSizes.length - 1, (int) Math.floor(p * sortedSizes.length))];
+  }
+
+  private static String describe(long[] sortedSizes) {
+    return String.format("avg=%.1f p50=%d p99=%d max=%d", mean(sortedSizes), percentile(sortedSizes, 0.5),
+        percentile(sortedSizes, 0.99), sortedSizes.length == 0 ? 0 : sortedSizes[sortedSizes.length - 1]);
+  }
+
+  @Override
+  public String toString() {
+    if (entries == 0) {
+      return "Accumulator is empty, no sizing recommendation available";
+    }
+    return "Accumulator entries: " + entries +
+        ", key bytes: " + describe(keySizes) +
+        ", digest bytes: " + describe(valueSizes) +
+        ". Recommended settings: avgHistogramKeyBytes=" + getRecommendedAvgKeyBytes() +
+        ", avgHistogramDigestBytes=" + getRecommendedAvgDigestBytes();
+  }
+}
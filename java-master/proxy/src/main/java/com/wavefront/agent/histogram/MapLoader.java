@@ -14,12 +14,15 @@ import net.openhft.chronicle.map.VanillaChronicleMap;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Loader for {@link ChronicleMap}. If a file already exists at the given location, will make an attempt to load the map
- * from the existing file. Will fall-back to an in memory representation if the file cannot be loaded (see logs).
+ * from the existing file. Will fall-back to an in memory representation if the file cannot be loaded (see logs). An
+ * existing file written with a different value codec is rewritten with the configured one.
  *
  * @author Tim Schmidt (tim@wavefront.com).
  */
@@ -57,6 +60,33 @@ public class MapLoader<K, V, KM extends BytesReader<K> & BytesWriter<K>, VM exte
               .create();
         }
 
+        private ChronicleMap<K, V> recoverPersistedMap(File file) throws IOException {
+          // Note: this relies on an uncorrupted header, which according to the docs would be due to a hardware error or fs bug.
+          return ChronicleMap
+              .of(keyClass, valueClass)
+              .entries(entries)
+              .averageKeySize(avgKeySize)
+              .averageValueSize(avgValueSize)
+              .recoverPersistedTo(file, false);
+        }
+
+        /**
+         * Rewrites a restored map with the configured value codec, since a recovered map keeps using the codec it was
+         * created with.
+         */
+        private ChronicleMap<K, V> migrate(ChronicleMap<K, V> restored, File file) throws IOException {
+          File migrated = new File(file.getPath() + ".migrating");
+          migrated.delete();
+          try (ChronicleMap<K, V> target = newPersistedMap(migrated)) {
+            target.putAll(restored);
+          } finally {
+            restored.close();
+          }
+          Files.move(migrated.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+          return recoverPersistedMap(file);
+        }
+
         @Override
         public ChronicleMap<K, V> load(File file) throws Exception {
           if (!doPersist) {
@@ -70,13 +100,7 @@ public class MapLoader<K, V, KM extends BytesReader<K> & BytesWriter<K>, VM exte
           try {
             if (file.exists()) {
               logger.fine("Restoring accumulator state...");
-              // Note: this relies on an uncorrupted header, which according to the docs would be due to a hardware error or fs bug.
-              ChronicleMap<K, V> result = ChronicleMap
-                  .of(keyClass, valueClass)
-                  .entries(entries)
-                  .averageKeySize(avgKeySize)
-                  .averageValueSize(avgValueSize)
-                  .recoverPersistedTo(file, false);
+              ChronicleMap<K, V> result = recoverPersistedMap(file);
 
               if (result.isEmpty()) {
                 // Create a new map with the supplied settings to be safe.
@@ -95,6 +119,11 @@ public class MapLoader<K, V, KM extends BytesReader<K> & BytesWriter<K>, VM exte
                         + " key " + "exp: " + keyClass.getSimpleName() + " act: " + vcm.keyClass().getSimpleName()
                         + " val " + "exp: " + valueClass.getSimpleName() + " act: " + vcm.valueClass().getSimpleName());
                   }
+                  if (!sameCodec(vcm.valueReader, valueMarshaller)) {
+                    logger.info("Migrating " + result.size() + " accumulator entries from " + vcm.valueReader + " to " +
+                        valueMarshaller);
+                    result = migrate(result, file);
+                  }
                 }
               }
               return result;
@@ -145,6 +174,18 @@ public class MapLoader<K, V, KM extends BytesReader<K> & BytesWriter<K>, VM exte
     this.doPersist = doPersist;
   }
 
+  private static boolean sameCodec(Object persisted, Object configured) {
+    return persisted == configured || (persisted != null && persisted.getClass() == configured.getClass() &&
+        persisted.toString().equals(configured.toString()));
+  }
+
+  /**
+   * @return the codec values are written with
+   */
+  public VM getValueMarshaller() {
+    return valueMarshaller;
+  }
+
   public ChronicleMap<K, V> get(File f) {
     Preconditions.checkNotNull(f);
     try {
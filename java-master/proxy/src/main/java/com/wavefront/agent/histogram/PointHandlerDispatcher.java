@@ -1,25 +1,41 @@
 package com.wavefront.agent.histogram;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 
 import com.tdunning.math.stats.AgentDigest;
 import com.wavefront.agent.PointHandler;
+import com.wavefront.agent.histogram.accumulator.SpillingAccumulator;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.MetricName;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 import sunnylabs.report.ReportPoint;
 
 import static java.lang.System.nanoTime;
 
 /**
  * Dispatch task for marshalling "ripe" digests for shipment to the agent to a point handler.
+ * <p/>
+ * Dispatch can be spread over several threads: each run scans the keys once, partitions them by hash into one slice
+ * per shard and dispatches the slices in parallel. Ripe digests are handed to the point handler in batches and each
+ * run dispatches at most a bounded number of them, leaving the rest for the next run, so that bursts of bins becoming
+ * due at once (e.g. minute boundaries) are smoothed out.
  *
  * @author Tim Schmidt (tim@wavefront.com).
  */
@@ -30,6 +46,8 @@ public class PointHandlerDispatcher implements Runnable {
       new MetricName("histogram.accumulator", "", "dispatched"));
   private final Counter dispatchErrorCounter = Metrics.newCounter(
       new MetricName("histogram.accumulator", "", "dispatch_errors"));
+  private final Counter dispatchDeferredCounter = Metrics.newCounter(
+      new MetricName("histogram.accumulator", "", "dispatch_deferred_runs"));
   private final Histogram accumulatorSize = Metrics.newHistogram(
       new MetricName("histogram.accumulator", "", "size"));
   private final Histogram dispatchProcessTime = Metrics.newHistogram(
@@ -40,6 +58,13 @@ public class PointHandlerDispatcher implements Runnable {
   private final ConcurrentMap<Utils.HistogramKey, AgentDigest> digests;
   private final PointHandler output;
   private final TimeProvider clock;
+  @Nullable
+  private final ExecutorService shardExecutor;
+  private final int shardCount;
+  private final int batchSize;
+  private final int maxPointsPerRun;
+  @Nullable
+  private final SpillingAccumulator spillingAccumulator;
 
   public PointHandlerDispatcher(ConcurrentMap<Utils.HistogramKey, AgentDigest> digests, PointHandler output) {
     this(digests, output, System::currentTimeMillis);
@@ -50,9 +75,43 @@ public class PointHandlerDispatcher implements Runnable {
       ConcurrentMap<Utils.HistogramKey, AgentDigest> digests,
       PointHandler output,
       TimeProvider clock) {
+    this(digests, output, clock, null, 1, 1, 0);
+  }
+
+  /**
+   * @param digests         the accumulator
+   * @param output          point handler to dispatch to
+   * @param clock           time source
+   * @param shardExecutor   executor dispatching the shards, required if there is more than one
+   * @param shardCount      number of shards the keys are partitioned into
+   * @param batchSize       number of points handed to the point handler at once
+   * @param maxPointsPerRun maximum number of points dispatched per run (0 for unlimited)
+   */
+  public PointHandlerDispatcher(
+      ConcurrentMap<Utils.HistogramKey, AgentDigest> digests,
+      PointHandler output,
+      TimeProvider clock,
+      @Nullable ExecutorService shardExecutor,
+      int shardCount,
+      int batchSize,
+      int maxPointsPerRun) {
+    Preconditions.checkArgument(shardCount > 0, "Invalid dispatch shard count " + shardCount);
+    Preconditions.checkArgument(shardCount == 1 || shardExecutor != null, "Sharded dispatch requires an executor");
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
     this.digests = digests;
     this.output = output;
     this.clock = clock;
+    this.shardExecutor = shardExecutor;
+    this.shardCount = shardCount;
+    this.batchSize = batchSize;
+    this.maxPointsPerRun = maxPointsPerRun;
+    this.spillingAccumulator = digests instanceof SpillingAccumulator ? (SpillingAccumulator) digests : null;
+  }
+
+  @VisibleForTesting
+  static int shardOf(Utils.HistogramKey key, int shardCount) {
+    int hash = key.hashCode();
+    return Math.floorMod(hash ^ (hash >>> 16), shardCount);
   }
 
   @Override
@@ -60,27 +119,104 @@ public class PointHandlerDispatcher implements Runnable {
     accumulatorSize.update(digests.size());
 
     long startNanos = nanoTime();
-    for (Utils.HistogramKey key : digests.keySet()) {
-      digests.compute(key, (k, v) -> {
-        if (v == null) {
-          return null;
+    AtomicInteger budget = new AtomicInteger(maxPointsPerRun > 0 ? maxPointsPerRun : Integer.MAX_VALUE);
+    try {
+      if (shardCount == 1) {
+        dispatch(digests.keySet(), budget);
+        return;
+      }
+      // iterate (and, for persisted maps, deserialize) the keys only once
+      List<List<Utils.HistogramKey>> slices = new ArrayList<>(shardCount);
+      for (int i = 0; i < shardCount; i++) {
+        slices.add(new ArrayList<>());
+      }
+      for (Utils.HistogramKey key : digests.keySet()) {
+        slices.get(shardOf(key, shardCount)).add(key);
+      }
+      List<Future<?>> futures = new ArrayList<>(shardCount);
+      for (List<Utils.HistogramKey> slice : slices) {
+        if (!slice.isEmpty()) {
+          futures.add(shardExecutor.submit((Callable<Void>) () -> {
+            dispatch(slice, budget);
+            return null;
+          }));
         }
-        // Remove and add to shipping queue
-        if (v.getDispatchTimeMillis() < clock.millisSinceEpoch()) {
-          try {
-            ReportPoint out = Utils.pointFromKeyAndDigest(k, v);
-            output.reportPoint(out, k.toString());
-            dispatchCounter.inc();
-          } catch (Exception e) {
-            dispatchErrorCounter.inc();
-            logger.log(Level.SEVERE, "Failed dispatching entry " + k, e);
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          logger.log(Level.SEVERE, "Failed dispatching histogram shard", e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (budget.get() <= 0) {
+        dispatchDeferredCounter.inc();
+      }
+      dispatchProcessTime.update(nanoTime() - startNanos);
+    }
+  }
+
+  private void dispatch(Iterable<Utils.HistogramKey> keys, AtomicInteger budget) {
+    List<ReportPoint> batch = new ArrayList<>(batchSize);
+    List<Utils.HistogramKey> batchKeys = new ArrayList<>(batchSize);
+    try {
+      for (Utils.HistogramKey key : keys) {
+        if (budget.get() <= 0) {
+          break;
+        }
+        long nowMillis = clock.millisSinceEpoch();
+        if (spillingAccumulator != null && spillingAccumulator.isColdAndNotDue(key, nowMillis)) {
+          // don't page in spilled digests just to find out they are not due yet
+          continue;
+        }
+        boolean[] removed = {false};
+        digests.computeIfPresent(key, (k, v) -> {
+          // Remove and add to shipping queue
+          if (v.getDispatchTimeMillis() < nowMillis) {
+            try {
+              batch.add(Utils.pointFromKeyAndDigest(k, v));
+              batchKeys.add(k);
+            } catch (Exception e) {
+              dispatchErrorCounter.inc();
+              logger.log(Level.SEVERE, "Failed dispatching entry " + k, e);
+            }
+            dispatchLagMillis.update(nowMillis - v.getDispatchTimeMillis());
+            removed[0] = true;
+            return null;
           }
-          dispatchLagMillis.update(clock.millisSinceEpoch() - v.getDispatchTimeMillis());
-          return null;
+          return v;
+        });
+        if (removed[0]) {
+          budget.decrementAndGet();
+        }
+        if (batch.size() >= batchSize) {
+          flush(batch, batchKeys);
         }
-        return v;
-      });
+      }
+    } finally {
+      flush(batch, batchKeys);
+    }
+  }
+
+  private void flush(List<ReportPoint> batch, List<Utils.HistogramKey> batchKeys) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    try {
+      if (batch.size() == 1) {
+        output.reportPoint(batch.get(0), batchKeys.get(0).toString());
+      } else {
+        output.reportPoints(new ArrayList<>(batch));
+      }
+      dispatchCounter.inc(batch.size());
+    } catch (Exception e) {
+      dispatchErrorCounter.inc(batch.size());
+      logger.log(Level.SEVERE, "Failed dispatching " + batch.size() + " entries", e);
     }
-    dispatchProcessTime.update(nanoTime() - startNanos);
+    batch.clear();
+    batchKeys.clear();
   }
 }
@@ -133,6 +133,25 @@ public final class Utils {
         .build();
   }
 
+  /**
+   * Merges two digests of the same bin, adding the smaller one to the larger one.
+   *
+   * @return the merged digest (one of the arguments)
+   */
+  public static AgentDigest mergeDigests(@Nullable AgentDigest digestA, @Nullable AgentDigest digestB) {
+    if (digestA != null && digestB != null) {
+      if (digestA.centroidCount() >= digestB.centroidCount()) {
+        digestA.add(digestB);
+        return digestA;
+      } else {
+        digestB.add(digestA);
+        return digestB;
+      }
+    } else {
+      return (digestB == null ? digestA : digestB);
+    }
+  }
+
   /**
    * Uniquely identifies a time-series - time-interval pair. These are the base sample aggregation scopes on the agent.
    */
@@ -6,6 +6,7 @@ import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.github.benmanes.caffeine.cache.Ticker;
 import com.tdunning.math.stats.AgentDigest;
+import com.wavefront.agent.histogram.Utils;
 
 import java.util.concurrent.ConcurrentMap;
 
@@ -41,20 +42,7 @@ public class AccumulationCache {
               return;
             }
             // flush out to backing store
-            backingStore.merge(key, value, (digestA, digestB) -> {
-              if (digestA != null && digestB != null) {
-                // Merge both digests
-                if (digestA.centroidCount() >= digestB.centroidCount()) {
-                  digestA.add(digestB);
-                  return digestA;
-                } else {
-                  digestB.add(digestA);
-                  return digestB;
-                }
-              } else {
-                return (digestB == null ? digestA : digestB);
-              }
-            });
+            backingStore.merge(key, value, Utils::mergeDigests);
           }
         }).build();
   }
@@ -9,6 +9,7 @@ import com.tdunning.math.stats.TDigest;
 import com.wavefront.agent.PointHandler;
 import com.wavefront.agent.Validation;
 import com.wavefront.agent.histogram.Utils;
+import com.wavefront.agent.histogram.cluster.ClusterRouter;
 import com.wavefront.ingester.Decoder;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
@@ -21,6 +22,8 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 import sunnylabs.report.Histogram;
 import sunnylabs.report.ReportPoint;
 
@@ -45,6 +48,8 @@ public class AccumulationTask implements Runnable {
   private final long ttlMillis;
   private final Utils.Granularity granularity;
   private final short compression;
+  @Nullable
+  private final ClusterRouter clusterRouter;
 
   // Metrics
   private final Counter binCreatedCounter = Metrics.newCounter(new MetricName("histogram.accumulator", "", "bin_created"));
@@ -67,6 +72,22 @@ public class AccumulationTask implements Runnable {
                           long ttlMillis,
                           Utils.Granularity granularity,
                           short compression) {
+    this(input, digests, decoder, blockedPointsHandler, validationLevel, ttlMillis, granularity, compression, null);
+  }
+
+  /**
+   * @param clusterRouter if not null, bins of series owned by other cluster members are accumulated for forwarding
+   *                      to them instead of in {@code digests}
+   */
+  public AccumulationTask(ObjectQueue<List<String>> input,
+                          ConcurrentMap<Utils.HistogramKey, AgentDigest> digests,
+                          Decoder<String> decoder,
+                          PointHandler blockedPointsHandler,
+                          Validation.Level validationLevel,
+                          long ttlMillis,
+                          Utils.Granularity granularity,
+                          short compression,
+                          @Nullable ClusterRouter clusterRouter) {
     this.input = input;
     this.digests = digests;
     this.decoder = decoder;
@@ -75,6 +96,11 @@ public class AccumulationTask implements Runnable {
     this.ttlMillis = ttlMillis;
     this.granularity = granularity;
     this.compression = compression;
+    this.clusterRouter = clusterRouter;
+  }
+
+  private ConcurrentMap<Utils.HistogramKey, AgentDigest> targetFor(Utils.HistogramKey histogramKey) {
+    return clusterRouter == null ? digests : clusterRouter.route(histogramKey, digests);
   }
 
   private static void add(final TDigest target, final Histogram source) {
@@ -142,7 +168,7 @@ public class AccumulationTask implements Runnable {
             eventCounter.inc();
 
             // atomic update
-            digests.compute(histogramKey, (k, v) -> {
+            targetFor(histogramKey).compute(histogramKey, (k, v) -> {
               if (v == null) {
                 binCreatedCounter.inc();
                 AgentDigest t = new AgentDigest(compression, System.currentTimeMillis() + ttlMillis);
@@ -165,7 +191,7 @@ public class AccumulationTask implements Runnable {
             histogramCounter.inc();
 
             // atomic update
-            digests.compute(histogramKey, (k, v) -> {
+            targetFor(histogramKey).compute(histogramKey, (k, v) -> {
               if (v == null) {
                 binCreatedCounter.inc();
                 AgentDigest t = new AgentDigest(compression, System.currentTimeMillis() + ttlMillis);
@@ -0,0 +1,420 @@
+package com.wavefront.agent.histogram.accumulator;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ForwardingConcurrentMap;
+
+import com.tdunning.math.stats.AgentDigest;
+import com.tdunning.math.stats.AgentDigest.CompactAgentDigestMarshaller;
+import com.wavefront.agent.NamedThreadFactory;
+import com.wavefront.agent.histogram.Utils;
+import com.wavefront.agent.histogram.Utils.HistogramKey;
+import com.wavefront.agent.histogram.Utils.HistogramKeyMarshaller;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+
+import net.openhft.chronicle.bytes.Bytes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Checkpoints accumulator state (digests, including their dispatch times) to a compact append-only snapshot file and
+ * restores it on start-up.
+ * <p/>
+ * Modifications made through the map returned by {@link #track(ConcurrentMap)} mark keys dirty; each checkpoint
+ * appends a CRC-protected segment with the current state of all dirty keys (or a tombstone for removed keys). Once the
+ * file grows well beyond the size of the last full snapshot it is compacted, i.e. rewritten as a single snapshot and
+ * atomically swapped in. A torn segment at the tail (unclean shutdown) is detected by its checksum and discarded.
+ */
+public class AccumulatorCheckpointer {
+  private static final Logger logger = Logger.getLogger(AccumulatorCheckpointer.class.getCanonicalName());
+
+  private static final int SEGMENT_MAGIC = 0x57464143; // "WFAC"
+  private static final byte RECORD_UPSERT = 1;
+  private static final byte RECORD_TOMBSTONE = 2;
+  private static final long MIN_COMPACTION_BYTES = 16 * 1024 * 1024;
+  private static final int PROGRESS_LOG_INTERVAL = 100000;
+  private static final CompactAgentDigestMarshaller DIGEST_MARSHALLER = new CompactAgentDigestMarshaller();
+
+  private final File file;
+  private final Set<HistogramKey> dirtyKeys = ConcurrentHashMap.newKeySet();
+  private final Bytes<ByteBuffer> segment = Bytes.elasticByteBuffer();
+  @Nullable
+  private ConcurrentMap<HistogramKey, AgentDigest> accumulator;
+  private long snapshotBytes = 0;
+  private volatile boolean restored = false;
+
+  private final Counter recordsWritten = Metrics.newCounter(
+      new MetricName("histogram.accumulator.checkpoint", "", "records_written"));
+  private final Counter checkpointErrors = Metrics.newCounter(
+      new MetricName("histogram.accumulator.checkpoint", "", "errors"));
+  private final Histogram checkpointMillis = Metrics.newHistogram(
+      new MetricName("histogram.accumulator.checkpoint", "", "duration_millis"));
+  private final AtomicLong restoreDurationMillis = new AtomicLong(-1);
+  private final AtomicLong recoveredKeys = new AtomicLong(0);
+
+  /**
+   * @param file the checkpoint file
+   */
+  public AccumulatorCheckpointer(File file) {
+    this.file = Preconditions.checkNotNull(file);
+    Metrics.newGauge(new MetricName("histogram.accumulator.checkpoint", "", "restore_duration_millis"),
+        new Gauge<Long>() {
+          @Override
+          public Long value() {
+            return restoreDurationMillis.get();
+          }
+        });
+    Metrics.newGauge(new MetricName("histogram.accumulator.checkpoint", "", "recovered_keys"),
+        new Gauge<Long>() {
+          @Override
+          public Long value() {
+            return recoveredKeys.get();
+          }
+        });
+  }
+
+  /**
+   * Wraps the accumulator so that modifications are tracked for the next checkpoint. All writers (cache write-backs,
+   * dispatch) need to go through the returned map.
+   */
+  public ConcurrentMap<HistogramKey, AgentDigest> track(ConcurrentMap<HistogramKey, AgentDigest> accumulator) {
+    Preconditions.checkState(this.accumulator == null, "Already tracking an accumulator");
+    this.accumulator = accumulator;
+    return new TrackingMap(accumulator);
+  }
+
+  /**
+   * Restores the checkpointed state into the tracked accumulator, merging with anything already accumulated, and
+   * compacts the checkpoint file. Checkpoints are skipped until the restore has completed.
+   *
+   * @param threads number of threads to decode and merge digests with
+   */
+  public void restore(int threads) {
+    Preconditions.checkState(accumulator != null, "track() must be called before restore()");
+    long startMillis = System.currentTimeMillis();
+    try {
+      if (file.exists()) {
+        Map<HistogramKey, byte[]> state = readCheckpoint(file);
+        logger.info("Restoring " + state.size() + " histogram accumulator entries from " + file);
+        restoreEntries(state, accumulator, Math.max(1, threads));
+      }
+    } catch (Exception e) {
+      checkpointErrors.inc();
+      logger.log(Level.SEVERE, "Failed to restore histogram accumulator checkpoint from " + file +
+          ", continuing with recovered entries only", e);
+    } finally {
+      restoreDurationMillis.set(System.currentTimeMillis() - startMillis);
+      logger.info("Restored " + recoveredKeys.get() + " histogram accumulator entries in " +
+          restoreDurationMillis.get() + "ms");
+    }
+    synchronized (this) {
+      restored = true;
+      compact();
+    }
+  }
+
+  /**
+   * Returns a task writing a checkpoint of all entries modified since the last one.
+   */
+  public Runnable getCheckpointTask() {
+    return this::checkpoint;
+  }
+
+  @VisibleForTesting
+  synchronized void checkpoint() {
+    if (!restored || accumulator == null) {
+      return;
+    }
+    if (file.length() > Math.max(MIN_COMPACTION_BYTES, 2 * snapshotBytes)) {
+      compact();
+      return;
+    }
+    if (dirtyKeys.isEmpty()) {
+      return;
+    }
+    long startMillis = System.currentTimeMillis();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+      segment.clear();
+      segment.writeInt(0); // record count, patched below
+      int records = 0;
+      for (HistogramKey key : dirtyKeys) {
+        // un-mark first, modifications from here on will be picked up by the next checkpoint
+        dirtyKeys.remove(key);
+        writeRecord(segment, key, accumulator.get(key));
+        records++;
+      }
+      segment.writeInt(0, records);
+      writeSegment(out, segment);
+      recordsWritten.inc(records);
+    } catch (IOException e) {
+      checkpointErrors.inc();
+      logger.log(Level.WARNING, "Failed writing histogram accumulator checkpoint to " + file, e);
+    } finally {
+      checkpointMillis.update(System.currentTimeMillis() - startMillis);
+    }
+  }
+
+  /**
+   * Rewrites the checkpoint file as a single full snapshot.
+   */
+  private synchronized void compact() {
+    if (accumulator == null) {
+      return;
+    }
+    long startMillis = System.currentTimeMillis();
+    File tmpFile = new File(file.getPath() + ".tmp");
+    // the snapshot covers everything dirty so far; later modifications are appended afterwards
+    dirtyKeys.clear();
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+        segment.clear();
+        segment.writeInt(0);
+        int records = 0;
+        for (Map.Entry<HistogramKey, AgentDigest> entry : accumulator.entrySet()) {
+          writeRecord(segment, entry.getKey(), entry.getValue());
+          records++;
+        }
+        segment.writeInt(0, records);
+        writeSegment(out, segment);
+        recordsWritten.inc(records);
+      }
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      snapshotBytes = file.length();
+    } catch (IOException e) {
+      checkpointErrors.inc();
+      logger.log(Level.WARNING, "Failed compacting histogram accumulator checkpoint " + file, e);
+    } finally {
+      checkpointMillis.update(System.currentTimeMillis() - startMillis);
+    }
+  }
+
+  private static void writeRecord(Bytes out, HistogramKey key, @Nullable AgentDigest digest) {
+    out.writeByte(digest == null ? RECORD_TOMBSTONE : RECORD_UPSERT);
+    HistogramKeyMarshaller.get().write(out, key);
+    if (digest != null) {
+      long size = DIGEST_MARSHALLER.size(digest);
+      out.writeInt((int) size);
+      DIGEST_MARSHALLER.write(out, size, digest);
+    }
+  }
+
+  private static void writeSegment(DataOutputStream out, Bytes payload) throws IOException {
+    byte[] bytes = payload.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    out.writeInt(SEGMENT_MAGIC);
+    out.writeInt(bytes.length);
+    out.writeLong(crc.getValue());
+    out.write(bytes);
+  }
+
+  /**
+   * Replays all intact segments of a checkpoint file.
+   *
+   * @return the latest encoded digest per key, in file order
+   */
+  @VisibleForTesting
+  static Map<HistogramKey, byte[]> readCheckpoint(File file) throws IOException {
+    Map<HistogramKey, byte[]> state = new LinkedHashMap<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        byte[] payload;
+        try {
+          if (in.readInt() != SEGMENT_MAGIC) {
+            logger.warning("Corrupted segment in " + file + ", discarding the remainder");
+            break;
+          }
+          int length = in.readInt();
+          long checksum = in.readLong();
+          if (length < 4 || length > file.length()) {
+            logger.warning("Corrupted segment in " + file + ", discarding the remainder");
+            break;
+          }
+          payload = new byte[length];
+          in.readFully(payload);
+          CRC32 crc = new CRC32();
+          crc.update(payload);
+          if (crc.getValue() != checksum) {
+            logger.warning("Checksum mismatch in " + file + " (unclean shutdown?), discarding the remainder");
+            break;
+          }
+        } catch (EOFException e) {
+          // end of file or torn last segment
+          break;
+        }
+        Bytes<byte[]> bytes = Bytes.wrapForRead(payload);
+        int records = bytes.readInt();
+        for (int i = 0; i < records; i++) {
+          byte type = bytes.readByte();
+          HistogramKey key = HistogramKeyMarshaller.get().read(bytes, null);
+          if (type == RECORD_UPSERT) {
+            byte[] digest = new byte[bytes.readInt()];
+            bytes.read(digest);
+            state.put(key, digest);
+          } else {
+            state.remove(key);
+          }
+        }
+      }
+    }
+    return state;
+  }
+
+  private void restoreEntries(Map<HistogramKey, byte[]> state, ConcurrentMap<HistogramKey, AgentDigest> target,
+                              int threads) throws Exception {
+    List<Map.Entry<HistogramKey, byte[]>> entries = new ArrayList<>(state.entrySet());
+    int total = entries.size();
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new NamedThreadFactory("histogram-restore"));
+    try {
+      List<Future<?>> futures = new ArrayList<>(threads);
+      for (int t = 0; t < threads; t++) {
+        final int partition = t;
+        futures.add(executor.submit(() -> {
+          for (int i = partition; i < total; i += threads) {
+            Map.Entry<HistogramKey, byte[]> entry = entries.get(i);
+            byte[] encoded = entry.getValue();
+            AgentDigest digest = DIGEST_MARSHALLER.read(Bytes.wrapForRead(encoded), encoded.length, null);
+            target.merge(entry.getKey(), digest, Utils::mergeDigests);
+            long restoredSoFar = recoveredKeys.incrementAndGet();
+            if (restoredSoFar % PROGRESS_LOG_INTERVAL == 0) {
+              logger.info("Restored " + restoredSoFar + "/" + total + " histogram accumulator entries");
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  /**
+   * Accumulator view marking every modified key dirty.
+   */
+  private class TrackingMap extends ForwardingConcurrentMap<HistogramKey, AgentDigest> {
+    private final ConcurrentMap<HistogramKey, AgentDigest> delegate;
+
+    TrackingMap(ConcurrentMap<HistogramKey, AgentDigest> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    protected ConcurrentMap<HistogramKey, AgentDigest> delegate() {
+      return delegate;
+    }
+
+    private <T> T dirty(Object key, T result) {
+      if (key instanceof HistogramKey) {
+        dirtyKeys.add((HistogramKey) key);
+      }
+      return result;
+    }
+
+    @Override
+    public AgentDigest put(@Nonnull HistogramKey key, @Nonnull AgentDigest value) {
+      return dirty(key, delegate.put(key, value));
+    }
+
+    @Override
+    public AgentDigest putIfAbsent(@Nonnull HistogramKey key, @Nonnull AgentDigest value) {
+      return dirty(key, delegate.putIfAbsent(key, value));
+    }
+
+    @Override
+    public void putAll(@Nonnull Map<? extends HistogramKey, ? extends AgentDigest> map) {
+      delegate.putAll(map);
+      dirtyKeys.addAll(map.keySet());
+    }
+
+    @Override
+    public AgentDigest remove(@Nonnull Object key) {
+      return dirty(key, delegate.remove(key));
+    }
+
+    @Override
+    public boolean remove(@Nonnull Object key, Object value) {
+      return dirty(key, delegate.remove(key, value));
+    }
+
+    @Override
+    public AgentDigest replace(@Nonnull HistogramKey key, @Nonnull AgentDigest value) {
+      return dirty(key, delegate.replace(key, value));
+    }
+
+    @Override
+    public boolean replace(@Nonnull HistogramKey key, @Nonnull AgentDigest oldValue,
+                           @Nonnull AgentDigest newValue) {
+      return dirty(key, delegate.replace(key, oldValue, newValue));
+    }
+
+    @Override
+    public AgentDigest compute(HistogramKey key,
+                               BiFunction<? super HistogramKey, ? super AgentDigest, ? extends AgentDigest> f) {
+      return dirty(key, delegate.compute(key, f));
+    }
+
+    @Override
+    public AgentDigest computeIfAbsent(HistogramKey key,
+                                       Function<? super HistogramKey, ? extends AgentDigest> f) {
+      return dirty(key, delegate.computeIfAbsent(key, f));
+    }
+
+    @Override
+    public AgentDigest computeIfPresent(HistogramKey key,
+                                        BiFunction<? super HistogramKey, ? super AgentDigest, ? extends AgentDigest> f) {
+      return dirty(key, delegate.computeIfPresent(key, f));
+    }
+
+    @Override
+    public AgentDigest merge(HistogramKey key, AgentDigest value,
+                             BiFunction<? super AgentDigest, ? super AgentDigest, ? extends AgentDigest> f) {
+      return dirty(key, delegate.merge(key, value, f));
+    }
+
+    @Override
+    public void clear() {
+      dirtyKeys.addAll(delegate.keySet());
+      delegate.clear();
+    }
+  }
+}
@@ -0,0 +1,841 @@
+package com.wavefront.agent.histogram.accumulator;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+
+import com.tdunning.math.stats.AgentDigest;
+import com.tdunning.math.stats.AgentDigest.CompactAgentDigestMarshaller;
+import com.wavefront.agent.histogram.TimeProvider;
+import com.wavefront.agent.histogram.Utils;
+import com.wavefront.agent.histogram.Utils.HistogramKey;
+import com.wavefront.agent.histogram.Utils.HistogramKeyMarshaller;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+
+import net.openhft.chronicle.bytes.Bytes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Two-tier accumulator keeping recently updated digests in a bounded in-memory map and spilling digests that have not
+ * been touched for a while to sorted runs on disk.
+ * <p/>
+ * Spilled digests are merged back into the in-memory tier as soon as they are updated, and dispatched straight from
+ * disk once due. Each spill writes one run file ordered by dispatch time, so due entries are read sequentially; run
+ * files are deleted once all their entries have been reloaded or dispatched. Only the keys and file offsets of spilled
+ * entries stay on the heap. Every spill and reload is appended to an index journal as it happens, so spilled entries
+ * survive an unclean shutdown; the journal is compacted on start-up, on {@link #close()} and when it has grown well
+ * past the number of spilled entries.
+ * <p/>
+ * Once the in-memory tier fills up, the least recently touched entries are spilled by a background task; ingestion
+ * only spills inline if that task falls behind and the tier reaches its capacity.
+ */
+public class SpillingAccumulator extends AbstractMap<HistogramKey, AgentDigest>
+    implements ConcurrentMap<HistogramKey, AgentDigest> {
+  private static final Logger logger = Logger.getLogger(SpillingAccumulator.class.getCanonicalName());
+
+  private static final String INDEX_FILE_NAME = "index";
+  private static final String RUN_FILE_PREFIX = "run-";
+  private static final double LOW_WATERMARK = 0.9;
+  private static final double HIGH_WATERMARK = 0.95;
+  private static final int MIN_RECORDS_BEFORE_COMPACTION = 10000;
+  private static final byte ADDED = 1;
+  private static final byte REMOVED = 2;
+  private static final CompactAgentDigestMarshaller DIGEST_MARSHALLER = new CompactAgentDigestMarshaller();
+
+  private final ConcurrentMap<HistogramKey, AgentDigest> hot;
+  private final ConcurrentMap<HistogramKey, ColdEntry> cold = new ConcurrentHashMap<>();
+  private final ConcurrentMap<HistogramKey, Long> lastTouchedMillis = new ConcurrentHashMap<>();
+  private final long maxHotEntries;
+  private final long idleMillis;
+  private final File directory;
+  private final TimeProvider clock;
+  private final AtomicInteger runIds = new AtomicInteger();
+  private final Bytes<ByteBuffer> scratch = Bytes.elasticByteBuffer();
+  private final Executor spillExecutor;
+  private final AtomicBoolean spillScheduled = new AtomicBoolean(false);
+  // appends to the index journal, always taken before a ColdEntry's lock
+  private final Object indexLock = new Object();
+  @Nullable
+  private FileOutputStream index;
+  private long indexRecords = 0;
+
+  private final Counter spilledCounter = Metrics.newCounter(
+      new MetricName("histogram.accumulator.spill", "", "spilled"));
+  private final Counter reloadedCounter = Metrics.newCounter(
+      new MetricName("histogram.accumulator.spill", "", "reloaded"));
+  private final Counter runsCounter = Metrics.newCounter(
+      new MetricName("histogram.accumulator.spill", "", "runs_written"));
+  private final Counter errorCounter = Metrics.newCounter(
+      new MetricName("histogram.accumulator.spill", "", "errors"));
+
+  /**
+   * @param hot           the in-memory tier
+   * @param maxHotEntries maximum number of entries kept in the in-memory tier
+   * @param idleMillis    time after which untouched entries are spilled by {@link #getSpillTask()}
+   * @param directory     directory for run files
+   * @param clock         time source
+   * @param spillExecutor runs the spills triggered when the in-memory tier fills up
+   */
+  public SpillingAccumulator(ConcurrentMap<HistogramKey, AgentDigest> hot, long maxHotEntries, long idleMillis,
+                             File directory, TimeProvider clock, Executor spillExecutor) throws IOException {
+    Preconditions.checkArgument(maxHotEntries > 0, "maxHotEntries must be positive");
+    this.hot = hot;
+    this.maxHotEntries = maxHotEntries;
+    this.idleMillis = idleMillis;
+    this.directory = directory;
+    this.clock = clock;
+    this.spillExecutor = spillExecutor;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create spill directory " + directory);
+    }
+    loadIndex();
+    Metrics.newGauge(new MetricName("histogram.accumulator.spill", "", "cold_entries"), new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return cold.size();
+      }
+    });
+    Metrics.newGauge(new MetricName("histogram.accumulator.spill", "", "hot_entries"), new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return hot.size();
+      }
+    });
+  }
+
+  /**
+   * Returns whether the entry for the given key is on disk and not yet due for dispatch, in which case a dispatch
+   * scan can skip it without reading the digest.
+   */
+  public boolean isColdAndNotDue(HistogramKey key, long nowMillis) {
+    ColdEntry entry = cold.get(key);
+    return entry != null && entry.dispatchTimeMillis >= nowMillis;
+  }
+
+  @VisibleForTesting
+  int coldSize() {
+    return cold.size();
+  }
+
+  @VisibleForTesting
+  int hotSize() {
+    return hot.size();
+  }
+
+  /**
+   * Returns a task spilling entries that have been idle for longer than the idle time, as well as the least recently
+   * touched entries if the in-memory tier is over capacity (e.g. after a restore).
+   */
+  public Runnable getSpillTask() {
+    return () -> {
+      try {
+        long idleSince = clock.millisSinceEpoch() - idleMillis;
+        List<HistogramKey> idle = new ArrayList<>();
+        for (HistogramKey key : hot.keySet()) {
+          if (lastTouchedMillis.getOrDefault(key, 0L) < idleSince) {
+            idle.add(key);
+          }
+        }
+        spill(idle);
+        if (hot.size() >= maxHotEntries) {
+          spillLeastRecentlyTouched();
+        }
+        synchronized (indexLock) {
+          if (indexRecords > MIN_RECORDS_BEFORE_COMPACTION && indexRecords > 2L * cold.size()) {
+            compactIndex();
+          }
+        }
+      } catch (Exception e) {
+        errorCounter.inc();
+        logger.log(Level.SEVERE, "Failed spilling idle histograms", e);
+      }
+    };
+  }
+
+  // -- ConcurrentMap
+
+  @Override
+  public int size() {
+    return hot.size() + cold.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return hot.isEmpty() && cold.isEmpty();
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return hot.containsKey(key) || cold.containsKey(key);
+  }
+
+  @Override
+  public AgentDigest get(Object key) {
+    AgentDigest digest = hot.get(key);
+    if (digest == null) {
+      ColdEntry entry = cold.get(key);
+      return entry == null ? null : entry.load();
+    }
+    return digest;
+  }
+
+  @Override
+  public AgentDigest put(HistogramKey key, AgentDigest value) {
+    AgentDigest[] previous = new AgentDigest[1];
+    doCompute(key, (k, v) -> {
+      previous[0] = v;
+      return value;
+    });
+    return previous[0];
+  }
+
+  @Override
+  public AgentDigest putIfAbsent(@Nonnull HistogramKey key, AgentDigest value) {
+    AgentDigest[] previous = new AgentDigest[1];
+    doCompute(key, (k, v) -> {
+      previous[0] = v;
+      return v == null ? value : v;
+    });
+    return previous[0];
+  }
+
+  @Override
+  public AgentDigest remove(Object key) {
+    if (!(key instanceof HistogramKey)) {
+      return null;
+    }
+    AgentDigest[] previous = new AgentDigest[1];
+    doCompute((HistogramKey) key, (k, v) -> {
+      previous[0] = v;
+      return null;
+    });
+    return previous[0];
+  }
+
+  @Override
+  public boolean remove(@Nonnull Object key, Object value) {
+    if (!(key instanceof HistogramKey)) {
+      return false;
+    }
+    boolean[] removed = new boolean[1];
+    doCompute((HistogramKey) key, (k, v) -> {
+      removed[0] = v != null && v.equals(value);
+      return removed[0] ? null : v;
+    });
+    return removed[0];
+  }
+
+  @Override
+  public boolean replace(@Nonnull HistogramKey key, @Nonnull AgentDigest oldValue, @Nonnull AgentDigest newValue) {
+    boolean[] replaced = new boolean[1];
+    doCompute(key, (k, v) -> {
+      replaced[0] = v != null && v.equals(oldValue);
+      return replaced[0] ? newValue : v;
+    });
+    return replaced[0];
+  }
+
+  @Override
+  public AgentDigest replace(@Nonnull HistogramKey key, @Nonnull AgentDigest value) {
+    AgentDigest[] previous = new AgentDigest[1];
+    doCompute(key, (k, v) -> {
+      previous[0] = v;
+      return v == null ? null : value;
+    });
+    return previous[0];
+  }
+
+  @Override
+  public AgentDigest compute(HistogramKey key,
+                             BiFunction<? super HistogramKey, ? super AgentDigest, ? extends AgentDigest> f) {
+    return doCompute(key, f);
+  }
+
+  @Override
+  public AgentDigest computeIfAbsent(HistogramKey key, Function<? super HistogramKey, ? extends AgentDigest> f) {
+    return doCompute(key, (k, v) -> v == null ? f.apply(k) : v);
+  }
+
+  @Override
+  public AgentDigest computeIfPresent(HistogramKey key,
+                                      BiFunction<? super HistogramKey, ? super AgentDigest, ? extends AgentDigest> f) {
+    if (!containsKey(key)) {
+      return null;
+    }
+    return doCompute(key, (k, v) -> v == null ? null : f.apply(k, v));
+  }
+
+  @Override
+  public AgentDigest merge(HistogramKey key, AgentDigest value,
+                           BiFunction<? super AgentDigest, ? super AgentDigest, ? extends AgentDigest> f) {
+    return doCompute(key, (k, v) -> v == null ? value : f.apply(v, value));
+  }
+
+  @Override
+  public void clear() {
+    hot.clear();
+    for (HistogramKey key : cold.keySet()) {
+      ColdEntry entry = cold.remove(key);
+      if (entry != null) {
+        forget(key, entry);
+      }
+    }
+    lastTouchedMillis.clear();
+  }
+
+  @Override
+  public Set<HistogramKey> keySet() {
+    return new AbstractSet<HistogramKey>() {
+      @Override
+      public Iterator<HistogramKey> iterator() {
+        return Iterators.unmodifiableIterator(Iterators.concat(hot.keySet().iterator(), cold.keySet().iterator()));
+      }
+
+      @Override
+      public int size() {
+        return SpillingAccumulator.this.size();
+      }
+    };
+  }
+
+  @Override
+  public Set<Entry<HistogramKey, AgentDigest>> entrySet() {
+    return new AbstractSet<Entry<HistogramKey, AgentDigest>>() {
+      @Override
+      public Iterator<Entry<HistogramKey, AgentDigest>> iterator() {
+        return Iterators.unmodifiableIterator(Iterators.concat(
+            hot.entrySet().iterator(),
+            Iterators.transform(cold.entrySet().iterator(), e -> Maps.immutableEntry(e.getKey(), e.getValue().load()))));
+      }
+
+      @Override
+      public int size() {
+        return SpillingAccumulator.this.size();
+      }
+    };
+  }
+
+  /**
+   * Applies {@code f} to the current value of {@code key}, reloading it into the in-memory tier if it has been
+   * spilled. Spilling and reloading of a key both happen under the in-memory tier's lock for that key.
+   */
+  private AgentDigest doCompute(HistogramKey key,
+                                BiFunction<? super HistogramKey, ? super AgentDigest, ? extends AgentDigest> f) {
+    if (hot.size() >= maxHotEntries * HIGH_WATERMARK && !hot.containsKey(key)) {
+      scheduleSpill();
+      if (hot.size() >= maxHotEntries) {
+        // the background spill fell behind, don't let the in-memory tier outgrow its capacity
+        spillLeastRecentlyTouched();
+      }
+    }
+    AgentDigest result = hot.compute(key, (k, v) -> {
+      ColdEntry entry = cold.get(k);
+      if (entry != null) {
+        v = Utils.mergeDigests(v, entry.load());
+        cold.remove(k);
+        forget(k, entry);
+        reloadedCounter.inc();
+      }
+      return f.apply(k, v);
+    });
+    if (result == null) {
+      lastTouchedMillis.remove(key);
+    } else {
+      lastTouchedMillis.put(key, clock.millisSinceEpoch());
+    }
+    return result;
+  }
+
+  private void scheduleSpill() {
+    if (!spillScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      spillExecutor.execute(() -> {
+        try {
+          spillLeastRecentlyTouched();
+        } catch (Exception e) {
+          errorCounter.inc();
+          logger.log(Level.SEVERE, "Failed spilling histograms", e);
+        } finally {
+          spillScheduled.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      spillScheduled.set(false);
+    }
+  }
+
+  private synchronized void spillLeastRecentlyTouched() {
+    int toSpill = (int) (hot.size() - (long) (maxHotEntries * LOW_WATERMARK));
+    if (toSpill <= 0) {
+      return;
+    }
+    List<Map.Entry<HistogramKey, Long>> candidates = new ArrayList<>();
+    for (HistogramKey key : hot.keySet()) {
+      candidates.add(Maps.immutableEntry(key, lastTouchedMillis.getOrDefault(key, 0L)));
+    }
+    candidates.sort(Map.Entry.comparingByValue());
+    List<HistogramKey> keys = new ArrayList<>(toSpill);
+    for (int i = 0; i < toSpill && i < candidates.size(); i++) {
+      keys.add(candidates.get(i).getKey());
+    }
+    spill(keys);
+  }
+
+  /**
+   * Moves the given keys' digests from the in-memory tier to a new run file and records them in the index.
+   */
+  private synchronized void spill(List<HistogramKey> keys) {
+    if (keys.isEmpty()) {
+      return;
+    }
+    List<Map.Entry<HistogramKey, ColdEntry>> batch = new ArrayList<>(keys.size());
+    for (HistogramKey key : keys) {
+      hot.computeIfPresent(key, (k, v) -> {
+        ColdEntry previous = cold.get(k);
+        if (previous != null) {
+          // should not happen, but never lose data
+          v = Utils.mergeDigests(v, previous.load());
+          forget(k, previous);
+        }
+        ColdEntry entry = new ColdEntry(encode(v), v.getDispatchTimeMillis());
+        cold.put(k, entry);
+        batch.add(Maps.immutableEntry(k, entry));
+        return null;
+      });
+      lastTouchedMillis.remove(key);
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    batch.sort((a, b) -> Long.compare(a.getValue().dispatchTimeMillis, b.getValue().dispatchTimeMillis));
+    File file = new File(directory, RUN_FILE_PREFIX + runIds.incrementAndGet());
+    try {
+      long[] offsets = new long[batch.size()];
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+        long offset = 0;
+        for (int i = 0; i < batch.size(); i++) {
+          byte[] bytes = batch.get(i).getValue().pending;
+          offsets[i] = offset;
+          out.write(bytes);
+          offset += bytes.length;
+        }
+      }
+      SpillRun run = new SpillRun(file);
+      for (int i = 0; i < batch.size(); i++) {
+        batch.get(i).getValue().attach(run, offsets[i]);
+      }
+      run.release(); // drop the writer's reference
+      runsCounter.inc();
+      spilledCounter.inc(batch.size());
+    } catch (IOException e) {
+      // entries stay readable from memory until the next successful spill or reload
+      errorCounter.inc();
+      logger.log(Level.SEVERE, "Failed writing histogram spill run " + file, e);
+      return;
+    }
+    try {
+      recordSpilled(batch);
+    } catch (IOException e) {
+      // the entries are indexed again by the next compaction
+      errorCounter.inc();
+      logger.log(Level.SEVERE, "Failed recording spilled histograms in spill index", e);
+    }
+  }
+
+  /**
+   * Appends the given spilled entries to the index, skipping the ones reloaded in the meantime.
+   */
+  private void recordSpilled(List<Map.Entry<HistogramKey, ColdEntry>> entries) throws IOException {
+    synchronized (indexLock) {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(buffer);
+      int records = 0;
+      for (Map.Entry<HistogramKey, ColdEntry> entry : entries) {
+        ColdEntry coldEntry = entry.getValue();
+        synchronized (coldEntry) {
+          if (coldEntry.released) {
+            continue; // reloaded in the meantime
+          }
+          writeAdded(out, entry.getKey(), coldEntry);
+          coldEntry.indexed = true;
+          records++;
+        }
+      }
+      appendToIndex(buffer.toByteArray(), records);
+    }
+  }
+
+  /**
+   * Releases a spilled entry that has been removed from the cold tier, recording its removal in the index.
+   */
+  private void forget(HistogramKey key, ColdEntry entry) {
+    synchronized (indexLock) {
+      if (entry.indexed) {
+        try {
+          ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+          DataOutputStream out = new DataOutputStream(buffer);
+          out.writeByte(REMOVED);
+          writeKey(out, key);
+          appendToIndex(buffer.toByteArray(), 1);
+        } catch (IOException e) {
+          errorCounter.inc();
+          logger.log(Level.SEVERE, "Failed recording reloaded histogram in spill index", e);
+        }
+      }
+      entry.release();
+    }
+  }
+
+  /**
+   * Writes records to the index in one call, so that a crash leaves at most a truncated tail behind.
+   */
+  private void appendToIndex(byte[] records, int count) throws IOException {
+    if (index == null || count == 0) {
+      return;
+    }
+    index.write(records);
+    indexRecords += count;
+  }
+
+  private void writeAdded(DataOutputStream out, HistogramKey key, ColdEntry entry) throws IOException {
+    out.writeByte(ADDED);
+    writeKey(out, key);
+    out.writeUTF(entry.run.file.getName());
+    out.writeLong(entry.offset);
+    out.writeInt(entry.length);
+    out.writeLong(entry.dispatchTimeMillis);
+  }
+
+  private void writeKey(DataOutputStream out, HistogramKey key) throws IOException {
+    byte[] bytes;
+    synchronized (scratch) {
+      scratch.clear();
+      HistogramKeyMarshaller.get().write(scratch, key);
+      bytes = scratch.toByteArray();
+    }
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private byte[] encode(AgentDigest digest) {
+    synchronized (scratch) {
+      scratch.clear();
+      DIGEST_MARSHALLER.write(scratch, DIGEST_MARSHALLER.size(digest), digest);
+      return scratch.toByteArray();
+    }
+  }
+
+  private static AgentDigest decode(byte[] bytes) {
+    return DIGEST_MARSHALLER.read(Bytes.wrapForRead(bytes), bytes.length, null);
+  }
+
+  /**
+   * Writes spilled entries that are still only held in memory to disk and compacts the index.
+   */
+  public synchronized void close() throws IOException {
+    synchronized (indexLock) {
+      for (ColdEntry coldEntry : cold.values()) {
+        synchronized (coldEntry) {
+          if (coldEntry.run == null && !coldEntry.released) {
+            // never made it to disk, persist it in a run of its own
+            SpillRun run = new SpillRun(new File(directory, RUN_FILE_PREFIX + runIds.incrementAndGet()));
+            try (FileOutputStream runOut = new FileOutputStream(run.file)) {
+              runOut.write(coldEntry.pending);
+            }
+            coldEntry.attach(run, 0);
+            run.release();
+          }
+        }
+      }
+      compactIndex();
+      if (index != null) {
+        index.close();
+        index = null;
+      }
+    }
+    logger.info("Persisted index of " + cold.size() + " spilled histograms");
+  }
+
+  /**
+   * Rewrites the index with one record per spilled entry and switches appends over to it.
+   */
+  private void compactIndex() throws IOException {
+    synchronized (indexLock) {
+      File indexFile = new File(directory, INDEX_FILE_NAME);
+      File compacted = new File(directory, INDEX_FILE_NAME + ".tmp");
+      long records = 0;
+      try (FileOutputStream fileOut = new FileOutputStream(compacted)) {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        for (Map.Entry<HistogramKey, ColdEntry> entry : cold.entrySet()) {
+          ColdEntry coldEntry = entry.getValue();
+          synchronized (coldEntry) {
+            if (coldEntry.run == null || coldEntry.released) {
+              continue; // not written yet or reloaded
+            }
+            writeAdded(out, entry.getKey(), coldEntry);
+            coldEntry.indexed = true;
+            records++;
+          }
+        }
+        out.flush();
+        fileOut.getFD().sync();
+      }
+      if (index != null) {
+        index.close();
+      }
+      Files.move(compacted.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      index = new FileOutputStream(indexFile, true);
+      indexRecords = records;
+    }
+  }
+
+  private void loadIndex() throws IOException {
+    File indexFile = new File(directory, INDEX_FILE_NAME);
+    Map<String, SpillRun> runs = new HashMap<>();
+    if (indexFile.exists()) {
+      // replay the journal, later records win
+      Map<HistogramKey, IndexRecord> live = new LinkedHashMap<>();
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+        while (true) {
+          byte op;
+          try {
+            op = in.readByte();
+          } catch (EOFException e) {
+            break;
+          }
+          byte[] keyBytes = new byte[in.readInt()];
+          in.readFully(keyBytes);
+          HistogramKey key = HistogramKeyMarshaller.get().read(Bytes.wrapForRead(keyBytes), null);
+          if (op == ADDED) {
+            live.put(key, new IndexRecord(in.readUTF(), in.readLong(), in.readInt(), in.readLong()));
+          } else if (op == REMOVED) {
+            live.remove(key);
+          } else {
+            throw new IOException("Unknown spill index record type " + op);
+          }
+        }
+      } catch (EOFException e) {
+        logger.warning("Spill index ends with a partial record (unclean shutdown?), ignoring it");
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Failed reading histogram spill index, discarding spilled histograms", e);
+        live.clear();
+      }
+      int missing = 0;
+      for (Map.Entry<HistogramKey, IndexRecord> entry : live.entrySet()) {
+        IndexRecord record = entry.getValue();
+        SpillRun run = runs.get(record.runName);
+        if (run == null) {
+          File runFile = new File(directory, record.runName);
+          if (!runFile.exists()) {
+            missing++;
+            continue;
+          }
+          run = new SpillRun(runFile);
+          runs.put(record.runName, run);
+        }
+        ColdEntry coldEntry = new ColdEntry(record.length, record.dispatchTimeMillis);
+        coldEntry.attach(run, record.offset);
+        cold.put(entry.getKey(), coldEntry);
+      }
+      if (missing > 0) {
+        logger.warning("Discarded " + missing + " spilled histograms whose run file is missing");
+      }
+      logger.info("Recovered " + cold.size() + " spilled histograms");
+    }
+    int discarded = 0;
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (!file.getName().startsWith(RUN_FILE_PREFIX)) {
+          continue;
+        }
+        SpillRun run = runs.get(file.getName());
+        if (run == null) {
+          discarded++;
+          if (!file.delete()) {
+            logger.warning("Unable to delete stale spill run " + file);
+          }
+        } else {
+          try {
+            runIds.set(Math.max(runIds.get(), Integer.parseInt(file.getName().substring(RUN_FILE_PREFIX.length()))));
+          } catch (NumberFormatException e) {
+            // not ours
+          }
+        }
+      }
+    }
+    for (SpillRun run : runs.values()) {
+      run.release(); // drop the loader's reference
+    }
+    if (discarded > 0) {
+      logger.warning("Discarded " + discarded + " spill runs not referenced by the index");
+    }
+    compactIndex();
+  }
+
+  /**
+   * A spilled entry as recorded in the index.
+   */
+  private static class IndexRecord {
+    private final String runName;
+    private final long offset;
+    private final int length;
+    private final long dispatchTimeMillis;
+
+    IndexRecord(String runName, long offset, int length, long dispatchTimeMillis) {
+      this.runName = runName;
+      this.offset = offset;
+      this.length = length;
+      this.dispatchTimeMillis = dispatchTimeMillis;
+    }
+  }
+
+  /**
+   * A run file, deleted once all entries in it have been released.
+   */
+  private static class SpillRun {
+    private final File file;
+    private final AtomicInteger references = new AtomicInteger(1);
+    @Nullable
+    private RandomAccessFile raf;
+
+    SpillRun(File file) {
+      this.file = file;
+    }
+
+    void retain() {
+      references.incrementAndGet();
+    }
+
+    void release() {
+      if (references.decrementAndGet() == 0) {
+        synchronized (this) {
+          try {
+            if (raf != null) {
+              raf.close();
+              raf = null;
+            }
+          } catch (IOException e) {
+            // ignore
+          }
+          if (!file.delete()) {
+            logger.warning("Unable to delete spill run " + file);
+          }
+        }
+      }
+    }
+
+    synchronized byte[] read(long offset, int length) throws IOException {
+      if (raf == null) {
+        raf = new RandomAccessFile(file, "r");
+      }
+      byte[] bytes = new byte[length];
+      raf.seek(offset);
+      raf.readFully(bytes);
+      return bytes;
+    }
+  }
+
+  /**
+   * A spilled digest, held in memory until its run has been written.
+   */
+  private static class ColdEntry {
+    private final long dispatchTimeMillis;
+    private final int length;
+    @Nullable
+    private byte[] pending;
+    @Nullable
+    private SpillRun run;
+    private long offset;
+    private boolean released = false;
+    // whether the index has a record of it, guarded by the index lock
+    private boolean indexed = false;
+
+    ColdEntry(byte[] pending, long dispatchTimeMillis) {
+      this.pending = pending;
+      this.length = pending.length;
+      this.dispatchTimeMillis = dispatchTimeMillis;
+    }
+
+    ColdEntry(int length, long dispatchTimeMillis) {
+      this.length = length;
+      this.dispatchTimeMillis = dispatchTimeMillis;
+    }
+
+    synchronized void attach(SpillRun run, long offset) {
+      if (released) {
+        return;
+      }
+      run.retain();
+      this.run = run;
+      this.offset = offset;
+      this.pending = null;
+    }
+
+    synchronized AgentDigest load() {
+      if (pending != null) {
+        return decode(pending);
+      }
+      Preconditions.checkState(run != null, "Spilled histogram has been released");
+      try {
+        return decode(run.read(offset, length));
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed reading spilled histogram from " + run.file, e);
+      }
+    }
+
+    synchronized void release() {
+      if (released) {
+        return;
+      }
+      released = true;
+      if (run != null) {
+        run.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package com.wavefront.agent.histogram.cluster;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+import com.tdunning.math.stats.AgentDigest;
+import com.wavefront.agent.histogram.TimeProvider;
+import com.wavefront.agent.histogram.Utils.HistogramKey;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Routes histogram bins to the accumulator of the cluster member owning their series: bins of series owned by this
+ * proxy go to the local accumulator, all others to the {@link PeerForwarder} of their owner (or, if that peer is down
+ * or backed up, to the local accumulator as well).
+ */
+public class ClusterRouter {
+  private final ConsistentHashRing ring;
+  private final String self;
+  private final ImmutableMap<String, PeerForwarder> forwarders;
+
+  private final Counter localCounter = Metrics.newCounter(new MetricName("histogram.cluster", "", "routed_local"));
+  private final Counter remoteCounter = Metrics.newCounter(new MetricName("histogram.cluster", "", "routed_remote"));
+  private final Counter fallbackCounter = Metrics.newCounter(
+      new MetricName("histogram.cluster", "", "routed_fallback"));
+
+  /**
+   * @param members             all cluster members (host:port of their peer listeners), including this proxy
+   * @param self                the member id of this proxy
+   * @param virtualNodes        ring positions per member
+   * @param maxPendingBins      maximum number of bins buffered per peer between flushes
+   * @param retryIntervalMillis how long to accumulate locally after failing to reach a peer
+   * @param clock               time source
+   */
+  public ClusterRouter(List<String> members, String self, int virtualNodes, int maxPendingBins,
+                       long retryIntervalMillis, TimeProvider clock) {
+    Preconditions.checkArgument(members.contains(self),
+        "Cluster members " + members + " must include this proxy (" + self + ")");
+    this.ring = new ConsistentHashRing(members, virtualNodes);
+    this.self = self;
+    ImmutableMap.Builder<String, PeerForwarder> builder = ImmutableMap.builder();
+    for (String member : members) {
+      if (!member.equals(self)) {
+        builder.put(member, new PeerForwarder(member, maxPendingBins, retryIntervalMillis, clock));
+      }
+    }
+    this.forwarders = builder.build();
+  }
+
+  /**
+   * Returns the map a bin of the given key should be accumulated in.
+   *
+   * @param key   the bin key
+   * @param local the local accumulator
+   * @return {@code local} or a peer's forwarding buffer
+   */
+  public ConcurrentMap<HistogramKey, AgentDigest> route(HistogramKey key,
+                                                        ConcurrentMap<HistogramKey, AgentDigest> local) {
+    String owner = ring.ownerOf(key);
+    if (owner.equals(self)) {
+      localCounter.inc();
+      return local;
+    }
+    @Nullable ConcurrentMap<HistogramKey, AgentDigest> buffer = forwarders.get(owner).acceptingBuffer();
+    if (buffer == null) {
+      fallbackCounter.inc();
+      return local;
+    }
+    remoteCounter.inc();
+    return buffer;
+  }
+
+  public Collection<PeerForwarder> getForwarders() {
+    return forwarders.values();
+  }
+
+  public String getSelf() {
+    return self;
+  }
+}
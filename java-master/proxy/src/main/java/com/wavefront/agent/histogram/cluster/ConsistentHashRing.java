@@ -0,0 +1,73 @@
+package com.wavefront.agent.histogram.cluster;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import com.wavefront.agent.histogram.Utils.HistogramKey;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring mapping histogram series onto the proxies of a cluster. A series is a {@link HistogramKey}
+ * without its bin, so all bins of a series are owned by the same proxy.
+ */
+public class ConsistentHashRing {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+  private final TreeMap<Long, String> ring = new TreeMap<>();
+  private final List<String> members;
+
+  /**
+   * @param members      member ids (host:port), identical (in any order) on all proxies of the cluster
+   * @param virtualNodes number of ring positions per member, more positions spread the series space more evenly
+   */
+  public ConsistentHashRing(List<String> members, int virtualNodes) {
+    Preconditions.checkArgument(!members.isEmpty(), "At least one cluster member is required");
+    Preconditions.checkArgument(virtualNodes > 0, "virtualNodes must be positive");
+    this.members = ImmutableList.copyOf(members);
+    for (String member : members) {
+      for (int i = 0; i < virtualNodes; i++) {
+        ring.put(HASH_FUNCTION.hashString(member + "#" + i, Charsets.UTF_8).asLong(), member);
+      }
+    }
+  }
+
+  public List<String> getMembers() {
+    return members;
+  }
+
+  /**
+   * Returns the member owning the series of the given key.
+   */
+  public String ownerOf(HistogramKey key) {
+    Map.Entry<Long, String> entry = ring.ceilingEntry(seriesHash(key));
+    return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+  }
+
+  static long seriesHash(HistogramKey key) {
+    Hasher hasher = HASH_FUNCTION.newHasher()
+        .putByte(key.getGranularityOrdinal())
+        .putString(key.getMetric(), Charsets.UTF_8)
+        .putByte((byte) 0);
+    if (key.getSource() != null) {
+      hasher.putString(key.getSource(), Charsets.UTF_8);
+    }
+    hasher.putByte((byte) 0);
+    String[] tags = key.getTags();
+    if (tags != null) {
+      for (String tag : tags) {
+        if (tag != null) {
+          hasher.putString(tag, Charsets.UTF_8);
+        }
+        hasher.putByte((byte) 0);
+      }
+    }
+    return hasher.hash().asLong();
+  }
+}
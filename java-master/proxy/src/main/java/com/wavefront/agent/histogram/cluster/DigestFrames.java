@@ -0,0 +1,56 @@
+package com.wavefront.agent.histogram.cluster;
+
+import com.tdunning.math.stats.AgentDigest;
+import com.tdunning.math.stats.AgentDigest.CompactAgentDigestMarshaller;
+import com.wavefront.agent.histogram.Utils.HistogramKey;
+import com.wavefront.agent.histogram.Utils.HistogramKeyMarshaller;
+
+import net.openhft.chronicle.bytes.Bytes;
+
+/**
+ * Binary frames exchanged between cluster peers. A frame carries one series bin: the key (as stored in the
+ * accumulator), the time left until the bin is due for dispatch and the digest in the compact encoding. Framing
+ * (length prefix) is left to the transport.
+ */
+final class DigestFrames {
+  private static final CompactAgentDigestMarshaller DIGEST_MARSHALLER = new CompactAgentDigestMarshaller();
+
+  private DigestFrames() {
+    // Not instantiable
+  }
+
+  /**
+   * A decoded frame.
+   */
+  static class Frame {
+    final HistogramKey key;
+    final AgentDigest digest;
+    final long remainingTtlMillis;
+
+    Frame(HistogramKey key, AgentDigest digest, long remainingTtlMillis) {
+      this.key = key;
+      this.digest = digest;
+      this.remainingTtlMillis = remainingTtlMillis;
+    }
+  }
+
+  /**
+   * Appends a frame body to {@code out}.
+   */
+  static void write(Bytes out, HistogramKey key, AgentDigest digest, long remainingTtlMillis) {
+    HistogramKeyMarshaller.get().write(out, key);
+    out.writeLong(Math.max(0L, remainingTtlMillis));
+    DIGEST_MARSHALLER.write(out, DIGEST_MARSHALLER.size(digest), digest);
+  }
+
+  /**
+   * Reads a frame body of {@code length} bytes from {@code in}.
+   */
+  static Frame read(Bytes in, long length) {
+    long start = in.readPosition();
+    HistogramKey key = HistogramKeyMarshaller.get().read(in, null);
+    long remainingTtlMillis = in.readLong();
+    AgentDigest digest = DIGEST_MARSHALLER.read(in, length - (in.readPosition() - start), null);
+    return new Frame(key, digest, remainingTtlMillis);
+  }
+}
@@ -0,0 +1,225 @@
+package com.wavefront.agent.histogram.cluster;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.net.HostAndPort;
+
+import com.tdunning.math.stats.AgentDigest;
+import com.wavefront.agent.histogram.TimeProvider;
+import com.wavefront.agent.histogram.Utils;
+import com.wavefront.agent.histogram.Utils.HistogramKey;
+import com.wavefront.common.TaggedMetricName;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+
+import net.openhft.chronicle.bytes.Bytes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Buffers bins of series owned by a single cluster peer and ships them to it. Bins are merged in a bounded buffer
+ * between flushes, so each flush sends at most one frame per bin. If the peer cannot be reached, the buffer stops
+ * accepting new bins until the retry interval elapses and undeliverable bins are merged into the local accumulator.
+ * Frames are written to the socket in chunks of whole frames, and a bin counts as delivered once its chunk was handed
+ * to the socket, so a failure midway only falls back with the bins that weren't sent.
+ */
+public class PeerForwarder {
+  private static final Logger logger = Logger.getLogger(PeerForwarder.class.getCanonicalName());
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  private final String peer;
+  private final HostAndPort address;
+  private final int maxPendingBins;
+  private final long retryIntervalMillis;
+  private final TimeProvider clock;
+  private final ConcurrentMap<HistogramKey, AgentDigest> pending = new ConcurrentHashMap<>();
+  private final Bytes<ByteBuffer> frameBuffer = Bytes.elasticByteBuffer();
+  private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(WRITE_BUFFER_SIZE);
+  private final DataOutputStream chunkStream = new DataOutputStream(chunk);
+
+  private volatile long downUntilMillis = 0;
+  private volatile boolean closed = false;
+  @Nullable
+  private Socket socket;
+  @Nullable
+  private OutputStream out;
+
+  private final Counter forwarded;
+  private final Counter failed;
+  private final Counter connectionErrors;
+
+  /**
+   * @param peer                peer id as listed in the cluster configuration (host:port)
+   * @param maxPendingBins      maximum number of bins buffered for the peer between flushes
+   * @param retryIntervalMillis how long to route to the local accumulator after a peer failure
+   * @param clock               time source
+   */
+  public PeerForwarder(String peer, int maxPendingBins, long retryIntervalMillis, TimeProvider clock) {
+    Preconditions.checkArgument(maxPendingBins > 0, "maxPendingBins must be positive");
+    this.peer = peer;
+    this.address = HostAndPort.fromString(peer);
+    Preconditions.checkArgument(address.hasPort(), "Cluster peer " + peer + " must be specified as host:port");
+    this.maxPendingBins = maxPendingBins;
+    this.retryIntervalMillis = retryIntervalMillis;
+    this.clock = clock;
+    this.forwarded = Metrics.newCounter(new TaggedMetricName("histogram.cluster", "forwarded", "peer", peer));
+    this.failed = Metrics.newCounter(new TaggedMetricName("histogram.cluster", "forward_failed", "peer", peer));
+    this.connectionErrors = Metrics.newCounter(
+        new TaggedMetricName("histogram.cluster", "connection_errors", "peer", peer));
+    Metrics.newGauge(new TaggedMetricName("histogram.cluster", "pending", "peer", peer), new Gauge<Integer>() {
+      @Override
+      public Integer value() {
+        return pending.size();
+      }
+    });
+  }
+
+  public String getPeer() {
+    return peer;
+  }
+
+  /**
+   * Returns the buffer to accumulate the peer's bins in, or null if the peer is considered down or the buffer is
+   * full (in which case the caller should accumulate locally).
+   */
+  @Nullable
+  public ConcurrentMap<HistogramKey, AgentDigest> acceptingBuffer() {
+    if (closed || downUntilMillis > clock.millisSinceEpoch() || pending.size() >= maxPendingBins) {
+      return null;
+    }
+    return pending;
+  }
+
+  @VisibleForTesting
+  boolean isDown() {
+    return downUntilMillis > clock.millisSinceEpoch();
+  }
+
+  /**
+   * Returns a task shipping all buffered bins to the peer. Bins that cannot be delivered are merged into
+   * {@code fallback}.
+   */
+  public Runnable getFlushTask(ConcurrentMap<HistogramKey, AgentDigest> fallback) {
+    return () -> flush(fallback);
+  }
+
+  private synchronized void flush(ConcurrentMap<HistogramKey, AgentDigest> fallback) {
+    if (pending.isEmpty()) {
+      return;
+    }
+    List<HistogramKey> batchKeys = new ArrayList<>();
+    List<AgentDigest> batchDigests = new ArrayList<>();
+    // bins of the batch whose chunk made it to the socket
+    int sent = 0;
+    chunk.reset();
+    try {
+      OutputStream stream = connect();
+      for (HistogramKey key : pending.keySet()) {
+        AgentDigest digest = pending.remove(key);
+        if (digest == null) {
+          continue;
+        }
+        batchKeys.add(key);
+        batchDigests.add(digest);
+        frameBuffer.clear();
+        DigestFrames.write(frameBuffer, key, digest, digest.getDispatchTimeMillis() - clock.millisSinceEpoch());
+        chunkStream.writeInt((int) frameBuffer.readRemaining());
+        chunkStream.write(frameBuffer.toByteArray());
+        if (chunk.size() >= WRITE_BUFFER_SIZE) {
+          chunk.writeTo(stream);
+          chunk.reset();
+          sent = batchKeys.size();
+        }
+      }
+      chunk.writeTo(stream);
+      chunk.reset();
+      stream.flush();
+      sent = batchKeys.size();
+      forwarded.inc(sent);
+    } catch (IOException e) {
+      connectionErrors.inc();
+      logger.log(Level.WARNING, "Failed forwarding histograms to cluster peer " + peer + ", accumulating locally " +
+          "for the next " + TimeUnit.MILLISECONDS.toSeconds(retryIntervalMillis) + "s: " + e.getMessage());
+      downUntilMillis = clock.millisSinceEpoch() + retryIntervalMillis;
+      close();
+      forwarded.inc(sent);
+      int undelivered = batchKeys.size() - sent;
+      for (int i = sent; i < batchKeys.size(); i++) {
+        fallback.merge(batchKeys.get(i), batchDigests.get(i), Utils::mergeDigests);
+      }
+      failed.inc(undelivered + fallBack(fallback));
+    }
+  }
+
+  /**
+   * Merges all buffered bins into {@code fallback}.
+   *
+   * @return the number of bins merged
+   */
+  private int fallBack(ConcurrentMap<HistogramKey, AgentDigest> fallback) {
+    int count = 0;
+    for (HistogramKey key : pending.keySet()) {
+      AgentDigest digest = pending.remove(key);
+      if (digest != null) {
+        fallback.merge(key, digest, Utils::mergeDigests);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private OutputStream connect() throws IOException {
+    if (out == null) {
+      Socket newSocket = new Socket();
+      newSocket.setTcpNoDelay(true);
+      newSocket.connect(new InetSocketAddress(address.getHostText(), address.getPort()), CONNECT_TIMEOUT_MILLIS);
+      socket = newSocket;
+      out = newSocket.getOutputStream();
+      logger.info("Connected to histogram cluster peer " + peer);
+    }
+    return out;
+  }
+
+  /**
+   * Stops accepting bins, merges the ones still buffered into {@code fallback} and closes the connection. Meant to be
+   * called on shutdown, before the local accumulator is persisted.
+   */
+  public synchronized void drain(ConcurrentMap<HistogramKey, AgentDigest> fallback) {
+    closed = true;
+    fallBack(fallback);
+    close();
+  }
+
+  /**
+   * Closes the connection to the peer, if any.
+   */
+  public synchronized void close() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+    socket = null;
+    out = null;
+  }
+}
@@ -0,0 +1,153 @@
+package com.wavefront.agent.histogram.cluster;
+
+import com.tdunning.math.stats.AgentDigest;
+import com.wavefront.agent.histogram.TimeProvider;
+import com.wavefront.agent.histogram.Utils.HistogramKey;
+import com.wavefront.metrics.ExpectedAgentMetric;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+import net.openhft.chronicle.bytes.Bytes;
+
+import java.net.BindException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+/**
+ * Listener for bins forwarded by cluster peers. Frames are length-prefixed {@link DigestFrames} and merged straight
+ * into the local accumulator; they are never forwarded again, even if this proxy's view of the ring disagrees.
+ */
+public class PeerIngester extends ChannelInitializer<Channel> implements Runnable {
+  private static final Logger logger = Logger.getLogger(PeerIngester.class.getCanonicalName());
+  private static final int MAXIMUM_FRAME_LENGTH = 1024 * 1024;
+
+  private final Counter activeListeners = Metrics.newCounter(ExpectedAgentMetric.ACTIVE_LISTENERS.metricName);
+  private final Counter receivedCounter = Metrics.newCounter(new MetricName("histogram.cluster", "", "received"));
+  private final Counter errorCounter = Metrics.newCounter(new MetricName("histogram.cluster", "", "receive_errors"));
+
+  private final ConcurrentMap<HistogramKey, AgentDigest> accumulator;
+  private final int port;
+  private final short compression;
+  private final TimeProvider clock;
+  private final ChannelHandler handler = new FrameHandler();
+
+  /**
+   * @param accumulator the local accumulator
+   * @param port        port to listen on for peer traffic
+   * @param compression compression of digests created for bins not yet present locally
+   * @param clock       time source
+   */
+  public PeerIngester(ConcurrentMap<HistogramKey, AgentDigest> accumulator, int port, short compression,
+                      TimeProvider clock) {
+    this.accumulator = accumulator;
+    this.port = port;
+    this.compression = compression;
+    this.clock = clock;
+  }
+
+  @Override
+  public void run() {
+    activeListeners.inc();
+    ServerBootstrap bootstrap = new ServerBootstrap();
+    EventLoopGroup parent;
+    EventLoopGroup children;
+    Class<? extends ServerChannel> socketChannelClass;
+    if (Epoll.isAvailable()) {
+      parent = new EpollEventLoopGroup(1);
+      children = new EpollEventLoopGroup();
+      socketChannelClass = EpollServerSocketChannel.class;
+    } else {
+      parent = new NioEventLoopGroup(1);
+      children = new NioEventLoopGroup();
+      socketChannelClass = NioServerSocketChannel.class;
+    }
+    try {
+      bootstrap
+          .group(parent, children)
+          .channel(socketChannelClass)
+          .localAddress(port)
+          .childHandler(this);
+      ChannelFuture f = bootstrap.bind().sync();
+      logger.info("listening on port: " + port + " for histogram cluster peers");
+      f.channel().closeFuture().sync();
+    } catch (final InterruptedException e) {
+      logger.log(Level.WARNING, "Interrupted");
+      logger.info("Listener on port " + String.valueOf(port) + " shut down");
+    } catch (Exception e) {
+      // ChannelFuture throws undeclared checked exceptions, so we need to handle it
+      if (e instanceof BindException) {
+        logger.severe("Unable to start listener - port " + String.valueOf(port) + " is already in use!");
+      } else {
+        logger.log(Level.SEVERE, "PeerIngester exception: ", e);
+      }
+    } finally {
+      parent.shutdownGracefully();
+      children.shutdownGracefully();
+      activeListeners.dec();
+    }
+  }
+
+  @Override
+  protected void initChannel(Channel ch) throws Exception {
+    ch.pipeline().addLast(
+        new LengthFieldBasedFrameDecoder(MAXIMUM_FRAME_LENGTH, 0, 4, 0, 4),
+        handler);
+  }
+
+  void accept(HistogramKey key, AgentDigest received, long remainingTtlMillis) {
+    accumulator.compute(key, (k, v) -> {
+      if (v == null) {
+        AgentDigest t = new AgentDigest(compression, clock.millisSinceEpoch() + remainingTtlMillis);
+        t.add(received);
+        return t;
+      } else {
+        v.add(received);
+        return v;
+      }
+    });
+    receivedCounter.inc();
+  }
+
+  @ChannelHandler.Sharable
+  private class FrameHandler extends SimpleChannelInboundHandler<ByteBuf> {
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) throws Exception {
+      int length = frame.readableBytes();
+      byte[] body = new byte[length];
+      frame.readBytes(body);
+      try {
+        DigestFrames.Frame decoded = DigestFrames.read(Bytes.wrapForRead(body), length);
+        accept(decoded.key, decoded.digest, decoded.remainingTtlMillis);
+      } catch (RuntimeException e) {
+        errorCounter.inc();
+        logger.log(Level.WARNING, "Dropping malformed frame from histogram cluster peer " + ctx.channel(), e);
+      }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+      logger.log(Level.WARNING, "Closing histogram cluster peer connection " + ctx.channel(), cause);
+      ctx.close();
+    }
+  }
+}
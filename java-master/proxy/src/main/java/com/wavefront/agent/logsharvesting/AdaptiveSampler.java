@@ -0,0 +1,108 @@
+package com.wavefront.agent.logsharvesting;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+/**
+ * Decides which log lines a {@link com.wavefront.agent.config.MetricMatcher} evaluates its pattern on, so that the
+ * matcher stays within a budget of lines per second and/or CPU time when log volume spikes.
+ *
+ * Every second the sampling rate is recomputed from the lines offered and, for a CPU budget, the average time spent
+ * per evaluated line during the previous second. The rate drops immediately when the budget is exceeded and at most
+ * doubles per second when load goes down again, so it doesn't oscillate with bursty input.
+ */
+public class AdaptiveSampler {
+  @VisibleForTesting
+  static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+  @VisibleForTesting
+  static final double MIN_RATE = 0.001;
+
+  @Nullable
+  private final Double maxLinesPerSecond;
+  @Nullable
+  private final Double maxCpuCores;
+  private final Supplier<Long> nanoTime;
+  private final LongAdder offered = new LongAdder();
+  private final LongAdder evaluated = new LongAdder();
+  private final LongAdder evaluationNanos = new LongAdder();
+  private final AtomicLong windowStart;
+  private volatile double rate = 1.0;
+  // average cost of an evaluated line, kept across windows in which nothing was evaluated
+  private volatile double nanosPerLine = 0;
+
+  /**
+   * @param maxLinesPerSecond lines per second to evaluate at most, or null
+   * @param maxCpuCores       CPU time to spend evaluating lines, in cores (e.g. 0.5 for half a core), or null
+   * @param nanoTime          supplier of {@link System#nanoTime()}
+   */
+  public AdaptiveSampler(@Nullable Double maxLinesPerSecond, @Nullable Double maxCpuCores, Supplier<Long> nanoTime) {
+    this.maxLinesPerSecond = maxLinesPerSecond;
+    this.maxCpuCores = maxCpuCores;
+    this.nanoTime = nanoTime;
+    this.windowStart = new AtomicLong(nanoTime.get());
+  }
+
+  /**
+   * @return whether the current line should be evaluated
+   */
+  public boolean sample() {
+    offered.increment();
+    long start = windowStart.get();
+    long now = nanoTime.get();
+    if (now - start >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+      adjust(now - start);
+    }
+    double current = rate;
+    return current >= 1.0 || ThreadLocalRandom.current().nextDouble() < current;
+  }
+
+  /**
+   * @return whether the caller should time evaluations and report them with {@link #evaluated(long)}
+   */
+  public boolean measuresCost() {
+    return maxCpuCores != null;
+  }
+
+  /**
+   * Records the time spent evaluating a sampled line.
+   */
+  public void evaluated(long nanos) {
+    evaluated.increment();
+    evaluationNanos.add(nanos);
+  }
+
+  /**
+   * @return the fraction of offered lines currently evaluated, between {@link #MIN_RATE} and 1
+   */
+  public double getRate() {
+    return rate;
+  }
+
+  // only called by the thread that moved the window
+  private void adjust(long elapsedNanos) {
+    double linesPerSecond = offered.sumThenReset() * (double) WINDOW_NANOS / elapsedNanos;
+    long lines = evaluated.sumThenReset();
+    long nanos = evaluationNanos.sumThenReset();
+    if (lines > 0) {
+      nanosPerLine = (double) nanos / lines;
+    }
+    double target = 1.0;
+    if (linesPerSecond > 0) {
+      if (maxLinesPerSecond != null) {
+        target = Math.min(target, maxLinesPerSecond / linesPerSecond);
+      }
+      if (maxCpuCores != null && nanosPerLine > 0) {
+        target = Math.min(target, maxCpuCores * WINDOW_NANOS / nanosPerLine / linesPerSecond);
+      }
+    }
+    double current = rate;
+    rate = Math.max(MIN_RATE, target < current ? target : Math.min(target, current * 2));
+  }
+}
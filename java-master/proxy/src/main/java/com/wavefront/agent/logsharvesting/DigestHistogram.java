@@ -0,0 +1,80 @@
+package com.wavefront.agent.logsharvesting;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.tdunning.math.stats.AgentDigest;
+import com.wavefront.agent.histogram.Utils.Granularity;
+import com.wavefront.metrics.StripedMinuteBuffer;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A distribution of values accumulated into one {@link AgentDigest} per minute, the same merging digest the histogram
+ * ports use.
+ *
+ * Updating threads append values to a {@link StripedMinuteBuffer}, so they neither contend with each other nor with
+ * the digest. A buffer is merged into the digest of its minute when it is full, when the minute changes, or when the
+ * histogram is flushed.
+ */
+class DigestHistogram {
+  private static final int BUFFER_SIZE = 64;
+
+  private final short compression;
+  private final StripedMinuteBuffer buffer = new StripedMinuteBuffer(BUFFER_SIZE, this::merge);
+  // minute start in millis -> digest, guarded by this
+  private final TreeMap<Long, AgentDigest> digests = Maps.newTreeMap();
+
+  DigestHistogram(short compression) {
+    this.compression = compression;
+  }
+
+  void update(double value, long timestampMillis) {
+    buffer.add(value, minMillis(timestampMillis));
+  }
+
+  private static long minMillis(long timestampMillis) {
+    return (long) Granularity.MINUTE.getBinId(timestampMillis) * Granularity.MINUTE.getInMillis();
+  }
+
+  private synchronized void merge(long minMillis, double[] values, int size) {
+    AgentDigest digest = digests.get(minMillis);
+    if (digest == null) {
+      digest = new AgentDigest(compression, 0);
+      digests.put(minMillis, digest);
+    }
+    for (int i = 0; i < size; i++) {
+      digest.add(values[i], 1);
+    }
+  }
+
+  /**
+   * Removes the digests of all minutes before the current one, merging any buffered values first.
+   *
+   * @return bin start time in millis -> digest, oldest first
+   */
+  List<Map.Entry<Long, AgentDigest>> flush(long timestampMillis) {
+    buffer.drain();
+    List<Map.Entry<Long, AgentDigest>> result = Lists.newArrayList();
+    synchronized (this) {
+      Iterator<Map.Entry<Long, AgentDigest>> iterator = digests.headMap(minMillis(timestampMillis)).entrySet()
+          .iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<Long, AgentDigest> entry = iterator.next();
+        result.add(Maps.immutableEntry(entry.getKey(), entry.getValue()));
+        iterator.remove();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return whether values of the current (or a later) minute are waiting for a future flush
+   */
+  synchronized boolean hasPending() {
+    return !digests.isEmpty();
+  }
+}
@@ -0,0 +1,351 @@
+package com.wavefront.agent.logsharvesting;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import com.wavefront.agent.config.LogsIngestionConfig;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Follows the local files configured in {@link LogsIngestionConfig#tailFiles} and feeds their lines to a
+ * {@link LogsIngester} in batches. Meant to be run periodically from a single thread.
+ *
+ * Files are read through memory mapped chunks of up to {@link #CHUNK_BYTES} bytes, which are split into lines without
+ * copying them. Each line is decoded into a String once, through a reused buffer, when it is ingested. Files are
+ * identified by their file key (inode), so a rotated file is read to its end before it is closed, and a renamed file
+ * is followed under its new name. A file that shrinks is read again from its start. Read offsets are checkpointed to
+ * {@link LogsIngestionConfig#tailCheckpointFile} every {@link #CHECKPOINT_INTERVAL_MILLIS} ms and on {@link #close()}.
+ */
+public class FileTailer implements Runnable {
+  protected static final Logger logger = Logger.getLogger(FileTailer.class.getCanonicalName());
+
+  private static final int CHUNK_BYTES = 8 * 1024 * 1024;
+  private static final long CHECKPOINT_INTERVAL_MILLIS = 10000;
+  private static final int BATCH_SIZE = 1000;
+
+  private final Supplier<LogsIngestionConfig> config;
+  private final LogsIngester logsIngester;
+  private final String hostname;
+  private final Supplier<Long> currentMillis;
+  private final Counter lines, bytes, rotations, truncations;
+
+  private Map<Path, TailedFile> files = Maps.newHashMap();
+  @Nullable
+  private Map<Path, Checkpoint> checkpoints = null;
+  private boolean checkpointDirty = false;
+  private long lastCheckpointMillis;
+  // decoding scratch space, lines are only decoded on the tailing thread
+  private byte[] scratch = new byte[4096];
+
+  /**
+   * @param logsIngester  ingester to feed lines to, also supplies the current config
+   * @param hostname      source of all tailed lines
+   * @param currentMillis supplier of the current time in millis
+   */
+  public FileTailer(LogsIngester logsIngester, String hostname, Supplier<Long> currentMillis) {
+    this(logsIngester::getConfig, logsIngester, hostname, currentMillis);
+  }
+
+  @VisibleForTesting
+  FileTailer(Supplier<LogsIngestionConfig> config, LogsIngester logsIngester, String hostname,
+             Supplier<Long> currentMillis) {
+    this.config = config;
+    this.logsIngester = logsIngester;
+    this.hostname = hostname;
+    this.currentMillis = currentMillis;
+    this.lastCheckpointMillis = currentMillis.get();
+    this.lines = Metrics.newCounter(new MetricName("logsharvesting", "", "tail-lines"));
+    this.bytes = Metrics.newCounter(new MetricName("logsharvesting", "", "tail-bytes"));
+    this.rotations = Metrics.newCounter(new MetricName("logsharvesting", "", "tail-rotations"));
+    this.truncations = Metrics.newCounter(new MetricName("logsharvesting", "", "tail-truncations"));
+  }
+
+  private static class TailedFile {
+    private Path path;
+    private final String fileKey;
+    private final FileChannel channel;
+    private long offset;
+
+    private TailedFile(Path path, String fileKey, long offset) throws IOException {
+      this.path = path;
+      this.fileKey = fileKey;
+      this.channel = FileChannel.open(path, StandardOpenOption.READ);
+      this.offset = offset;
+    }
+  }
+
+  private static class Checkpoint {
+    private final String fileKey;
+    private final long offset;
+
+    private Checkpoint(String fileKey, long offset) {
+      this.fileKey = fileKey;
+      this.offset = offset;
+    }
+  }
+
+  /**
+   * A line of a mapped chunk, decoded when it is first read.
+   */
+  private class MappedLine implements LogsMessage {
+    private final MappedByteBuffer chunk;
+    private final int start;
+    private final int length;
+    private String line = null;
+
+    private MappedLine(MappedByteBuffer chunk, int start, int length) {
+      this.chunk = chunk;
+      this.start = start;
+      this.length = length;
+    }
+
+    @Override
+    public String getLogLine() {
+      if (line == null) {
+        if (scratch.length < length) {
+          scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        // the chunk is otherwise only read at absolute indexes, so its position is free to use
+        chunk.position(start);
+        chunk.get(scratch, 0, length);
+        line = new String(scratch, 0, length, StandardCharsets.UTF_8);
+      }
+      return line;
+    }
+
+    @Override
+    public String hostOrDefault(String fallbackHost) {
+      return hostname;
+    }
+  }
+
+  @Override
+  public synchronized void run() {
+    try {
+      LogsIngestionConfig logsIngestionConfig = config.get();
+      boolean firstScan = checkpoints == null;
+      if (firstScan) {
+        checkpoints = readCheckpoints(logsIngestionConfig.tailCheckpointFile);
+      }
+      scan(logsIngestionConfig.tailFiles, firstScan);
+      for (TailedFile file : files.values()) {
+        read(file, false);
+      }
+      if (currentMillis.get() - lastCheckpointMillis >= CHECKPOINT_INTERVAL_MILLIS) {
+        checkpoint(logsIngestionConfig.tailCheckpointFile);
+      }
+    } catch (Throwable t) {
+      logger.log(Level.SEVERE, "Error tailing log files", t);
+    }
+  }
+
+  /**
+   * Checkpoints offsets and closes all files.
+   */
+  public synchronized void close() {
+    if (checkpoints == null) return;  // never ran, keep the existing checkpoint
+    checkpointDirty = true;
+    checkpoint(config.get().tailCheckpointFile);
+    for (TailedFile file : files.values()) {
+      closeQuietly(file);
+    }
+    files.clear();
+  }
+
+  private void scan(List<String> patterns, boolean firstScan) {
+    Map<String, TailedFile> byFileKey = Maps.newHashMap();
+    for (TailedFile file : files.values()) {
+      byFileKey.put(file.fileKey, file);
+    }
+    Map<Path, TailedFile> next = Maps.newHashMap();
+    for (Path path : match(patterns)) {
+      BasicFileAttributes attributes;
+      try {
+        attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      } catch (IOException e) {
+        continue;  // deleted in the meantime
+      }
+      if (!attributes.isRegularFile()) continue;
+      String fileKey = attributes.fileKey() == null
+          ? path + "@" + attributes.creationTime().toMillis()
+          : attributes.fileKey().toString();
+      TailedFile file = byFileKey.remove(fileKey);
+      if (file == null) {
+        try {
+          file = new TailedFile(path, fileKey, initialOffset(path, fileKey, attributes.size(), firstScan));
+          logger.info("Tailing " + path + " from offset " + file.offset);
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Unable to open " + path, e);
+          continue;
+        }
+      } else if (!file.path.equals(path)) {
+        logger.info("Following " + file.path + " renamed to " + path);
+        file.path = path;
+      }
+      if (attributes.size() < file.offset) {
+        logger.info(path + " was truncated, reading from the start");
+        truncations.inc();
+        file.offset = 0;
+      }
+      next.put(path, file);
+    }
+    // files that were rotated away or deleted: read what's left and let go of them
+    for (TailedFile file : byFileKey.values()) {
+      read(file, true);
+      rotations.inc();
+      closeQuietly(file);
+    }
+    if (!byFileKey.isEmpty()) {
+      checkpointDirty = true;
+    }
+    files = next;
+  }
+
+  private long initialOffset(Path path, String fileKey, long size, boolean firstScan) {
+    Checkpoint checkpoint = checkpoints.get(path);
+    if (checkpoint != null) {
+      // a different file key means the file was rotated while we were down
+      return checkpoint.fileKey.equals(fileKey) && checkpoint.offset <= size ? checkpoint.offset : 0;
+    }
+    // don't replay existing files on first start, but read files created later from the start
+    return firstScan ? size : 0;
+  }
+
+  private static Set<Path> match(List<String> patterns) {
+    // a file may match several patterns
+    Set<Path> result = Sets.newLinkedHashSet();
+    for (String pattern : patterns) {
+      File file = new File(pattern);
+      Path directory = file.getParentFile().toPath();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, file.getName())) {
+        for (Path path : stream) {
+          result.add(path);
+        }
+      } catch (NoSuchFileException e) {
+        // directory doesn't exist (yet)
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to list " + directory, e);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Reads and ingests all complete lines of a file.
+   *
+   * @param file  the file to read
+   * @param drain whether to also ingest an incomplete last line, as nothing will be appended to the file anymore
+   */
+  private void read(TailedFile file, boolean drain) {
+    try {
+      long size = file.channel.size();
+      while (file.offset < size) {
+        int length = (int) Math.min(CHUNK_BYTES, size - file.offset);
+        MappedByteBuffer chunk = file.channel.map(FileChannel.MapMode.READ_ONLY, file.offset, length);
+        List<LogsMessage> batch = Lists.newArrayListWithCapacity(BATCH_SIZE);
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+          if (chunk.get(i) == '\n') {
+            addLine(batch, chunk, lineStart, i);
+            lineStart = i + 1;
+          }
+        }
+        if (lineStart < length && (drain || (lineStart == 0 && length == CHUNK_BYTES))) {
+          // the rest of a drained file, or a line that doesn't even fit into a chunk
+          addLine(batch, chunk, lineStart, length);
+          lineStart = length;
+        }
+        if (!batch.isEmpty()) {
+          logsIngester.ingestLogs(batch);
+        }
+        file.offset += lineStart;
+        bytes.inc(lineStart);
+        checkpointDirty |= lineStart > 0;
+        if (lineStart < length) {
+          break;  // wait for the rest of the last line
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to read " + file.path, e);
+    }
+  }
+
+  private void addLine(List<LogsMessage> batch, MappedByteBuffer chunk, int start, int end) {
+    if (end > start && chunk.get(end - 1) == '\r') end--;
+    if (end == start) return;
+    batch.add(new MappedLine(chunk, start, end - start));
+    lines.inc();
+    if (batch.size() >= BATCH_SIZE) {
+      logsIngester.ingestLogs(batch);
+      batch.clear();
+    }
+  }
+
+  private static void closeQuietly(TailedFile file) {
+    try {
+      file.channel.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  private Map<Path, Checkpoint> readCheckpoints(@Nullable String checkpointFile) {
+    Map<Path, Checkpoint> result = Maps.newHashMap();
+    if (checkpointFile == null || !new File(checkpointFile).exists()) return result;
+    try {
+      for (String line : Files.readAllLines(Paths.get(checkpointFile), StandardCharsets.UTF_8)) {
+        String[] parts = line.split("\t", 3);
+        if (parts.length != 3) continue;
+        result.put(Paths.get(parts[2]), new Checkpoint(parts[1], Long.parseLong(parts[0])));
+      }
+    } catch (IOException | NumberFormatException e) {
+      logger.log(Level.WARNING, "Unable to read tail offsets from " + checkpointFile + ", ignoring them", e);
+    }
+    return result;
+  }
+
+  private void checkpoint(@Nullable String checkpointFile) {
+    lastCheckpointMillis = currentMillis.get();
+    if (checkpointFile == null || !checkpointDirty) return;
+    Path target = Paths.get(checkpointFile);
+    Path temp = Paths.get(checkpointFile + ".tmp");
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        for (TailedFile file : files.values()) {
+          writer.write(file.offset + "\t" + file.fileKey + "\t" + file.path + "\n");
+        }
+      }
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      checkpointDirty = false;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to checkpoint tail offsets to " + checkpointFile, e);
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package com.wavefront.agent.logsharvesting;
 
+import com.google.common.collect.ImmutableSet;
+
 import org.logstash.beats.Message;
 
 import java.time.Instant;
@@ -8,6 +10,7 @@ import java.time.format.DateTimeParseException;
 import java.time.temporal.TemporalAccessor;
 import java.util.Date;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -17,6 +20,12 @@ import javax.annotation.Nullable;
  * @author Mori Bellamy (mori@wavefront.com)
  */
 public class FilebeatMessage implements LogsMessage {
+  /**
+   * The only top-level fields of a beats message that are used, see
+   * {@link org.logstash.beats.Server#setMessageFields(Set)}.
+   */
+  public static final Set<String> FIELDS = ImmutableSet.of("message", "@timestamp", "beat", "host");
+
   private final Message wrapped;
   private final Map messageData;
   private final Map beatData;
@@ -26,7 +35,9 @@ public class FilebeatMessage implements LogsMessage {
   public FilebeatMessage(Message wrapped) throws MalformedMessageException {
     this.wrapped = wrapped;
     this.messageData = this.wrapped.getData();
-    if (!this.messageData.containsKey("beat")) throw new MalformedMessageException("No beat metadata.");
+    if (!this.messageData.containsKey("beat") && !this.messageData.containsKey("host")) {
+      throw new MalformedMessageException("No beat metadata.");
+    }
     this.beatData = (Map) this.messageData.get("beat");
     if (!this.messageData.containsKey("message")) throw new MalformedMessageException("No log line in message.");
     this.logLine = (String) this.messageData.get("message");
@@ -55,9 +66,17 @@ public class FilebeatMessage implements LogsMessage {
 
   @Override
   public String hostOrDefault(String fallbackHost) {
-    if (this.beatData.containsKey("hostname")) {
+    if (this.beatData != null && this.beatData.containsKey("hostname")) {
       return (String) this.beatData.get("hostname");
     }
+    // newer beats report the host as an object
+    Object host = this.messageData.get("host");
+    if (host instanceof String) {
+      return (String) host;
+    }
+    if (host instanceof Map && ((Map) host).containsKey("name")) {
+      return (String) ((Map) host).get("name");
+    }
     return fallbackHost;
   }
 }
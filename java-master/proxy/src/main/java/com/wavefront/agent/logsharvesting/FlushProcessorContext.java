@@ -2,24 +2,41 @@ package com.wavefront.agent.logsharvesting;
 
 import com.wavefront.agent.PointHandler;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import sunnylabs.report.Histogram;
 import sunnylabs.report.ReportPoint;
 import sunnylabs.report.TimeSeries;
 
 /**
+ * Reports the points of flushed series to a {@link PointHandler}, in batches. A context is used by one thread for
+ * all series of a flush, see {@link #setTimeSeries(TimeSeries)}, and must be {@link #flush()}ed at the end.
+ *
  * @author Mori Bellamy (mori@wavefront.com)
  */
 public class FlushProcessorContext {
+  private static final int BATCH_SIZE = 1000;
+
   private final long timestamp;
+  private final PointHandler pointHandler;
+  private final String prefix;
   private TimeSeries timeSeries;
-  private PointHandler pointHandler;
-  private String prefix;
+  private List<ReportPoint> batch = new ArrayList<>();
 
-  FlushProcessorContext(TimeSeries timeSeries, String prefix, PointHandler pointHandler) {
-    this.timeSeries = TimeSeries.newBuilder(timeSeries).build();
+  FlushProcessorContext(String prefix, PointHandler pointHandler, long timestamp) {
     this.pointHandler = pointHandler;
     this.prefix = prefix;
-    timestamp = System.currentTimeMillis();
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * Sets the series that subsequent points are reported for.
+   */
+  void setTimeSeries(TimeSeries timeSeries) {
+    this.timeSeries = timeSeries;
   }
 
   String getMetricName() {
@@ -27,15 +44,29 @@ public class FlushProcessorContext {
   }
 
   private ReportPoint.Builder reportPointBuilder() {
+    // the series is a map key, don't hand out its annotations
+    Map<String, String> annotations = timeSeries.getAnnotations();
     return ReportPoint.newBuilder()
         .setHost(timeSeries.getHost())
-        .setAnnotations(timeSeries.getAnnotations())
+        .setAnnotations(annotations == null || annotations.isEmpty() ? annotations : new HashMap<>(annotations))
         .setTimestamp(timestamp)
         .setMetric(prefix == null ? timeSeries.getMetric() : prefix + "." + timeSeries.getMetric());
   }
 
   void report(ReportPoint reportPoint) {
-    pointHandler.reportPoint(reportPoint, reportPoint.toString());
+    batch.add(reportPoint);
+    if (batch.size() >= BATCH_SIZE) {
+      flush();
+    }
+  }
+
+  /**
+   * Hands all points reported so far to the point handler.
+   */
+  void flush() {
+    if (batch.isEmpty()) return;
+    pointHandler.reportPoints(batch);
+    batch = new ArrayList<>();
   }
 
   void report(double value) {
@@ -50,6 +81,10 @@ public class FlushProcessorContext {
     report(reportPointBuilder().setValue(value).build());
   }
 
+  void report(Histogram value, long timestamp) {
+    report(reportPointBuilder().setValue(value).setTimestamp(timestamp).build());
+  }
+
   void reportSubMetric(double value, String subMetric) {
     ReportPoint.Builder builder = reportPointBuilder();
     report(builder.setValue(value).setMetric(builder.getMetric() + "." + subMetric).build());
@@ -6,9 +6,9 @@ import com.wavefront.agent.PointHandler;
 import com.wavefront.agent.config.ConfigurationException;
 import com.wavefront.agent.config.LogsIngestionConfig;
 import com.wavefront.agent.config.MetricMatcher;
+import com.wavefront.agent.config.MetricMatcherPrefilter;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
-import com.yammer.metrics.core.Metric;
 import com.yammer.metrics.core.MetricName;
 
 import java.util.concurrent.TimeUnit;
@@ -17,6 +17,8 @@ import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 import sunnylabs.report.TimeSeries;
 
 /**
@@ -27,16 +29,15 @@ import sunnylabs.report.TimeSeries;
  */
 public class LogsIngester {
   protected static final Logger logger = Logger.getLogger(LogsIngester.class.getCanonicalName());
-  private static final ReadProcessor readProcessor = new ReadProcessor();
   private final FlushProcessor flushProcessor;
   private final PointHandler pointHandler;
   // A map from "true" to the currently loaded logs ingestion config.
   @VisibleForTesting
   final LogsIngestionConfigManager logsIngestionConfigManager;
-  private final Counter unparsed, parsed, sent;
+  private final Counter unparsed, parsed, sent, prefiltered, sampledOut;
   private final Supplier<Long> currentMillis;
   private final MetricsReporter metricsReporter;
-  private EvictingMetricsRegistry evictingMetricsRegistry;
+  private LogsMetricsStore metricsStore;
 
   /**
    * @param pointHandler                play parsed metrics
@@ -50,16 +51,20 @@ public class LogsIngester {
                       String prefix, Supplier<Long> currentMillis) throws ConfigurationException {
     logsIngestionConfigManager = new LogsIngestionConfigManager(
         logsIngestionConfigSupplier,
-        removedMetricMatcher -> evictingMetricsRegistry.evict(removedMetricMatcher));
+        removedMetricMatcher -> metricsStore.evict(removedMetricMatcher));
     LogsIngestionConfig logsIngestionConfig = logsIngestionConfigManager.getConfig();
 
-    this.evictingMetricsRegistry = new EvictingMetricsRegistry(
-        logsIngestionConfig.expiryMillis, logsIngestionConfig.useWavefrontHistograms, currentMillis);
+    this.metricsStore = new LogsMetricsStore(
+        logsIngestionConfig.expiryMillis, logsIngestionConfig.sendChangedMetricsOnly,
+        logsIngestionConfig.useWavefrontHistograms, logsIngestionConfig.histogramCompression,
+        logsIngestionConfig.flushPartitions, currentMillis);
 
     // Logs harvesting metrics.
     this.unparsed = Metrics.newCounter(new MetricName("logsharvesting", "", "unparsed"));
     this.parsed = Metrics.newCounter(new MetricName("logsharvesting", "", "parsed"));
     this.sent = Metrics.newCounter(new MetricName("logsharvesting", "", "sent"));
+    this.prefiltered = Metrics.newCounter(new MetricName("logsharvesting", "", "prefiltered"));
+    this.sampledOut = Metrics.newCounter(new MetricName("logsharvesting", "", "sampled-out"));
     this.currentMillis = currentMillis;
     this.flushProcessor = new FlushProcessor(sent, currentMillis);
 
@@ -68,7 +73,7 @@ public class LogsIngester {
 
     // Continually flush user metrics to Wavefront.
     this.metricsReporter = new MetricsReporter(
-        evictingMetricsRegistry.metricsRegistry(), flushProcessor, "FilebeatMetricsReporter", pointHandler, prefix);
+        metricsStore, flushProcessor, "FilebeatMetricsReporter", pointHandler, prefix);
   }
 
   public void start() {
@@ -87,41 +92,97 @@ public class LogsIngester {
   }
 
   public void ingestLog(LogsMessage logsMessage) {
+    ingestLog(logsIngestionConfigManager.getConfig(), logsMessage);
+  }
+
+  /**
+   * Ingests a batch of log messages, all with the same config.
+   */
+  public void ingestLogs(Iterable<? extends LogsMessage> logsMessages) {
     LogsIngestionConfig logsIngestionConfig = logsIngestionConfigManager.getConfig();
+    for (LogsMessage logsMessage : logsMessages) {
+      ingestLog(logsIngestionConfig, logsMessage);
+    }
+  }
+
+  LogsIngestionConfig getConfig() {
+    return logsIngestionConfigManager.getConfig();
+  }
+
+  /**
+   * What a metric matcher did with a log line.
+   */
+  private enum Outcome {
+    MATCHED,
+    NOT_MATCHED,
+    // the matcher may have matched, but skipped the line to stay within its limits
+    SAMPLED_OUT
+  }
+
+  private void ingestLog(LogsIngestionConfig logsIngestionConfig, LogsMessage logsMessage) {
+    MetricMatcherPrefilter prefilter = logsIngestionConfig.prefilter();
+    boolean[] literalsFound = prefilter == null ? null : prefilter.scan(logsMessage.getLogLine());
 
     boolean success = false;
+    boolean sampled = false;
     for (MetricMatcher metricMatcher : logsIngestionConfig.counters) {
-      success |= maybeIngestLog(evictingMetricsRegistry::getCounter, metricMatcher, logsMessage);
+      Outcome outcome = maybeIngestLog(metricsStore::getCounter, metricMatcher, logsMessage, prefilter,
+          literalsFound);
+      success |= outcome == Outcome.MATCHED;
+      sampled |= outcome == Outcome.SAMPLED_OUT;
     }
 
     for (MetricMatcher metricMatcher : logsIngestionConfig.gauges) {
-      success |= maybeIngestLog(evictingMetricsRegistry::getGauge, metricMatcher, logsMessage);
+      Outcome outcome = maybeIngestLog(metricsStore::getGauge, metricMatcher, logsMessage, prefilter,
+          literalsFound);
+      success |= outcome == Outcome.MATCHED;
+      sampled |= outcome == Outcome.SAMPLED_OUT;
     }
 
     for (MetricMatcher metricMatcher : logsIngestionConfig.histograms) {
-      success |= maybeIngestLog(evictingMetricsRegistry::getHistogram, metricMatcher, logsMessage);
+      Outcome outcome = maybeIngestLog(metricsStore::getHistogram, metricMatcher, logsMessage, prefilter,
+          literalsFound);
+      success |= outcome == Outcome.MATCHED;
+      sampled |= outcome == Outcome.SAMPLED_OUT;
     }
 
     if (success) {
       parsed.inc();
-    } else {
+    } else if (!sampled) {
+      // lines skipped by a sampler are counted as sampled out only, they may well have matched
       unparsed.inc();
     }
   }
 
-  private boolean maybeIngestLog(
-      BiFunction<MetricName, MetricMatcher, Metric> metricLoader, MetricMatcher metricMatcher,
-      LogsMessage logsMessage) {
+  private Outcome maybeIngestLog(
+      BiFunction<TimeSeries, MetricMatcher, LogsMetricsStore.Series> seriesLoader, MetricMatcher metricMatcher,
+      LogsMessage logsMessage, @Nullable MetricMatcherPrefilter prefilter, @Nullable boolean[] literalsFound) {
+    if (prefilter != null && !prefilter.mayMatch(metricMatcher, literalsFound)) {
+      prefiltered.inc();
+      return Outcome.NOT_MATCHED;
+    }
+    // only gauge and histogram matchers are sampled, counters always see every line
+    AdaptiveSampler sampler = metricMatcher.sampler();
+    if (sampler != null && !sampler.sample()) {
+      sampledOut.inc();
+      return Outcome.SAMPLED_OUT;
+    }
     Double[] output = {null};
-    TimeSeries timeSeries = metricMatcher.timeSeries(logsMessage, output);
-    if (timeSeries == null) return false;
-    MetricName metricName = TimeSeriesUtils.toMetricName(timeSeries);
-    Metric metric = metricLoader.apply(metricName, metricMatcher);
+    TimeSeries timeSeries;
+    if (sampler != null && sampler.measuresCost()) {
+      long start = System.nanoTime();
+      timeSeries = metricMatcher.timeSeries(logsMessage, output);
+      sampler.evaluated(System.nanoTime() - start);
+    } else {
+      timeSeries = metricMatcher.timeSeries(logsMessage, output);
+    }
+    if (timeSeries == null) return Outcome.NOT_MATCHED;
+    LogsMetricsStore.Series series = seriesLoader.apply(timeSeries, metricMatcher);
     try {
-      metric.processWith(readProcessor, metricName, new ReadProcessorContext(output[0]));
+      series.update(output[0]);
     } catch (Exception e) {
-      logger.log(Level.SEVERE, "Could not process metric " + metricName.toString(), e);
+      logger.log(Level.SEVERE, "Could not process metric " + timeSeries.toString(), e);
     }
-    return true;
+    return Outcome.MATCHED;
   }
 }
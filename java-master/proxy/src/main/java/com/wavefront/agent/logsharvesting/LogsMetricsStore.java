@@ -0,0 +1,338 @@
+package com.wavefront.agent.logsharvesting;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import com.tdunning.math.stats.AgentDigest;
+import com.wavefront.agent.config.MetricMatcher;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import sunnylabs.report.TimeSeries;
+
+/**
+ * Aggregation state of the metrics harvested from logs, keyed by {@link TimeSeries}.
+ *
+ * Counters are {@link LongAdder}s and gauges keep their last value in a volatile field, so concurrent updates from
+ * multiple threads don't contend on a lock. Histograms are kept as Yammer histograms, or as per-minute
+ * {@link DigestHistogram}s that are flushed as Wavefront histograms. Every series is flushed until it hasn't been
+ * updated for {@code expiryMillis} and is dropped. If only changed series are sent, updated series get queued for the
+ * next flush instead, so {@link #drain(int, Consumer)} only visits series that changed.
+ *
+ * Series are split into a fixed number of partitions by their {@link TimeSeries}, each with its own map and queue, so
+ * that partitions can be flushed in parallel.
+ */
+public class LogsMetricsStore {
+  // per partition
+  private final ConcurrentMap<TimeSeries, Series>[] series;
+  private final Queue<Series>[] touched;
+  private final AtomicInteger[] touchedCount;
+  // only used to create and track histograms
+  private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+  private final long expiryMillis;
+  private final boolean changedOnly;
+  private final long sweepIntervalMillis;
+  private final boolean wavefrontHistograms;
+  private final short histogramCompression;
+  private final Supplier<Long> nowMillis;
+  private volatile long lastSweepMillis;
+
+  @SuppressWarnings("unchecked")
+  LogsMetricsStore(long expiryMillis, boolean changedOnly, boolean wavefrontHistograms, short histogramCompression,
+                   int partitions, Supplier<Long> nowMillis) {
+    this.series = new ConcurrentMap[partitions];
+    this.touched = new Queue[partitions];
+    this.touchedCount = new AtomicInteger[partitions];
+    for (int i = 0; i < partitions; i++) {
+      series[i] = new ConcurrentHashMap<>();
+      touched[i] = new ConcurrentLinkedQueue<>();
+      touchedCount[i] = new AtomicInteger();
+    }
+    this.expiryMillis = expiryMillis;
+    this.changedOnly = changedOnly;
+    this.sweepIntervalMillis = Math.min(expiryMillis, TimeUnit.MINUTES.toMillis(1));
+    this.wavefrontHistograms = wavefrontHistograms;
+    this.histogramCompression = histogramCompression;
+    this.nowMillis = nowMillis;
+    this.lastSweepMillis = nowMillis.get();
+  }
+
+  /**
+   * A single aggregated time series.
+   */
+  public abstract class Series {
+    private final TimeSeries timeSeries;
+    private final MetricMatcher metricMatcher;
+    private final int partition;
+    private final AtomicBoolean queued = new AtomicBoolean(false);
+    private volatile long lastTouchedMillis;
+    private volatile boolean removed = false;
+
+    private Series(TimeSeries timeSeries, MetricMatcher metricMatcher) {
+      this.timeSeries = timeSeries;
+      this.metricMatcher = metricMatcher;
+      this.partition = partition(timeSeries);
+      this.lastTouchedMillis = nowMillis.get();
+    }
+
+    public TimeSeries timeSeries() {
+      return timeSeries;
+    }
+
+    /**
+     * Aggregates a value parsed from a log line.
+     *
+     * @param value the parsed value, or null if the log line doesn't have one
+     */
+    public void update(@Nullable Double value) throws MalformedMessageException {
+      doUpdate(value);
+      lastTouchedMillis = nowMillis.get();
+      enqueue();
+    }
+
+    // queues this series for the next flush, unless it is already or all series are flushed anyway
+    private void enqueue() {
+      if (changedOnly && !queued.get() && queued.compareAndSet(false, true)) {
+        touched[partition].add(this);
+        touchedCount[partition].incrementAndGet();
+      }
+    }
+
+    abstract void doUpdate(@Nullable Double value) throws MalformedMessageException;
+
+    abstract void flush(FlushProcessor flushProcessor, FlushProcessorContext context) throws Exception;
+
+    void remove() {
+      removed = true;
+    }
+  }
+
+  private class CounterSeries extends Series {
+    private final LongAdder count = new LongAdder();
+
+    private CounterSeries(TimeSeries timeSeries, MetricMatcher metricMatcher) {
+      super(timeSeries, metricMatcher);
+    }
+
+    @Override
+    void doUpdate(@Nullable Double value) {
+      count.add(value == null ? 1L : Math.round(value));
+    }
+
+    @Override
+    void flush(FlushProcessor flushProcessor, FlushProcessorContext context) {
+      flushProcessor.processCounter(count.sum(), context);
+    }
+  }
+
+  private class GaugeSeries extends Series {
+    private volatile double value = Double.NaN;
+
+    private GaugeSeries(TimeSeries timeSeries, MetricMatcher metricMatcher) {
+      super(timeSeries, metricMatcher);
+    }
+
+    @Override
+    void doUpdate(@Nullable Double value) throws MalformedMessageException {
+      if (value == null) {
+        throw new MalformedMessageException("Need an explicit value for updating a gauge.");
+      }
+      this.value = value;
+    }
+
+    @Override
+    void flush(FlushProcessor flushProcessor, FlushProcessorContext context) {
+      flushProcessor.processGauge(value, context);
+    }
+  }
+
+  private class HistogramSeries extends Series {
+    private final MetricName metricName;
+    private final Histogram histogram;
+
+    private HistogramSeries(TimeSeries timeSeries, MetricMatcher metricMatcher) {
+      super(timeSeries, metricMatcher);
+      this.metricName = TimeSeriesUtils.toMetricName(timeSeries);
+      this.histogram = metricsRegistry.newHistogram(metricName, false);
+    }
+
+    @Override
+    void doUpdate(@Nullable Double value) {
+      histogram.update(Math.round(value));
+    }
+
+    @Override
+    void flush(FlushProcessor flushProcessor, FlushProcessorContext context) throws Exception {
+      flushProcessor.processHistogram(metricName, histogram, context);
+    }
+
+    @Override
+    void remove() {
+      super.remove();
+      metricsRegistry.removeMetric(metricName);
+    }
+  }
+
+  private class DigestHistogramSeries extends Series {
+    private final DigestHistogram histogram = new DigestHistogram(histogramCompression);
+
+    private DigestHistogramSeries(TimeSeries timeSeries, MetricMatcher metricMatcher) {
+      super(timeSeries, metricMatcher);
+    }
+
+    @Override
+    void doUpdate(@Nullable Double value) {
+      histogram.update(value, nowMillis.get());
+    }
+
+    @Override
+    void flush(FlushProcessor flushProcessor, FlushProcessorContext context) {
+      for (Map.Entry<Long, AgentDigest> entry : histogram.flush(nowMillis.get())) {
+        flushProcessor.processDigest(entry.getKey(), entry.getValue(), context);
+      }
+      // the current minute is only complete on a later flush
+      if (histogram.hasPending()) {
+        enqueue();
+      }
+    }
+  }
+
+  private int partition(TimeSeries timeSeries) {
+    return Math.floorMod(timeSeries.hashCode(), series.length);
+  }
+
+  // Look up first: computeIfAbsent locks the bin even if the series exists.
+  private Series getOrCreate(TimeSeries timeSeries, MetricMatcher metricMatcher,
+                             BiFunction<TimeSeries, MetricMatcher, Series> constructor) {
+    ConcurrentMap<TimeSeries, Series> partition = series[partition(timeSeries)];
+    Series result = partition.get(timeSeries);
+    if (result == null) {
+      result = partition.computeIfAbsent(timeSeries, key -> constructor.apply(key, metricMatcher));
+    }
+    return result;
+  }
+
+  /**
+   * @throws ClassCastException if the time series is already used by a different kind of metric
+   */
+  public Series getCounter(TimeSeries timeSeries, MetricMatcher metricMatcher) {
+    return (CounterSeries) getOrCreate(timeSeries, metricMatcher, CounterSeries::new);
+  }
+
+  /**
+   * @throws ClassCastException if the time series is already used by a different kind of metric
+   */
+  public Series getGauge(TimeSeries timeSeries, MetricMatcher metricMatcher) {
+    return (GaugeSeries) getOrCreate(timeSeries, metricMatcher, GaugeSeries::new);
+  }
+
+  /**
+   * @throws ClassCastException if the time series is already used by a different kind of metric
+   */
+  public Series getHistogram(TimeSeries timeSeries, MetricMatcher metricMatcher) {
+    if (wavefrontHistograms) {
+      return (DigestHistogramSeries) getOrCreate(timeSeries, metricMatcher, DigestHistogramSeries::new);
+    }
+    return (HistogramSeries) getOrCreate(timeSeries, metricMatcher, HistogramSeries::new);
+  }
+
+  /**
+   * Removes all series of a metric matcher that is no longer configured.
+   */
+  public void evict(MetricMatcher evicted) {
+    for (ConcurrentMap<TimeSeries, Series> partition : series) {
+      for (Map.Entry<TimeSeries, Series> entry : partition.entrySet()) {
+        if (entry.getValue().metricMatcher == evicted) {
+          removeIf(partition, entry.getKey(), s -> s.metricMatcher == evicted);
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes series that haven't been updated for expiryMillis. Walks all series at most once per minute.
+   */
+  public void expire() {
+    long now = nowMillis.get();
+    if (now - lastSweepMillis < sweepIntervalMillis) return;
+    lastSweepMillis = now;
+    long cutoffMillis = now - expiryMillis;
+    for (ConcurrentMap<TimeSeries, Series> partition : series) {
+      for (Map.Entry<TimeSeries, Series> entry : partition.entrySet()) {
+        if (entry.getValue().lastTouchedMillis < cutoffMillis) {
+          removeIf(partition, entry.getKey(), s -> s.lastTouchedMillis < cutoffMillis);
+        }
+      }
+    }
+  }
+
+  private static void removeIf(ConcurrentMap<TimeSeries, Series> partition, TimeSeries key,
+                               Predicate<Series> predicate) {
+    partition.computeIfPresent(key, (k, s) -> {
+      if (!predicate.test(s)) return s;
+      s.remove();
+      return null;
+    });
+  }
+
+  /**
+   * @return the number of partitions series are split into
+   */
+  public int partitions() {
+    return series.length;
+  }
+
+  /**
+   * Hands the series of a partition to flush to the consumer, once each: all of them, or only those updated since the
+   * last call if only changed series are sent. Different partitions may be drained concurrently.
+   */
+  public void drain(int partition, Consumer<Series> consumer) {
+    if (!changedOnly) {
+      for (Series next : series[partition].values()) {
+        if (!next.removed) {
+          consumer.accept(next);
+        }
+      }
+      return;
+    }
+    // don't chase series that are updated again while draining, they are picked up next time
+    int pending = touchedCount[partition].get();
+    Series next;
+    while (pending-- > 0 && (next = touched[partition].poll()) != null) {
+      touchedCount[partition].decrementAndGet();
+      next.queued.set(false);
+      if (!next.removed) {
+        consumer.accept(next);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  int size() {
+    int size = 0;
+    for (ConcurrentMap<TimeSeries, Series> partition : series) {
+      size += partition.size();
+    }
+    return size;
+  }
+
+  MetricsRegistry metricsRegistry() {
+    return metricsRegistry;
+  }
+}
@@ -1,53 +1,105 @@
 package com.wavefront.agent.logsharvesting;
 
+import com.google.common.collect.Lists;
+
+import com.wavefront.agent.NamedThreadFactory;
 import com.wavefront.agent.PointHandler;
-import com.yammer.metrics.core.Metric;
-import com.yammer.metrics.core.MetricName;
-import com.yammer.metrics.core.MetricsRegistry;
 import com.yammer.metrics.reporting.AbstractPollingReporter;
 
-import java.util.Map;
-import java.util.SortedMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import sunnylabs.report.TimeSeries;
+import javax.annotation.Nullable;
 
 /**
+ * Periodically flushes the series of a {@link LogsMetricsStore}. The partitions of the store are flushed in parallel,
+ * each handing its points to the {@link PointHandler} in batches.
+ *
  * @author Mori Bellamy (mori@wavefront.com)
  */
 public class MetricsReporter extends AbstractPollingReporter {
 
   protected static final Logger logger = Logger.getLogger(MetricsReporter.class.getCanonicalName());
+  private final LogsMetricsStore metricsStore;
   private final FlushProcessor flushProcessor;
   private final PointHandler pointHandler;
   private final String prefix;
+  // flushes all partitions but the first, which is flushed by the reporter thread itself
+  @Nullable
+  private final ThreadPoolExecutor flushExecutor;
 
-  public MetricsReporter(MetricsRegistry metricsRegistry, FlushProcessor flushProcessor, String name,
+  public MetricsReporter(LogsMetricsStore metricsStore, FlushProcessor flushProcessor, String name,
                          PointHandler pointHandler, String prefix) {
-    super(metricsRegistry, name);
+    super(metricsStore.metricsRegistry(), name);
+    this.metricsStore = metricsStore;
     this.flushProcessor = flushProcessor;
     this.pointHandler = pointHandler;
     this.prefix = prefix;
+    int threads = metricsStore.partitions() - 1;
+    if (threads > 0) {
+      NamedThreadFactory threadFactory = new NamedThreadFactory(name + "-flush");
+      this.flushExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = threadFactory.newThread(runnable);
+        thread.setDaemon(true);
+        return thread;
+      });
+      // idle between flushes
+      this.flushExecutor.allowCoreThreadTimeOut(true);
+    } else {
+      this.flushExecutor = null;
+    }
   }
 
   @Override
   public void run() {
-    for (Map.Entry<String, SortedMap<MetricName, Metric>> group : getMetricsRegistry().groupedMetrics().entrySet()) {
-      for (Map.Entry<MetricName, Metric> entry : group.getValue().entrySet()) {
-        if (entry.getValue() == null || entry.getKey() == null) {
-          logger.severe("Application Error! Pulled null value from metrics registry.");
-        }
-        MetricName metricName = entry.getKey();
-        Metric metric = entry.getValue();
+    metricsStore.expire();
+    long timestamp = System.currentTimeMillis();
+    List<Future<?>> futures = Lists.newArrayList();
+    for (int partition = 1; partition < metricsStore.partitions(); partition++) {
+      final int toFlush = partition;
+      futures.add(flushExecutor.submit(() -> flushPartition(toFlush, timestamp)));
+    }
+    flushPartition(0, timestamp);
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        logger.log(Level.SEVERE, "Uncaught exception in MetricsReporter", e.getCause());
+      }
+    }
+  }
+
+  private void flushPartition(int partition, long timestamp) {
+    FlushProcessorContext context = new FlushProcessorContext(prefix, pointHandler, timestamp);
+    try {
+      metricsStore.drain(partition, series -> {
         try {
-          TimeSeries timeSeries = TimeSeriesUtils.fromMetricName(metricName);
-          metric.processWith(flushProcessor, metricName, new FlushProcessorContext(timeSeries, prefix, pointHandler));
+          context.setTimeSeries(series.timeSeries());
+          series.flush(flushProcessor, context);
         } catch (Exception e) {
           logger.log(Level.SEVERE, "Uncaught exception in MetricsReporter", e);
         }
-      }
+      });
+    } finally {
+      context.flush();
     }
   }
 
+  @Override
+  public void shutdown() {
+    super.shutdown();
+    if (flushExecutor != null) {
+      flushExecutor.shutdown();
+    }
+  }
 }
@@ -7,6 +7,7 @@ import com.yammer.metrics.core.MetricName;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
 
@@ -38,11 +39,21 @@ public class RawLogsIngester {
   private int port;
   private Supplier<Long> now;
   private Counter received;
+  private Function<InetAddress, String> hostnameResolver;
 
   public RawLogsIngester(LogsIngester logsIngester, int port, Supplier<Long> now) {
+    this(logsIngester, port, now, InetAddress::getCanonicalHostName);
+  }
+
+  /**
+   * @param hostnameResolver resolves the remote address of a connection to the source of its log lines
+   */
+  public RawLogsIngester(LogsIngester logsIngester, int port, Supplier<Long> now,
+                         Function<InetAddress, String> hostnameResolver) {
     this.logsIngester = logsIngester;
     this.port = port;
     this.now = now;
+    this.hostnameResolver = hostnameResolver;
     this.received = Metrics.newCounter(new MetricName("logsharvesting", "", "raw-received"));
   }
 
@@ -84,7 +95,7 @@ public class RawLogsIngester {
         if (!(ctx.channel().remoteAddress() instanceof InetSocketAddress)) return fallbackHost;
         InetSocketAddress inetSocketAddress = (InetSocketAddress) ctx.channel().remoteAddress();
         InetAddress inetAddress = inetSocketAddress.getAddress();
-        String host = inetAddress.getCanonicalHostName();
+        String host = hostnameResolver.apply(inetAddress);
         if (host == null || host.equals("")) return fallbackHost;
         return host;
       }
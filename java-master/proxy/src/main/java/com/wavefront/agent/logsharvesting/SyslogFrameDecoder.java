@@ -0,0 +1,106 @@
+package com.wavefront.agent.logsharvesting;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+/**
+ * Splits a syslog TCP stream into messages (RFC 6587). Supports both octet-counting framing ("MSG-LEN SP MSG"), which
+ * allows multi-line messages, and non-transparent framing, where each message ends with a newline. The framing is
+ * detected per message, so a sender may mix both.
+ *
+ * Messages longer than maxLength are truncated for octet-counting and discarded for newline framing.
+ */
+public class SyslogFrameDecoder extends ByteToMessageDecoder {
+  private static final Counter malformed = Metrics.newCounter(new MetricName("logsharvesting", "", "syslog-malformed"));
+
+  private final int maxLength;
+  // bytes of the current octet-counted frame that are still to be skipped
+  private long discarding = 0;
+  // whether the rest of the current line is dropped, because it is too long
+  private boolean discardingLine = false;
+
+  public SyslogFrameDecoder(int maxLength) {
+    this.maxLength = maxLength;
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+    while (in.isReadable()) {
+      if (discarding > 0) {
+        int skip = (int) Math.min(discarding, in.readableBytes());
+        in.skipBytes(skip);
+        discarding -= skip;
+        continue;
+      }
+      byte first = in.getByte(in.readerIndex());
+      String frame = !discardingLine && first >= '1' && first <= '9'
+          ? decodeOctetCounted(in)
+          : decodeNewlineDelimited(in);
+      if (frame == null) return;  // need more data
+      if (!frame.isEmpty()) {
+        out.add(frame);
+      }
+    }
+  }
+
+  private String decodeOctetCounted(ByteBuf in) {
+    int start = in.readerIndex();
+    int end = in.writerIndex();
+    long length = 0;
+    int i = start;
+    for (; i < end; i++) {
+      byte b = in.getByte(i);
+      if (b == ' ') break;
+      if (b < '0' || b > '9' || i - start >= 10) {
+        // not a length after all, treat it as a newline delimited message
+        return decodeNewlineDelimited(in);
+      }
+      length = length * 10 + (b - '0');
+    }
+    if (i == end) return null;
+    int frameStart = i + 1;
+    int frameLength = (int) Math.min(length, maxLength);
+    if (end - frameStart < frameLength) return null;
+    String frame = in.toString(frameStart, frameLength, StandardCharsets.UTF_8);
+    in.readerIndex(frameStart + frameLength);
+    if (length > frameLength) {
+      malformed.inc();
+      discarding = length - frameLength;
+    }
+    return frame;
+  }
+
+  private String decodeNewlineDelimited(ByteBuf in) {
+    int start = in.readerIndex();
+    int eol = in.indexOf(start, in.writerIndex(), (byte) '\n');
+    if (eol < 0) {
+      if (discardingLine || in.readableBytes() > maxLength) {
+        // drop what we have, and the rest up to the next newline with it
+        if (!discardingLine) malformed.inc();
+        in.skipBytes(in.readableBytes());
+        discardingLine = true;
+      }
+      return null;
+    }
+    int length = eol - start;
+    in.readerIndex(eol + 1);
+    if (discardingLine) {
+      discardingLine = false;
+      return "";
+    }
+    if (length > 0 && in.getByte(eol - 1) == '\r') length--;
+    if (length > maxLength) {
+      malformed.inc();
+      return "";
+    }
+    return in.toString(start, length, StandardCharsets.UTF_8);
+  }
+}
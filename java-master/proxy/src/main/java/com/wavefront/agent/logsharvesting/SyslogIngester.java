@@ -0,0 +1,132 @@
+package com.wavefront.agent.logsharvesting;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+/**
+ * Receives syslog messages (RFC 5424 or RFC 3164) over TCP or UDP and feeds them to a {@link LogsIngester}. The
+ * hostname in the syslog header is used as the source of harvested metrics, the address of the sender is only
+ * resolved for messages without one.
+ */
+public class SyslogIngester {
+  private static final Logger logger = Logger.getLogger(SyslogIngester.class.getCanonicalName());
+  private static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+  private static final int UDP_RECEIVE_BUFFER_BYTES = 4 * 1024 * 1024;
+
+  private final LogsIngester logsIngester;
+  private final Function<InetAddress, String> hostnameResolver;
+  private final Counter received;
+
+  /**
+   * @param hostnameResolver resolves the address of a sender for messages without a hostname
+   */
+  public SyslogIngester(LogsIngester logsIngester, Function<InetAddress, String> hostnameResolver) {
+    this.logsIngester = logsIngester;
+    this.hostnameResolver = hostnameResolver;
+    this.received = Metrics.newCounter(new MetricName("logsharvesting", "", "syslog-received"));
+  }
+
+  /**
+   * Listens for octet-counted or newline delimited messages on a TCP port, handling connections on the given number of
+   * threads.
+   */
+  public void listenTcp(int port, int threads) throws InterruptedException {
+    ServerBootstrap serverBootstrap = new ServerBootstrap();
+    EventLoopGroup acceptorGroup;
+    EventLoopGroup handlerGroup;
+    if (Epoll.isAvailable()) {
+      logger.fine("Using native socket transport for port " + port);
+      acceptorGroup = new EpollEventLoopGroup(1);
+      handlerGroup = new EpollEventLoopGroup(Math.max(1, threads));
+      serverBootstrap.channel(EpollServerSocketChannel.class);
+    } else {
+      logger.fine("Using NIO socket transport for port " + port);
+      acceptorGroup = new NioEventLoopGroup(1);
+      handlerGroup = new NioEventLoopGroup(Math.max(1, threads));
+      serverBootstrap.channel(NioServerSocketChannel.class);
+    }
+
+    serverBootstrap.group(acceptorGroup, handlerGroup)
+        .childHandler(new ChannelInitializer<SocketChannel>() {
+          @Override
+          protected void initChannel(SocketChannel ch) throws Exception {
+            ch.pipeline().addLast(new SyslogFrameDecoder(MAX_MESSAGE_LENGTH));
+            ch.pipeline().addLast(new SimpleChannelInboundHandler<String>() {
+              @Override
+              protected void channelRead0(ChannelHandlerContext ctx, String frame) throws Exception {
+                InetSocketAddress remoteAddress = (InetSocketAddress) ctx.channel().remoteAddress();
+                ingestLog(frame, remoteAddress == null ? null : remoteAddress.getAddress());
+              }
+            });
+          }
+        })
+        .option(ChannelOption.SO_BACKLOG, 128)
+        .childOption(ChannelOption.SO_KEEPALIVE, true);
+
+    serverBootstrap.bind(port).sync().channel().closeFuture().sync();
+  }
+
+  /**
+   * Listens for one message per datagram on a UDP port. With the native transport, the port is bound once per
+   * thread (SO_REUSEPORT), so the kernel spreads datagrams from different senders over all threads.
+   */
+  public void listenUdp(int port, int threads) throws InterruptedException {
+    Bootstrap bootstrap = new Bootstrap();
+    int bindings = 1;
+    if (Epoll.isAvailable()) {
+      logger.fine("Using native datagram transport for port " + port);
+      bindings = Math.max(1, threads);
+      bootstrap.group(new EpollEventLoopGroup(bindings))
+          .channel(EpollDatagramChannel.class)
+          .option(EpollChannelOption.SO_REUSEPORT, true);
+    } else {
+      logger.fine("Using NIO datagram transport for port " + port);
+      bootstrap.group(new NioEventLoopGroup(1))
+          .channel(NioDatagramChannel.class);
+    }
+    bootstrap.option(ChannelOption.SO_RCVBUF, UDP_RECEIVE_BUFFER_BYTES)
+        .handler(new SimpleChannelInboundHandler<DatagramPacket>() {
+          @Override
+          protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception {
+            ingestLog(packet.content().toString(StandardCharsets.UTF_8), packet.sender().getAddress());
+          }
+        });
+
+    for (int i = 1; i < bindings; i++) {
+      bootstrap.bind(port).sync();
+    }
+    bootstrap.bind(port).sync().channel().closeFuture().sync();
+  }
+
+  public void ingestLog(String frame, @Nullable InetAddress remoteAddress) {
+    received.inc();
+    logsIngester.ingestLog(SyslogMessage.parse(frame, remoteAddress, hostnameResolver));
+  }
+}
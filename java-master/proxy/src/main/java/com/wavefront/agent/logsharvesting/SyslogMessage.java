@@ -0,0 +1,228 @@
+package com.wavefront.agent.logsharvesting;
+
+import java.net.InetAddress;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+/**
+ * A syslog message in either RFC 5424 or RFC 3164 (BSD) format. Only the header fields needed for logs harvesting are
+ * extracted; the log line handed to the metric matchers is the free-form message, without the header.
+ *
+ * Parsing is lenient: anything that doesn't look like a syslog header is treated as part of the message, so plain
+ * log lines are ingested as they are.
+ */
+public class SyslogMessage implements LogsMessage {
+  private static final String NILVALUE = "-";
+  private static final String BOM = "\uFEFF";
+
+  private final int priority;
+  @Nullable
+  private final String hostname;
+  @Nullable
+  private final String appName;
+  private final String message;
+  @Nullable
+  private final InetAddress remoteAddress;
+  private final Function<InetAddress, String> hostnameResolver;
+
+  private SyslogMessage(int priority, @Nullable String hostname, @Nullable String appName, String message,
+                        @Nullable InetAddress remoteAddress, Function<InetAddress, String> hostnameResolver) {
+    this.priority = priority;
+    this.hostname = hostname;
+    this.appName = appName;
+    this.message = message;
+    this.remoteAddress = remoteAddress;
+    this.hostnameResolver = hostnameResolver;
+  }
+
+  /**
+   * @return the priority (facility * 8 + severity), or -1 if the message has none
+   */
+  public int getPriority() {
+    return priority;
+  }
+
+  /**
+   * @return the hostname from the header, or null if the message has none
+   */
+  @Nullable
+  public String getHostname() {
+    return hostname;
+  }
+
+  /**
+   * @return the app-name (RFC 5424) or tag (RFC 3164) from the header, or null if the message has none
+   */
+  @Nullable
+  public String getAppName() {
+    return appName;
+  }
+
+  @Override
+  public String getLogLine() {
+    return message;
+  }
+
+  /**
+   * Uses the hostname from the header. Only messages without one resolve the address they were received from.
+   */
+  @Override
+  public String hostOrDefault(String fallbackHost) {
+    if (hostname != null) return hostname;
+    if (remoteAddress == null) return fallbackHost;
+    String host = hostnameResolver.apply(remoteAddress);
+    if (host == null || host.equals("")) return fallbackHost;
+    return host;
+  }
+
+  /**
+   * @param frame            a single syslog message, without framing
+   * @param remoteAddress    the address the message was received from, if known
+   * @param hostnameResolver resolves remoteAddress for messages without a hostname
+   */
+  public static SyslogMessage parse(String frame, @Nullable InetAddress remoteAddress,
+                                    Function<InetAddress, String> hostnameResolver) {
+    int end = frame.length();
+    while (end > 0 && (frame.charAt(end - 1) == '\n' || frame.charAt(end - 1) == '\r')) end--;
+
+    // <PRI>
+    int priority = -1;
+    int pos = 0;
+    if (end > 2 && frame.charAt(0) == '<') {
+      int close = frame.indexOf('>', 1);
+      if (close > 1 && close <= 4 && allDigits(frame, 1, close)) {
+        priority = Integer.parseInt(frame.substring(1, close));
+        pos = close + 1;
+      }
+    }
+    if (priority < 0) {
+      return new SyslogMessage(-1, null, null, frame.substring(0, end), remoteAddress, hostnameResolver);
+    }
+
+    // RFC 5424: <PRI>VERSION SP TIMESTAMP SP HOSTNAME SP APP-NAME SP PROCID SP MSGID SP STRUCTURED-DATA [SP MSG]
+    int versionEnd = pos;
+    while (versionEnd < end && versionEnd - pos < 3 && Character.isDigit(frame.charAt(versionEnd))) versionEnd++;
+    if (versionEnd > pos && versionEnd < end && frame.charAt(versionEnd) == ' ' && frame.charAt(pos) != '0') {
+      int[] cursor = {versionEnd + 1};
+      token(frame, cursor, end);  // TIMESTAMP
+      String hostname = nilToNull(token(frame, cursor, end));
+      String appName = nilToNull(token(frame, cursor, end));
+      token(frame, cursor, end);  // PROCID
+      token(frame, cursor, end);  // MSGID
+      skipStructuredData(frame, cursor, end);
+      int msgStart = Math.min(cursor[0], end);
+      if (frame.startsWith(BOM, msgStart)) msgStart += BOM.length();
+      return new SyslogMessage(priority, hostname, appName, frame.substring(msgStart, end), remoteAddress,
+          hostnameResolver);
+    }
+
+    // RFC 3164: <PRI>TIMESTAMP SP HOSTNAME SP TAG[PID]: MSG, where TIMESTAMP is "Mmm dd hh:mm:ss"
+    int[] cursor = {pos};
+    if (isBsdTimestamp(frame, pos, end)) {
+      cursor[0] = pos + 16;
+    } else if (end - pos > 10 && Character.isDigit(frame.charAt(pos)) && frame.charAt(pos + 4) == '-') {
+      token(frame, cursor, end);  // ISO 8601 timestamp, as sent by some daemons
+    } else {
+      return new SyslogMessage(priority, null, null, frame.substring(pos, end), remoteAddress, hostnameResolver);
+    }
+    String hostname = null;
+    int hostnameStart = cursor[0];
+    String candidate = token(frame, cursor, end);
+    if (candidate == null || isTag(candidate)) {
+      // no hostname in the header, this is the tag already
+      cursor[0] = hostnameStart;
+    } else if (candidate.isEmpty()) {
+      // a second space after the timestamp, no hostname either
+    } else {
+      hostname = candidate;
+    }
+    String appName = null;
+    int tagStart = cursor[0];
+    int tagEnd = tagStart;
+    while (tagEnd < end && tagEnd - tagStart <= 32 && isTagChar(frame.charAt(tagEnd))) tagEnd++;
+    if (tagEnd > tagStart && tagEnd < end && (frame.charAt(tagEnd) == ':' || frame.charAt(tagEnd) == '[')) {
+      appName = frame.substring(tagStart, tagEnd);
+      int colon = frame.indexOf(':', tagEnd);
+      if (colon >= 0 && (frame.charAt(tagEnd) == ':' || frame.lastIndexOf(']', colon) > tagEnd)) {
+        cursor[0] = colon + 1;
+        if (cursor[0] < end && frame.charAt(cursor[0]) == ' ') cursor[0]++;
+      } else {
+        appName = null;
+      }
+    }
+    return new SyslogMessage(priority, hostname, appName, frame.substring(Math.min(cursor[0], end), end),
+        remoteAddress, hostnameResolver);
+  }
+
+  /**
+   * @return the next space separated token, or null if there is none. Advances the cursor past the separator.
+   */
+  @Nullable
+  private static String token(String frame, int[] cursor, int end) {
+    int start = cursor[0];
+    if (start >= end) return null;
+    int tokenEnd = frame.indexOf(' ', start);
+    if (tokenEnd < 0 || tokenEnd > end) tokenEnd = end;
+    cursor[0] = tokenEnd + 1;
+    return frame.substring(start, tokenEnd);
+  }
+
+  private static void skipStructuredData(String frame, int[] cursor, int end) {
+    int pos = cursor[0];
+    if (pos >= end) return;
+    if (frame.charAt(pos) != '[') {
+      token(frame, cursor, end);  // NILVALUE
+      return;
+    }
+    boolean quoted = false;
+    while (pos < end) {
+      char c = frame.charAt(pos);
+      if (c == '\\' && quoted) {
+        pos += 2;
+        continue;
+      }
+      if (c == '"') {
+        quoted = !quoted;
+      } else if (c == ']' && !quoted) {
+        // another SD-ELEMENT may follow immediately
+        if (pos + 1 >= end || frame.charAt(pos + 1) != '[') {
+          pos++;
+          break;
+        }
+      }
+      pos++;
+    }
+    if (pos < end && frame.charAt(pos) == ' ') pos++;
+    cursor[0] = pos;
+  }
+
+  private static boolean isBsdTimestamp(String frame, int pos, int end) {
+    // "Mmm dd hh:mm:ss ", the day is space padded
+    return end - pos > 16 && Character.isUpperCase(frame.charAt(pos)) && frame.charAt(pos + 3) == ' ' &&
+        frame.charAt(pos + 6) == ' ' && frame.charAt(pos + 9) == ':' && frame.charAt(pos + 12) == ':' &&
+        frame.charAt(pos + 15) == ' ';
+  }
+
+  private static boolean isTag(String token) {
+    if (token.isEmpty()) return false;
+    char last = token.charAt(token.length() - 1);
+    return last == ':' || last == ']' || token.indexOf('[') >= 0;
+  }
+
+  private static boolean isTagChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '.' || c == '/';
+  }
+
+  private static boolean allDigits(String s, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (!Character.isDigit(s.charAt(i))) return false;
+    }
+    return true;
+  }
+
+  @Nullable
+  private static String nilToNull(@Nullable String value) {
+    return value == null || value.equals(NILVALUE) ? null : value;
+  }
+}
@@ -1,29 +1,86 @@
 package org.logstash.beats;
 
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.AttributeKey;
 import org.apache.log4j.Logger;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands parsed batches to the {@link IMessageListener} and acknowledges them.
+ *
+ * If a processing executor is given, messages are processed off the event loop. Each batch is processed by a single
+ * task, and the batches of a connection one after the other in the order they were received, so that updates to the
+ * same series are applied in order; different connections are processed in parallel. A batch is acknowledged once
+ * it has been processed. When the executor rejects work, the connection stops reading (and acknowledging) and the
+ * batch is resubmitted with an exponential backoff, until the connection's pending batches are done.
+ */
 @ChannelHandler.Sharable
 public class BeatsHandler extends SimpleChannelInboundHandler<Batch> {
     private final static Logger logger = Logger.getLogger(BeatsHandler.class);
+    private final static AttributeKey<ConnectionState> CONNECTION_STATE = AttributeKey.valueOf("beats-connection-state");
+    private static final long MIN_RESUBMIT_DELAY_MILLIS = 10;
+    private static final long MAX_RESUBMIT_DELAY_MILLIS = 1000;
+
     private final AtomicBoolean processing = new AtomicBoolean(false);
     private final IMessageListener messageListener;
-    private ChannelHandlerContext context;
+    private final Executor executor;
+
+    private final Histogram batchLatency = Metrics.newHistogram(
+            new MetricName("logsharvesting", "", "filebeat-batch-latency-millis"));
+    private final Counter rejected = Metrics.newCounter(
+            new MetricName("logsharvesting", "", "filebeat-processing-rejected"));
 
 
     public BeatsHandler(IMessageListener listener) {
+        this(listener, null);
+    }
+
+    /**
+     * @param listener the message listener
+     * @param executor executor to process messages on, or null to process them on the event loop
+     */
+    public BeatsHandler(IMessageListener listener, Executor executor) {
         messageListener = listener;
+        this.executor = executor;
+    }
+
+    private static class ConnectionState {
+        // complete once the last received batch has been processed and acknowledged, only used on the event loop
+        private CompletableFuture<Void> lastProcessed = CompletableFuture.completedFuture(null);
+        private CompletableFuture<Void> lastAck = CompletableFuture.completedFuture(null);
+        private final AtomicInteger pendingBatches = new AtomicInteger();
+    }
+
+    private ConnectionState state(ChannelHandlerContext ctx) {
+        ConnectionState state = ctx.channel().attr(CONNECTION_STATE).get();
+        if (state == null) {
+            state = new ConnectionState();
+            ConnectionState existing = ctx.channel().attr(CONNECTION_STATE).setIfAbsent(state);
+            if (existing != null) {
+                state = existing;
+            }
+        }
+        return state;
     }
 
     @Override
     public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
-        context = ctx;
         messageListener.onNewConnection(ctx);
     }
 
@@ -36,6 +93,11 @@ public class BeatsHandler extends SimpleChannelInboundHandler<Batch> {
     public void channelRead0(ChannelHandlerContext ctx, Batch batch) throws Exception {
         logger.debug("Received a new payload");
 
+        if (executor != null) {
+            processAsync(ctx, batch);
+            return;
+        }
+
         processing.compareAndSet(false, true);
 
         for(Message message : batch.getMessages()) {
@@ -51,6 +113,61 @@ public class BeatsHandler extends SimpleChannelInboundHandler<Batch> {
 
     }
 
+    private void processAsync(ChannelHandlerContext ctx, Batch batch) {
+        final long startMillis = System.currentTimeMillis();
+        final ConnectionState state = state(ctx);
+        state.pendingBatches.incrementAndGet();
+
+        List<Message> messages = batch.getMessages();
+        CompletableFuture<Void> processed = new CompletableFuture<>();
+        state.lastProcessed.whenComplete((r, t) -> submit(ctx, messages, processed, 0));
+        state.lastProcessed = processed;
+
+        // acknowledge on the event loop, in the order the batches were received
+        state.lastAck = state.lastAck.thenCombine(processed, (a, b) -> (Void) null).thenRunAsync(() -> {
+            for (Message message : messages) {
+                if (needAck(message)) {
+                    ack(ctx, message);
+                }
+            }
+            ctx.flush();
+            batchLatency.update(System.currentTimeMillis() - startMillis);
+            if (state.pendingBatches.decrementAndGet() == 0 && !ctx.channel().config().isAutoRead()) {
+                logger.debug("Resuming reads");
+                ctx.channel().config().setAutoRead(true);
+            }
+        }, ctx.executor());
+    }
+
+    private void submit(ChannelHandlerContext ctx, List<Message> messages, CompletableFuture<Void> done,
+                        int attempt) {
+        if (!ctx.channel().isActive()) {
+            // the client will resend unacknowledged messages, don't hold up the batches queued behind this one
+            done.complete(null);
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    for (Message message : messages) {
+                        messageListener.onNewMessage(ctx, message);
+                    }
+                } catch (Throwable t) {
+                    messageListener.onException(ctx, t);
+                } finally {
+                    done.complete(null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // processing is backed up: stop reading from this connection and retry later
+            rejected.inc();
+            ctx.channel().config().setAutoRead(false);
+            long delayMillis = Math.min(MAX_RESUBMIT_DELAY_MILLIS, MIN_RESUBMIT_DELAY_MILLIS << Math.min(attempt, 10));
+            ctx.executor().schedule(() -> submit(ctx, messages, done, attempt + 1), delayMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         messageListener.onException(ctx, cause);
@@ -64,9 +181,12 @@ public class BeatsHandler extends SimpleChannelInboundHandler<Batch> {
             IdleStateEvent e = (IdleStateEvent) event;
 
             if(e.state() == IdleState.WRITER_IDLE) {
-                sendKeepAlive();
+                sendKeepAlive(ctx);
             } else if(e.state() == IdleState.READER_IDLE) {
-                clientTimeout();
+                // reads are withheld while batches of this connection are being processed
+                if (state(ctx).pendingBatches.get() == 0) {
+                    clientTimeout(ctx);
+                }
             }
         }
     }
@@ -83,16 +203,17 @@ public class BeatsHandler extends SimpleChannelInboundHandler<Batch> {
         ctx.write(new Ack(protocol, sequence));
     }
 
-    private void clientTimeout() {
+    private void clientTimeout(ChannelHandlerContext ctx) {
         logger.debug("Client Timeout");
-        this.context.close();
+        ctx.close();
     }
 
-    private void sendKeepAlive() {
+    private void sendKeepAlive(ChannelHandlerContext ctx) {
         // If we are actually blocked on processing
         // we can send a keep alive.
-        if(processing.get()) {
-            writeAck(context, Protocol.VERSION_2, 0);
+        if(processing.get() || state(ctx).pendingBatches.get() > 0) {
+            writeAck(ctx, Protocol.VERSION_2, 0);
+            ctx.flush();
         }
     }
-}
\ No newline at end of file
+}
@@ -1,30 +1,58 @@
 package org.logstash.beats;
 
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.module.afterburner.AfterburnerModule;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBufInputStream;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.CharsetUtil;
 import org.apache.log4j.Logger;
 
 
-import java.nio.charset.Charset;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
-import java.util.zip.InflaterOutputStream;
 
 
+/**
+ * Decodes Lumberjack v1 and Beats v2 frames into {@link Batch}es.
+ *
+ * JSON frames are parsed with a streaming parser straight from the received (or inflated) buffer. If a set of fields
+ * is given, only those top-level fields are kept, and of nested objects only their scalar values; everything else is
+ * skipped without being materialized. One {@link Inflater} is reused for all compressed frames of a connection.
+ */
 public class BeatsParser extends ByteToMessageDecoder {
     private static final int CHUNK_SIZE = 1024;
     public final static ObjectMapper MAPPER = new ObjectMapper().registerModule(new AfterburnerModule());
+    private final static JsonFactory JSON_FACTORY = MAPPER.getFactory();
     private final static Logger logger = Logger.getLogger(BeatsParser.class);
 
+    private final Set<String> fields;
+    private final Inflater inflater = new Inflater();
+    private byte[] compressed = new byte[CHUNK_SIZE];
     private Batch batch = new Batch();
 
+    public BeatsParser() {
+        this(null);
+    }
+
+    /**
+     * @param fields top-level fields of JSON messages to keep, or null to keep the whole message
+     */
+    public BeatsParser(Set<String> fields) {
+        this.fields = fields;
+    }
+
     private enum States {
         READ_HEADER(1),
         READ_FRAME_TYPE(1),
@@ -130,14 +158,12 @@ public class BeatsParser extends ByteToMessageDecoder {
 
                 while(count < fieldsCount) {
                     int fieldLength = (int) in.readUnsignedInt();
-                    ByteBuf fieldBuf = in.readBytes(fieldLength);
-                    String field = fieldBuf.toString(Charset.forName("UTF8"));
-                    fieldBuf.release();
+                    String field = in.toString(in.readerIndex(), fieldLength, CharsetUtil.UTF_8);
+                    in.skipBytes(fieldLength);
 
                     int dataLength = (int) in.readUnsignedInt();
-                    ByteBuf dataBuf = in.readBytes(dataLength);
-                    String data = dataBuf.toString(Charset.forName("UTF8"));
-                    dataBuf.release();
+                    String data = in.toString(in.readerIndex(), dataLength, CharsetUtil.UTF_8);
+                    in.skipBytes(dataLength);
 
                     dataMap.put(field, data);
 
@@ -179,20 +205,15 @@ public class BeatsParser extends ByteToMessageDecoder {
             case READ_COMPRESSED_FRAME: {
                 logger.debug("Running: READ_COMPRESSED_FRAME");
                 // Use the compressed size as the safe start for the buffer.
-                ByteBuf buffer = ctx.alloc().buffer(requiredBytes);
-                try (
-                        ByteBufOutputStream buffOutput = new ByteBufOutputStream(buffer);
-                        InflaterOutputStream inflater = new InflaterOutputStream(buffOutput, new Inflater());
-                ) {
-                    ByteBuf bytesRead = in.readBytes(inflater, requiredBytes);
+                ByteBuf buffer = ctx.alloc().heapBuffer(requiredBytes);
+                try {
+                    inflate(in, buffer);
                     transition(States.READ_HEADER);
-                    try {
-                        while (buffer.readableBytes() > 0) {
-                            decode(ctx, buffer, out);
-                        }
-                    } finally {
-                        buffer.release();
+                    while (buffer.readableBytes() > 0) {
+                        decode(ctx, buffer, out);
                     }
+                } finally {
+                    buffer.release();
                 }
 
                 break;
@@ -200,9 +221,8 @@ public class BeatsParser extends ByteToMessageDecoder {
             case READ_JSON: {
                 logger.debug("Running: READ_JSON");
 
-                byte[] bytes = new byte[requiredBytes];
-                in.readBytes(bytes);
-                Message message = new Message(sequence, (Map) MAPPER.readValue(bytes, Object.class));
+                Message message = new Message(sequence, parseJson(in, requiredBytes));
+                in.skipBytes(requiredBytes);
 
                 batch.addMessage(message);
 
@@ -219,6 +239,78 @@ public class BeatsParser extends ByteToMessageDecoder {
         }
     }
 
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        inflater.end();
+    }
+
+    private void inflate(ByteBuf in, ByteBuf out) throws DataFormatException, InvalidFrameProtocolException {
+        inflater.reset();
+        if (in.hasArray()) {
+            inflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), requiredBytes);
+        } else {
+            if (compressed.length < requiredBytes) {
+                compressed = new byte[requiredBytes];
+            }
+            in.getBytes(in.readerIndex(), compressed, 0, requiredBytes);
+            inflater.setInput(compressed, 0, requiredBytes);
+        }
+        in.skipBytes(requiredBytes);
+
+        while (!inflater.finished()) {
+            out.ensureWritable(CHUNK_SIZE);
+            int inflated = inflater.inflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new InvalidFrameProtocolException("Truncated compressed frame");
+            }
+            out.writerIndex(out.writerIndex() + inflated);
+        }
+    }
+
+    private Map parseJson(ByteBuf in, int length) throws IOException, InvalidFrameProtocolException {
+        JsonParser parser = in.hasArray()
+                ? JSON_FACTORY.createParser(in.array(), in.arrayOffset() + in.readerIndex(), length)
+                : JSON_FACTORY.createParser((InputStream) new ByteBufInputStream(in.slice(in.readerIndex(), length)));
+        try {
+            if (fields == null) {
+                return MAPPER.readValue(parser, Map.class);
+            }
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new InvalidFrameProtocolException("Invalid json frame, expected an object");
+            }
+            Map<String, Object> data = new HashMap<>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (!fields.contains(field)) {
+                    parser.skipChildren();
+                } else if (token == JsonToken.START_OBJECT) {
+                    data.put(field, parseScalars(parser));
+                } else if (token.isScalarValue()) {
+                    data.put(field, parser.getValueAsString());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return data;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static Map<String, String> parseScalars(JsonParser parser) throws IOException {
+        Map<String, String> data = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            if (parser.nextToken().isScalarValue()) {
+                data.put(field, parser.getValueAsString());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return data;
+    }
+
     private boolean hasEnoughBytes(ByteBuf in) {
         return in.readableBytes() >= requiredBytes;
     }
@@ -5,6 +5,11 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
@@ -20,6 +25,8 @@ import org.logstash.netty.SslSimpleBuilder;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 
@@ -28,14 +35,17 @@ public class Server {
     private final static Logger logger = Logger.getLogger(Server.class);
 
     static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
-    private static final int DEFAULT_CLIENT_TIMEOUT_SECONDS = 15;
+    public static final int DEFAULT_CLIENT_TIMEOUT_SECONDS = 15;
 
 
     private final int port;
-    private final NioEventLoopGroup bossGroup;
-    private final NioEventLoopGroup workGroup;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workGroup;
+    private final Class<? extends ServerChannel> serverChannelClass;
     private IMessageListener messageListener = new MessageListener();
     private SslSimpleBuilder sslBuilder;
+    private Executor processingExecutor;
+    private Set<String> messageFields;
 
     private final int clientInactivityTimeoutSeconds;
 
@@ -44,12 +54,29 @@ public class Server {
     }
 
     public Server(int p, int timeout) {
+        this(p, timeout, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param p             port to listen on
+     * @param timeout       client inactivity timeout in seconds
+     * @param workerThreads number of event loop threads for client connections
+     */
+    public Server(int p, int timeout, int workerThreads) {
         port = p;
         clientInactivityTimeoutSeconds = timeout;
-        bossGroup = new NioEventLoopGroup(10);
-        //bossGroup.setIoRatio(10);
-        workGroup = new NioEventLoopGroup(50);
-        //workGroup.setIoRatio(10);
+        // a single listening socket only ever needs one acceptor thread
+        if (Epoll.isAvailable()) {
+            logger.debug("Using native socket transport for port " + port);
+            bossGroup = new EpollEventLoopGroup(1);
+            workGroup = new EpollEventLoopGroup(workerThreads);
+            serverChannelClass = EpollServerSocketChannel.class;
+        } else {
+            logger.debug("Using NIO socket transport for port " + port);
+            bossGroup = new NioEventLoopGroup(1);
+            workGroup = new NioEventLoopGroup(workerThreads);
+            serverChannelClass = NioServerSocketChannel.class;
+        }
     }
 
     public void enableSSL(SslSimpleBuilder builder) {
@@ -62,11 +89,12 @@ public class Server {
         try {
             logger.info("Starting server on port: " +  this.port);
 
-            beatsInitializer = new BeatsInitializer(isSslEnable(), messageListener, clientInactivityTimeoutSeconds);
+            beatsInitializer = new BeatsInitializer(isSslEnable(), messageListener, processingExecutor,
+                    messageFields, clientInactivityTimeoutSeconds);
 
             ServerBootstrap server = new ServerBootstrap();
             server.group(bossGroup, workGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(serverChannelClass)
                     .childHandler(beatsInitializer);
 
             Channel channel = server.bind(port).sync().channel();
@@ -94,6 +122,20 @@ public class Server {
         messageListener = listener;
     }
 
+    /**
+     * Process messages on the given executor instead of the event loop. Batches are acknowledged once processed.
+     */
+    public void setProcessingExecutor(Executor executor) {
+        processingExecutor = executor;
+    }
+
+    /**
+     * Only keep the given top-level fields of JSON messages, skipping everything else while parsing.
+     */
+    public void setMessageFields(Set<String> fields) {
+        messageFields = fields;
+    }
+
     public boolean isSslEnable() {
         return this.sslBuilder != null;
     }
@@ -113,16 +155,19 @@ public class Server {
         private final EventExecutorGroup idleExecutorGroup;
         private final BeatsHandler beatsHandler;
         private final IMessageListener message;
+        private final Set<String> messageFields;
         private int clientInactivityTimeoutSeconds;
         private final LoggingHandler loggingHandler = new LoggingHandler();
 
 
         private boolean enableSSL = false;
 
-        public BeatsInitializer(Boolean secure, IMessageListener messageListener, int clientInactivityTimeoutSeconds) {
+        public BeatsInitializer(Boolean secure, IMessageListener messageListener, Executor processingExecutor,
+                                Set<String> messageFields, int clientInactivityTimeoutSeconds) {
             enableSSL = secure;
             this.message = messageListener;
-            beatsHandler = new BeatsHandler(this.message);
+            this.messageFields = messageFields;
+            beatsHandler = new BeatsHandler(this.message, processingExecutor);
             this.clientInactivityTimeoutSeconds = clientInactivityTimeoutSeconds;
             idleExecutorGroup = new DefaultEventExecutorGroup(DEFAULT_IDLESTATEHANDLER_THREAD);
         }
@@ -141,7 +186,7 @@ public class Server {
             // blocked on the queue, this the idleStateHandler manage the `KeepAlive` signal.
             pipeline.addLast(idleExecutorGroup, KEEP_ALIVE_HANDLER, new IdleStateHandler(clientInactivityTimeoutSeconds, IDLESTATE_WRITER_IDLE_TIME_SECONDS , IDLESTATE_ALL_IDLE_TIME_SECONDS));
 
-            pipeline.addLast(BEATS_PARSER, new BeatsParser());
+            pipeline.addLast(BEATS_PARSER, new BeatsParser(messageFields));
             pipeline.addLast(BEATS_ACKER, new AckEncoder());
             pipeline.addLast(BEATS_HANDLER, beatsHandler);
 
@@ -0,0 +1,178 @@
+package com.wavefront.agent;
+
+import com.google.common.collect.Maps;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Unit tests around {@link CachingHostnameResolver}.
+ */
+public class CachingHostnameResolverTest {
+  private static final long TIMEOUT_MILLIS = 100;
+  private static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final long NEGATIVE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  private final Map<InetAddress, String> names = Maps.newConcurrentMap();
+  private final AtomicInteger lookups = new AtomicInteger();
+  private final AtomicLong timeMillis = new AtomicLong(TimeUnit.DAYS.toMillis(1));
+  private final List<Runnable> pending = new CopyOnWriteArrayList<>();
+
+  private InetAddress address;
+
+  @Before
+  public void setup() throws Exception {
+    address = InetAddress.getByAddress(new byte[]{10, 0, 0, 1});
+  }
+
+  private String lookup(InetAddress address) {
+    lookups.incrementAndGet();
+    return names.getOrDefault(address, address.getHostAddress());
+  }
+
+  private CachingHostnameResolver resolver(Executor executor) {
+    return new CachingHostnameResolver(this::lookup, executor, timeMillis::get, TIMEOUT_MILLIS, TTL_MILLIS,
+        NEGATIVE_TTL_MILLIS, 100);
+  }
+
+  private void runPending() {
+    for (Runnable runnable : pending) {
+      pending.remove(runnable);
+      runnable.run();
+    }
+  }
+
+  @Test
+  public void testCachesResolvedNames() {
+    names.put(address, "host1.example.com");
+    CachingHostnameResolver subject = resolver(Runnable::run);
+
+    assertThat(subject.resolve(address)).isEqualTo("host1.example.com");
+    assertThat(subject.resolve(address)).isEqualTo("host1.example.com");
+    assertThat(lookups.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testNegativeCaching() {
+    CachingHostnameResolver subject = resolver(Runnable::run);
+    names.put(address, "");
+
+    assertThat(subject.resolve(address)).isEqualTo("10.0.0.1");
+    assertThat(subject.resolve(address)).isEqualTo("10.0.0.1");
+    assertThat(lookups.get()).isEqualTo(1);
+
+    // failed lookups are retried after the (shorter) negative ttl
+    names.put(address, "host1.example.com");
+    timeMillis.addAndGet(NEGATIVE_TTL_MILLIS);
+    assertThat(subject.resolve(address)).isEqualTo("10.0.0.1");
+    assertThat(lookups.get()).isEqualTo(2);
+    assertThat(subject.resolve(address)).isEqualTo("host1.example.com");
+  }
+
+  @Test
+  public void testResolverExceptionsAreCachedAsFailures() {
+    CachingHostnameResolver subject = new CachingHostnameResolver(address -> {
+      lookups.incrementAndGet();
+      throw new RuntimeException("DNS is down");
+    }, Runnable::run, timeMillis::get, TIMEOUT_MILLIS, TTL_MILLIS, NEGATIVE_TTL_MILLIS, 100);
+
+    assertThat(subject.resolve(address)).isEqualTo("10.0.0.1");
+    assertThat(subject.resolve(address)).isEqualTo("10.0.0.1");
+    assertThat(lookups.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testExpiredEntriesAreRefreshedInBackground() {
+    names.put(address, "host1.example.com");
+    CachingHostnameResolver subject = resolver(pending::add);
+    subject.resolve(address);
+    runPending();
+    assertThat(subject.resolve(address)).isEqualTo("host1.example.com");
+
+    names.put(address, "host2.example.com");
+    timeMillis.addAndGet(TTL_MILLIS);
+    // the expired name is served until the refresh is done
+    assertThat(subject.resolve(address)).isEqualTo("host1.example.com");
+    assertThat(subject.resolve(address)).isEqualTo("host1.example.com");
+    assertThat(pending).hasSize(1);
+    runPending();
+    assertThat(subject.resolve(address)).isEqualTo("host2.example.com");
+    assertThat(lookups.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testFailedRefreshKeepsLastGoodName() {
+    names.put(address, "host1.example.com");
+    CachingHostnameResolver subject = resolver(pending::add);
+    subject.resolve(address);
+    runPending();
+
+    names.put(address, "");
+    timeMillis.addAndGet(TTL_MILLIS);
+    subject.resolve(address);
+    runPending();
+    assertThat(subject.resolve(address)).isEqualTo("host1.example.com");
+    assertThat(pending).isEmpty();
+
+    // retried after the negative ttl
+    names.put(address, "host2.example.com");
+    timeMillis.addAndGet(NEGATIVE_TTL_MILLIS);
+    assertThat(subject.resolve(address)).isEqualTo("host1.example.com");
+    runPending();
+    assertThat(subject.resolve(address)).isEqualTo("host2.example.com");
+    assertThat(lookups.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void testFallsBackToAddressOnTimeout() throws Exception {
+    names.put(address, "slow.example.com");
+    CountDownLatch unblock = new CountDownLatch(1);
+    CachingHostnameResolver subject = resolver(runnable -> new Thread(() -> {
+      try {
+        unblock.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      runnable.run();
+    }).start());
+
+    long start = System.currentTimeMillis();
+    assertThat(subject.resolve(address)).isEqualTo("10.0.0.1");
+    assertThat(System.currentTimeMillis() - start).isAtLeast(TIMEOUT_MILLIS / 2);
+
+    // once the lookup's timeout has passed, later callers don't wait for it again
+    timeMillis.addAndGet(TIMEOUT_MILLIS);
+    start = System.currentTimeMillis();
+    assertThat(subject.resolve(address)).isEqualTo("10.0.0.1");
+    assertThat(System.currentTimeMillis() - start).isLessThan(TIMEOUT_MILLIS / 2);
+
+    unblock.countDown();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!subject.resolve(address).equals("slow.example.com") && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(subject.resolve(address)).isEqualTo("slow.example.com");
+    assertThat(lookups.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testCacheIsBounded() throws Exception {
+    CachingHostnameResolver subject = resolver(Runnable::run);
+    for (int i = 0; i < 1000; i++) {
+      subject.resolve(InetAddress.getByAddress(new byte[]{10, 0, (byte) (i >> 8), (byte) i}));
+    }
+    assertThat(subject.size()).isAtMost(100L);
+  }
+}
@@ -0,0 +1,92 @@
+package com.wavefront.agent;
+
+import com.google.common.base.Charsets;
+import com.squareup.tape.InMemoryObjectQueue;
+import com.wavefront.agent.histogram.QueuingChannelHandler;
+import com.wavefront.ingester.DatagramLineDecoder;
+import com.wavefront.ingester.GraphiteDecoder;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import sunnylabs.report.ReportPoint;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Unit tests around the datagram pipelines the {@link PushAgent} listens with on the push and histogram ports.
+ */
+public class DatagramListenerTest {
+  private static final InetSocketAddress PROXY = new InetSocketAddress("localhost", 2878);
+  private static final InetSocketAddress SENDER = new InetSocketAddress("localhost", 40000);
+
+  private static DatagramPacket datagram(String lines) {
+    return new DatagramPacket(Unpooled.copiedBuffer(lines, Charsets.UTF_8), PROXY, SENDER);
+  }
+
+  @Test
+  public void testPointsOfDatagramAreDecoded() {
+    List<ReportPoint> points = new ArrayList<>();
+    List<String> blocked = new ArrayList<>();
+    PointHandler pointHandler = new PointHandler() {
+      @Override
+      public void reportPoint(ReportPoint point, @Nullable String debugLine) {
+        points.add(point);
+      }
+
+      @Override
+      public void reportPoints(List<ReportPoint> reportPoints) {
+        points.addAll(reportPoints);
+      }
+
+      @Override
+      public void handleBlockedPoint(@Nullable String pointLine) {
+        blocked.add(pointLine);
+      }
+    };
+    EmbeddedChannel channel = new EmbeddedChannel(new DatagramLineDecoder(),
+        new ChannelStringHandler(new GraphiteDecoder("unknown", Collections.emptyList()), pointHandler, null));
+
+    // the last line of a datagram is not terminated, empty lines are skipped
+    channel.writeInbound(datagram("\"requests.count\" 5.0 1469751813 source=\"web-01\"\n\n" +
+        "\"\u2206requests.count\" 2.0 1469751813 source=\"web-01\" \"env\"=\"prod\"\n" +
+        "\"queue.size\" 7.0 1469751813"));
+
+    assertThat(blocked).isEmpty();
+    assertThat(points).hasSize(3);
+    assertThat(points.get(0).getMetric()).isEqualTo("requests.count");
+    assertThat(points.get(0).getValue()).isEqualTo(5.0);
+    assertThat(points.get(0).getHost()).isEqualTo("web-01");
+    assertThat(points.get(1).getMetric()).isEqualTo("\u2206requests.count");
+    assertThat(points.get(1).getAnnotations()).containsEntry("env", "prod");
+    // datagram lines are not annotated with the sender
+    assertThat(points.get(2).getHost()).isEqualTo("unknown");
+    for (ReportPoint point : points) {
+      Validation.validatePoint(point, "2878", null, Validation.Level.NUMERIC_ONLY);
+    }
+  }
+
+  @Test
+  public void testHistogramSamplesOfDatagramAreQueued() {
+    InMemoryObjectQueue<List<String>> tape = new InMemoryObjectQueue<>();
+    QueuingChannelHandler<String> handler = new QueuingChannelHandler<>(tape, 100);
+    EmbeddedChannel channel = new EmbeddedChannel(new DatagramLineDecoder(), handler);
+
+    channel.writeInbound(datagram("latency 10 source=web-01\nlatency 20 source=web-01\n"));
+    channel.writeInbound(datagram("latency 30 source=web-02"));
+    handler.getBufferFlushTask().run();
+
+    assertThat(tape.size()).isEqualTo(1);
+    assertThat(tape.peek()).containsExactly(
+        "latency 10 source=web-01", "latency 20 source=web-01", "latency 30 source=web-02").inOrder();
+  }
+}
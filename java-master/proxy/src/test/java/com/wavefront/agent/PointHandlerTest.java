@@ -1,6 +1,7 @@
 package com.wavefront.agent;
 
 import com.google.common.collect.ImmutableMap;
+import com.wavefront.ingester.GraphiteDecoder;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.time.DateUtils;
@@ -9,7 +10,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import jersey.repackaged.com.google.common.collect.ImmutableList;
@@ -66,6 +70,19 @@ public class PointHandlerTest {
     input = "~good.metric7";
     Assert.assertTrue(Validation.charactersAreValid(input));
 
+    // delta counters
+    input = "\u2206good.metric8";
+    Assert.assertTrue(Validation.charactersAreValid(input));
+
+    input = "\u0394good.metric9";
+    Assert.assertTrue(Validation.charactersAreValid(input));
+
+    input = "bad\u2206metric";
+    Assert.assertFalse(Validation.charactersAreValid(input));
+
+    input = "\u2206";
+    Assert.assertFalse(Validation.charactersAreValid(input));
+
     input = "abcdefghijklmnopqrstuvwxyz.0123456789,/_-ABCDEFGHIJKLMNOPQRSTUVWXYZ";
     Assert.assertTrue(Validation.charactersAreValid(input));
 
@@ -85,6 +102,16 @@ public class PointHandlerTest {
     Assert.assertFalse(Validation.charactersAreValid(input));
   }
 
+  @Test
+  public void testDeltaCounterIsValid() {
+    List<ReportPoint> points = new ArrayList<>();
+    new GraphiteDecoder("unknown", Collections.emptyList()).decodeReportPoints(
+        "\"\u2206requests.count\" 5.0 1469751813 source=\"web-01\"", points, "customer");
+    Assert.assertEquals(1, points.size());
+    Assert.assertEquals("\u2206requests.count", points.get(0).getMetric());
+    Validation.validatePoint(points.get(0), "2878", null, Validation.Level.NUMERIC_ONLY);
+  }
+
   @Test
   public void testPointAnnotationKeyValidation() {
     Map<String, String> goodMap = new HashMap<String, String>();
@@ -0,0 +1,180 @@
+package com.wavefront.agent.config;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.wavefront.agent.logsharvesting.LogsMessage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests around {@link MetricMatcherPrefilter} and {@link MetricMatcher#requiredLiterals()}.
+ */
+public class MetricMatcherPrefilterTest {
+  private static final Logger logger = Logger.getLogger(MetricMatcherPrefilterTest.class.getCanonicalName());
+
+  private final ObjectMapper objectMapper = new ObjectMapper(new YAMLFactory());
+
+  private MetricMatcher matcher(String pattern) throws Exception {
+    return objectMapper.readValue("pattern: '" + pattern + "'\nmetricName: 'test'", MetricMatcher.class);
+  }
+
+  private static LogsMessage message(String line) {
+    return new LogsMessage() {
+      @Override
+      public String getLogLine() {
+        return line;
+      }
+
+      @Override
+      public String hostOrDefault(String fallbackHost) {
+        return fallbackHost;
+      }
+    };
+  }
+
+  @Test
+  public void testRequiredLiterals() throws Exception {
+    assertEquals(ImmutableList.of(" seconds in DC=", "operation ", " took ", "AZ="),
+        matcher("operation %{WORD:op} took %{NUMBER:value} seconds in DC=%{WORD:dc}.*AZ=%{WORD:az}")
+            .requiredLiterals());
+    assertEquals(ImmutableList.of(" points attempted: ", ": [", "] "),
+        matcher("%{LOGLEVEL}: \\[%{NUMBER:port}\\] %{GREEDYDATA} points attempted: %{NUMBER:pointsAttempted}")
+            .requiredLiterals());
+    assertEquals(ImmutableList.of("colo", "r "), matcher("colou?r %{NUMBER:value}").requiredLiterals());
+    assertEquals(ImmutableList.of("took ", "ms"), matcher("took \\d+ms").requiredLiterals());
+    assertEquals(ImmutableList.of("request ", " done"), matcher("request (GET|POST) done").requiredLiterals());
+    assertTrue(matcher("%{COMBINEDAPACHELOG}").requiredLiterals().isEmpty());
+    assertTrue(matcher("alpha|bravo").requiredLiterals().isEmpty());
+    assertTrue(matcher("(?i)error %{GREEDYDATA}").requiredLiterals().isEmpty());
+  }
+
+  @Test
+  public void testScan() throws Exception {
+    MetricMatcher temperature = matcher("temperature %{NUMBER:value}");
+    MetricMatcher operation = matcher("operation %{WORD:op} took %{NUMBER:value} seconds");
+    MetricMatcher apache = matcher("%{COMBINEDAPACHELOG}");
+    MetricMatcherPrefilter prefilter = new MetricMatcherPrefilter(ImmutableList.of(temperature, operation, apache));
+
+    boolean[] found = prefilter.scan("operation foo took 42 seconds");
+    assertFalse(prefilter.mayMatch(temperature, found));
+    assertTrue(prefilter.mayMatch(operation, found));
+    assertTrue(prefilter.mayMatch(apache, found));
+
+    found = prefilter.scan("operation foo took 42 minutes");
+    assertFalse(prefilter.mayMatch(operation, found));
+
+    // overlapping literals
+    found = prefilter.scan("current temperaturetemperature 12");
+    assertTrue(prefilter.mayMatch(temperature, found));
+  }
+
+  private static List<MetricMatcher> allMatchers(LogsIngestionConfig config) {
+    List<MetricMatcher> matchers = Lists.newArrayList();
+    matchers.addAll(config.counters);
+    matchers.addAll(config.gauges);
+    matchers.addAll(config.histograms);
+    return matchers;
+  }
+
+  private static void assertNeverSkipsMatches(LogsIngestionConfig config, List<String> lines) {
+    MetricMatcherPrefilter prefilter = config.prefilter();
+    for (String line : lines) {
+      boolean[] found = prefilter.scan(line);
+      for (MetricMatcher matcher : allMatchers(config)) {
+        if (matcher.timeSeries(message(line), null) != null) {
+          assertTrue("Prefilter skipped " + matcher.getPattern() + " for " + line, prefilter.mayMatch(matcher, found));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testNeverSkipsMatchingMatchers() throws Exception {
+    File configFile = new File(MetricMatcherPrefilterTest.class.getClassLoader().getResource("test.yml").getPath());
+    LogsIngestionConfig config = objectMapper.readValue(configFile, LogsIngestionConfig.class);
+    config.verifyAndInit();
+    assertNeverSkipsMatches(config, ImmutableList.of(
+        "counterWithValue 42",
+        "plainCounter",
+        "dynamicCounter foo 1 done",
+        "myword and 42",
+        "operation foo took 2 seconds in DC=wavefront AZ=2a",
+        "52.34.54.96 - - [11/Oct/2016:06:35:45 +0000] \"GET /api/alert/summary HTTP/1.0\" 200 632 " +
+            "\"https://dev-2b.corp.wavefront.com/chart\" \"Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_6)\"",
+        "gauges 123",
+        "WARNING: [2878] (SUMMARY): points attempted: 859432; blocked: 0",
+        "histo 123.45",
+        "nothing to see here"));
+  }
+
+  @Test
+  public void testBenchmark() throws Exception {
+    // ~200 application-style matchers, as seen in larger deployments
+    LogsIngestionConfig config = new LogsIngestionConfig();
+    List<MetricMatcher> counters = Lists.newArrayList();
+    for (int i = 0; i < 200; i++) {
+      counters.add(objectMapper.readValue("pattern: 'service" + i + " request %{WORD:op} took %{NUMBER:value} ms'\n" +
+          "metricName: 'service" + i + ".latency'", MetricMatcher.class));
+    }
+    config.counters = counters;
+    config.verifyAndInit();
+    List<MetricMatcher> matchers = allMatchers(config);
+    MetricMatcherPrefilter prefilter = config.prefilter();
+
+    // realistic corpus: mostly unrelated lines, some matching ones
+    Random random = new Random(42);
+    List<String> corpus = Lists.newArrayList();
+    for (int i = 0; i < 2000; i++) {
+      switch (random.nextInt(4)) {
+        case 0:
+          corpus.add("10.0.0." + random.nextInt(255) + " - - [11/Oct/2016:06:35:45 +0000] \"GET /api/v" + i +
+              " HTTP/1.1\" 200 " + random.nextInt(10000) + " \"-\" \"curl/7.43.0\"");
+          break;
+        case 1:
+          corpus.add("2016-10-11 06:35:45,123 INFO [main] com.example.Worker - processed batch " + i);
+          break;
+        case 2:
+          corpus.add("2016-10-11 06:35:45,123 WARN [pool-1] connection reset by peer, retrying in " + i + "ms");
+          break;
+        default:
+          corpus.add("service" + random.nextInt(200) + " request get took " + random.nextInt(1000) + " ms");
+      }
+    }
+
+    long start = System.nanoTime();
+    int naiveHits = 0;
+    for (String line : corpus) {
+      for (MetricMatcher matcher : matchers) {
+        if (matcher.timeSeries(message(line), null) != null) naiveHits++;
+      }
+    }
+    long naiveNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    int prefilteredHits = 0;
+    for (String line : corpus) {
+      boolean[] found = prefilter.scan(line);
+      for (MetricMatcher matcher : matchers) {
+        if (prefilter.mayMatch(matcher, found) && matcher.timeSeries(message(line), null) != null) prefilteredHits++;
+      }
+    }
+    long prefilteredNanos = System.nanoTime() - start;
+
+    logger.info("Matched " + corpus.size() + " lines against " + matchers.size() + " matchers: " +
+        (naiveNanos / corpus.size()) + " ns/line without prefilter, " + (prefilteredNanos / corpus.size()) +
+        " ns/line with prefilter");
+    assertEquals(naiveHits, prefilteredHits);
+  }
+}
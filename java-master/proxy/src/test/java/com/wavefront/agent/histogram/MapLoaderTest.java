@@ -2,9 +2,14 @@ package com.wavefront.agent.histogram;
 
 import com.tdunning.math.stats.AgentDigest;
 import com.tdunning.math.stats.AgentDigest.AgentDigestMarshaller;
+import com.tdunning.math.stats.AgentDigest.CompactAgentDigestMarshaller;
 import com.wavefront.agent.histogram.Utils.HistogramKey;
 import com.wavefront.agent.histogram.Utils.HistogramKeyMarshaller;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
 
+import net.openhft.chronicle.bytes.Bytes;
 import net.openhft.chronicle.map.ChronicleMap;
 import net.openhft.chronicle.map.VanillaChronicleMap;
 
@@ -113,6 +118,99 @@ public class MapLoaderTest {
   }
 
 
+  @Test
+  public void testCompactEncodingPersistence() {
+    digest.add(1.5D, 3);
+    digest.add(-42D, 1);
+    digest.add(1000D, 7);
+    MapLoader<HistogramKey, AgentDigest, HistogramKeyMarshaller, CompactAgentDigestMarshaller> compactLoader =
+        newCompactLoader();
+    ConcurrentMap<HistogramKey, AgentDigest> map = compactLoader.get(file);
+    map.put(key, digest);
+
+    map = newCompactLoader().get(file);
+    assertThat(map).containsKey(key);
+    AgentDigest restored = map.get(key);
+    assertThat(restored.getDispatchTimeMillis()).isEqualTo(100L);
+    assertThat(restored.size()).isEqualTo(11L);
+    assertThat(restored.centroids()).hasSize(3);
+  }
+
+  @Test
+  public void testCompactEncodingReadsLegacyEntries() {
+    digest.add(3D, 2);
+    AgentDigestMarshaller legacy = AgentDigestMarshaller.get();
+    Bytes<?> bytes = Bytes.elasticByteBuffer();
+    long size = legacy.size(digest);
+    legacy.write(bytes, size, digest);
+
+    AgentDigest restored = new CompactAgentDigestMarshaller().read(bytes, size, null);
+    assertThat(restored.size()).isEqualTo(2L);
+    assertThat(restored.getDispatchTimeMillis()).isEqualTo(100L);
+    assertThat(restored.centroids()).hasSize(1);
+  }
+
+  @Test
+  public void testCompactEncodingMigratesLegacyFile() {
+    digest.add(3D, 2);
+    ChronicleMap<HistogramKey, AgentDigest> map = loader.get(file);
+    map.put(key, digest);
+    map.close();
+
+    map = newCompactLoader().get(file);
+    assertThat(((VanillaChronicleMap) map).valueReader.toString())
+        .isEqualTo(new CompactAgentDigestMarshaller().toString());
+    AgentDigest restored = map.get(key);
+    assertThat(restored.size()).isEqualTo(2L);
+    assertThat(restored.getDispatchTimeMillis()).isEqualTo(100L);
+  }
+
+  @Test
+  public void testCompactEncodingIsSmaller() {
+    for (int i = 0; i < 10000; i++) {
+      digest.add(Math.random() * 1000D);
+    }
+    assertThat(new CompactAgentDigestMarshaller().size(digest))
+        .isLessThan(AgentDigestMarshaller.get().size(digest));
+    assertThat(new CompactAgentDigestMarshaller(12).size(digest))
+        .isLessThan(new CompactAgentDigestMarshaller().size(digest));
+  }
+
+  @Test
+  public void testAccumulatorStatistics() {
+    ConcurrentMap<HistogramKey, AgentDigest> map = loader.get(file);
+    AccumulatorStatistics empty =
+        AccumulatorStatistics.collect(map, HistogramKeyMarshaller.get(), AgentDigestMarshaller.get());
+    assertThat(empty.getEntries()).isEqualTo(0);
+    assertThat(empty.getRecommendedAvgDigestBytes()).isEqualTo(-1);
+
+    digest.add(1D);
+    map.put(key, digest);
+    Histogram valueSizes = Metrics.newHistogram(new MetricName("histogram", "", "accumulatorValueSize"));
+    long recorded = valueSizes.count();
+    AccumulatorStatistics stats =
+        AccumulatorStatistics.collect(map, HistogramKeyMarshaller.get(), AgentDigestMarshaller.get());
+    assertThat(stats.getEntries()).isEqualTo(1);
+    // measuring doesn't count as storing a value
+    assertThat(valueSizes.count()).isEqualTo(recorded);
+    // compression + dispatch time + one centroid
+    assertThat(stats.getRecommendedAvgDigestBytes()).isEqualTo(18);
+    assertThat(stats.getRecommendedAvgKeyBytes()).isGreaterThan(0);
+  }
+
+  private MapLoader<HistogramKey, AgentDigest, HistogramKeyMarshaller, CompactAgentDigestMarshaller>
+  newCompactLoader() {
+    return new MapLoader<>(
+        HistogramKey.class,
+        AgentDigest.class,
+        100,
+        200,
+        1000,
+        HistogramKeyMarshaller.get(),
+        new CompactAgentDigestMarshaller(),
+        true);
+  }
+
   // NOTE: Chronicle's repair attempt takes >1min for whatever reason.
   @Ignore
   @Test
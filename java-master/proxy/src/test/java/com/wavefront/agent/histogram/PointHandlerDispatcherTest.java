@@ -6,10 +6,13 @@ import com.wavefront.agent.PointHandler;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 
 import sunnylabs.report.ReportPoint;
@@ -72,7 +75,7 @@ public class PointHandlerDispatcherTest {
     subject.run();
 
     assertThat(pointOut).hasSize(1);
-    assertThat(debugLineOut).hasSize(1);
+    assertThat(debugLineOut).containsExactly(keyA.toString());
     assertThat(blockedOut).hasSize(0);
     assertThat(in).isEmpty();
 
@@ -98,4 +101,77 @@ public class PointHandlerDispatcherTest {
 
     TestUtils.testKeyPointMatch(keyA, point);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testShardedBatchedDispatch() {
+    List<List<ReportPoint>> batches = Collections.synchronizedList(new LinkedList<>());
+    PointHandler batchingHandler = new PointHandler() {
+      @Override
+      public void reportPoint(ReportPoint point, String debugLine) {
+        batches.add(Collections.singletonList(point));
+      }
+
+      @Override
+      public void reportPoints(List<ReportPoint> points) {
+        batches.add(points);
+      }
+
+      @Override
+      public void handleBlockedPoint(String pointLine) {
+        blockedOut.add(pointLine);
+      }
+    };
+    for (int i = 0; i < 100; i++) {
+      in.put(TestUtils.makeKey("key" + i), new AgentDigest(COMPRESSION, 100L));
+    }
+    timeMillis.set(101L);
+
+    int shards = 3;
+    ExecutorService executor = Executors.newFixedThreadPool(shards);
+    try {
+      new PointHandlerDispatcher(in, batchingHandler, timeMillis::get, executor, shards, 10, 0).run();
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(in).isEmpty();
+    int dispatched = 0;
+    for (List<ReportPoint> batch : batches) {
+      assertThat(batch.size()).isAtMost(10);
+      dispatched += batch.size();
+    }
+    assertThat(dispatched).isEqualTo(100);
+  }
+
+  @Test
+  public void testDispatchIsBoundedPerRun() {
+    for (int i = 0; i < 25; i++) {
+      in.put(TestUtils.makeKey("key" + i), new AgentDigest(COMPRESSION, 100L));
+    }
+    timeMillis.set(101L);
+    PointHandlerDispatcher bounded = new PointHandlerDispatcher(in, new PointHandler() {
+      @Override
+      public void reportPoint(ReportPoint point, String debugLine) {
+        pointOut.add(point);
+      }
+
+      @Override
+      public void reportPoints(List<ReportPoint> points) {
+        pointOut.addAll(points);
+      }
+
+      @Override
+      public void handleBlockedPoint(String pointLine) {
+        blockedOut.add(pointLine);
+      }
+    }, timeMillis::get, null, 1, 5, 10);
+
+    bounded.run();
+    assertThat(pointOut).hasSize(10);
+    assertThat(in).hasSize(15);
+    bounded.run();
+    bounded.run();
+    assertThat(pointOut).hasSize(25);
+    assertThat(in).isEmpty();
+  }
+}
@@ -0,0 +1,145 @@
+package com.wavefront.agent.histogram.accumulator;
+
+import com.google.common.collect.ImmutableMap;
+
+import com.tdunning.math.stats.AgentDigest;
+import com.wavefront.agent.histogram.Utils;
+import com.wavefront.agent.histogram.Utils.HistogramKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import sunnylabs.report.ReportPoint;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Unit tests around {@link AccumulatorCheckpointer}.
+ */
+public class AccumulatorCheckpointerTest {
+  private final static short COMPRESSION = 100;
+
+  private File file;
+
+  @Before
+  public void setup() throws IOException {
+    file = File.createTempFile("accumulator", ".checkpoint");
+    file.delete();
+  }
+
+  @After
+  public void cleanup() {
+    file.delete();
+  }
+
+  private static HistogramKey makeKey(String metric) {
+    return Utils.makeKey(ReportPoint.newBuilder()
+        .setMetric(metric)
+        .setHost("host")
+        .setAnnotations(ImmutableMap.of("env", "test"))
+        .setTimestamp(System.currentTimeMillis())
+        .setValue(1D)
+        .build(), Utils.Granularity.MINUTE);
+  }
+
+  private static AgentDigest makeDigest(long dispatchTimeMillis, double... values) {
+    AgentDigest digest = new AgentDigest(COMPRESSION, dispatchTimeMillis);
+    for (double value : values) {
+      digest.add(value);
+    }
+    return digest;
+  }
+
+  private ConcurrentMap<HistogramKey, AgentDigest> restart(int threads) {
+    AccumulatorCheckpointer checkpointer = new AccumulatorCheckpointer(file);
+    ConcurrentMap<HistogramKey, AgentDigest> restored = new ConcurrentHashMap<>();
+    checkpointer.track(restored);
+    checkpointer.restore(threads);
+    return restored;
+  }
+
+  @Test
+  public void testCheckpointAndRestore() {
+    AccumulatorCheckpointer checkpointer = new AccumulatorCheckpointer(file);
+    ConcurrentMap<HistogramKey, AgentDigest> accumulator = checkpointer.track(new ConcurrentHashMap<>());
+    checkpointer.restore(1);
+
+    HistogramKey key1 = makeKey("checkpoint1");
+    HistogramKey key2 = makeKey("checkpoint2");
+    accumulator.put(key1, makeDigest(1000L, 1, 2, 3));
+    accumulator.put(key2, makeDigest(2000L, 4));
+    checkpointer.checkpoint();
+
+    // incremental segments: update one key, remove the other
+    accumulator.merge(key1, makeDigest(1000L, 4), Utils::mergeDigests);
+    accumulator.remove(key2);
+    checkpointer.checkpoint();
+
+    ConcurrentMap<HistogramKey, AgentDigest> restored = restart(2);
+    assertThat(restored).hasSize(1);
+    assertThat(restored.get(key1).size()).isEqualTo(4L);
+    assertThat(restored.get(key1).getDispatchTimeMillis()).isEqualTo(1000L);
+    assertThat(restored).doesNotContainKey(key2);
+  }
+
+  @Test
+  public void testTornSegmentIsDiscarded() throws IOException {
+    AccumulatorCheckpointer checkpointer = new AccumulatorCheckpointer(file);
+    ConcurrentMap<HistogramKey, AgentDigest> accumulator = checkpointer.track(new ConcurrentHashMap<>());
+    checkpointer.restore(1);
+
+    HistogramKey key1 = makeKey("torn1");
+    HistogramKey key2 = makeKey("torn2");
+    accumulator.put(key1, makeDigest(1000L, 1));
+    checkpointer.checkpoint();
+    long intactLength = file.length();
+    accumulator.put(key2, makeDigest(1000L, 2));
+    checkpointer.checkpoint();
+
+    // simulate a crash halfway through writing the last segment
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(intactLength + (file.length() - intactLength) / 2);
+    }
+
+    ConcurrentMap<HistogramKey, AgentDigest> restored = restart(1);
+    assertThat(restored.keySet()).containsExactly(key1);
+  }
+
+  @Test
+  public void testRestoreMergesWithLiveData() {
+    AccumulatorCheckpointer checkpointer = new AccumulatorCheckpointer(file);
+    ConcurrentMap<HistogramKey, AgentDigest> accumulator = checkpointer.track(new ConcurrentHashMap<>());
+    checkpointer.restore(1);
+    HistogramKey key = makeKey("merge");
+    accumulator.put(key, makeDigest(1000L, 1, 2));
+    checkpointer.checkpoint();
+
+    // data accumulated while restoring in the background
+    AccumulatorCheckpointer restarted = new AccumulatorCheckpointer(file);
+    ConcurrentMap<HistogramKey, AgentDigest> live = restarted.track(new ConcurrentHashMap<>());
+    live.put(key, makeDigest(1000L, 3));
+    restarted.restore(4);
+
+    assertThat(live.get(key).size()).isEqualTo(3L);
+  }
+
+  @Test
+  public void testCheckpointsAreSkippedUntilRestored() {
+    AccumulatorCheckpointer checkpointer = new AccumulatorCheckpointer(file);
+    ConcurrentMap<HistogramKey, AgentDigest> accumulator = checkpointer.track(new ConcurrentHashMap<>());
+    accumulator.put(makeKey("skipped"), makeDigest(1000L, 1));
+    checkpointer.checkpoint();
+    assertThat(file.exists()).isFalse();
+
+    // restore compacts the current state
+    checkpointer.restore(1);
+    assertThat(restart(1)).hasSize(1);
+  }
+}
@@ -0,0 +1,204 @@
+package com.wavefront.agent.histogram.accumulator;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import com.tdunning.math.stats.AgentDigest;
+import com.wavefront.agent.histogram.Utils;
+import com.wavefront.agent.histogram.Utils.HistogramKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sunnylabs.report.ReportPoint;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Unit tests around {@link SpillingAccumulator}.
+ */
+public class SpillingAccumulatorTest {
+  private final static short COMPRESSION = 100;
+  private final static int MAX_HOT_ENTRIES = 100;
+
+  private File directory;
+  private AtomicLong timeMillis;
+  private ConcurrentMap<HistogramKey, AgentDigest> hot;
+  private SpillingAccumulator subject;
+
+  @Before
+  public void setup() throws Exception {
+    directory = Files.createTempDir();
+    timeMillis = new AtomicLong(TimeUnit.DAYS.toMillis(1));
+    hot = new ConcurrentHashMap<>();
+    subject = restart(hot);
+  }
+
+  private SpillingAccumulator restart(ConcurrentMap<HistogramKey, AgentDigest> hot) throws IOException {
+    return new SpillingAccumulator(hot, MAX_HOT_ENTRIES, TimeUnit.MINUTES.toMillis(10), directory,
+        timeMillis::get, MoreExecutors.directExecutor());
+  }
+
+  private String[] runFiles() {
+    return directory.list((dir, name) -> name.startsWith("run-"));
+  }
+
+  @After
+  public void cleanup() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  private static HistogramKey makeKey(String metric) {
+    return Utils.makeKey(ReportPoint.newBuilder()
+        .setMetric(metric)
+        .setHost("host")
+        .setAnnotations(ImmutableMap.of("env", "test"))
+        .setTimestamp(0L)
+        .setValue(1D)
+        .build(), Utils.Granularity.DAY);
+  }
+
+  private void add(HistogramKey key, double value) {
+    subject.compute(key, (k, v) -> {
+      if (v == null) {
+        v = new AgentDigest(COMPRESSION, timeMillis.get() + TimeUnit.DAYS.toMillis(1));
+      }
+      v.add(value);
+      return v;
+    });
+  }
+
+  @Test
+  public void testSustainsTenTimesCapacity() {
+    int series = 10 * MAX_HOT_ENTRIES;
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < series; i++) {
+        add(makeKey("series" + i), i);
+        assertThat(hot.size()).isAtMost(MAX_HOT_ENTRIES);
+        timeMillis.incrementAndGet();
+      }
+    }
+
+    assertThat(subject).hasSize(series);
+    assertThat(subject.coldSize()).isGreaterThan(0);
+    for (int i = 0; i < series; i++) {
+      AgentDigest digest = subject.get(makeKey("series" + i));
+      assertThat(digest).isNotNull();
+      assertThat(digest.size()).isEqualTo(3L);
+      assertThat(digest.quantile(0.5)).isWithin(1e-6).of(i);
+    }
+  }
+
+  @Test
+  public void testIdleEntriesAreSpilledAndReloadedOnUpdate() {
+    HistogramKey idle = makeKey("idle");
+    HistogramKey busy = makeKey("busy");
+    add(idle, 1);
+    timeMillis.addAndGet(TimeUnit.MINUTES.toMillis(9));
+    add(busy, 1);
+    timeMillis.addAndGet(TimeUnit.MINUTES.toMillis(2));
+
+    subject.getSpillTask().run();
+    assertThat(hot.keySet()).containsExactly(busy);
+    assertThat(subject.coldSize()).isEqualTo(1);
+    assertThat(subject.keySet()).containsExactly(idle, busy);
+
+    add(idle, 2);
+    assertThat(hot.keySet()).containsExactly(idle, busy);
+    assertThat(subject.coldSize()).isEqualTo(0);
+    assertThat(subject.get(idle).size()).isEqualTo(2L);
+    // run file is gone once all its entries have been reloaded
+    assertThat(runFiles()).isEmpty();
+  }
+
+  @Test
+  public void testColdEntriesSurviveRestart() throws Exception {
+    HistogramKey key = makeKey("restart");
+    add(key, 42);
+    timeMillis.addAndGet(TimeUnit.MINUTES.toMillis(11));
+    subject.getSpillTask().run();
+    assertThat(subject.coldSize()).isEqualTo(1);
+    subject.close();
+
+    SpillingAccumulator restarted = restart(new ConcurrentHashMap<>());
+    assertThat(restarted.coldSize()).isEqualTo(1);
+    assertThat(restarted.get(key).quantile(0.5)).isWithin(1e-6).of(42);
+  }
+
+  @Test
+  public void testColdEntriesSurviveUncleanShutdown() throws Exception {
+    HistogramKey spilled = makeKey("spilled");
+    HistogramKey reloaded = makeKey("reloaded");
+    add(spilled, 1);
+    add(reloaded, 2);
+    timeMillis.addAndGet(TimeUnit.MINUTES.toMillis(11));
+    subject.getSpillTask().run();
+    assertThat(subject.coldSize()).isEqualTo(2);
+    add(reloaded, 3);
+
+    // no close(), the reloaded entry is only in the in-memory tier
+    SpillingAccumulator restarted = restart(new ConcurrentHashMap<>());
+    assertThat(restarted.keySet()).containsExactly(spilled);
+    assertThat(restarted.get(spilled).quantile(0.5)).isWithin(1e-6).of(1);
+  }
+
+  @Test
+  public void testRunsWithoutIndexAreDiscarded() throws Exception {
+    File orphan = new File(directory, "run-42");
+    assertThat(orphan.createNewFile()).isTrue();
+
+    SpillingAccumulator restarted = restart(new ConcurrentHashMap<>());
+    assertThat(restarted).isEmpty();
+    assertThat(runFiles()).isEmpty();
+  }
+
+  @Test
+  public void testFullInMemoryTierIsSpilledInBackground() throws Exception {
+    List<Runnable> scheduled = new ArrayList<>();
+    subject = new SpillingAccumulator(hot, MAX_HOT_ENTRIES, TimeUnit.MINUTES.toMillis(10), directory,
+        timeMillis::get, scheduled::add);
+    for (int i = 0; i < MAX_HOT_ENTRIES; i++) {
+      add(makeKey("series" + i), i);
+      timeMillis.incrementAndGet();
+    }
+    assertThat(subject.coldSize()).isEqualTo(0);
+    assertThat(scheduled).hasSize(1);
+
+    scheduled.get(0).run();
+    assertThat(subject.coldSize()).isEqualTo(MAX_HOT_ENTRIES / 10);
+    assertThat(subject.get(makeKey("series0"))).isNotNull();
+  }
+
+  @Test
+  public void testDueColdEntriesAreDispatched() {
+    HistogramKey key = makeKey("due");
+    add(key, 1);
+    long dispatchTimeMillis = subject.get(key).getDispatchTimeMillis();
+    timeMillis.addAndGet(TimeUnit.MINUTES.toMillis(11));
+    subject.getSpillTask().run();
+
+    assertThat(subject.isColdAndNotDue(key, timeMillis.get())).isTrue();
+    assertThat(subject.isColdAndNotDue(key, dispatchTimeMillis + 1)).isFalse();
+
+    subject.computeIfPresent(key, (k, v) -> null);
+    assertThat(subject).isEmpty();
+    assertThat(runFiles()).isEmpty();
+  }
+}
@@ -0,0 +1,206 @@
+package com.wavefront.agent.histogram.cluster;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import com.tdunning.math.stats.AgentDigest;
+import com.wavefront.agent.histogram.Utils;
+import com.wavefront.agent.histogram.Utils.HistogramKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sunnylabs.report.ReportPoint;
+
+import static com.google.common.truth.Truth.assertThat;
+
+/**
+ * Unit tests around {@link ClusterRouter}, using peers on localhost ports.
+ */
+public class ClusterRouterTest {
+  private final static short COMPRESSION = 100;
+  private final static long TIME_MILLIS = TimeUnit.MINUTES.toMillis(1000);
+
+  private AtomicLong timeMillis;
+  private ConcurrentMap<HistogramKey, AgentDigest> local;
+  private ConcurrentMap<HistogramKey, AgentDigest> remote;
+  private Thread peerThread;
+
+  @Before
+  public void setup() {
+    timeMillis = new AtomicLong(TIME_MILLIS);
+    local = new ConcurrentHashMap<>();
+    remote = new ConcurrentHashMap<>();
+  }
+
+  @After
+  public void cleanup() throws InterruptedException {
+    if (peerThread != null) {
+      peerThread.interrupt();
+      peerThread.join(TimeUnit.SECONDS.toMillis(10));
+    }
+  }
+
+  private static HistogramKey key(String metric, long timestamp) {
+    return Utils.makeKey(ReportPoint.newBuilder()
+        .setMetric(metric)
+        .setHost("host")
+        .setAnnotations(ImmutableMap.of("env", "test"))
+        .setTimestamp(timestamp)
+        .setValue(1D)
+        .build(), Utils.Granularity.MINUTE);
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static void awaitListening(int port) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (System.currentTimeMillis() < deadline) {
+      try (Socket socket = new Socket("localhost", port)) {
+        return;
+      } catch (IOException e) {
+        Thread.sleep(50);
+      }
+    }
+  }
+
+  private static void accumulate(ConcurrentMap<HistogramKey, AgentDigest> map, HistogramKey key, double value,
+                                 long dispatchTimeMillis) {
+    map.compute(key, (k, v) -> {
+      AgentDigest digest = v == null ? new AgentDigest(COMPRESSION, dispatchTimeMillis) : v;
+      digest.add(value);
+      return digest;
+    });
+  }
+
+  @Test
+  public void testRingIsStableAcrossBinsAndSpreadsSeries() {
+    List<String> members = ImmutableList.of("proxy1:40010", "proxy2:40010", "proxy3:40010");
+    ConsistentHashRing ring = new ConsistentHashRing(members, 128);
+    ConsistentHashRing reordered = new ConsistentHashRing(ImmutableList.of(members.get(2), members.get(0),
+        members.get(1)), 128);
+    Map<String, Integer> owned = new HashMap<>();
+    for (int i = 0; i < 3000; i++) {
+      String owner = ring.ownerOf(key("metric" + i, TIME_MILLIS));
+      assertThat(ring.ownerOf(key("metric" + i, TIME_MILLIS + TimeUnit.MINUTES.toMillis(5)))).isEqualTo(owner);
+      assertThat(reordered.ownerOf(key("metric" + i, TIME_MILLIS))).isEqualTo(owner);
+      owned.merge(owner, 1, Integer::sum);
+    }
+    assertThat(owned.keySet()).containsExactlyElementsIn(members);
+    for (int count : owned.values()) {
+      assertThat(count).isGreaterThan(500);
+    }
+  }
+
+  @Test
+  public void testForwardsToOwningPeer() throws Exception {
+    int selfPort = freePort();
+    int peerPort = freePort();
+    String self = "localhost:" + selfPort;
+    String peer = "localhost:" + peerPort;
+    PeerIngester peerIngester = new PeerIngester(remote, peerPort, COMPRESSION, timeMillis::get);
+    peerThread = new Thread(peerIngester);
+    peerThread.start();
+    awaitListening(peerPort);
+
+    ClusterRouter router = new ClusterRouter(ImmutableList.of(self, peer), self, 128, 1000, 1000L, timeMillis::get);
+    ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.of(self, peer), 128);
+    int expectedRemote = 0;
+    for (int i = 0; i < 100; i++) {
+      HistogramKey key = key("metric" + i, TIME_MILLIS);
+      accumulate(router.route(key, local), key, i, TIME_MILLIS + 60000L);
+      accumulate(router.route(key, local), key, i + 1, TIME_MILLIS + 60000L);
+      if (ring.ownerOf(key).equals(peer)) {
+        expectedRemote++;
+      }
+    }
+    assertThat(local).hasSize(100 - expectedRemote);
+
+    PeerForwarder forwarder = router.getForwarders().iterator().next();
+    forwarder.getFlushTask(local).run();
+    assertThat(forwarder.isDown()).isFalse();
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (remote.size() < expectedRemote && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertThat(remote).hasSize(expectedRemote);
+    for (Map.Entry<HistogramKey, AgentDigest> entry : remote.entrySet()) {
+      assertThat(ring.ownerOf(entry.getKey())).isEqualTo(peer);
+      assertThat(entry.getValue().size()).isAtLeast(2L);
+      assertThat(entry.getValue().getDispatchTimeMillis()).isEqualTo(TIME_MILLIS + 60000L);
+    }
+    forwarder.close();
+  }
+
+  @Test
+  public void testFallsBackToLocalWhenPeerIsDown() throws Exception {
+    String self = "localhost:" + freePort();
+    String peer = "localhost:" + freePort(); // nothing listening
+    ClusterRouter router = new ClusterRouter(ImmutableList.of(self, peer), self, 128, 1000, 30000L, timeMillis::get);
+    ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.of(self, peer), 128);
+
+    HistogramKey remoteKey = null;
+    for (int i = 0; remoteKey == null; i++) {
+      HistogramKey key = key("metric" + i, TIME_MILLIS);
+      if (ring.ownerOf(key).equals(peer)) {
+        remoteKey = key;
+      }
+    }
+    ConcurrentMap<HistogramKey, AgentDigest> buffer = router.route(remoteKey, local);
+    assertThat(buffer).isNotSameAs(local);
+    accumulate(buffer, remoteKey, 42D, TIME_MILLIS + 60000L);
+
+    PeerForwarder forwarder = router.getForwarders().iterator().next();
+    forwarder.getFlushTask(local).run();
+
+    assertThat(forwarder.isDown()).isTrue();
+    assertThat(local).containsKey(remoteKey);
+    assertThat(buffer).isEmpty();
+    assertThat(router.route(remoteKey, local)).isSameAs(local);
+
+    // back in rotation after the retry interval
+    timeMillis.addAndGet(30001L);
+    assertThat(router.route(remoteKey, local)).isNotSameAs(local);
+  }
+
+  @Test
+  public void testDrainMovesBufferedBinsToLocal() throws Exception {
+    String self = "localhost:" + freePort();
+    String peer = "localhost:" + freePort();
+    ClusterRouter router = new ClusterRouter(ImmutableList.of(self, peer), self, 128, 1000, 30000L, timeMillis::get);
+    ConsistentHashRing ring = new ConsistentHashRing(ImmutableList.of(self, peer), 128);
+
+    HistogramKey remoteKey = null;
+    for (int i = 0; remoteKey == null; i++) {
+      HistogramKey key = key("metric" + i, TIME_MILLIS);
+      if (ring.ownerOf(key).equals(peer)) {
+        remoteKey = key;
+      }
+    }
+    ConcurrentMap<HistogramKey, AgentDigest> buffer = router.route(remoteKey, local);
+    accumulate(buffer, remoteKey, 42D, TIME_MILLIS + 60000L);
+    accumulate(local, remoteKey, 43D, TIME_MILLIS + 60000L);
+
+    router.getForwarders().iterator().next().drain(local);
+
+    assertThat(buffer).isEmpty();
+    assertThat(local.get(remoteKey).size()).isEqualTo(2L);
+    assertThat(router.route(remoteKey, local)).isSameAs(local);
+  }
+}
@@ -0,0 +1,92 @@
+package com.wavefront.agent.logsharvesting;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests around {@link AdaptiveSampler}.
+ */
+public class AdaptiveSamplerTest {
+  private long nanos = 0;
+
+  private int offer(AdaptiveSampler sampler, int lines, long nanosPerLine) {
+    int sampled = 0;
+    for (int i = 0; i < lines; i++) {
+      if (sampler.sample()) {
+        sampled++;
+        if (sampler.measuresCost()) {
+          sampler.evaluated(nanosPerLine);
+        }
+      }
+    }
+    return sampled;
+  }
+
+  @Test
+  public void testUnderBudget() throws Exception {
+    AdaptiveSampler sampler = new AdaptiveSampler(1000.0, null, () -> nanos);
+    assertFalse(sampler.measuresCost());
+    for (int second = 0; second < 5; second++) {
+      assertThat(offer(sampler, 1000, 0), equalTo(1000));
+      nanos += AdaptiveSampler.WINDOW_NANOS;
+    }
+    assertThat(sampler.getRate(), equalTo(1.0));
+  }
+
+  @Test
+  public void testLinesPerSecondBudget() throws Exception {
+    AdaptiveSampler sampler = new AdaptiveSampler(1000.0, null, () -> nanos);
+    // the first second is evaluated in full
+    assertThat(offer(sampler, 20000, 0), equalTo(20000));
+    nanos += AdaptiveSampler.WINDOW_NANOS;
+    offer(sampler, 1, 0);
+    assertThat(sampler.getRate(), closeTo(0.05, 1e-3));
+    int sampled = offer(sampler, 20000, 0);
+    assertThat((double) sampled, closeTo(1000, 200));
+
+    // load drops, the rate recovers by doubling every second
+    nanos += AdaptiveSampler.WINDOW_NANOS;
+    offer(sampler, 100, 0);
+    assertThat(sampler.getRate(), closeTo(0.05, 1e-3));
+    nanos += AdaptiveSampler.WINDOW_NANOS;
+    offer(sampler, 100, 0);
+    assertThat(sampler.getRate(), closeTo(0.1, 1e-3));
+    for (int second = 0; second < 5; second++) {
+      nanos += AdaptiveSampler.WINDOW_NANOS;
+      offer(sampler, 100, 0);
+    }
+    assertThat(sampler.getRate(), equalTo(1.0));
+  }
+
+  @Test
+  public void testCpuBudget() throws Exception {
+    // a tenth of a core, lines cost 1ms each: 100 lines per second
+    AdaptiveSampler sampler = new AdaptiveSampler(null, 0.1, () -> nanos);
+    assertTrue(sampler.measuresCost());
+    offer(sampler, 1000, 1000000);
+    nanos += AdaptiveSampler.WINDOW_NANOS;
+    offer(sampler, 1, 1000000);
+    assertThat(sampler.getRate(), closeTo(0.1, 1e-3));
+
+    // both budgets, the lower one wins
+    sampler = new AdaptiveSampler(50.0, 0.1, () -> nanos);
+    offer(sampler, 1000, 1000000);
+    nanos += AdaptiveSampler.WINDOW_NANOS;
+    offer(sampler, 1, 1000000);
+    assertThat(sampler.getRate(), closeTo(0.05, 1e-3));
+  }
+
+  @Test
+  public void testMinimumRate() throws Exception {
+    AdaptiveSampler sampler = new AdaptiveSampler(1.0, null, () -> nanos);
+    offer(sampler, 100000, 0);
+    nanos += AdaptiveSampler.WINDOW_NANOS;
+    offer(sampler, 1, 0);
+    assertThat(sampler.getRate(), equalTo(AdaptiveSampler.MIN_RATE));
+  }
+}
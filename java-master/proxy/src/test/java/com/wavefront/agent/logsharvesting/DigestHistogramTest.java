@@ -0,0 +1,172 @@
+package com.wavefront.agent.logsharvesting;
+
+import com.google.common.collect.Lists;
+
+import com.tdunning.math.stats.AgentDigest;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.WavefrontHistogram;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests around {@link DigestHistogram}.
+ */
+public class DigestHistogramTest {
+  private static final Logger logger = Logger.getLogger(DigestHistogramTest.class.getCanonicalName());
+
+  private static final long MINUTE = 60000L;
+  private static final long NOW = 1476360000L;
+
+  private static long totalSize(List<Map.Entry<Long, AgentDigest>> digests) {
+    long size = 0;
+    for (Map.Entry<Long, AgentDigest> entry : digests) {
+      size += entry.getValue().size();
+    }
+    return size;
+  }
+
+  /**
+   * Runs the updater from the given number of threads at once.
+   *
+   * @return elapsed nanos
+   */
+  private static long concurrently(int threads, IntConsumer updater) throws InterruptedException {
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> workers = Lists.newArrayList();
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      Thread worker = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        updater.accept(thread);
+      });
+      worker.start();
+      workers.add(worker);
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return System.nanoTime() - startNanos;
+  }
+
+  @Test
+  public void testFlushesCompletedMinutesOnly() throws Exception {
+    DigestHistogram histogram = new DigestHistogram((short) 100);
+    for (int i = 0; i < 10; i++) {
+      histogram.update(i, NOW + i);
+    }
+    assertTrue(histogram.flush(NOW + MINUTE - 1).isEmpty());
+    assertTrue(histogram.hasPending());
+    histogram.update(42, NOW + MINUTE);
+
+    List<Map.Entry<Long, AgentDigest>> digests = histogram.flush(NOW + MINUTE);
+    assertEquals(1, digests.size());
+    assertEquals(Long.valueOf(NOW), digests.get(0).getKey());
+    assertEquals(10, digests.get(0).getValue().size());
+    assertTrue(histogram.hasPending());
+
+    digests = histogram.flush(NOW + 5 * MINUTE);
+    assertEquals(1, digests.size());
+    assertEquals(Long.valueOf(NOW + MINUTE), digests.get(0).getKey());
+    assertEquals(1, digests.get(0).getValue().size());
+    assertFalse(histogram.hasPending());
+  }
+
+  @Test
+  public void testConcurrentUpdates() throws Exception {
+    DigestHistogram histogram = new DigestHistogram((short) 100);
+    int threads = 8;
+    int updates = 100000;
+    concurrently(threads, thread -> {
+      for (int i = 0; i < updates; i++) {
+        // spread over two minutes, with the buffers crossing the boundary
+        histogram.update(i, NOW + (i < updates / 2 ? 0 : MINUTE));
+      }
+    });
+    List<Map.Entry<Long, AgentDigest>> digests = histogram.flush(NOW + 2 * MINUTE);
+    assertEquals(2, digests.size());
+    assertEquals(threads * updates / 2, digests.get(0).getValue().size());
+    assertEquals(threads * updates / 2, digests.get(1).getValue().size());
+    assertEquals(threads * updates, totalSize(digests));
+  }
+
+  @Test
+  public void testBenchmark() throws Exception {
+    int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    int updates = 200000;
+    MetricName metricName = new MetricName("logsharvesting", "", "benchmark");
+
+    for (int round = 0; round < 2; round++) {  // the first round warms up
+      DigestHistogram digestHistogram = new DigestHistogram((short) 100);
+      long digestNanos = concurrently(threads, thread -> {
+        for (int i = 0; i < updates; i++) {
+          digestHistogram.update(i % 1000, NOW);
+        }
+      });
+      assertEquals((long) threads * updates, totalSize(digestHistogram.flush(NOW + MINUTE)));
+
+      WavefrontHistogram wavefrontHistogram = WavefrontHistogram.get(new MetricsRegistry(), metricName, () -> NOW);
+      long wavefrontNanos = concurrently(threads, thread -> {
+        for (int i = 0; i < updates; i++) {
+          wavefrontHistogram.update(i % 1000);
+        }
+      });
+      assertEquals((long) threads * updates, wavefrontHistogram.count());
+
+      if (round > 0) {
+        logger.info(threads + " threads x " + updates + " updates: DigestHistogram " +
+            ((long) threads * updates * 1000000000L / digestNanos) + " updates/s, WavefrontHistogram " +
+            ((long) threads * updates * 1000000000L / wavefrontNanos) + " updates/s");
+      }
+    }
+
+    // memory per series, each with a minute of data
+    int numSeries = 2000;
+    Runtime runtime = Runtime.getRuntime();
+    List<Object> series = Lists.newArrayListWithCapacity(numSeries);
+    System.gc();
+    long before = runtime.totalMemory() - runtime.freeMemory();
+    for (int s = 0; s < numSeries; s++) {
+      DigestHistogram histogram = new DigestHistogram((short) 100);
+      for (int i = 0; i < 1000; i++) {
+        histogram.update(i, NOW);
+      }
+      series.add(histogram);
+    }
+    System.gc();
+    long digestBytes = runtime.totalMemory() - runtime.freeMemory() - before;
+    series.clear();
+    System.gc();
+    before = runtime.totalMemory() - runtime.freeMemory();
+    MetricsRegistry registry = new MetricsRegistry();
+    for (int s = 0; s < numSeries; s++) {
+      WavefrontHistogram histogram = WavefrontHistogram.get(registry, new MetricName("logsharvesting", "", "s" + s),
+          () -> NOW);
+      for (int i = 0; i < 1000; i++) {
+        histogram.update(i);
+      }
+      series.add(histogram);
+    }
+    System.gc();
+    long wavefrontBytes = runtime.totalMemory() - runtime.freeMemory() - before;
+    logger.info("Memory per series with 1000 values: DigestHistogram ~" + (digestBytes / numSeries) +
+        " bytes, WavefrontHistogram ~" + (wavefrontBytes / numSeries) + " bytes");
+    assertEquals(numSeries, series.size());
+  }
+}
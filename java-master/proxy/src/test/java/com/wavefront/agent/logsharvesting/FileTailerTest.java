@@ -0,0 +1,225 @@
+package com.wavefront.agent.logsharvesting;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.wavefront.agent.PointHandler;
+import com.wavefront.agent.config.LogsIngestionConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.logstash.beats.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import sunnylabs.report.ReportPoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests around {@link FileTailer}.
+ */
+public class FileTailerTest {
+  private static final Logger logger = Logger.getLogger(FileTailerTest.class.getCanonicalName());
+
+  private Path directory;
+  private LogsIngestionConfig logsIngestionConfig;
+  private LogsIngester logsIngester;
+  private FileTailer fileTailer;
+  private final List<ReportPoint> points = Collections.synchronizedList(Lists.newArrayList());
+  private long now = 1476408638L;
+
+  @Before
+  public void setup() throws Exception {
+    directory = Files.createTempDirectory("tail");
+    File configFile = new File(FileTailerTest.class.getClassLoader().getResource("test.yml").getPath());
+    logsIngestionConfig = new ObjectMapper(new YAMLFactory()).readValue(configFile, LogsIngestionConfig.class);
+    logsIngestionConfig.aggregationIntervalSeconds = 10000; // Never call flush automatically.
+    logsIngestionConfig.tailFiles = ImmutableList.of(directory.resolve("*.log").toString());
+    logsIngestionConfig.tailCheckpointFile = directory.resolve("offsets").toString();
+    logsIngestionConfig.verifyAndInit();
+    logsIngester = new LogsIngester(new PointHandler() {
+      @Override
+      public void reportPoint(ReportPoint point, @Nullable String debugLine) {
+        points.add(point);
+      }
+
+      @Override
+      public void reportPoints(List<ReportPoint> reportPoints) {
+        points.addAll(reportPoints);
+      }
+
+      @Override
+      public void handleBlockedPoint(@Nullable String pointLine) {
+      }
+    }, () -> logsIngestionConfig, null, () -> now);
+    fileTailer = newFileTailer();
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    fileTailer.close();
+    Files.walk(directory).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+  }
+
+  private FileTailer newFileTailer() {
+    return new FileTailer(() -> logsIngestionConfig, logsIngester, "tailHost", () -> now);
+  }
+
+  private void append(String fileName, String data) throws IOException {
+    Files.write(directory.resolve(fileName), data.getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * @return the flushed value of plainCounter, or null if it wasn't flushed
+   */
+  private Long tailAndFlush() {
+    fileTailer.run();
+    points.clear();
+    logsIngester.getMetricsReporter().run();
+    for (ReportPoint point : points) {
+      if (point.getMetric().equals("plainCounter")) {
+        assertEquals("tailHost", point.getHost());
+        return (Long) point.getValue();
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testExistingFilesAreReadFromTheirEnd() throws Exception {
+    append("a.log", "plainCounter\nplainCounter\n");
+    assertEquals(null, tailAndFlush());
+    append("a.log", "plainCounter\r\n\nplainCounter\n");
+    assertEquals(Long.valueOf(2), tailAndFlush());
+    // created after the first scan, read from the start
+    append("b.log", "plainCounter\n");
+    append("b.txt", "plainCounter\n");
+    assertEquals(Long.valueOf(3), tailAndFlush());
+  }
+
+  @Test
+  public void testPartialLinesWaitForTheirEnd() throws Exception {
+    tailAndFlush();
+    append("a.log", "plainCounter\nplainCou");
+    assertEquals(Long.valueOf(1), tailAndFlush());
+    assertEquals(null, tailAndFlush());
+    append("a.log", "nter\n");
+    assertEquals(Long.valueOf(2), tailAndFlush());
+  }
+
+  @Test
+  public void testRotatedFilesAreDrained() throws Exception {
+    tailAndFlush();
+    append("a.log", "plainCounter\n");
+    assertEquals(Long.valueOf(1), tailAndFlush());
+    // written before the rotation, but not read yet
+    append("a.log", "plainCounter\nplainCounter");
+    Files.move(directory.resolve("a.log"), directory.resolve("a.log.1"));
+    append("a.log", "plainCounter\n");
+    assertEquals(Long.valueOf(4), tailAndFlush());
+    append("a.log.1", "plainCounter\n");
+    append("a.log", "plainCounter\n");
+    assertEquals(Long.valueOf(5), tailAndFlush());
+  }
+
+  @Test
+  public void testRenamedFilesAreFollowed() throws Exception {
+    tailAndFlush();
+    append("a.log", "plainCounter\n");
+    assertEquals(Long.valueOf(1), tailAndFlush());
+    Files.move(directory.resolve("a.log"), directory.resolve("b.log"));
+    append("b.log", "plainCounter\n");
+    assertEquals(Long.valueOf(2), tailAndFlush());
+  }
+
+  @Test
+  public void testTruncatedFilesAreReadFromTheStart() throws Exception {
+    tailAndFlush();
+    append("a.log", "counterWithValue 1 and some padding to make this line longer\n");
+    tailAndFlush();
+    Files.write(directory.resolve("a.log"), "plainCounter\n".getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.TRUNCATE_EXISTING);
+    assertEquals(Long.valueOf(1), tailAndFlush());
+  }
+
+  @Test
+  public void testOffsetsAreCheckpointed() throws Exception {
+    tailAndFlush();
+    append("a.log", "plainCounter\n");
+    assertEquals(Long.valueOf(1), tailAndFlush());
+    fileTailer.close();
+    // written while the proxy is down
+    append("a.log", "plainCounter\nplainCounter\n");
+    fileTailer = newFileTailer();
+    assertEquals(Long.valueOf(3), tailAndFlush());
+    fileTailer.close();
+    // rotated while the proxy is down
+    Files.move(directory.resolve("a.log"), directory.resolve("a.log.1"));
+    append("a.log", "plainCounter\n");
+    fileTailer = newFileTailer();
+    assertEquals(Long.valueOf(4), tailAndFlush());
+  }
+
+  @Test
+  public void testBenchmark() throws Exception {
+    int numLines = 100000;
+    List<String> logLines = Lists.newArrayListWithCapacity(numLines);
+    for (int i = 0; i < numLines; i++) {
+      logLines.add(i % 10 == 0 ? "plainCounter" : "10.0.0." + (i % 255) + " - - GET /api/v1/item/" + i + " 200");
+    }
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    tailAndFlush();
+    append("a.log", String.join("\n", logLines) + "\n");
+    long startCpu = threadMXBean.getCurrentThreadCpuTime();
+    long startNanos = System.nanoTime();
+    assertEquals(Long.valueOf(numLines / 10), tailAndFlush());
+    long tailerNanos = System.nanoTime() - startNanos;
+    long tailerCpu = threadMXBean.getCurrentThreadCpuTime() - startCpu;
+
+    // the same lines through the filebeat path, without the network and frame decoding
+    FilebeatIngester filebeatIngester = new FilebeatIngester(logsIngester, () -> now);
+    List<Message> messages = Lists.newArrayListWithCapacity(numLines);
+    for (int i = 0; i < numLines; i++) {
+      Map<String, Object> data = Maps.newHashMap();
+      data.put("message", logLines.get(i));
+      data.put("beat", Maps.newHashMap());
+      data.put("@timestamp", "2016-10-13T20:43:45.172Z");
+      messages.add(new Message(i, data));
+    }
+    startCpu = threadMXBean.getCurrentThreadCpuTime();
+    startNanos = System.nanoTime();
+    for (Message message : messages) {
+      filebeatIngester.onNewMessage(null, message);
+    }
+    long filebeatNanos = System.nanoTime() - startNanos;
+    long filebeatCpu = threadMXBean.getCurrentThreadCpuTime() - startCpu;
+
+    logger.info("Tailed " + numLines + " lines in " + (tailerNanos / 1000000) + " ms, " +
+        (numLines * 1000000000L / Math.max(1, tailerCpu)) + " lines/s per CPU core; filebeat ingested them in " +
+        (filebeatNanos / 1000000) + " ms, " + (numLines * 1000000000L / Math.max(1, filebeatCpu)) +
+        " lines/s per CPU core");
+    assertTrue(tailerNanos > 0 && filebeatNanos > 0);
+  }
+}
@@ -26,6 +26,7 @@ import java.net.SocketAddress;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
 
@@ -41,9 +42,11 @@ import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.reset;
 import static org.easymock.EasyMock.verify;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.notNullValue;
@@ -56,6 +59,7 @@ public class LogsIngesterTest {
   private LogsIngester logsIngesterUnderTest;
   private FilebeatIngester filebeatIngesterUnderTest;
   private RawLogsIngester rawLogsIngesterUnderTest;
+  private SyslogIngester syslogIngesterUnderTest;
   private PointHandler mockPointHandler;
   private Long now = 1476408638L;  // 6:30PM california time Oct 13 2016
   private ObjectMapper objectMapper = new ObjectMapper(new YAMLFactory());
@@ -74,6 +78,7 @@ public class LogsIngesterTest {
     logsIngesterUnderTest.start();
     filebeatIngesterUnderTest = new FilebeatIngester(logsIngesterUnderTest, () -> now);
     rawLogsIngesterUnderTest = new RawLogsIngester(logsIngesterUnderTest, -1, () -> now);
+    syslogIngesterUnderTest = new SyslogIngester(logsIngesterUnderTest, address -> "resolvedHost");
   }
 
   private void receiveFilebeatLog(String log) {
@@ -95,6 +100,10 @@ public class LogsIngesterTest {
     EasyMock.verify(ctx, channel);
   }
 
+  private void receiveSyslog(String log) {
+    syslogIngesterUnderTest.ingestLog("<34>1 2016-10-13T20:43:45.172Z syslogHost app - - - " + log, null);
+  }
+
   private void receiveLog(String log) {
     LogsMessage logsMessage = new LogsMessage() {
       @Override
@@ -126,11 +135,12 @@ public class LogsIngesterTest {
 
   private List<ReportPoint> getPoints(int numPoints, int lagPerLogLine, Consumer<String> consumer, String... logLines)
       throws Exception {
-    Capture<ReportPoint> reportPointCapture = Capture.newInstance(CaptureType.ALL);
+    Capture<List<ReportPoint>> reportPointsCapture = Capture.newInstance(CaptureType.ALL);
     reset(mockPointHandler);
     if (numPoints > 0) {
-      mockPointHandler.reportPoint(EasyMock.capture(reportPointCapture), EasyMock.notNull(String.class));
-      expectLastCall().times(numPoints);
+      // points are handed over in batches, one per flush partition at most
+      mockPointHandler.reportPoints(EasyMock.capture(reportPointsCapture));
+      expectLastCall().times(1, numPoints);
     }
     replay(mockPointHandler);
     for (String line : logLines) {
@@ -139,7 +149,10 @@ public class LogsIngesterTest {
     }
     logsIngesterUnderTest.getMetricsReporter().run();
     verify(mockPointHandler);
-    return reportPointCapture.getValues();
+    List<ReportPoint> reportPoints = Lists.newArrayList();
+    reportPointsCapture.getValues().forEach(reportPoints::addAll);
+    assertThat(reportPoints, hasSize(numPoints));
+    return reportPoints;
   }
 
   @Test
@@ -168,6 +181,14 @@ public class LogsIngesterTest {
         contains(PointMatchers.matches(1L, "plainCounter", ImmutableMap.of())));
   }
 
+  @Test
+  public void testSyslogIngester() throws Exception {
+    setup("test.yml");
+    List<ReportPoint> points = getPoints(1, 0, this::receiveSyslog, "plainCounter");
+    assertThat(points, contains(PointMatchers.matches(1L, "plainCounter", ImmutableMap.of())));
+    assertThat(points.get(0).getHost(), equalTo("syslogHost"));
+  }
+
   @Test(expected = ConfigurationException.class)
   public void testGaugeWithoutValue() throws Exception {
     setup("badGauge.yml");
@@ -178,6 +199,11 @@ public class LogsIngesterTest {
     setup("badTags.yml");
   }
 
+  @Test(expected = ConfigurationException.class)
+  public void testSampledCounter() throws Exception {
+    setup("sampledCounter.yml");
+  }
+
   @Test
   public void testHotloadedConfigClearsOldMetrics() throws Exception {
     setup("test.yml");
@@ -200,9 +226,61 @@ public class LogsIngesterTest {
     logsIngestionConfig.verifyAndInit();
     logsIngestionConfig.counters = counters;
     logsIngesterUnderTest.logsIngestionConfigManager.forceConfigReload();
+    assertThat(
+        getPoints(1, "plainCounter", "counterWithValue 1"),
+        contains(PointMatchers.matches(43L, "counterWithValue", ImmutableMap.of())));
+  }
+
+  @Test
+  public void testUnchangedMetricsAreResent() throws Exception {
+    setup("test.yml");
+    assertThat(
+        getPoints(2, "plainCounter", "counterWithValue 42"),
+        containsInAnyOrder(
+            ImmutableList.of(
+                PointMatchers.matches(42L, "counterWithValue", ImmutableMap.of()),
+                PointMatchers.matches(1L, "plainCounter", ImmutableMap.of()))));
+    assertThat(
+        getPoints(2),
+        containsInAnyOrder(
+            ImmutableList.of(
+                PointMatchers.matches(42L, "counterWithValue", ImmutableMap.of()),
+                PointMatchers.matches(1L, "plainCounter", ImmutableMap.of()))));
+  }
+
+  @Test
+  public void testOnlyUpdatedMetricsAreFlushed() throws Exception {
+    setup("test.yml");
+    logsIngestionConfig.sendChangedMetricsOnly = true;
+    logsIngesterUnderTest = new LogsIngester(mockPointHandler, () -> logsIngestionConfig, null, () -> now);
+    assertThat(
+        getPoints(2, "plainCounter", "counterWithValue 42"),
+        containsInAnyOrder(
+            ImmutableList.of(
+                PointMatchers.matches(42L, "counterWithValue", ImmutableMap.of()),
+                PointMatchers.matches(1L, "plainCounter", ImmutableMap.of()))));
+    assertThat(
+        getPoints(1, "plainCounter"),
+        contains(PointMatchers.matches(2L, "plainCounter", ImmutableMap.of())));
+    assertThat(getPoints(0), hasSize(0));
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    setup("expiry-long.yml");
+    assertThat(
+        getPoints(1, "plainCounter"),
+        contains(PointMatchers.matches(1L, "plainCounter", ImmutableMap.of())));
+    tick(5000);
     assertThat(
         getPoints(1, "plainCounter"),
-        contains(PointMatchers.matches(42L, "counterWithValue", ImmutableMap.of())));
+        contains(PointMatchers.matches(2L, "plainCounter", ImmutableMap.of())));
+    tick(20000);
+    assertThat(getPoints(0), hasSize(0));
+    // the counter has expired and starts over
+    assertThat(
+        getPoints(1, "plainCounter"),
+        contains(PointMatchers.matches(1L, "plainCounter", ImmutableMap.of())));
   }
 
   @Test
@@ -287,6 +365,23 @@ public class LogsIngesterTest {
         contains(PointMatchers.matches(2L, "plainCounter", ImmutableMap.of())));
   }
 
+  @Test
+  public void testPartitionedFlush() throws Exception {
+    setup("test.yml");
+    logsIngestionConfig.flushPartitions = 4;
+    logsIngesterUnderTest = new LogsIngester(mockPointHandler, () -> logsIngestionConfig, null, () -> now);
+    String[] lines = new String[2500];
+    for (int i = 0; i < lines.length; i++) {
+      lines[i] = "dynamicCounter series" + i + " 1 done";
+    }
+    List<ReportPoint> points = getPoints(lines.length, lines);
+    assertThat(points.stream().map(ReportPoint::getMetric).distinct().count(), equalTo((long) lines.length));
+    assertThat(points.stream().allMatch(point -> point.getValue().equals(1L)), equalTo(true));
+    points = getPoints(lines.length, lines[42]);
+    assertThat(points.stream().filter(point -> point.getValue().equals(2L)).map(ReportPoint::getMetric)
+        .collect(Collectors.toList()), contains("dynamic_series42_1"));
+  }
+
   @Test
   public void testHistogram() throws Exception {
     setup("test.yml");
@@ -321,6 +416,14 @@ public class LogsIngesterTest {
     );
   }
 
+  private static double weightedMean(Histogram histogram) {
+    double sum = 0;
+    for (int i = 0; i < histogram.getBins().size(); i++) {
+      sum += histogram.getBins().get(i) * histogram.getCounts().get(i);
+    }
+    return sum / histogram.getCounts().stream().reduce(Integer::sum).get();
+  }
+
   @Test
   public void testWavefrontHistogram() throws Exception {
     setup("histos.yml");
@@ -328,28 +431,40 @@ public class LogsIngesterTest {
     for (int i = 1; i < 101; i++) {
       lines[i - 1] = "histo " + i;
     }
-    ReportPoint reportPoint = getPoints(1, lines).get(0);
+    // the minute isn't over yet
+    assertThat(getPoints(0, lines), hasSize(0));
+    tick(60000);
+    ReportPoint reportPoint = getPoints(1).get(0);
+    assertThat(reportPoint.getTimestamp(), equalTo(1476360000L));
     assertThat(reportPoint.getValue(), instanceOf(Histogram.class));
     Histogram wavefrontHistogram = (Histogram) reportPoint.getValue();
-    assertThat(wavefrontHistogram.getBins(), hasSize(1));
-    assertThat(wavefrontHistogram.getBins(), contains(50.5));
-    assertThat(wavefrontHistogram.getCounts(), hasSize(1));
-    assertThat(wavefrontHistogram.getCounts(), contains(100));
+    assertThat(wavefrontHistogram.getDuration(), equalTo(60000));
+    assertThat(wavefrontHistogram.getBins().size(), greaterThan(1));
+    assertThat(wavefrontHistogram.getCounts().stream().reduce(Integer::sum).get(), equalTo(100));
+    assertThat(weightedMean(wavefrontHistogram), closeTo(50.5, 1e-9));
+    assertThat(getPoints(0), hasSize(0));
   }
 
   @Test
-  public void testWavefrontHistogramMultipleCentroids() throws Exception {
+  public void testWavefrontHistogramMinuteBins() throws Exception {
     setup("histos.yml");
     String[] lines = new String[60];
     for (int i = 1; i < 61; i++) {
       lines[i - 1] = "histo " + i;
     }
+    // one line per second, the first 12 lines are before the minute boundary at 1476420000
     ReportPoint reportPoint = getPoints(1, 1000, this::receiveLog, lines).get(0);
-    assertThat(reportPoint.getValue(), instanceOf(Histogram.class));
+    assertThat(reportPoint.getTimestamp(), equalTo(1476360000L));
     Histogram wavefrontHistogram = (Histogram) reportPoint.getValue();
-    assertThat(wavefrontHistogram.getBins(), hasSize(2));
-    assertThat(wavefrontHistogram.getCounts(), hasSize(2));
-    assertThat(wavefrontHistogram.getCounts().stream().reduce(Integer::sum).get(), equalTo(60));
+    assertThat(wavefrontHistogram.getCounts().stream().reduce(Integer::sum).get(), equalTo(12));
+    assertThat(weightedMean(wavefrontHistogram), closeTo(6.5, 1e-9));
+
+    tick(60000);
+    reportPoint = getPoints(1).get(0);
+    assertThat(reportPoint.getTimestamp(), equalTo(1476420000L));
+    wavefrontHistogram = (Histogram) reportPoint.getValue();
+    assertThat(wavefrontHistogram.getCounts().stream().reduce(Integer::sum).get(), equalTo(48));
+    assertThat(weightedMean(wavefrontHistogram), closeTo(36.5, 1e-9));
   }
 
   @Test(expected = ConfigurationException.class)
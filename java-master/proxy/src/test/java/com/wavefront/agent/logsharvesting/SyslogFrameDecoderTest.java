@@ -0,0 +1,61 @@
+package com.wavefront.agent.logsharvesting;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests around {@link SyslogFrameDecoder}.
+ */
+public class SyslogFrameDecoderTest {
+
+  private static List<String> decode(int maxLength, String... chunks) {
+    EmbeddedChannel channel = new EmbeddedChannel(new SyslogFrameDecoder(maxLength));
+    for (String chunk : chunks) {
+      channel.writeInbound(Unpooled.wrappedBuffer(chunk.getBytes(StandardCharsets.UTF_8)));
+    }
+    List<String> result = Lists.newArrayList();
+    Object frame;
+    while ((frame = channel.readInbound()) != null) {
+      result.add((String) frame);
+    }
+    channel.finish();
+    return result;
+  }
+
+  @Test
+  public void testNewlineDelimited() throws Exception {
+    assertEquals(ImmutableList.of("<13>one", "<13>two", "<13>three"),
+        decode(1024, "<13>one\n<13>tw", "o\r\n\n<13>three\n<13>incomplete"));
+  }
+
+  @Test
+  public void testOctetCounted() throws Exception {
+    assertEquals(ImmutableList.of("<13>multi\nline", "<13>next", "<13>mixed"),
+        decode(1024, "14 <13>multi\nline8 <13>n", "ext<13>mixed\n"));
+  }
+
+  @Test
+  public void testOctetCountedUtf8() throws Exception {
+    String message = "<13>température 42°";
+    int length = message.getBytes(StandardCharsets.UTF_8).length;
+    assertEquals(ImmutableList.of(message, message), decode(1024, length + " " + message + length + " " + message));
+  }
+
+  @Test
+  public void testTooLong() throws Exception {
+    assertEquals(ImmutableList.of("<13>a", "<13>b", "<13>e"),
+        decode(5, "5 <13>a7 <13>b", "cd<13>e\n"));
+    assertEquals(ImmutableList.of("<13>", "<13>"),
+        decode(4, "<13>toolong", "stilltoolong\n<13>\n<13>way too long\n<13>\n"));
+  }
+}
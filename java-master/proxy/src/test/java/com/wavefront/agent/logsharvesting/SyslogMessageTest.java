@@ -0,0 +1,96 @@
+package com.wavefront.agent.logsharvesting;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit tests around {@link SyslogMessage}.
+ */
+public class SyslogMessageTest {
+
+  private static SyslogMessage parse(String frame) {
+    return SyslogMessage.parse(frame, null, address -> "resolved");
+  }
+
+  @Test
+  public void testRfc5424() throws Exception {
+    SyslogMessage message = parse("<165>1 2003-10-11T22:14:15.003Z mymachine.example.com evntslog - ID47 " +
+        "[exampleSDID@32473 iut=\"3\" eventSource=\"Application\" eventID=\"1011\"] \uFEFFAn application event\n");
+    assertEquals(165, message.getPriority());
+    assertEquals("mymachine.example.com", message.getHostname());
+    assertEquals("evntslog", message.getAppName());
+    assertEquals("An application event", message.getLogLine());
+    assertEquals("mymachine.example.com", message.hostOrDefault("default"));
+  }
+
+  @Test
+  public void testRfc5424NilValuesAndStructuredData() throws Exception {
+    SyslogMessage message = parse("<34>1 - - - - - - 'su root' failed for lonvick on /dev/pts/8");
+    assertNull(message.getHostname());
+    assertNull(message.getAppName());
+    assertEquals("'su root' failed for lonvick on /dev/pts/8", message.getLogLine());
+
+    message = parse("<165>1 2003-10-11T22:14:15.003Z host app 42 - [a@1 x=\"esc \\\"]\\\" \"][b@1 y=\"2\"] msg");
+    assertEquals("host", message.getHostname());
+    assertEquals("msg", message.getLogLine());
+
+    message = parse("<165>1 2003-10-11T22:14:15.003Z host app 42 - [a@1 x=\"1\"]");
+    assertEquals("", message.getLogLine());
+  }
+
+  @Test
+  public void testRfc3164() throws Exception {
+    SyslogMessage message = parse("<34>Oct 11 22:14:15 mymachine su[123]: 'su root' failed on /dev/pts/8");
+    assertEquals(34, message.getPriority());
+    assertEquals("mymachine", message.getHostname());
+    assertEquals("su", message.getAppName());
+    assertEquals("'su root' failed on /dev/pts/8", message.getLogLine());
+
+    message = parse("<13>Feb  5 17:32:18 10.0.0.99 nginx: GET /index.html 200");
+    assertEquals("10.0.0.99", message.getHostname());
+    assertEquals("nginx", message.getAppName());
+    assertEquals("GET /index.html 200", message.getLogLine());
+
+    message = parse("<13>2017-03-01T10:15:00.123+00:00 web-1 app: plainCounter");
+    assertEquals("web-1", message.getHostname());
+    assertEquals("plainCounter", message.getLogLine());
+  }
+
+  @Test
+  public void testRfc3164WithoutHostname() throws Exception {
+    SyslogMessage message = SyslogMessage.parse("<13>Oct 11 22:14:15 su: plainCounter",
+        InetAddress.getLoopbackAddress(), address -> "resolved");
+    assertNull(message.getHostname());
+    assertEquals("su", message.getAppName());
+    assertEquals("plainCounter", message.getLogLine());
+    assertEquals("resolved", message.hostOrDefault("default"));
+
+    message = SyslogMessage.parse("<13>Oct 11 22:14:15 app[1]: plainCounter", null, address -> "resolved");
+    assertEquals("app", message.getAppName());
+    assertEquals("default", message.hostOrDefault("default"));
+
+    message = parse("<13>Oct 11 22:14:15  msg");
+    assertNull(message.getHostname());
+    assertNull(message.getAppName());
+    assertEquals("msg", message.getLogLine());
+  }
+
+  @Test
+  public void testNotSyslog() throws Exception {
+    SyslogMessage message = parse("plainCounter\r\n");
+    assertEquals(-1, message.getPriority());
+    assertEquals("plainCounter", message.getLogLine());
+
+    message = parse("<13>plainCounter");
+    assertEquals(13, message.getPriority());
+    assertEquals("plainCounter", message.getLogLine());
+
+    message = parse("<abc>plainCounter");
+    assertEquals(-1, message.getPriority());
+    assertEquals("<abc>plainCounter", message.getLogLine());
+  }
+}
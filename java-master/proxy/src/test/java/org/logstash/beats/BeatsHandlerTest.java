@@ -0,0 +1,117 @@
+package org.logstash.beats;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests around {@link BeatsHandler} processing batches on an executor.
+ */
+public class BeatsHandlerTest {
+    private List<Integer> processed;
+    private Queue<Runnable> tasks;
+    private IMessageListener listener;
+
+    @Before
+    public void setup() {
+        processed = Collections.synchronizedList(new ArrayList<Integer>());
+        tasks = new LinkedList<>();
+        listener = new MessageListener() {
+            @Override
+            public void onNewMessage(ChannelHandlerContext ctx, Message message) {
+                processed.add((Integer) message.getData().get("id"));
+            }
+        };
+    }
+
+    private static Batch batch(int firstId, int size) {
+        Batch batch = new Batch();
+        batch.setBatchSize(size);
+        for (int i = 1; i <= size; i++) {
+            batch.addMessage(new Message(i, ImmutableMap.of("id", firstId + i - 1)));
+        }
+        return batch;
+    }
+
+    @Test
+    public void testBatchesAreProcessedAndAcknowledgedInOrder() {
+        EmbeddedChannel channel = new EmbeddedChannel(new BeatsHandler(listener, tasks::add));
+        channel.writeInbound(batch(0, 3));
+        channel.writeInbound(batch(3, 2));
+
+        // the second batch waits for the first one
+        assertEquals(1, tasks.size());
+        channel.runPendingTasks();
+        assertNull(channel.readOutbound());
+
+        tasks.poll().run();
+        channel.runPendingTasks();
+        assertEquals(3, ((Ack) channel.readOutbound()).getSequence());
+        assertNull(channel.readOutbound());
+        assertEquals(1, tasks.size());
+
+        tasks.poll().run();
+        channel.runPendingTasks();
+        assertEquals(2, ((Ack) channel.readOutbound()).getSequence());
+        assertEquals(ImmutableList.of(0, 1, 2, 3, 4), processed);
+    }
+
+    @Test
+    public void testRejectedBatchesAreResubmittedWithoutReading() throws InterruptedException {
+        AtomicInteger rejections = new AtomicInteger(2);
+        Executor rejecting = command -> {
+            if (rejections.getAndDecrement() > 0) {
+                throw new RejectedExecutionException();
+            }
+            command.run();
+        };
+        EmbeddedChannel channel = new EmbeddedChannel(new BeatsHandler(listener, rejecting));
+        channel.writeInbound(batch(0, 2));
+        assertFalse(channel.config().isAutoRead());
+        assertTrue(processed.isEmpty());
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        Object ack = null;
+        while (ack == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            channel.runPendingTasks();
+            ack = channel.readOutbound();
+        }
+        assertEquals(2, ((Ack) ack).getSequence());
+        assertEquals(ImmutableList.of(0, 1), processed);
+        assertTrue(channel.config().isAutoRead());
+    }
+
+    @Test
+    public void testBatchesBehindAClosedConnectionAreNotProcessed() {
+        EmbeddedChannel channel = new EmbeddedChannel(new BeatsHandler(listener, tasks::add));
+        channel.writeInbound(batch(0, 1));
+        channel.writeInbound(batch(1, 1));
+        channel.close();
+
+        tasks.poll().run();
+        channel.runPendingTasks();
+        assertTrue(tasks.isEmpty());
+        assertEquals(ImmutableList.of(0), processed);
+    }
+}
@@ -0,0 +1,200 @@
+package org.logstash.beats;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import com.wavefront.agent.logsharvesting.FilebeatMessage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests around {@link BeatsParser}.
+ */
+public class BeatsParserTest {
+    private static final Logger logger = Logger.getLogger(BeatsParserTest.class.getCanonicalName());
+
+    // what filebeat 5.x sends for a single log line
+    private static String event(int i) {
+        return "{\"@timestamp\":\"2017-03-01T10:15:" + String.format("%02d", i % 60) + ".123Z\"," +
+                "\"beat\":{\"hostname\":\"web-" + (i % 8) + "\",\"name\":\"web-" + (i % 8) + "\",\"version\":\"5.2.2\"}," +
+                "\"fields\":{\"env\":\"prod\",\"tier\":[\"web\",\"frontend\"]}," +
+                "\"input_type\":\"log\",\"offset\":" + (1000L * i) + "," +
+                "\"source\":\"/var/log/nginx/access.log\",\"type\":\"log\"," +
+                "\"message\":\"10.0.0." + (i % 255) + " - - [01/Mar/2017:10:15:00 +0000] \\\"GET /api/v1/item/" + i +
+                " HTTP/1.1\\\" 200 " + (i * 7 % 5000) + " \\\"-\\\" \\\"curl/7.43.0\\\"\"}";
+    }
+
+    private static void writeJsonFrame(ByteBuf out, int sequence, String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(Protocol.VERSION_2);
+        out.writeByte(Protocol.CODE_JSON_FRAME);
+        out.writeInt(sequence);
+        out.writeInt(bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    private static byte[] deflate(ByteBuf frames) {
+        byte[] input = new byte[frames.readableBytes()];
+        frames.readBytes(input);
+        Deflater deflater = new Deflater();
+        deflater.setInput(input);
+        deflater.finish();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        while (!deflater.finished()) {
+            output.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        return output.toByteArray();
+    }
+
+    /**
+     * @return a window frame followed by a compressed frame with one json frame per event
+     */
+    private static byte[] batch(List<String> events, boolean compressed) {
+        ByteBuf out = Unpooled.buffer();
+        out.writeByte(Protocol.VERSION_2);
+        out.writeByte(Protocol.CODE_WINDOW_SIZE);
+        out.writeInt(events.size());
+        ByteBuf frames = Unpooled.buffer();
+        for (int i = 0; i < events.size(); i++) {
+            writeJsonFrame(frames, i + 1, events.get(i));
+        }
+        if (compressed) {
+            byte[] deflated = deflate(frames);
+            out.writeByte(Protocol.VERSION_2);
+            out.writeByte(Protocol.CODE_COMPRESSED_FRAME);
+            out.writeInt(deflated.length);
+            out.writeBytes(deflated);
+        } else {
+            out.writeBytes(frames);
+        }
+        byte[] result = new byte[out.readableBytes()];
+        out.readBytes(result);
+        return result;
+    }
+
+    private static List<Batch> decode(Set<String> fields, byte[]... batches) {
+        EmbeddedChannel channel = new EmbeddedChannel(new BeatsParser(fields));
+        for (byte[] batch : batches) {
+            channel.writeInbound(Unpooled.wrappedBuffer(batch));
+        }
+        List<Batch> result = Lists.newArrayList();
+        Object batch;
+        while ((batch = channel.readInbound()) != null) {
+            result.add((Batch) batch);
+        }
+        channel.finish();
+        return result;
+    }
+
+    @Test
+    public void testKeepsOnlyRequestedFields() throws Exception {
+        List<Batch> batches = decode(FilebeatMessage.FIELDS, batch(Lists.newArrayList(event(1), event(2)), true));
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+
+        Message message = batches.get(0).getMessages().get(0);
+        assertEquals(1, message.getSequence());
+        Map data = message.getData();
+        assertEquals(ImmutableSet.of("@timestamp", "beat", "message"), data.keySet());
+        assertEquals("web-1", ((Map) data.get("beat")).get("hostname"));
+
+        FilebeatMessage filebeatMessage = new FilebeatMessage(message);
+        assertEquals("web-1", filebeatMessage.hostOrDefault("default"));
+        assertTrue(filebeatMessage.getLogLine().startsWith("10.0.0.1 - - [01/Mar/2017:10:15:00 +0000] \"GET "));
+        assertEquals(Long.valueOf(1488363301123L), filebeatMessage.getTimestampMillis());
+    }
+
+    @Test
+    public void testNestedValuesAndHostObject() throws Exception {
+        String json = "{\"message\":\"hello\",\"@timestamp\":\"2017-03-01T10:15:00Z\",\"offset\":12," +
+                "\"host\":{\"name\":\"db-1\",\"os\":{\"family\":\"debian\"},\"ip\":[\"10.0.0.1\"]}," +
+                "\"tags\":[\"a\",{\"b\":1}]}";
+        List<Batch> batches = decode(FilebeatMessage.FIELDS, batch(Lists.newArrayList(json), false));
+        Map data = batches.get(0).getMessages().get(0).getData();
+        assertEquals(ImmutableSet.of("message", "@timestamp", "host"), data.keySet());
+        Map host = (Map) data.get("host");
+        assertEquals(ImmutableSet.of("name"), host.keySet());
+        assertEquals("db-1", new FilebeatMessage(batches.get(0).getMessages().get(0)).hostOrDefault("default"));
+    }
+
+    @Test
+    public void testKeepsWholeMessageWithoutFields() throws Exception {
+        List<Batch> batches = decode(null, batch(Lists.newArrayList(event(3)), false));
+        Map data = batches.get(0).getMessages().get(0).getData();
+        assertEquals(3000, ((Number) data.get("offset")).intValue());
+        assertEquals("prod", ((Map) data.get("fields")).get("env"));
+    }
+
+    @Test
+    public void testReusesInflaterAcrossCompressedFrames() throws Exception {
+        List<String> events = Lists.newArrayList();
+        for (int i = 0; i < 50; i++) {
+            events.add(event(i));
+        }
+        List<Batch> batches = decode(FilebeatMessage.FIELDS, batch(events, true), batch(events, true),
+                batch(events, true));
+        assertEquals(3, batches.size());
+        for (Batch batch : batches) {
+            assertEquals(50, batch.size());
+            assertTrue(batch.complete());
+            assertEquals(50, batch.getMessages().get(49).getSequence());
+            assertNull(batch.getMessages().get(49).getData().get("source"));
+        }
+    }
+
+    @Test
+    public void testBenchmark() throws Exception {
+        // recorded-style filebeat v2 traffic: compressed windows of 200 events
+        List<byte[]> traffic = Lists.newArrayList();
+        long bytes = 0;
+        int events = 0;
+        for (int window = 0; window < 50; window++) {
+            List<String> batch = Lists.newArrayList();
+            for (int i = 0; i < 200; i++) {
+                batch.add(event(window * 200 + i));
+            }
+            byte[] frames = batch(batch, true);
+            traffic.add(frames);
+            bytes += frames.length;
+            events += batch.size();
+        }
+        byte[][] recorded = traffic.toArray(new byte[traffic.size()][]);
+
+        for (Set<String> fields : Lists.newArrayList(null, FilebeatMessage.FIELDS)) {
+            // warm up
+            decode(fields, recorded);
+            long start = System.nanoTime();
+            int decoded = 0;
+            for (int round = 0; round < 5; round++) {
+                for (Batch batch : decode(fields, recorded)) {
+                    decoded += batch.size();
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            assertEquals(5 * events, decoded);
+            logger.info("Decoded " + decoded + " events (" + (5 * bytes / 1024) + " KB compressed) in " +
+                    (nanos / 1000000) + " ms, " + (decoded * 1000000000L / Math.max(1, nanos)) + " events/s, " +
+                    (fields == null ? "keeping all fields" : "keeping " + fields));
+        }
+        assertFalse(traffic.isEmpty());
+    }
+}
@@ -2,6 +2,8 @@ package com.wavefront.integrations.metrics;
 
 import com.wavefront.common.MetricsToTimeseries;
 import com.wavefront.common.TaggedMetricName;
+import com.wavefront.metrics.DatagramWriter;
+import com.wavefront.metrics.LineWriter;
 import com.wavefront.metrics.ReconnectingSocket;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Gauge;
@@ -17,26 +19,125 @@ import com.yammer.metrics.core.WavefrontHistogram;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 /**
- * Yammer MetricProcessor that sends metrics to a TCP Socket in Wavefront-format.
+ * Yammer MetricProcessor that sends metrics to a TCP Socket, or in UDP datagrams, in Wavefront-format.
+ *
+ * Metrics can also be encoded into a {@link Chunk} on any thread with {@link #encode}, and written a chunk at a time
+ * with {@link #write(Chunk)}.
  *
  * @author Mori Bellamy (mori@wavefront.com)
  */
 public class SocketMetricsProcessor implements MetricProcessor<Void> {
   protected static final Logger logger = Logger.getLogger(SocketMetricsProcessor.class.getCanonicalName());
-  private ReconnectingSocket metricsSocket, histogramsSocket;
+  private LineWriter metricsSocket, histogramsSocket;
   private final Supplier<Long> timeSupplier;
   private final boolean prependGroupName;
+  // identities of the metrics seen so far, removed by evict()
+  private final ConcurrentMap<MetricName, SeriesIdentity> identities = new ConcurrentHashMap<>();
+  private final MetricProcessor<Chunk> encoder = new MetricProcessor<Chunk>() {
+    @Override
+    public void processMeter(MetricName name, Metered meter, Chunk chunk) {
+      writeExplodedMetric(chunk, name, meter);
+    }
+
+    @Override
+    public void processCounter(MetricName name, Counter counter, Chunk chunk) {
+      writeMetric(chunk, name, null, counter.count());
+    }
+
+    @Override
+    public void processHistogram(MetricName name, Histogram histogram, Chunk chunk) {
+      if (histogram instanceof WavefrontHistogram) {
+        StringBuilder sb = chunk.histograms;
+        sb.append("!M ").append(timeSupplier.get() / 1000);
+        WavefrontHistogram wavefrontHistogram = (WavefrontHistogram) histogram;
+        for (WavefrontHistogram.MinuteBin minuteBin : wavefrontHistogram.bins(false)) {
+          sb.append(" #").append(minuteBin.getDist().size()).append(" ").append(minuteBin.getDist().quantile(.5));
+        }
+        SeriesIdentity identity = identity(name);
+        sb.append(' ').append(identity.quotedName).append(identity.tags).append("\n");
+      } else {
+        writeMetric(chunk, name, "count", histogram.count());
+        writeExplodedMetric(chunk, name, histogram);
+      }
+    }
+
+    @Override
+    public void processTimer(MetricName name, Timer timer, Chunk chunk) {
+      writeExplodedMetric(chunk, name, timer);
+    }
+
+    @Override
+    public void processGauge(MetricName name, Gauge<?> gauge, Chunk chunk) {
+      writeMetric(chunk, name, null, Double.valueOf(gauge.value().toString()));
+    }
+  };
+
+  /**
+   * The lines of some metrics, encoded by {@link #encode} and written together by {@link #write(Chunk)}.
+   */
+  public static final class Chunk {
+    private final StringBuilder metrics = new StringBuilder();
+    private final StringBuilder histograms = new StringBuilder();
+  }
+
+  /**
+   * The formatted name and tags of a metric, computed once per metric.
+   */
+  private static final class SeriesIdentity {
+    private final String name;
+    // "name", quoted
+    private final String quotedName;
+    // " k1=v1 k2=v2 ..."
+    private final String tags;
+    // name suffix ("" for none) -> "name.suffix" quoted and followed by a space
+    private final ConcurrentMap<String, String> heads = new ConcurrentHashMap<>();
+
+    private SeriesIdentity(String name, String tags) {
+      this.name = name;
+      this.quotedName = "\"" + name + "\"";
+      this.tags = tags;
+    }
+
+    private String head(@Nullable String nameSuffix) {
+      String key = nameSuffix == null ? "" : nameSuffix;
+      String head = heads.get(key);
+      if (head == null) {
+        head = key.equals("") ? quotedName + " " : "\"" + name + "." + key + "\" ";
+        heads.put(key, head);
+      }
+      return head;
+    }
+  }
 
   SocketMetricsProcessor(String hostname, int port, int wavefrontHistogramPort, Supplier<Long> timeSupplier,
                          boolean prependGroupName)
       throws IOException {
+    this(hostname, port, wavefrontHistogramPort, timeSupplier, prependGroupName, 0);
+  }
+
+  /**
+   * @param maxDatagramSize if positive, metrics are sent over UDP in datagrams of at most this many bytes instead of
+   *                        over TCP, which needs a proxy started with {@code --datagramListeners}
+   */
+  SocketMetricsProcessor(String hostname, int port, int wavefrontHistogramPort, Supplier<Long> timeSupplier,
+                         boolean prependGroupName, int maxDatagramSize)
+      throws IOException {
     this.timeSupplier = timeSupplier;
-    this.metricsSocket = new ReconnectingSocket(hostname, port);
-    this.histogramsSocket = new ReconnectingSocket(hostname, wavefrontHistogramPort);
+    if (maxDatagramSize > 0) {
+      this.metricsSocket = new DatagramWriter(hostname, port, maxDatagramSize);
+      this.histogramsSocket = new DatagramWriter(hostname, wavefrontHistogramPort, maxDatagramSize);
+    } else {
+      this.metricsSocket = new ReconnectingSocket(hostname, port);
+      this.histogramsSocket = new ReconnectingSocket(hostname, wavefrontHistogramPort);
+    }
     this.prependGroupName = prependGroupName;
   }
 
@@ -63,71 +164,99 @@ public class SocketMetricsProcessor implements MetricProcessor<Void> {
     }
   }
 
-  private void writeMetric(MetricName metricName, String nameSuffix, double value) throws Exception {
-    StringBuilder sb = new StringBuilder();
-    sb.append("\"").append(getName(metricName));
-    if (nameSuffix != null && !nameSuffix.equals("")) {
-      sb.append(".").append(nameSuffix);
+  private SeriesIdentity identity(MetricName metricName) {
+    SeriesIdentity identity = identities.get(metricName);
+    if (identity == null) {
+      identity = new SeriesIdentity(getName(metricName), tagsForMetricName(metricName));
+      identities.put(metricName, identity);
     }
-    sb.append("\" ").append(value).append(tagsForMetricName(metricName));
-    metricsSocket.write(sb.append("\n").toString());
+    return identity;
   }
 
-  private void writeExplodedMetric(MetricName name, Metric metric) throws Exception {
+  /**
+   * Forgets the cached identity of a metric, e.g. when it's removed from the registry.
+   */
+  public void evict(MetricName metricName) {
+    identities.remove(metricName);
+  }
+
+  private void writeMetric(Chunk chunk, MetricName metricName, String nameSuffix, double value) {
+    SeriesIdentity identity = identity(metricName);
+    chunk.metrics.append(identity.head(nameSuffix)).append(value).append(identity.tags).append('\n');
+  }
+
+  private void writeExplodedMetric(Chunk chunk, MetricName name, Metric metric) {
     if (metric instanceof Metered) {
       for (Map.Entry<String, Double> entry : MetricsToTimeseries.explodeMetered((Metered) metric).entrySet()) {
-        writeMetric(name, entry.getKey(), entry.getValue());
+        writeMetric(chunk, name, entry.getKey(), entry.getValue());
       }
     }
 
     if (metric instanceof Summarizable) {
       for (Map.Entry<String, Double> entry : MetricsToTimeseries.explodeSummarizable((Summarizable) metric).entrySet()) {
-        writeMetric(name, entry.getKey(), entry.getValue());
+        writeMetric(chunk, name, entry.getKey(), entry.getValue());
       }
     }
 
     if (metric instanceof Sampling) {
       for (Map.Entry<String, Double> entry : MetricsToTimeseries.explodeSampling((Sampling) metric).entrySet()) {
-        writeMetric(name, entry.getKey(), entry.getValue());
+        writeMetric(chunk, name, entry.getKey(), entry.getValue());
       }
     }
   }
 
+  /**
+   * Encodes a metric into the given chunk. May be called from several threads, with a chunk each.
+   */
+  public void encode(MetricName name, Metric metric, Chunk chunk) throws Exception {
+    metric.processWith(encoder, name, chunk);
+  }
+
+  /**
+   * Writes the lines of a chunk, with one write per socket.
+   */
+  public void write(Chunk chunk) throws Exception {
+    if (chunk.metrics.length() > 0) {
+      metricsSocket.write(chunk.metrics.toString());
+    }
+    if (chunk.histograms.length() > 0) {
+      histogramsSocket.write(chunk.histograms.toString());
+    }
+  }
+
   @Override
   public void processMeter(MetricName name, Metered meter, Void context) throws Exception {
-    writeExplodedMetric(name, meter);
+    Chunk chunk = new Chunk();
+    encoder.processMeter(name, meter, chunk);
+    write(chunk);
   }
 
   @Override
   public void processCounter(MetricName name, Counter counter, Void context) throws Exception {
-    writeMetric(name, null, counter.count());
+    Chunk chunk = new Chunk();
+    encoder.processCounter(name, counter, chunk);
+    write(chunk);
   }
 
   @Override
   public void processHistogram(MetricName name, Histogram histogram, Void context) throws Exception {
-    if (histogram instanceof WavefrontHistogram) {
-      StringBuilder sb = new StringBuilder();
-      sb.append("!M ").append(timeSupplier.get() / 1000);
-      WavefrontHistogram wavefrontHistogram = (WavefrontHistogram) histogram;
-      for (WavefrontHistogram.MinuteBin minuteBin : wavefrontHistogram.bins(false)) {
-        sb.append(" #").append(minuteBin.getDist().size()).append(" ").append(minuteBin.getDist().quantile(.5));
-      }
-      sb.append(" \"").append(getName(name)).append("\"").append(tagsForMetricName(name)).append("\n");
-      histogramsSocket.write(sb.toString());
-    } else {
-      writeMetric(name, "count", histogram.count());
-      writeExplodedMetric(name, histogram);
-    }
+    Chunk chunk = new Chunk();
+    encoder.processHistogram(name, histogram, chunk);
+    write(chunk);
   }
 
   @Override
   public void processTimer(MetricName name, Timer timer, Void context) throws Exception {
-    writeExplodedMetric(name, timer);
+    Chunk chunk = new Chunk();
+    encoder.processTimer(name, timer, chunk);
+    write(chunk);
   }
 
   @Override
   public void processGauge(MetricName name, Gauge<?> gauge, Void context) throws Exception {
-    writeMetric(name, null, Double.valueOf(gauge.value().toString()));
+    Chunk chunk = new Chunk();
+    encoder.processGauge(name, gauge, chunk);
+    write(chunk);
   }
 
   public void flush() throws IOException {
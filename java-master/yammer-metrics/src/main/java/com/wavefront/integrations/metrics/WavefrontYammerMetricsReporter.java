@@ -3,11 +3,22 @@ package com.wavefront.integrations.metrics;
 import com.yammer.metrics.core.Metric;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.MetricsRegistryListener;
 import com.yammer.metrics.reporting.AbstractPollingReporter;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.logging.Level;
@@ -16,13 +27,28 @@ import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
 /**
+ * Reports a registry by encoding chunks of its metrics in parallel on a small pool, so that reading the histograms and
+ * timers of a large registry doesn't take longer than the reporting period. Chunks are written in registry order, a
+ * chunk at a time. Registries of a single chunk are reported on the reporter thread.
+ *
  * @author Mori Bellamy (mori@wavefront.com)
  */
 public class WavefrontYammerMetricsReporter extends AbstractPollingReporter {
 
   protected static final Logger logger = Logger.getLogger(WavefrontYammerMetricsReporter.class.getCanonicalName());
+  // metrics encoded per task
+  static final int CHUNK_SIZE = 256;
+  private static final int DEFAULT_REPORTING_THREADS =
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+  private static final AtomicInteger threadIds = new AtomicInteger();
+
   private SocketMetricsProcessor socketMetricProcessor;
   private Function<MetricName, MetricName> transformer;
+  private final int threads;
+  // created on the first report large enough to use it
+  private ExecutorService executor;
+  private volatile long lastReportNanos;
+  private volatile int lastMetricCount;
 
   public WavefrontYammerMetricsReporter(MetricsRegistry metricsRegistry, String name, String hostname, int port,
                                         int wavefrontHistogramPort, Supplier<Long> timeSupplier) throws IOException {
@@ -48,27 +74,157 @@ public class WavefrontYammerMetricsReporter extends AbstractPollingReporter {
                                         boolean prependGroupName,
                                         @Nullable Function<MetricName, MetricName> transformer)
       throws IOException {
+    this(metricsRegistry, name, hostname, port, wavefrontHistogramPort, timeSupplier, prependGroupName, transformer,
+        0);
+  }
+
+  /**
+   * Reporter of a Yammer metrics registry to Wavefront, over TCP or UDP.
+   *
+   * @param maxDatagramSize If positive, points are sent over UDP to the same ports instead of over TCP, as many as
+   *                        fit into a datagram of at most this many bytes (see
+   *                        {@link com.wavefront.metrics.DatagramWriter#DEFAULT_MAX_DATAGRAM_SIZE}). Points may be
+   *                        lost, but reporting never blocks on the proxy. The proxy only listens for datagrams
+   *                        when started with {@code --datagramListeners}.
+   * @see #WavefrontYammerMetricsReporter(MetricsRegistry, String, String, int, int, Supplier, boolean, Function)
+   */
+  public WavefrontYammerMetricsReporter(MetricsRegistry metricsRegistry, String name, String hostname, int port,
+                                        int wavefrontHistogramPort, Supplier<Long> timeSupplier,
+                                        boolean prependGroupName,
+                                        @Nullable Function<MetricName, MetricName> transformer,
+                                        int maxDatagramSize)
+      throws IOException {
+    this(metricsRegistry, name, hostname, port, wavefrontHistogramPort, timeSupplier, prependGroupName, transformer,
+        maxDatagramSize, DEFAULT_REPORTING_THREADS);
+  }
+
+  /**
+   * Reporter of a Yammer metrics registry to Wavefront, encoding large registries on the given number of threads.
+   *
+   * @param reportingThreads The number of threads encoding chunks of a large registry, 1 to encode every metric on the
+   *                         reporter thread. Defaults to half the available processors, at most 4.
+   * @see #WavefrontYammerMetricsReporter(MetricsRegistry, String, String, int, int, Supplier, boolean, Function, int)
+   */
+  public WavefrontYammerMetricsReporter(MetricsRegistry metricsRegistry, String name, String hostname, int port,
+                                        int wavefrontHistogramPort, Supplier<Long> timeSupplier,
+                                        boolean prependGroupName,
+                                        @Nullable Function<MetricName, MetricName> transformer,
+                                        int maxDatagramSize, int reportingThreads)
+      throws IOException {
     super(metricsRegistry, name);
+    if (reportingThreads < 1) {
+      throw new IllegalArgumentException("reportingThreads must be positive");
+    }
+    this.threads = reportingThreads;
     this.transformer = transformer;
     this.socketMetricProcessor = new SocketMetricsProcessor(hostname, port, wavefrontHistogramPort, timeSupplier,
-        prependGroupName);
+        prependGroupName, maxDatagramSize);
+    metricsRegistry.addListener(new MetricsRegistryListener() {
+      @Override
+      public void onMetricAdded(MetricName name, Metric metric) {
+      }
+
+      @Override
+      public void onMetricRemoved(MetricName name) {
+        socketMetricProcessor.evict(transformer == null ? name : transformer.apply(name));
+      }
+    });
   }
 
   @Override
   public void run() {
+    long start = System.nanoTime();
     try {
+      List<Map.Entry<MetricName, Metric>> metrics = new ArrayList<>();
       for (Map.Entry<String, SortedMap<MetricName, Metric>> entry : getMetricsRegistry().groupedMetrics().entrySet()) {
-        for (Map.Entry<MetricName, Metric> subEntry : entry.getValue().entrySet()) {
-          MetricName metricName = subEntry.getKey();
-          if (transformer != null) {
-            metricName = transformer.apply(metricName);
-          }
-          subEntry.getValue().processWith(socketMetricProcessor, metricName, null);
-        }
+        metrics.addAll(entry.getValue().entrySet());
+      }
+      if (threads == 1 || metrics.size() <= CHUNK_SIZE) {
+        socketMetricProcessor.write(encode(metrics));
+      } else {
+        writeInParallel(metrics);
       }
       socketMetricProcessor.flush();
+      lastMetricCount = metrics.size();
     } catch (Exception e) {
       logger.log(Level.SEVERE, "Cannot report point to Wavefront! Trying again next iteration.", e);
+    } finally {
+      lastReportNanos = System.nanoTime() - start;
+    }
+  }
+
+  private SocketMetricsProcessor.Chunk encode(List<Map.Entry<MetricName, Metric>> metrics) throws Exception {
+    SocketMetricsProcessor.Chunk chunk = new SocketMetricsProcessor.Chunk();
+    for (Map.Entry<MetricName, Metric> entry : metrics) {
+      MetricName metricName = entry.getKey();
+      if (transformer != null) {
+        metricName = transformer.apply(metricName);
+      }
+      socketMetricProcessor.encode(metricName, entry.getValue(), chunk);
+    }
+    return chunk;
+  }
+
+  /**
+   * Encodes chunks on the pool, at most two per thread ahead of the chunk being written.
+   */
+  private void writeInParallel(List<Map.Entry<MetricName, Metric>> metrics) throws Exception {
+    synchronized (this) {
+      if (executor == null) {
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+          Thread thread = new Thread(runnable, "wavefront-yammer-reporter-" + threadIds.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+    }
+    Deque<Future<SocketMetricsProcessor.Chunk>> pending = new ArrayDeque<>();
+    int submitted = 0;
+    try {
+      while (submitted < metrics.size() || !pending.isEmpty()) {
+        while (submitted < metrics.size() && pending.size() < 2 * threads) {
+          List<Map.Entry<MetricName, Metric>> chunk =
+              metrics.subList(submitted, Math.min(submitted + CHUNK_SIZE, metrics.size()));
+          pending.add(executor.submit(() -> encode(chunk)));
+          submitted += chunk.size();
+        }
+        try {
+          socketMetricProcessor.write(pending.remove().get());
+        } catch (ExecutionException e) {
+          throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+      }
+    } finally {
+      for (Future<SocketMetricsProcessor.Chunk> future : pending) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Returns how long the last report took, in the given unit.
+   */
+  public long getLastReportDuration(TimeUnit unit) {
+    return unit.convert(lastReportNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the number of metrics in the last report that succeeded.
+   */
+  public int getLastMetricCount() {
+    return lastMetricCount;
+  }
+
+  @Override
+  public void shutdown() {
+    try {
+      super.shutdown();
+    } finally {
+      synchronized (this) {
+        if (executor != null) {
+          executor.shutdownNow();
+        }
+      }
     }
   }
 }
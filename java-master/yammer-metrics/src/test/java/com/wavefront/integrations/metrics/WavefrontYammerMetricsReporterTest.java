@@ -30,6 +30,7 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItems;
 import static org.hamcrest.Matchers.startsWith;
 
 /**
@@ -46,12 +47,17 @@ public class WavefrontYammerMetricsReporterTest {
 
   private void innerSetUp(boolean prependGroupName, Function<MetricName, MetricName> transformer)
       throws Exception {
+    innerSetUp(prependGroupName, transformer, 1);
+  }
+
+  private void innerSetUp(boolean prependGroupName, Function<MetricName, MetricName> transformer,
+                          int reportingThreads) throws Exception {
     metricsRegistry = new MetricsRegistry();
     metricsServer = new ServerSocket(0);
     histogramsServer = new ServerSocket(0);
     wavefrontYammerMetricsReporter = new WavefrontYammerMetricsReporter(
         metricsRegistry, "test", "localhost", metricsServer.getLocalPort(), histogramsServer.getLocalPort(),
-        () -> stubbedTime, prependGroupName, transformer);
+        () -> stubbedTime, prependGroupName, transformer, 0, reportingThreads);
     metricsSocket = metricsServer.accept();
     histogramsSocket = histogramsServer.accept();
     fromMetrics = new BufferedInputStream(metricsSocket.getInputStream());
@@ -253,4 +259,40 @@ public class WavefrontYammerMetricsReporterTest {
         contains(equalTo("!M 1485224035 #101 50.0 \"group3.myhisto\" tag1=\"value1\" tag2=\"value2\"")));
   }
 
+  @Test(timeout = 1000)
+  public void testRepeatedAndReRegisteredMetrics() throws Exception {
+    MetricName metricName = new TaggedMetricName("group", "mycounter", "tag1", "value1");
+    Counter counter = metricsRegistry.newCounter(metricName);
+    counter.inc();
+    wavefrontYammerMetricsReporter.run();
+    counter.inc();
+    wavefrontYammerMetricsReporter.run();
+    assertThat(receiveFromSocket(2, fromMetrics), contains(
+        equalTo("\"mycounter\" 1.0 tag1=\"value1\""),
+        equalTo("\"mycounter\" 2.0 tag1=\"value1\"")));
+
+    metricsRegistry.removeMetric(metricName);
+    Histogram histogram = metricsRegistry.newHistogram(metricName, false);
+    histogram.update(5);
+    wavefrontYammerMetricsReporter.run();
+    assertThat(receiveFromSocket(12, fromMetrics), hasItems(
+        equalTo("\"mycounter.count\" 1.0 tag1=\"value1\""),
+        equalTo("\"mycounter.min\" 5.0 tag1=\"value1\"")));
+  }
+
+  @Test(timeout = 10000)
+  public void testLargeRegistryIsReportedInOrder() throws Exception {
+    innerSetUp(false, null, 4);
+    int numCounters = WavefrontYammerMetricsReporter.CHUNK_SIZE * 10 + 1;
+    List<String> expected = Lists.newArrayListWithCapacity(numCounters);
+    for (int i = 0; i < numCounters; i++) {
+      // zero-padded, so that the registry orders the counters like the loop
+      String name = String.format("mycount%05d", i);
+      metricsRegistry.newCounter(WavefrontYammerMetricsReporterTest.class, name).inc(i);
+      expected.add("\"" + name + "\" " + (double) i);
+    }
+    wavefrontYammerMetricsReporter.run();
+    assertThat(receiveFromSocket(numCounters, fromMetrics), equalTo(expected));
+    assertThat(wavefrontYammerMetricsReporter.getLastMetricCount(), equalTo(numCounters));
+  }
 }